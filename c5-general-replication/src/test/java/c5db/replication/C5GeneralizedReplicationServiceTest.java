@@ -25,6 +25,7 @@ import c5db.interfaces.DiscoveryModule;
 import c5db.interfaces.LogModule;
 import c5db.interfaces.ReplicationModule;
 import c5db.interfaces.replication.GeneralizedReplicator;
+import c5db.interfaces.replication.ReplicateBatchSubmissionInfo;
 import c5db.interfaces.replication.ReplicateSubmissionInfo;
 import c5db.log.LogService;
 import c5db.log.ReplicatorLogGenericTestUtil;
@@ -38,7 +39,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import org.hamcrest.Matcher;
 import org.jetlang.fibers.Fiber;
 import org.jetlang.fibers.PoolFiberFactory;
@@ -46,10 +46,13 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -68,7 +71,9 @@ import static com.google.common.util.concurrent.Futures.allAsList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
 
+@RunWith(Parameterized.class)
 public class C5GeneralizedReplicationServiceTest {
   @Rule
   public JUnitRuleFiberExceptions jUnitFiberExceptionHandler = new JUnitRuleFiberExceptions();
@@ -76,6 +81,28 @@ public class C5GeneralizedReplicationServiceTest {
   private static final int NUMBER_OF_PROCESSORS = Runtime.getRuntime().availableProcessors();
   private static final int DISCOVERY_PORT = 54333;
 
+  /**
+   * Each test runs once with the ReplicatorService's defaults over NIO, and once with several dispatch
+   * partitions and pooled direct buffers over epoll, where epoll is available.
+   */
+  @Parameterized.Parameters
+  public static Collection<Object[]> serviceConfigurations() {
+    return Arrays.asList(new Object[][]{
+        {ReplicatorConstants.REPLICATOR_DEFAULT_DISPATCH_PARTITIONS,
+            ReplicatorConstants.REPLICATOR_DEFAULT_USE_POOLED_DIRECT_BUFFERS, false},
+        {3, true, true}
+    });
+  }
+
+  private final ServiceConfiguration serviceConfiguration;
+
+  public C5GeneralizedReplicationServiceTest(int numberOfDispatchPartitions,
+                                             boolean usePooledDirectBuffers,
+                                             boolean preferEpoll) {
+    this.serviceConfiguration =
+        new ServiceConfiguration(numberOfDispatchPartitions, usePooledDirectBuffers, preferEpoll);
+  }
+
   private final Path baseTestPath = new C5CommonTestUtil().getDataTestDir("general-replicator-test");
 
   private final ExecutorService executorService = Executors.newFixedThreadPool(NUMBER_OF_PROCESSORS);
@@ -130,6 +157,22 @@ public class C5GeneralizedReplicationServiceTest {
     }
   }
 
+  @Test(timeout = 9000)
+  public void replicatesABatchAsConsecutiveSequenceNumbersWithASingleCompletionFuture() throws Exception {
+    List<Long> nodeIds = Lists.newArrayList(1L, 2L, 3L);
+
+    try (QuorumOfReplicatorsController controller = newQuorum(nodeIds)) {
+
+      GeneralizedReplicator replicator = controller.waitUntilAReplicatorIsReady();
+
+      ReplicateBatchSubmissionInfo batchResult =
+          replicator.replicateBatch(Lists.newArrayList(someData(), someData(), someData())).get();
+
+      assertThat(batchResult.lastSequenceNumber - batchResult.firstSequenceNumber, is(equalTo(2L)));
+      assertThat(batchResult.completedFuture, resultsIn(equalTo(null)));
+    }
+  }
+
 
   private Fiber newFiber(Consumer<Throwable> throwableHandler) {
     Fiber newFiber = fiberFactory.create(new ExceptionHandlingBatchExecutor(throwableHandler));
@@ -142,7 +185,8 @@ public class C5GeneralizedReplicationServiceTest {
   }
 
   private QuorumOfReplicatorsController newQuorum(Collection<Long> nodeIds) throws Exception {
-    return new QuorumOfReplicatorsController(nodeIds, baseTestPath, mainTestFiber, this::newFiber, jUnitFiberExceptionHandler);
+    return new QuorumOfReplicatorsController(nodeIds, baseTestPath, mainTestFiber, this::newFiber,
+        jUnitFiberExceptionHandler, serviceConfiguration);
   }
 
   private ListenableFuture<List<ReplicateSubmissionInfo>> resultFutureForNReplicateRequests(
@@ -188,6 +232,18 @@ public class C5GeneralizedReplicationServiceTest {
         ));
   }
 
+  private static class ServiceConfiguration {
+    public final int numberOfDispatchPartitions;
+    public final boolean usePooledDirectBuffers;
+    public final boolean preferEpoll;
+
+    public ServiceConfiguration(int numberOfDispatchPartitions, boolean usePooledDirectBuffers, boolean preferEpoll) {
+      this.numberOfDispatchPartitions = numberOfDispatchPartitions;
+      this.usePooledDirectBuffers = usePooledDirectBuffers;
+      this.preferEpoll = preferEpoll;
+    }
+  }
+
   /**
    * Runs a C5GeneralizedReplicationService and handles startup and disposal,
    * for the purpose of making tests more readable
@@ -211,13 +267,17 @@ public class C5GeneralizedReplicationServiceTest {
                                       FiberSupplier fiberSupplier,
                                       Consumer<Throwable> exceptionHandler,
                                       EventLoopGroup bossGroup,
-                                      EventLoopGroup workerGroup) throws Exception {
+                                      EventLoopGroup workerGroup,
+                                      ServiceConfiguration serviceConfiguration) throws Exception {
 
       moduleInfo = new SimpleModuleInformationProvider(testFiber, exceptionHandler);
 
-      replicationModule =
+      ReplicatorService replicatorService =
           new ReplicatorService(bossGroup, workerGroup, nodeId, port, moduleInfo, fiberSupplier,
               new NioQuorumFileReaderWriter(baseTestPath));
+      replicatorService.setNumberOfDispatchPartitions(serviceConfiguration.numberOfDispatchPartitions);
+      replicatorService.setUsePooledDirectBuffers(serviceConfiguration.usePooledDirectBuffers);
+      replicationModule = replicatorService;
       logModule = new LogService(baseTestPath, fiberSupplier);
       nodeInfoModule = new BeaconService(nodeId, DISCOVERY_PORT, workerGroup, moduleInfo, fiberSupplier);
 
@@ -263,9 +323,10 @@ public class C5GeneralizedReplicationServiceTest {
     private final Fiber testFiber;
     private final FiberSupplier fiberSupplier;
     private final Consumer<Throwable> exceptionHandler;
+    private final ServiceConfiguration serviceConfiguration;
 
-    private final EventLoopGroup bossGroup = new NioEventLoopGroup(NUMBER_OF_PROCESSORS / 3);
-    private final EventLoopGroup workerGroup = new NioEventLoopGroup(NUMBER_OF_PROCESSORS / 3);
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
 
     private final Map<Long, SingleReplicatorController> controllers = new HashMap<>();
     private final Map<Long, GeneralizedReplicator> replicators = new HashMap<>();
@@ -274,13 +335,18 @@ public class C5GeneralizedReplicationServiceTest {
                                          Path baseTestPath,
                                          Fiber testFiber,
                                          FiberSupplier fiberSupplier,
-                                         Consumer<Throwable> exceptionHandler) throws Exception {
+                                         Consumer<Throwable> exceptionHandler,
+                                         ServiceConfiguration serviceConfiguration) throws Exception {
 
       this.peerIds = peerIds;
       this.baseTestPath = baseTestPath;
       this.testFiber = testFiber;
       this.fiberSupplier = fiberSupplier;
       this.exceptionHandler = exceptionHandler;
+      this.serviceConfiguration = serviceConfiguration;
+
+      bossGroup = NettyTransport.newEventLoopGroup(NUMBER_OF_PROCESSORS / 3, serviceConfiguration.preferEpoll);
+      workerGroup = NettyTransport.newEventLoopGroup(NUMBER_OF_PROCESSORS / 3, serviceConfiguration.preferEpoll);
 
       createControllersForEachPeerId();
     }
@@ -314,7 +380,7 @@ public class C5GeneralizedReplicationServiceTest {
 
       for (long nodeId : peerIds) {
         SingleReplicatorController controller = new SingleReplicatorController(port, nodeId, peerIds,
-            baseTestPath, testFiber, fiberSupplier, exceptionHandler, bossGroup, workerGroup);
+            baseTestPath, testFiber, fiberSupplier, exceptionHandler, bossGroup, workerGroup, serviceConfiguration);
         controllers.put(nodeId, controller);
 
         port++;
@@ -48,6 +48,19 @@ public interface GeneralizedReplicator {
   ListenableFuture<ReplicateSubmissionInfo> replicate(List<ByteBuffer> data)
       throws InterruptedException, InvalidReplicatorStateException;
 
+  /**
+   * Replicate a batch of data durably, in a single submission. The data are assigned consecutive
+   * sequence numbers, in the order they are given, with the same guarantees as for replicate(). The
+   * returned future, on success, contains the range of sequence numbers assigned, together with a
+   * single future which will return when all of the data in the batch has been durably replicated;
+   * or will contain an exception if it is known that a problem occurred while replicating it.
+   * <p>
+   * This is equivalent to calling replicate() once for each element of the batch, except that the
+   * data are guaranteed to be numbered consecutively, and that it is much less costly per element.
+   */
+  ListenableFuture<ReplicateBatchSubmissionInfo> replicateBatch(List<List<ByteBuffer>> dataBatch)
+      throws InterruptedException, InvalidReplicatorStateException;
+
   /**
    * Return a future which will not complete until the GeneralizedReplicator is in a state
    * in which it can accept replicate() requests. If the GeneralizedReplicator is already
@@ -60,6 +73,13 @@ public interface GeneralizedReplicator {
    */
   ListenableFuture<Void> isAvailableFuture();
 
+  /**
+   * Provide the means to move snapshots of the application's state between replicas, so that a new or
+   * far-behind replica can be brought up to date with a single snapshot transfer, rather than by
+   * replaying the whole log.
+   */
+  void setSnapshotProvider(SnapshotProvider snapshotProvider);
+
   /**
    * An exception thrown when attempting to replicate but the GeneralizedReplicator is not
    * accepting replication requests -- perhaps because the replicator must be in a certain
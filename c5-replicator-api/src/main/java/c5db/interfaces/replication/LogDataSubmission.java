@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.interfaces.replication;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Value-type immutable object returned when trying to submit data to a Replicator without
+ * blocking. Either the submission was accepted, in which case receiptFuture will yield the
+ * receipt for the log request just as if it had been submitted with
+ * {@link Replicator#logData(java.util.List)}; or else it was rejected, and receiptFuture is null.
+ * <p>
+ * Either way, queuedRequests and queuedBytes tell how many requests, and how many bytes of data,
+ * were waiting in the Replicator's queue at the time of the submission, including this one if it
+ * was accepted. A caller whose submission was rejected because the queue was full can use these
+ * to decide how long to back off before trying again.
+ */
+public final class LogDataSubmission {
+  public enum Outcome {
+    ACCEPTED,
+    NOT_LEADER,
+    QUEUE_FULL
+  }
+
+  public final Outcome outcome;
+  public final ListenableFuture<ReplicatorReceipt> receiptFuture;
+  public final int queuedRequests;
+  public final long queuedBytes;
+
+  public static LogDataSubmission accepted(ListenableFuture<ReplicatorReceipt> receiptFuture,
+                                           int queuedRequests,
+                                           long queuedBytes) {
+    return new LogDataSubmission(Outcome.ACCEPTED, receiptFuture, queuedRequests, queuedBytes);
+  }
+
+  public static LogDataSubmission rejected(Outcome outcome, int queuedRequests, long queuedBytes) {
+    assert outcome != Outcome.ACCEPTED;
+    return new LogDataSubmission(outcome, null, queuedRequests, queuedBytes);
+  }
+
+  public boolean isAccepted() {
+    return outcome == Outcome.ACCEPTED;
+  }
+
+  private LogDataSubmission(Outcome outcome,
+                            ListenableFuture<ReplicatorReceipt> receiptFuture,
+                            int queuedRequests,
+                            long queuedBytes) {
+    this.outcome = outcome;
+    this.receiptFuture = receiptFuture;
+    this.queuedRequests = queuedRequests;
+    this.queuedBytes = queuedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "LogDataSubmission{" +
+        "outcome=" + outcome +
+        ", queuedRequests=" + queuedRequests +
+        ", queuedBytes=" + queuedBytes +
+        '}';
+  }
+}
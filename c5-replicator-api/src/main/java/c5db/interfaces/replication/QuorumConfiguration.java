@@ -17,24 +17,33 @@
 package c5db.interfaces.replication;
 
 import c5db.replication.generated.QuorumConfigurationMessage;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.collect.SortedMultiset;
-import com.google.common.collect.TreeMultiset;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Immutable value type representing a configuration of which peers are members of a quorum.
  * It satisfies the following invariants: if isTransitional is true, then allPeers is
  * the union of prevPeers and nextPeers. If isTransitional is false, then prevPeers
  * and nextPeers are empty.
+ * <p>
+ * A configuration may also have learners: non-voting members, which receive every entry, but whose
+ * acknowledgements do not count toward committing entries, and whose votes do not count toward
+ * electing a leader. A new peer can join as a learner, and be promoted to a voter once it has caught
+ * up, so that it doesn't hold up commits while it is still far behind. Learners are included in
+ * allPeers, but never in prevPeers or nextPeers; voters() holds the peers which are not learners.
+ * <p>
+ * Each peer in allPeers is also assigned a slot, an integer from 0 up to (but not including)
+ * the number of peers, so that a caller can keep per-peer state for this configuration in
+ * primitive arrays indexed by slot, rather than in maps keyed by peer ID.
  */
 public final class QuorumConfiguration {
 
@@ -43,33 +52,66 @@ public final class QuorumConfiguration {
   private final Set<Long> allPeers;
   private final Set<Long> prevPeers;
   private final Set<Long> nextPeers;
+  private final Set<Long> learners;
+  private final Set<Long> voters;
 
-  public static final QuorumConfiguration EMPTY = new QuorumConfiguration(new HashSet<>());
+  // Peer IDs in ascending order; the slot of each peer is its position in this array.
+  private final long[] slotPeerIds;
+
+  // The slots of the peers whose majority is needed, in each group that needs one.
+  private final int[] allSlots;
+  private final int[] prevSlots;
+  private final int[] nextSlots;
+
+  public static final QuorumConfiguration EMPTY = new QuorumConfiguration(new HashSet<>(), new HashSet<>());
 
   public static QuorumConfiguration of(Collection<Long> peerCollection) {
-    return new QuorumConfiguration(peerCollection);
+    return new QuorumConfiguration(peerCollection, ImmutableSet.of());
   }
 
   public static QuorumConfiguration fromProtostuff(c5db.replication.generated.QuorumConfigurationMessage message) {
+    final List<Long> learners = message.getLearnersList() == null
+        ? ImmutableList.of()
+        : message.getLearnersList();
+
     if (message.getTransitional()) {
-      return new QuorumConfiguration(message.getPrevPeersList(), message.getNextPeersList());
+      return new QuorumConfiguration(message.getPrevPeersList(), message.getNextPeersList(), learners);
     } else {
-      return new QuorumConfiguration(message.getAllPeersList());
+      return new QuorumConfiguration(Sets.difference(ImmutableSet.copyOf(message.getAllPeersList()),
+          ImmutableSet.copyOf(learners)), learners);
     }
   }
 
+  /**
+   * Return the transitional configuration from this configuration's voters to the given peers. Any
+   * learners among the new peers become voters in the next configuration; the rest remain learners.
+   */
   public QuorumConfiguration getTransitionalConfiguration(Collection<Long> newPeerCollection) {
+    final Set<Long> remainingLearners = Sets.difference(learners, ImmutableSet.copyOf(newPeerCollection));
     if (isTransitional) {
-      return new QuorumConfiguration(prevPeers, newPeerCollection);
+      return new QuorumConfiguration(prevPeers, newPeerCollection, remainingLearners);
     } else {
-      return new QuorumConfiguration(allPeers, newPeerCollection);
+      return new QuorumConfiguration(voters, newPeerCollection, remainingLearners);
     }
   }
 
   public QuorumConfiguration getCompletedConfiguration() {
     assert isTransitional;
 
-    return new QuorumConfiguration(nextPeers);
+    return new QuorumConfiguration(nextPeers, learners);
+  }
+
+  /**
+   * Return a configuration like this one, but with the given learners in place of the current ones.
+   * Any of the given peers which are already voters remain voters.
+   */
+  public QuorumConfiguration withLearners(Collection<Long> newLearners) {
+    final Set<Long> learnersWhoAreNotVoters = Sets.difference(ImmutableSet.copyOf(newLearners), voters);
+    if (isTransitional) {
+      return new QuorumConfiguration(prevPeers, nextPeers, learnersWhoAreNotVoters);
+    } else {
+      return new QuorumConfiguration(voters, learnersWhoAreNotVoters);
+    }
   }
 
   public QuorumConfigurationMessage toProtostuff() {
@@ -77,7 +119,8 @@ public final class QuorumConfiguration {
         isTransitional,
         Lists.newArrayList(allPeers),
         Lists.newArrayList(prevPeers),
-        Lists.newArrayList(nextPeers));
+        Lists.newArrayList(nextPeers),
+        Lists.newArrayList(learners));
   }
 
   public Set<Long> allPeers() {
@@ -92,21 +135,48 @@ public final class QuorumConfiguration {
     return nextPeers;
   }
 
+  public Set<Long> learners() {
+    return learners;
+  }
+
+  public Set<Long> voters() {
+    return voters;
+  }
+
   public boolean isEmpty() {
     return allPeers.size() == 0
         && prevPeers.size() == 0
         && nextPeers.size() == 0;
   }
 
+  /**
+   * Return the number of slots in this configuration, which is the same as the number of peers.
+   */
+  public int numberOfSlots() {
+    return slotPeerIds.length;
+  }
+
+  /**
+   * Return the slot assigned to the given peer, or -1 if the peer is not part of this configuration.
+   */
+  public int slotOf(long peerId) {
+    int slot = Arrays.binarySearch(slotPeerIds, peerId);
+    return slot >= 0 ? slot : -1;
+  }
+
+  public long peerIdOfSlot(int slot) {
+    return slotPeerIds[slot];
+  }
+
   /**
    * Determine if the peers in sourceSet include a majority of the peers in this configuration.
    */
   public boolean setContainsMajority(Set<Long> sourceSet) {
     if (isTransitional) {
-      return setComprisesMajorityOfAnotherSet(sourceSet, prevPeers)
-          && setComprisesMajorityOfAnotherSet(sourceSet, nextPeers);
+      return countMembers(sourceSet, prevSlots) >= calculateNumericalMajority(prevSlots.length)
+          && countMembers(sourceSet, nextSlots) >= calculateNumericalMajority(nextSlots.length);
     } else {
-      return setComprisesMajorityOfAnotherSet(sourceSet, allPeers);
+      return countMembers(sourceSet, allSlots) >= calculateNumericalMajority(allSlots.length);
     }
   }
 
@@ -115,39 +185,143 @@ public final class QuorumConfiguration {
    * index value which is less than or equal to a majority of this configuration's peers' indexes.
    */
   public long calculateCommittedIndex(Map<Long, Long> peersLastAckedIndex) {
+    long[] lastAckedIndexBySlot = new long[slotPeerIds.length];
+    for (int slot = 0; slot < slotPeerIds.length; slot++) {
+      lastAckedIndexBySlot[slot] = peersLastAckedIndex.getOrDefault(slotPeerIds[slot], 0L);
+    }
+    return calculateCommittedIndex(lastAckedIndexBySlot, new long[slotPeerIds.length]);
+  }
+
+  /**
+   * Like {@link #calculateCommittedIndex(Map)}, but the last acknowledged entry index of each peer is
+   * given by an array indexed by slot. The scratch array must have at least {@link #numberOfSlots()}
+   * elements; its contents are overwritten. This method does not allocate, so it may be called on
+   * every acknowledgement without generating garbage.
+   */
+  public long calculateCommittedIndex(long[] lastAckedIndexBySlot, long[] scratch) {
     if (isTransitional) {
       return Math.min(
-          getGreatestIndexCommittedByMajority(prevPeers, peersLastAckedIndex),
-          getGreatestIndexCommittedByMajority(nextPeers, peersLastAckedIndex));
+          getGreatestIndexCommittedByMajority(prevSlots, lastAckedIndexBySlot, scratch),
+          getGreatestIndexCommittedByMajority(nextSlots, lastAckedIndexBySlot, scratch));
     } else {
-      return getGreatestIndexCommittedByMajority(allPeers, peersLastAckedIndex);
+      return getGreatestIndexCommittedByMajority(allSlots, lastAckedIndexBySlot, scratch);
     }
   }
 
 
-  private QuorumConfiguration(Collection<Long> peers) {
+  private QuorumConfiguration(Collection<Long> peers, Collection<Long> learners) {
     this.isTransitional = false;
-    allPeers = ImmutableSet.copyOf(peers);
+    voters = ImmutableSet.copyOf(peers);
+    this.learners = Sets.difference(ImmutableSet.copyOf(learners), voters).immutableCopy();
+    allPeers = Sets.union(voters, this.learners).immutableCopy();
     prevPeers = nextPeers = ImmutableSet.of();
+
+    slotPeerIds = sortedPeerIds(allPeers);
+    allSlots = slotsOf(voters);
+    prevSlots = nextSlots = new int[0];
   }
 
-  private QuorumConfiguration(Collection<Long> prevPeers, Collection<Long> nextPeers) {
+  private QuorumConfiguration(Collection<Long> prevPeers, Collection<Long> nextPeers, Collection<Long> learners) {
     this.isTransitional = true;
     this.prevPeers = ImmutableSet.copyOf(prevPeers);
     this.nextPeers = ImmutableSet.copyOf(nextPeers);
-    this.allPeers = Sets.union(this.prevPeers, this.nextPeers).immutableCopy();
+    this.voters = Sets.union(this.prevPeers, this.nextPeers).immutableCopy();
+    this.learners = Sets.difference(ImmutableSet.copyOf(learners), voters).immutableCopy();
+    this.allPeers = Sets.union(voters, this.learners).immutableCopy();
+
+    slotPeerIds = sortedPeerIds(allPeers);
+    allSlots = slotsOf(voters);
+    prevSlots = slotsOf(this.prevPeers);
+    nextSlots = slotsOf(this.nextPeers);
+  }
+
+
+  private static long[] sortedPeerIds(Set<Long> peers) {
+    long[] peerIds = new long[peers.size()];
+    int i = 0;
+    for (long peerId : peers) {
+      peerIds[i++] = peerId;
+    }
+    Arrays.sort(peerIds);
+    return peerIds;
   }
 
+  private int[] slotsOf(Set<Long> peers) {
+    int[] slots = new int[peers.size()];
+    int i = 0;
+    for (long peerId : peers) {
+      slots[i++] = slotOf(peerId);
+    }
+    Arrays.sort(slots);
+    return slots;
+  }
 
-  private static long getGreatestIndexCommittedByMajority(Set<Long> peers, Map<Long, Long> peersLastAckedIndex) {
-    SortedMultiset<Long> committedIndexes = TreeMultiset.create();
-    committedIndexes.addAll(peers.stream().map(peerId
-        -> peersLastAckedIndex.getOrDefault(peerId, 0L)).collect(Collectors.toList()));
-    return Iterables.get(committedIndexes.descendingMultiset(), calculateNumericalMajority(peers.size()) - 1);
+  private int countMembers(Set<Long> sourceSet, int[] slots) {
+    int count = 0;
+    for (int slot : slots) {
+      if (sourceSet.contains(slotPeerIds[slot])) {
+        count++;
+      }
+    }
+    return count;
   }
 
-  private static <T> boolean setComprisesMajorityOfAnotherSet(Set<T> sourceSet, Set<T> destinationSet) {
-    return Sets.intersection(sourceSet, destinationSet).size() >= calculateNumericalMajority(destinationSet.size());
+  /**
+   * Find the greatest index which at least a majority of the peers in the given slots have acknowledged;
+   * that is, the index at position (majority - 1) if the indexes were sorted in descending order. This
+   * is found by selection within the scratch array, in expected time linear in the number of slots.
+   */
+  private static long getGreatestIndexCommittedByMajority(int[] slots, long[] lastAckedIndexBySlot, long[] scratch) {
+    if (slots.length == 0) {
+      return 0;
+    }
+
+    for (int i = 0; i < slots.length; i++) {
+      scratch[i] = lastAckedIndexBySlot[slots[i]];
+    }
+
+    return select(scratch, slots.length, slots.length - calculateNumericalMajority(slots.length));
+  }
+
+  /**
+   * Return the value which would be at position k if the first n elements of the array were sorted in
+   * ascending order. The first n elements are reordered in the process.
+   */
+  private static long select(long[] values, int n, int k) {
+    int left = 0;
+    int right = n - 1;
+
+    while (left < right) {
+      long pivot = values[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          long temp = values[i];
+          values[i] = values[j];
+          values[j] = temp;
+          i++;
+          j--;
+        }
+      }
+
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return values[k];
+      }
+    }
+
+    return values[k];
   }
 
   private static int calculateNumericalMajority(int setSize) {
@@ -161,6 +335,7 @@ public final class QuorumConfiguration {
         ", allPeers=" + allPeers +
         ", prevPeers=" + prevPeers +
         ", nextPeers=" + nextPeers +
+        ", learners=" + learners +
         '}';
   }
 
@@ -178,7 +353,8 @@ public final class QuorumConfiguration {
     return isTransitional == that.isTransitional
         && allPeers.equals(that.allPeers)
         && nextPeers.equals(that.nextPeers)
-        && prevPeers.equals(that.prevPeers);
+        && prevPeers.equals(that.prevPeers)
+        && learners.equals(that.learners);
   }
 
   @Override
@@ -187,6 +363,7 @@ public final class QuorumConfiguration {
     result = 31 * result + allPeers.hashCode();
     result = 31 * result + prevPeers.hashCode();
     result = 31 * result + nextPeers.hashCode();
+    result = 31 * result + learners.hashCode();
     return result;
   }
 }
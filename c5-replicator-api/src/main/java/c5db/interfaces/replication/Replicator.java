@@ -60,8 +60,8 @@ public interface Replicator {
   ListenableFuture<ReplicatorReceipt> changeQuorum(Collection<Long> newPeers) throws InterruptedException;
 
   /**
-   * Submit data to be replicated.
-   * TODO we may want a variation of this method which does not block
+   * Submit data to be replicated. If the Replicator's queue of pending requests is full, this
+   * method blocks until there is room; see {@link #tryLogData(List)} for a variation which does not.
    *
    * @param data Some data to log.
    * @return a listenable for a receipt for the log request, OR null if we aren't the leader.
@@ -70,6 +70,95 @@ public interface Replicator {
    */
   ListenableFuture<ReplicatorReceipt> logData(List<ByteBuffer> data) throws InterruptedException;
 
+  /**
+   * Submit data to be replicated, without blocking. If the Replicator's queue of pending requests
+   * has no room for the data -- either because it holds as many requests as it can, or because
+   * the data would take it over its limit on the total number of bytes -- the submission is
+   * rejected immediately.
+   *
+   * @param data Some data to log.
+   * @return an object telling whether the submission was accepted, and if so, holding a listenable
+   * for a receipt for the log request, exactly as returned by {@link #logData(List)}. It also tells
+   * how full the queue was, so that a rejected caller can apply backpressure to its own clients.
+   */
+  LogDataSubmission tryLogData(List<ByteBuffer> data);
+
+  /**
+   * Submit a batch of data to be replicated, each element of the batch to be logged as its own
+   * entry. The batch is queued as a single request, so its entries are guaranteed to be logged
+   * with consecutive sequence numbers, in the order given, and all in the same term. Like
+   * {@link #logData(List)}, this method blocks if the request queue is full.
+   *
+   * @param dataBatch A nonempty list of data, each element of which would be suitable to pass to logData.
+   * @return a listenable for a single receipt covering every entry in the batch, OR null if we aren't the
+   * leader.
+   */
+  ListenableFuture<ReplicatorBatchReceipt> logDataBatch(List<List<ByteBuffer>> dataBatch)
+      throws InterruptedException;
+
+  /**
+   * Obtain an index at which a linearizable read may be served, without logging anything. Once the
+   * caller has applied every entry up to and including the returned index -- that is, once it has
+   * received commit notices reaching that index -- its state reflects every write which was
+   * committed before this method was called, so it may answer a read from that state.
+   * <p>
+   * The leader confirms that it is still the leader by a round of heartbeats to the quorum before
+   * answering, unless it holds a lease (see ReplicatorOptions); a leader which has yet to commit an
+   * entry from its own term first logs an entry with no data, and waits for it to commit.
+   *
+   * @return a listenable for the read index, which fails if the Replicator stops being the leader, or
+   * begins transferring leadership, before the index is confirmed, OR null if we aren't the leader, or
+   * are transferring leadership.
+   */
+  ListenableFuture<Long> getReadIndex();
+
+  /**
+   * Wait until this Replicator's commit index reaches at least the given index, whatever its state.
+   * Together with {@link #getReadIndex()}, this lets any member of the quorum, not only the leader,
+   * serve a linearizable read: obtain a read index from the leader, then wait here for it, then
+   * read from local state once the entries up to it are applied.
+   *
+   * @param index The index to wait for.
+   * @return a listenable for the commit index as of when it reached the given index. The commit
+   * notices covering the index are issued before the future is set.
+   */
+  ListenableFuture<Long> waitForCommitIndex(long index);
+
+  /**
+   * Hand leadership of the quorum to the given peer: stop accepting new requests and reads, bring the peer's log
+   * fully up to date, then tell it to start an election at once, without waiting for its election timeout.
+   * This keeps the quorum unavailable for about one round trip, rather than for an election timeout, as
+   * when a leader is shut down, or moved to balance load across nodes.
+   * <p>
+   * If leadership has not passed within an election timeout, the transfer is abandoned, and this
+   * Replicator, if still leader, accepts new requests again.
+   *
+   * @param targetPeer The peer ID of a member of the quorum to become leader.
+   * @return a listenable which completes once this Replicator has stepped down in favor of the target, OR
+   * null if we aren't the leader, or are already transferring leadership.
+   */
+  ListenableFuture<Void> transferLeadership(long targetPeer);
+
+  /**
+   * Tell this Replicator that the application has taken a snapshot including the effects of every entry
+   * up to and including the given index, so that its log need no longer retain those entries. Peers
+   * which later need them are sent the application's snapshot instead; see
+   * {@link #setSnapshotProvider(SnapshotProvider)}.
+   *
+   * @param snapshotIndex The index of the last entry the snapshot includes; it must have been committed.
+   * @return a listenable which completes once the entries have been discarded.
+   */
+  ListenableFuture<Void> compactLog(long snapshotIndex);
+
+  /**
+   * Provide the means for this Replicator to send snapshots of the application's state to peers which
+   * need entries its log no longer retains, and to install snapshots it receives. Without a provider,
+   * such peers cannot be brought up to date, and snapshots sent to this Replicator are refused.
+   *
+   * @param snapshotProvider The application's snapshot provider.
+   */
+  void setSnapshotProvider(SnapshotProvider snapshotProvider);
+
   /**
    * @return The numerical ID for the server, or node, on which this Replicator resides. More
    * than one Replicator may have the same node ID, but any two Replicators operating at the same
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.interfaces.replication;
+
+/**
+ * Receipt returned when logging a batch of data to a Replicator in a single submission. The
+ * entries of the batch are logged with consecutive sequence numbers, from firstSeqNum to seqNum,
+ * inclusive, all in the same term. Since seqNum is the last of these, a commit notice covering
+ * seqNum in the receipt's term means that the whole batch has been committed; so this receipt may
+ * be used wherever a {@link ReplicatorReceipt} for the last entry would be.
+ */
+public class ReplicatorBatchReceipt extends ReplicatorReceipt {
+  public final long firstSeqNum;
+
+  public ReplicatorBatchReceipt(long term, long firstSeqNum, long lastSeqNum) {
+    super(term, lastSeqNum);
+    this.firstSeqNum = firstSeqNum;
+  }
+
+  public long lastSeqNum() {
+    return seqNum;
+  }
+
+  @Override
+  public String toString() {
+    return "ReplicatorBatchReceipt{" +
+        "term=" + term +
+        ", firstSeqNum=" + firstSeqNum +
+        ", lastSeqNum=" + seqNum +
+        '}';
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return super.equals(o)
+        && firstSeqNum == ((ReplicatorBatchReceipt) o).firstSeqNum;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * super.hashCode() + (int) (firstSeqNum ^ (firstSeqNum >>> 32));
+  }
+}
@@ -69,6 +69,29 @@ public interface ReplicatorLog {
    */
   long getLogTerm(long index);
 
+  /**
+   * Get the terms of the entries in a specified range of indexes from firstIndex to lastIndex, both
+   * inclusive, expressed as runs of consecutive entries sharing the same term, in ascending order of
+   * index. This is expected to take time proportional to the number of distinct terms in the range,
+   * rather than to the number of entries, so it's a synchronous interface. Every index in the range
+   * must be present in the log.
+   *
+   * @param firstIndex the index of the first entry in the range
+   * @param lastIndex  the index of the last entry in the range
+   * @return the runs of entries covering the range, or an empty list if lastIndex is less than firstIndex
+   */
+  List<TermRun> getTermRuns(long firstIndex, long lastIndex);
+
+  /**
+   * Get the run of consecutive entries sharing the term of the entry at the given index, limited to
+   * the entries present in the log. This is expected to take time at most logarithmic in the size of
+   * the log, so it's a synchronous interface. The index must be present in the log.
+   *
+   * @param index the index of an entry in the run
+   * @return the run of entries containing the given index
+   */
+  TermRun getTermRun(long index);
+
   /**
    * Gets the term value for the last entry in the log. if the log is empty, then this will return
    * 0. A term value of 0 should never be valid.
@@ -85,6 +108,40 @@ public interface ReplicatorLog {
    */
   long getLastIndex();
 
+  /**
+   * Gets the index of the first entry the log retains. Entries before it have been replaced by a
+   * snapshot, and can no longer be read; but the term of the entry just before it can still be
+   * looked up with getLogTerm(long).
+   *
+   * @return the index of the first retained entry; 1 if no entries have been replaced by a snapshot.
+   */
+  long getFirstIndex();
+
+  /**
+   * Discard entries from the start of the log, because a snapshot now covers them. Afterwards,
+   * getFirstIndex() returns lastIndexToDiscard + 1; the term of the entry at lastIndexToDiscard may
+   * still be looked up, and the latest configuration is unaffected.
+   *
+   * @param lastIndexToDiscard Discard entries up to, and including, the entry with this index.
+   * @return A future set to true upon completion, or set with an exception upon failure.
+   */
+  ListenableFuture<Boolean> discardPrefix(long lastIndexToDiscard);
+
+  /**
+   * Discard every entry in the log, and begin again just after a snapshot which covers all the entries
+   * up to and including lastIncludedIndex. Afterwards, getLastIndex() returns lastIncludedIndex,
+   * getFirstIndex() returns lastIncludedIndex + 1, getLogTerm(lastIncludedIndex) and getLastTerm() return
+   * lastIncludedTerm, and getLastConfiguration() returns the given configuration, until more entries
+   * are logged.
+   *
+   * @param lastIncludedIndex         the index of the last entry covered by the snapshot
+   * @param lastIncludedTerm          the term of that entry
+   * @param lastIncludedConfiguration the latest configuration as of that entry
+   * @return A future set to true upon completion, or set with an exception upon failure.
+   */
+  ListenableFuture<Boolean> resetToSnapshot(long lastIncludedIndex, long lastIncludedTerm,
+                                            QuorumConfiguration lastIncludedConfiguration);
+
   /**
    * Delete all log entries after and including the specified index.
    * <p>
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.interfaces.replication;
+
+/**
+ * Identifies a snapshot of a replicated state machine: the state as of having applied every log
+ * entry up to and including lastIncludedIndex, whose term was lastIncludedTerm, when the latest
+ * configuration of the quorum was lastIncludedConfiguration. The snapshot's data is held by the
+ * application's {@link SnapshotProvider}.
+ */
+public final class SnapshotDescriptor {
+  public final long lastIncludedIndex;
+  public final long lastIncludedTerm;
+  public final QuorumConfiguration lastIncludedConfiguration;
+
+  public SnapshotDescriptor(long lastIncludedIndex, long lastIncludedTerm,
+                            QuorumConfiguration lastIncludedConfiguration) {
+    this.lastIncludedIndex = lastIncludedIndex;
+    this.lastIncludedTerm = lastIncludedTerm;
+    this.lastIncludedConfiguration = lastIncludedConfiguration;
+  }
+
+  @Override
+  public String toString() {
+    return "SnapshotDescriptor{" +
+        "lastIncludedIndex=" + lastIncludedIndex +
+        ", lastIncludedTerm=" + lastIncludedTerm +
+        ", lastIncludedConfiguration=" + lastIncludedConfiguration +
+        '}';
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    SnapshotDescriptor that = (SnapshotDescriptor) o;
+
+    return lastIncludedIndex == that.lastIncludedIndex
+        && lastIncludedTerm == that.lastIncludedTerm
+        && lastIncludedConfiguration.equals(that.lastIncludedConfiguration);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (lastIncludedIndex ^ (lastIncludedIndex >>> 32));
+    result = 31 * result + (int) (lastIncludedTerm ^ (lastIncludedTerm >>> 32));
+    result = 31 * result + lastIncludedConfiguration.hashCode();
+    return result;
+  }
+}
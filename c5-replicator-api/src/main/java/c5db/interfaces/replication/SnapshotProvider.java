@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.interfaces.replication;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by the application using a {@link Replicator}, to let the replicator move snapshots of the
+ * application's state between peers. A leader sends a snapshot to a peer which needs entries the leader's
+ * log no longer retains, such as a new or far-behind peer; the peer installs the snapshot in place of
+ * replaying those entries.
+ * <p>
+ * Snapshot data is an opaque sequence of bytes, read and written in chunks in order of offset. Calls are
+ * made from the replicator's fiber, so implementations should return futures rather than block.
+ */
+public interface SnapshotProvider {
+  /**
+   * Sending side: describe the most recent complete snapshot available.
+   *
+   * @return a future yielding the snapshot's descriptor, or null if there is no snapshot.
+   */
+  ListenableFuture<SnapshotDescriptor> getLatestSnapshot();
+
+  /**
+   * Sending side: read part of the data of a snapshot previously returned by getLatestSnapshot.
+   *
+   * @param snapshot The snapshot to read.
+   * @param offset   The offset within the snapshot's data at which to begin.
+   * @param maxBytes The greatest number of bytes to return.
+   * @return a future yielding up to maxBytes of data; fewer than maxBytes means the end of the data
+   * has been reached.
+   */
+  ListenableFuture<ByteBuffer> readSnapshotChunk(SnapshotDescriptor snapshot, long offset, int maxBytes);
+
+  /**
+   * Receiving side: accept a chunk of a snapshot being received. The chunks of a snapshot arrive in
+   * order, beginning with offset zero; a chunk at offset zero begins a new snapshot, discarding any
+   * partially received one.
+   *
+   * @return a future which completes when the chunk has been stored.
+   */
+  ListenableFuture<Void> receiveSnapshotChunk(SnapshotDescriptor snapshot, long offset, ByteBuffer data);
+
+  /**
+   * Receiving side: every chunk of the given snapshot has been received; replace the application's
+   * state with it. Once the future completes, the replicator discards its log up to and including
+   * the snapshot's lastIncludedIndex, and commit notices resume with the entry after it. This is not
+   * called if the replicator's log already contains the snapshot's last entry; the log is kept instead,
+   * and commit notices continue from it as usual.
+   */
+  ListenableFuture<Void> installSnapshot(SnapshotDescriptor snapshot);
+}
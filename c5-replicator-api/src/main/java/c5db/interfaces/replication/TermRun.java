@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.interfaces.replication;
+
+/**
+ * A maximal run of consecutive log entries, from firstIndex to lastIndex inclusive, all of which
+ * have the same term. Since terms never decrease along the log, a range of the log consists of
+ * one run for each distinct term within it.
+ */
+public final class TermRun {
+  public final long firstIndex;
+  public final long lastIndex;
+  public final long term;
+
+  public TermRun(long firstIndex, long lastIndex, long term) {
+    this.firstIndex = firstIndex;
+    this.lastIndex = lastIndex;
+    this.term = term;
+  }
+
+  @Override
+  public String toString() {
+    return "TermRun{" +
+        "firstIndex=" + firstIndex +
+        ", lastIndex=" + lastIndex +
+        ", term=" + term +
+        '}';
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    TermRun that = (TermRun) o;
+
+    return firstIndex == that.firstIndex
+        && lastIndex == that.lastIndex
+        && term == that.term;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (int) (firstIndex ^ (firstIndex >>> 32));
+    result = 31 * result + (int) (lastIndex ^ (lastIndex >>> 32));
+    result = 31 * result + (int) (term ^ (term >>> 32));
+    return result;
+  }
+}
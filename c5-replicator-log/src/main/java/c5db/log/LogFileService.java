@@ -81,6 +81,26 @@ public class LogFileService implements LogPersistenceService<FilePersistence> {
     Files.delete(getCurrentLink(quorumId));
   }
 
+  @Override
+  public void deleteOldest(String quorumId, int count) throws IOException {
+    final NavigableMap<Long, Path> linkPathMap = getLinkPathMap(quorumId);
+    if (count >= linkPathMap.size()) {
+      throw new IllegalArgumentException("LogFileService#deleteOldest: cannot delete the current log");
+    }
+
+    int deleted = 0;
+    for (Path link : linkPathMap.values()) {
+      if (deleted == count) {
+        break;
+      }
+      // Remove the link first, so that the file is never listed once it may have been deleted.
+      final Path logFile = Files.readSymbolicLink(link);
+      Files.delete(link);
+      Files.deleteIfExists(logFile);
+      deleted++;
+    }
+  }
+
   @Override
   public ImmutableList<CheckedSupplier<FilePersistence, IOException>> getList(String quorumId) throws IOException {
 
@@ -82,6 +82,18 @@ public interface LogPersistenceService<P extends LogPersistenceService.BytePersi
    */
   void truncate(String quorumId) throws IOException;
 
+  /**
+   * Remove and delete the given number of the oldest data stores for the given quorum,
+   * rendering any instances referring to them invalid. This is an administrative action,
+   * used to discard log records no longer needed.
+   *
+   * @param quorumId Quorum ID.
+   * @param count    The number of data stores to delete, starting from the least recent;
+   *                 must be less than the number present, so that the current one remains.
+   * @throws IOException
+   */
+  void deleteOldest(String quorumId, int count) throws IOException;
+
   /**
    * Return an list of the data stores for this quorum, in order from most recent
    * to least recent. This method may perform IO, to determine which stores are
@@ -18,6 +18,7 @@ package c5db.log;
 
 import c5db.interfaces.replication.QuorumConfiguration;
 import c5db.interfaces.replication.ReplicatorLog;
+import c5db.interfaces.replication.TermRun;
 import c5db.replication.generated.LogEntry;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
@@ -101,6 +102,16 @@ public class Mooring implements ReplicatorLog {
     return log.getLogTerm(index, quorumId);
   }
 
+  @Override
+  public List<TermRun> getTermRuns(long firstIndex, long lastIndex) {
+    return log.getTermRuns(firstIndex, lastIndex, quorumId);
+  }
+
+  @Override
+  public TermRun getTermRun(long index) {
+    return log.getTermRun(index, quorumId);
+  }
+
   @Override
   public long getLastTerm() {
     return currentTerm;
@@ -111,6 +122,29 @@ public class Mooring implements ReplicatorLog {
     return lastIndex;
   }
 
+  @Override
+  public long getFirstIndex() {
+    return log.getFirstSeqNum(quorumId);
+  }
+
+  @Override
+  public ListenableFuture<Boolean> discardPrefix(long lastIndexToDiscard) {
+    return Futures.transform(log.discardPrefix(lastIndexToDiscard, quorumId), (Void ignore) -> true);
+  }
+
+  @Override
+  public ListenableFuture<Boolean> resetToSnapshot(long lastIncludedIndex, long lastIncludedTerm,
+                                                   QuorumConfiguration lastIncludedConfiguration) {
+    lastIndex = lastIncludedIndex;
+    currentTerm = lastIncludedTerm;
+    lastQuorumConfig = lastIncludedConfiguration;
+    lastQuorumConfigIndex = lastIncludedIndex;
+
+    return Futures.transform(
+        log.resetToSnapshot(lastIncludedIndex, lastIncludedTerm, lastIncludedConfiguration, quorumId),
+        (Void ignore) -> true);
+  }
+
   @Override
   public ListenableFuture<Boolean> truncateLog(long entryIndex) {
     if (entryIndex <= 0) {
@@ -17,10 +17,13 @@
 package c5db.log;
 
 import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.TermRun;
 import c5db.log.generated.OLogContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
@@ -63,6 +66,20 @@ public class NavigableMapOLogEntryOracle implements OLogEntryOracle {
     greatestSeqNum = seqNum - 1;
   }
 
+  @Override
+  public void notifyPrefixDiscarded(long seqNum) {
+    // The entry in effect at seqNum is the last at or before it; everything before that is superseded.
+    final Long termStart = termMap.floorKey(seqNum);
+    if (termStart != null) {
+      termMap.headMap(termStart, false).clear();
+    }
+
+    final Long configStart = configMap.floorKey(seqNum);
+    if (configStart != null) {
+      configMap.headMap(configStart, false).clear();
+    }
+  }
+
   @Override
   public long getGreatestSeqNum() {
     return greatestSeqNum;
@@ -83,6 +100,39 @@ public class NavigableMapOLogEntryOracle implements OLogEntryOracle {
     return entry == null ? 0 : entry.getValue();
   }
 
+  @Override
+  public List<TermRun> getTermRuns(long firstSeqNum, long lastSeqNum) {
+    final List<TermRun> termRuns = new ArrayList<>();
+    if (lastSeqNum < firstSeqNum) {
+      return termRuns;
+    }
+
+    // Every key in termMap is the first sequence number of a new term, so the keys after firstSeqNum,
+    // up to lastSeqNum, are exactly the boundaries between the runs in the requested range.
+    long runFirstSeqNum = firstSeqNum;
+    long runTerm = getTermAtSeqNum(firstSeqNum);
+    for (Map.Entry<Long, Long> termStart : termMap.subMap(firstSeqNum, false, lastSeqNum, true).entrySet()) {
+      termRuns.add(new TermRun(runFirstSeqNum, termStart.getKey() - 1, runTerm));
+      runFirstSeqNum = termStart.getKey();
+      runTerm = termStart.getValue();
+    }
+    termRuns.add(new TermRun(runFirstSeqNum, lastSeqNum, runTerm));
+
+    return termRuns;
+  }
+
+  @Override
+  public TermRun getTermRun(long seqNum) {
+    final Map.Entry<Long, Long> termStart = termMap.floorEntry(seqNum);
+    if (termStart == null) {
+      throw new IllegalArgumentException("no entry logged with seqNum " + seqNum);
+    }
+
+    final Long nextTermStart = termMap.higherKey(seqNum);
+    final long runLastSeqNum = nextTermStart == null ? greatestSeqNum : nextTermStart - 1;
+    return new TermRun(termStart.getKey(), runLastSeqNum, termStart.getValue());
+  }
+
   @Override
   public QuorumConfigurationWithSeqNum getLastQuorumConfig() {
     if (configMap.isEmpty()) {
@@ -16,6 +16,8 @@
 
 package c5db.log;
 
+import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.TermRun;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
@@ -79,6 +81,19 @@ public interface OLog extends AutoCloseable {
    */
   ListenableFuture<Boolean> truncateLog(long entrySeqNum, String quorumId);
 
+  /**
+   * Discard entries from the start of the log, because a snapshot has replaced them. Afterwards,
+   * getFirstSeqNum returns lastSeqNumToDiscard + 1, and the term and quorum configuration as of
+   * lastSeqNumToDiscard may still be retrieved; but earlier entries may no longer be. Storage holding
+   * only discarded entries is deleted asynchronously.
+   *
+   * @param lastSeqNumToDiscard Discard entries up to, and including, the entry with this seqNum;
+   *                            it must already have been logged.
+   * @param quorumId            Quorum id within which to discard entries
+   * @return Future indicating completion.
+   */
+  ListenableFuture<Void> discardPrefix(long lastSeqNumToDiscard, String quorumId);
+
   /**
    * Gets the sequence number the log expects to receive next for the given quorum. After
    * logging an entry, the next sequence number will be the entry's sequence number plus one.
@@ -88,6 +103,15 @@ public interface OLog extends AutoCloseable {
    */
   long getNextSeqNum(String quorumId);
 
+  /**
+   * Gets the first sequence number retained in the log for the given quorum. Entries before it
+   * have been replaced by a snapshot, and may not be retrieved.
+   *
+   * @param quorumId Quorum id
+   * @return The first retained sequence number; 1 if no entries have been replaced by a snapshot.
+   */
+  long getFirstSeqNum(String quorumId);
+
   /**
    * Gets the latest election term value in the log for the given quorum.
    *
@@ -106,6 +130,27 @@ public interface OLog extends AutoCloseable {
    */
   long getLogTerm(long seqNum, String quorumId);
 
+  /**
+   * Retrieve the terms of the entries for the given quorum from firstSeqNum to lastSeqNum, inclusive,
+   * as runs of consecutive entries sharing the same term.
+   *
+   * @param firstSeqNum Log entry seqNum at the start of the range
+   * @param lastSeqNum  Log entry seqNum at the end of the range
+   * @param quorumId    Log entry quorum
+   * @return One TermRun for each distinct term in the range, in ascending order.
+   */
+  List<TermRun> getTermRuns(long firstSeqNum, long lastSeqNum, String quorumId);
+
+  /**
+   * Retrieve the run of consecutive entries for the given quorum which share the term of the entry
+   * with the given seqNum, limited to the entries the log retains.
+   *
+   * @param seqNum   Log entry seqNum of an entry in the run
+   * @param quorumId Log entry quorum
+   * @return The TermRun containing this entry.
+   */
+  TermRun getTermRun(long seqNum, String quorumId);
+
   /**
    * Retrieve the latest quorum configuration and the sequence number on which it was
    * established.
@@ -131,6 +176,22 @@ public interface OLog extends AutoCloseable {
    */
   ListenableFuture<Void> roll(String quorumId) throws IOException;
 
+  /**
+   * Discard every entry in a quorum's log, and begin a new log just after a snapshot covering every
+   * entry up to and including baseSeqNum. The new log's header records the given base sequence
+   * number, term, and configuration, so that they may still be looked up as though the entry at
+   * baseSeqNum were present; the next entry to be logged must have sequence number baseSeqNum + 1.
+   *
+   * @param baseSeqNum    The sequence number of the last entry covered by the snapshot
+   * @param baseTerm      The term of that entry
+   * @param baseConfig    The latest quorum configuration as of that entry
+   * @param quorumId      Quorum id
+   * @return A future which will return when the operation is complete, or else yield an
+   * exception.
+   */
+  ListenableFuture<Void> resetToSnapshot(long baseSeqNum, long baseTerm, QuorumConfiguration baseConfig,
+                                         String quorumId);
+
   /**
    * Dispose of held resources after completing any pending operations.
    *
@@ -17,6 +17,9 @@
 package c5db.log;
 
 import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.TermRun;
+
+import java.util.List;
 
 /**
  * Keeps track of, and provides answers about, logged OLogEntries.
@@ -39,6 +42,15 @@ public interface OLogEntryOracle {
    */
   void notifyTruncation(long seqNum);
 
+  /**
+   * Discard information about entries which have been removed from the start of the log,
+   * keeping only what is needed to answer questions about seqNum and later sequence numbers.
+   * Afterwards, the oracle may return zero for the term of any earlier sequence number.
+   *
+   * @param seqNum The last sequence number removed from the start of the log, inclusive.
+   */
+  void notifyPrefixDiscarded(long seqNum);
+
   /**
    * Return the greatest sequence number of entries logged. If no entries have
    * been logged, return zero. Immediately after notifyTruncation is called, the
@@ -65,6 +77,26 @@ public interface OLogEntryOracle {
    */
   long getTermAtSeqNum(long seqNum);
 
+  /**
+   * Get the terms of the entries with sequence numbers from firstSeqNum to lastSeqNum, inclusive,
+   * as runs of consecutive entries sharing the same term, in ascending order.
+   *
+   * @param firstSeqNum Log sequence number of the first entry in the range
+   * @param lastSeqNum  Log sequence number of the last entry in the range
+   * @return One TermRun for each distinct term in the range; or an empty list if lastSeqNum is less
+   * than firstSeqNum.
+   */
+  List<TermRun> getTermRuns(long firstSeqNum, long lastSeqNum);
+
+  /**
+   * Get the run of consecutive entries sharing the term of the entry with the given sequence number.
+   * The run may begin before the first entry still retained, if a prefix of the log has been discarded.
+   *
+   * @param seqNum Log sequence number of an entry in the run
+   * @return The TermRun containing this sequence number.
+   */
+  TermRun getTermRun(long seqNum);
+
   /**
    * Get the last quorum configuration, together with the sequence number at which it was
    * established. If there is none, return the empty quorum configuration and a seqNum
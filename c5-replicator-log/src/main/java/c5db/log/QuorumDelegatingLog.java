@@ -18,6 +18,7 @@ package c5db.log;
 
 import c5db.LogConstants;
 import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.TermRun;
 import c5db.log.generated.OLogHeader;
 import c5db.util.C5Iterators;
 import c5db.util.CheckedSupplier;
@@ -133,11 +134,49 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
     });
   }
 
+  @Override
+  public ListenableFuture<Void> discardPrefix(long lastSeqNumToDiscard, String quorumId) {
+    final PerQuorum quorumStructure = getQuorumStructure(quorumId);
+    if (lastSeqNumToDiscard >= quorumStructure.getExpectedNextSequenceNumber()) {
+      throw new IllegalArgumentException("discardPrefix: seqNum " + lastSeqNumToDiscard + " has not been logged");
+    } else if (lastSeqNumToDiscard < quorumStructure.getFirstSeqNum()) {
+      return Futures.immediateFuture(null);
+    }
+
+    // The new first sequence number takes effect at once, before the task below runs. That task only
+    // deletes entries before it, and tasks for a quorum run in order, so any read submitted earlier still
+    // finds the entries it asks for. Until a roll records it, the current log's header holds an earlier
+    // first sequence number, but every entry from that one on is still present, so a log reopened in
+    // the meantime merely retains more than it needs to.
+    final long firstSeqNumToKeep = lastSeqNumToDiscard + 1;
+    final boolean discardsEveryEntry = firstSeqNumToKeep == quorumStructure.getExpectedNextSequenceNumber();
+    quorumStructure.setFirstSeqNum(firstSeqNumToKeep);
+    oLogEntryOracle(quorumId).notifyPrefixDiscarded(lastSeqNumToDiscard);
+
+    final OLogHeader newLogHeader = buildRollHeader(quorumId);
+
+    return submitQuorumTask(quorumId, () -> {
+      // Roll, so that the new first sequence number is recorded in the current log's header, only if
+      // that lets some log be deleted; otherwise the new first sequence number will be recorded by the
+      // next roll, of whatever cause.
+      if (discardsEveryEntry || quorumStructure.hasLogsPreceding(firstSeqNumToKeep)) {
+        quorumStructure.roll(newLogHeader);
+        quorumStructure.deleteLogsPreceding(firstSeqNumToKeep);
+      }
+      return null;
+    });
+  }
+
   @Override
   public long getNextSeqNum(String quorumId) {
     return getQuorumStructure(quorumId).getExpectedNextSequenceNumber();
   }
 
+  @Override
+  public long getFirstSeqNum(String quorumId) {
+    return getQuorumStructure(quorumId).getFirstSeqNum();
+  }
+
   @Override
   public long getLastTerm(String quorumId) {
     return oLogEntryOracle(quorumId).getLastTerm();
@@ -148,6 +187,21 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
     return oLogEntryOracle(quorumId).getTermAtSeqNum(seqNum);
   }
 
+  @Override
+  public List<TermRun> getTermRuns(long firstSeqNum, long lastSeqNum, String quorumId) {
+    return oLogEntryOracle(quorumId).getTermRuns(firstSeqNum, lastSeqNum);
+  }
+
+  @Override
+  public TermRun getTermRun(long seqNum, String quorumId) {
+    final TermRun termRun = oLogEntryOracle(quorumId).getTermRun(seqNum);
+    final long firstSeqNum = getFirstSeqNum(quorumId);
+    if (termRun.firstIndex >= firstSeqNum) {
+      return termRun;
+    }
+    return new TermRun(firstSeqNum, termRun.lastIndex, termRun.term);
+  }
+
   @Override
   public QuorumConfigurationWithSeqNum getLastQuorumConfig(String quorumId) {
     return oLogEntryOracle(quorumId).getLastQuorumConfig();
@@ -163,6 +217,25 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
     });
   }
 
+  @Override
+  public ListenableFuture<Void> resetToSnapshot(long baseSeqNum, long baseTerm, QuorumConfiguration baseConfig,
+                                                String quorumId) {
+    final PerQuorum quorumStructure = getQuorumStructure(quorumId);
+    final OLogHeader newLogHeader = new OLogHeader(baseTerm, baseSeqNum, baseConfig.toProtostuff(), baseSeqNum + 1);
+
+    quorumStructure.setExpectedNextSequenceNumber(baseSeqNum + 1);
+    quorumStructure.setFirstSeqNum(baseSeqNum + 1);
+    oLogEntryOracle(quorumId).notifyTruncation(1);
+    oLogEntryOracle(quorumId).notifyLogging(baseEntryOf(newLogHeader));
+
+    return submitQuorumTask(quorumId, () -> {
+      quorumStructure.roll(newLogHeader);
+      maybeSyncLogForQuorum(quorumId);
+      quorumStructure.deleteLogsPreceding(baseSeqNum + 1);
+      return null;
+    });
+  }
+
   @Override
   public void close() throws IOException {
     try {
@@ -196,6 +269,7 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
      * public methods; in other words, they may not be accessed from an executing task.
      */
     private volatile long expectedNextSequenceNumber = 1;
+    private volatile long firstSeqNum = 1;
     public final OLogEntryOracle oLogEntryOracle = OLogEntryOracleFactory.create();
 
     public PerQuorum(String quorumId) {
@@ -225,6 +299,14 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
       return expectedNextSequenceNumber;
     }
 
+    public void setFirstSeqNum(long seqNum) {
+      firstSeqNum = seqNum;
+    }
+
+    public long getFirstSeqNum() {
+      return firstSeqNum;
+    }
+
     @NotNull
     public SequentialLogWithHeader currentLogWithHeader() throws IOException {
       if (logDeque.isEmpty()) {
@@ -244,6 +326,53 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
       logDeque.pop();
     }
 
+    /**
+     * Delete every log which holds only entries before the given sequence number. Logs are examined
+     * from the most recent back, only until the one containing that sequence number is found.
+     */
+    public void deleteLogsPreceding(long seqNum) throws IOException {
+      final int logCount = persistenceService.getList(quorumId).size();
+      final int logsToKeep = countLogsFrom(seqNum);
+
+      while (logDeque.size() > logsToKeep) {
+        logDeque.removeLast().log.close();
+      }
+      if (logCount > logsToKeep) {
+        persistenceService.deleteOldest(quorumId, logCount - logsToKeep);
+      }
+    }
+
+    /**
+     * Return true if there is a log, other than the current one, which holds only entries before the
+     * given sequence number.
+     */
+    public boolean hasLogsPreceding(long seqNum) throws IOException {
+      return persistenceService.getList(quorumId).size() > countLogsFrom(seqNum);
+    }
+
+    /**
+     * Count the logs from the most recent back to the one containing the given sequence number.
+     */
+    private int countLogsFrom(long seqNum) throws IOException {
+      final int loadedLogCount = logDeque.size();
+      final Iterator<SequentialLogWithHeader> logIterator = getLogIterator();
+      int logCount = 0;
+
+      while (logIterator.hasNext()) {
+        final SequentialLogWithHeader logWithHeader = logIterator.next();
+        final boolean containsSeqNum = !seqNumPrecedesLog(seqNum, logWithHeader);
+        logCount++;
+        if (logCount > loadedLogCount) {
+          // Read from persistence just to examine its header
+          logWithHeader.log.close();
+        }
+        if (containsSeqNum) {
+          break;
+        }
+      }
+      return logCount;
+    }
+
     public Iterator<SequentialLogWithHeader> getLogIterator() throws IOException {
       final Iterator<SequentialLogWithHeader> dequeIterator = logDeque.iterator();
       final int dequeSize = logDeque.size();
@@ -281,6 +410,7 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
       }
 
       logDeque.push(logWithHeader);
+      setFirstSeqNum(firstSeqNumOf(logWithHeader.header));
       prepareLogOracle(logWithHeader);
       increaseExpectedNextSeqNumTo(oLogEntryOracle.getGreatestSeqNum() + 1);
     }
@@ -289,8 +419,7 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
       SequentialLog<OLogEntry> log = logWithHeader.log;
       final OLogHeader header = logWithHeader.header;
 
-      oLogEntryOracle.notifyLogging(new OLogEntry(header.getBaseSeqNum(), header.getBaseTerm(),
-          new OLogProtostuffContent<>(header.getBaseConfiguration())));
+      oLogEntryOracle.notifyLogging(baseEntryOf(header));
       // TODO it isn't necessary to read the content of every entry; only those which refer to configurations.
       // TODO Also should the navigator be updated on the last entry?
       log.forEach(oLogEntryOracle::notifyLogging);
@@ -378,11 +507,29 @@ public class QuorumDelegatingLog implements OLog, AutoCloseable {
     final long baseSeqNum = getNextSeqNum(quorumId) - 1;
     final QuorumConfiguration baseConfiguration = getLastQuorumConfig(quorumId).quorumConfiguration;
 
-    return new OLogHeader(baseTerm, baseSeqNum, baseConfiguration.toProtostuff());
+    final long firstSeqNum = getFirstSeqNum(quorumId);
+
+    return new OLogHeader(baseTerm, baseSeqNum, baseConfiguration.toProtostuff(), firstSeqNum);
   }
 
   private OLogHeader newQuorumHeader() {
-    return new OLogHeader(0, 0, QuorumConfiguration.EMPTY.toProtostuff());
+    return new OLogHeader(0, 0, QuorumConfiguration.EMPTY.toProtostuff(), 1L);
+  }
+
+  /**
+   * Logs written before the header recorded the first retained sequence number retain every entry.
+   */
+  private static long firstSeqNumOf(OLogHeader header) {
+    return header.getFirstSeqNum() > 0 ? header.getFirstSeqNum() : 1;
+  }
+
+  /**
+   * An entry standing in for the one at the header's base sequence number, so that its term and
+   * configuration are known even though the entry itself lies outside the log.
+   */
+  private static OLogEntry baseEntryOf(OLogHeader header) {
+    return new OLogEntry(header.getBaseSeqNum(), header.getBaseTerm(),
+        new OLogProtostuffContent<>(header.getBaseConfiguration()));
   }
 
   private boolean seqNumPrecedesLog(long seqNum, @NotNull SequentialLogWithHeader logWithHeader) {
@@ -151,7 +151,7 @@ public class LogFileServiceTest {
   }
 
   private static OLogHeader anOLogHeaderWithSeqNum(long seqNum) {
-    return new OLogHeader(term(1), seqNum, configurationOf(1, 2, 3));
+    return new OLogHeader(term(1), seqNum, configurationOf(1, 2, 3), 1L);
   }
 
   private ByteBuffer[] serializedHeader(OLogHeader header) {
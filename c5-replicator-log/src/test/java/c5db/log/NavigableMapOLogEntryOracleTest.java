@@ -17,6 +17,7 @@
 package c5db.log;
 
 import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.TermRun;
 import c5db.replication.ReplicatorTestUtil;
 import c5db.replication.generated.LogEntry;
 import com.google.common.collect.Lists;
@@ -26,6 +27,8 @@ import static c5db.interfaces.replication.QuorumConfiguration.EMPTY;
 import static c5db.log.OLogEntryOracle.QuorumConfigurationWithSeqNum;
 import static c5db.replication.ReplicatorTestUtil.entries;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 
@@ -47,6 +50,36 @@ public class NavigableMapOLogEntryOracleTest {
     assertThat(oracle.getTermAtSeqNum(10), is(equalTo(18L)));
   }
 
+  @Test
+  public void returnsOneTermRunForEachDistinctTermWithinARange() throws Exception {
+    havingLogged(
+        entries()
+            .term(17).seqNums(5, 6, 7)
+            .term(18).seqNums(8)
+            .term(20).seqNums(9, 10, 11));
+
+    assertThat(oracle.getTermRuns(6, 10), contains(
+        new TermRun(6, 7, 17),
+        new TermRun(8, 8, 18),
+        new TermRun(9, 10, 20)));
+
+    assertThat(oracle.getTermRuns(9, 11), contains(new TermRun(9, 11, 20)));
+    assertThat(oracle.getTermRuns(8, 7), is(empty()));
+  }
+
+  @Test
+  public void returnsTheTermRunContainingAGivenSeqNum() throws Exception {
+    havingLogged(
+        entries()
+            .term(17).seqNums(5, 6, 7)
+            .term(18).seqNums(8)
+            .term(20).seqNums(9, 10, 11));
+
+    assertThat(oracle.getTermRun(6), is(equalTo(new TermRun(5, 7, 17))));
+    assertThat(oracle.getTermRun(8), is(equalTo(new TermRun(8, 8, 18))));
+    assertThat(oracle.getTermRun(11), is(equalTo(new TermRun(9, 11, 20))));
+  }
+
   @Test
   public void handlesTruncationsAndUpdatesTermInformationAccordingly() throws Exception {
     havingLogged(
@@ -93,6 +126,23 @@ public class NavigableMapOLogEntryOracleTest {
     assertThat(oracle.getLastQuorumConfig(), is(equalTo(configurationAndSeqNum(secondConfig, 2))));
   }
 
+  @Test
+  public void keepsTheTermAndConfigurationInEffectAtTheEndOfADiscardedPrefix() throws Exception {
+    havingLogged(
+        entries()
+            .term(7).configurationAndSeqNum(firstConfig, 1)
+            .term(8).seqNums(2, 3)
+            .term(9).seqNums(4, 5));
+
+    oracle.notifyPrefixDiscarded(3);
+
+    assertThat(oracle.getTermAtSeqNum(3), is(equalTo(8L)));
+    assertThat(oracle.getTermRuns(3, 5), contains(
+        new TermRun(3, 3, 8),
+        new TermRun(4, 5, 9)));
+    assertThat(oracle.getLastQuorumConfig(), is(equalTo(configurationAndSeqNum(firstConfig, 1))));
+  }
+
   @Test
   public void reportsAGreatestSeqNumOfZeroWhenNothingHasBeenLogged() throws Exception {
     assertThat(oracle.getGreatestSeqNum(), is(equalTo(0L)));
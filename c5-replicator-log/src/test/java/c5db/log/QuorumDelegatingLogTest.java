@@ -253,6 +253,90 @@ public class QuorumDelegatingLogTest {
     assertThat(log.getLogEntries(3, 15, quorumId), resultsIn(aListOfEntriesWithConsecutiveSeqNums(3, 15)));
   }
 
+  @Test
+  public void resetsToASnapshotAndThenLogsTheEntriesFollowingIt() throws Exception {
+    final QuorumConfiguration config = QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L));
+    log.logEntries(someConsecutiveEntries(1, 6), quorumId);
+
+    log.resetToSnapshot(seqNum(20), term(10), config, quorumId).get();
+
+    assertThat(log.getFirstSeqNum(quorumId), is(equalTo(seqNum(21))));
+    assertThat(log.getNextSeqNum(quorumId), is(equalTo(seqNum(21))));
+    assertThat(log.getLastTerm(quorumId), is(equalTo(term(10))));
+    assertThat(log.getLogTerm(seqNum(20), quorumId), is(equalTo(term(10))));
+    assertThat(log.getLastQuorumConfig(quorumId), equalTo(new QuorumConfigurationWithSeqNum(config, seqNum(20))));
+
+    log.logEntries(someConsecutiveEntries(21, 26), quorumId);
+    assertThat(log.getLogEntries(21, 26, quorumId), resultsIn(aListOfEntriesWithConsecutiveSeqNums(21, 26)));
+  }
+
+  @Test
+  public void resetsToASnapshotDeletingTheLogFilesItReplaces() throws Exception {
+    final QuorumConfiguration config = QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L));
+    log.logEntries(someConsecutiveEntries(1, 6), quorumId);
+    log.roll(quorumId);
+    log.logEntries(someConsecutiveEntries(6, 11), quorumId);
+
+    log.resetToSnapshot(seqNum(20), term(10), config, quorumId).get();
+
+    // Only the file begun by the reset remains.
+    assertThat(logFileService.getList(quorumId).size(), is(equalTo(1)));
+  }
+
+  @Test
+  public void remembersTheFirstRetainedSequenceNumberAfterASnapshotWhenReopenedAndRolled() throws Exception {
+    final QuorumConfiguration config = QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L));
+    log.logEntries(someConsecutiveEntries(1, 6), quorumId);
+    log.resetToSnapshot(seqNum(20), term(10), config, quorumId).get();
+    log.logEntries(someConsecutiveEntries(21, 26), quorumId);
+    log.roll(quorumId).get();
+    log.close();
+
+    log = new QuorumDelegatingLog(
+        logFileService,
+        new WrappingKeySerializingExecutor(MoreExecutors.sameThreadExecutor()),
+        NavigableMapOLogEntryOracle::new,
+        InMemoryPersistenceNavigator::new);
+    log.openAsync(quorumId).get();
+
+    assertThat(log.getFirstSeqNum(quorumId), is(equalTo(seqNum(21))));
+    assertThat(log.getNextSeqNum(quorumId), is(equalTo(seqNum(26))));
+    assertThat(log.getLogEntries(21, 26, quorumId), resultsIn(aListOfEntriesWithConsecutiveSeqNums(21, 26)));
+  }
+
+  @Test
+  public void discardsAPrefixOfTheLogDeletingTheLogFilesThatHoldOnlyDiscardedEntries() throws Exception {
+    log.logEntries(someConsecutiveEntries(1, 6), quorumId);
+    log.roll(quorumId);
+    log.logEntries(someConsecutiveEntries(6, 11), quorumId);
+    log.roll(quorumId);
+    log.logEntries(someConsecutiveEntries(11, 16), quorumId);
+    final long termAtBoundary = log.getLogTerm(seqNum(8), quorumId);
+
+    log.discardPrefix(seqNum(8), quorumId).get();
+
+    assertThat(log.getFirstSeqNum(quorumId), is(equalTo(seqNum(9))));
+    assertThat(log.getLogTerm(seqNum(8), quorumId), is(equalTo(termAtBoundary)));
+    assertThat(log.getLogEntries(9, 16, quorumId), resultsIn(aListOfEntriesWithConsecutiveSeqNums(9, 16)));
+
+    // The first file, holding entries 1 through 5, is gone; the one holding 6 through 10 remains, with
+    // the two later files, including the one begun by discarding the prefix.
+    assertThat(logFileService.getList(quorumId).size(), is(equalTo(3)));
+  }
+
+  @Test
+  public void doesNotBeginANewLogFileToDiscardAPrefixIfNoLogFileCanBeDeleted() throws Exception {
+    log.logEntries(someConsecutiveEntries(1, 6), quorumId);
+    log.roll(quorumId);
+    log.logEntries(someConsecutiveEntries(6, 11), quorumId);
+
+    log.discardPrefix(seqNum(3), quorumId).get();
+
+    assertThat(log.getFirstSeqNum(quorumId), is(equalTo(seqNum(4))));
+    assertThat(log.getLogEntries(4, 11, quorumId), resultsIn(aListOfEntriesWithConsecutiveSeqNums(4, 11)));
+    assertThat(logFileService.getList(quorumId).size(), is(equalTo(2)));
+  }
+
   /**
    * Private methods
    */
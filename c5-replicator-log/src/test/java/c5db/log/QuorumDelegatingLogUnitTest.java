@@ -252,6 +252,13 @@ public class QuorumDelegatingLogUnitTest {
       quorumMap.get(quorumId).pop();
     }
 
+    @Override
+    public void deleteOldest(String quorumId, int count) throws IOException {
+      for (int i = 0; i < count; i++) {
+        quorumMap.get(quorumId).removeLast();
+      }
+    }
+
     @Override
     public ImmutableList<CheckedSupplier<ByteArrayPersistence, IOException>> getList(String quorumId)
         throws IOException {
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Coalesces the flushes of a channel, so that many messages written to it in quick succession
+ * reach the socket in one system call rather than one each.
+ * <p>
+ * Neither writes nor flushes reach the socket at once. Instead, the first write or flush after the
+ * channel was last flushed schedules a flush on the channel's event loop. That flush runs after the
+ * tasks already queued there, which include writes made from other threads in the meantime; so each
+ * flush takes in everything written during the event loop iteration. Latency is therefore bounded by
+ * one iteration. If the bytes written since the last flush reach a limit, the channel is flushed at
+ * once. Pending writes are also flushed when the channel is closed.
+ * <p>
+ * Callers writing from outside the event loop should still use writeAndFlush: a write alone, made
+ * from another thread, does not wake the event loop, so it may wait there until something else does.
+ * <p>
+ * This handler must be placed nearer the head of the pipeline than any encoder, so that it sees the
+ * encoded bytes. It keeps state for its channel, so each channel needs its own instance.
+ */
+public class FlushCoalescingHandler extends ChannelOutboundHandlerAdapter {
+  private final long maxPendingBytes;
+  private final FlushStatistics statistics;
+
+  private long pendingBytes = 0;
+  private int pendingMessages = 0;
+  private boolean flushScheduled = false;
+
+  /**
+   * @param maxPendingBytes Flush at once, rather than at the end of the event loop iteration, when at
+   *                        least this many bytes have been written since the last flush.
+   * @param statistics      Where to record each flush; may be shared by many channels.
+   */
+  public FlushCoalescingHandler(long maxPendingBytes, FlushStatistics statistics) {
+    this.maxPendingBytes = maxPendingBytes;
+    this.statistics = statistics;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    pendingBytes += sizeOf(msg);
+    pendingMessages++;
+    ctx.write(msg, promise);
+
+    if (pendingBytes >= maxPendingBytes) {
+      flushPending(ctx);
+    } else {
+      scheduleFlush(ctx);
+    }
+  }
+
+  @Override
+  public void flush(ChannelHandlerContext ctx) throws Exception {
+    scheduleFlush(ctx);
+  }
+
+  @Override
+  public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+    flushPending(ctx);
+    ctx.close(promise);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    flushPending(ctx);
+  }
+
+  private void scheduleFlush(ChannelHandlerContext ctx) {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    ctx.executor().execute(() -> {
+      flushScheduled = false;
+      flushPending(ctx);
+    });
+  }
+
+  private void flushPending(ChannelHandlerContext ctx) {
+    if (pendingMessages == 0) {
+      return;
+    }
+    statistics.recordFlush(pendingMessages, pendingBytes);
+    pendingBytes = 0;
+    pendingMessages = 0;
+    ctx.flush();
+  }
+
+  private static long sizeOf(Object msg) {
+    if (msg instanceof ByteBuf) {
+      return ((ByteBuf) msg).readableBytes();
+    } else if (msg instanceof ByteBufHolder) {
+      return ((ByteBufHolder) msg).content().readableBytes();
+    } else {
+      return 0;
+    }
+  }
+}
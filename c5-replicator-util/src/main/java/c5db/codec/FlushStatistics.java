@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.codec;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the flushes made by one or more {@link FlushCoalescingHandler}s, and of the messages and
+ * bytes they carried. Updated from the channels' event loops; may be read from any thread.
+ */
+public class FlushStatistics {
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder messagesFlushed = new LongAdder();
+  private final LongAdder bytesFlushed = new LongAdder();
+
+  void recordFlush(int messages, long bytes) {
+    flushes.increment();
+    messagesFlushed.add(messages);
+    bytesFlushed.add(bytes);
+  }
+
+  public long getFlushes() {
+    return flushes.sum();
+  }
+
+  public long getMessagesFlushed() {
+    return messagesFlushed.sum();
+  }
+
+  public long getBytesFlushed() {
+    return bytesFlushed.sum();
+  }
+
+  /**
+   * Return the mean number of bytes sent by each flush so far, or 0 if there have been none.
+   */
+  public double getMeanBytesPerFlush() {
+    final long flushCount = flushes.sum();
+    return flushCount == 0 ? 0 : (double) bytesFlushed.sum() / flushCount;
+  }
+
+  @Override
+  public String toString() {
+    return "FlushStatistics{" +
+        "flushes=" + getFlushes() +
+        ", messagesFlushed=" + getMessagesFlushed() +
+        ", bytesFlushed=" + getBytesFlushed() +
+        '}';
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.protostuff.LowCopyProtobufOutput;
+import io.protostuff.Message;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Serializes a protostuff object in 'protobuf' format, preceded by its length as a varint32, into a
+ * single buffer from the channel's allocator. It does the work of a {@link ProtostuffEncoder} followed
+ * by a ProtobufVarint32LengthFieldPrepender, without copying each message a second time to prepend its
+ * length; and when the channel's allocator pools direct buffers, the whole frame is written into a
+ * pooled direct buffer, so the transport can write it to the socket without copying it again.
+ * <p>
+ * The message is first serialized with a {@link LowCopyProtobufOutput}, so that its length is known
+ * before the output buffer is allocated. That output refers to large byte fields, such as the data of
+ * log entries, rather than copying them; so each of those is copied exactly once, straight into the
+ * output buffer. The rest of the message passes through the output's small heap segments, which are
+ * garbage once the message is encoded.
+ */
+public class LengthPrefixedProtostuffEncoder<T extends Message<T>> extends MessageToMessageEncoder<Message<T>> {
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void encode(ChannelHandlerContext ctx, Message<T> msg, List<Object> out) throws Exception {
+    final LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput();
+    msg.cachedSchema().writeTo(lcpo, (T) msg);
+
+    final List<ByteBuffer> segments = lcpo.buffer.finish();
+
+    final long size = lcpo.buffer.size();
+    if (size > Integer.MAX_VALUE - 5) {
+      throw new EncoderException("Serialized form was too large, actual size: " + size);
+    }
+
+    final ByteBuf buffer = ctx.alloc().ioBuffer(varint32Size((int) size) + (int) size);
+    try {
+      writeVarint32(buffer, (int) size);
+      for (ByteBuffer segment : segments) {
+        buffer.writeBytes(segment);
+      }
+    } catch (Exception e) {
+      buffer.release();
+      throw e;
+    }
+    out.add(buffer);
+  }
+
+  private static int varint32Size(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static void writeVarint32(ByteBuf buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer.writeByte(value);
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import org.jetlang.core.Disposable;
+import org.jetlang.core.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link Scheduler} for very many timers, such as the election timeouts and leader ticks of thousands
+ * of quorums hosted on one node, costing nothing for timers which have not yet come due.
+ * <p>
+ * Timers are kept in a hierarchy of wheels, each a ring of 64 slots. A slot of the finest wheel spans
+ * one tick; a slot of each coarser wheel spans a whole turn of the wheel below it. A timer is placed in
+ * the finest wheel whose turn reaches its deadline; as time advances, the timers in each slot of a
+ * coarser wheel are moved down ("cascaded") when that slot comes round, until they reach the finest
+ * wheel and expire. So scheduling and cancelling a timer take constant time, and a tick costs time in
+ * proportion to the number of timers it expires or cascades, not to the number outstanding. Deadlines
+ * are rounded up to a whole tick: timers never fire early, but may fire up to a tick late.
+ * <p>
+ * A single thread advances the wheels and runs the tasks of expired timers, so a task should do no more
+ * than hand its work off to another executor, such as a fiber. Timers may be scheduled and cancelled
+ * from any thread; a cancelled timer is dropped when its slot next comes round.
+ */
+public class HierarchicalTimingWheel implements Scheduler {
+  private static final Logger LOG = LoggerFactory.getLogger(HierarchicalTimingWheel.class);
+
+  private static final int WHEEL_BITS = 6;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  private static final int NUMBER_OF_WHEELS = 4;
+  private static final long MAX_TICKS_AHEAD = (1L << (WHEEL_BITS * NUMBER_OF_WHEELS)) - 1;
+
+  private final long tickNanos;
+  private final long startNanos;
+  private final Thread thread;
+  private final Queue<Timer> newTimers = new ConcurrentLinkedQueue<>();
+
+  // Each slot holds a singly-linked list of timers, threaded through Timer.next. Only used by the thread.
+  private final Timer[][] wheels = new Timer[NUMBER_OF_WHEELS][WHEEL_SIZE];
+  private long currentTick = 0;
+
+  private volatile boolean disposed = false;
+
+  public HierarchicalTimingWheel(long tickDuration, TimeUnit unit, String threadName) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("HierarchicalTimingWheel: tick duration must be positive");
+    }
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.startNanos = System.nanoTime();
+    this.thread = new Thread(this::run, threadName);
+    this.thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  @Override
+  public Disposable schedule(Runnable command, long delay, TimeUnit unit) {
+    return addTimer(new Timer(command, deadlineTickAfter(unit.toNanos(delay)), 0, false));
+  }
+
+  @Override
+  public Disposable scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    return addTimer(new Timer(command, deadlineTickAfter(unit.toNanos(initialDelay)), ticksIn(unit.toNanos(delay)),
+        false));
+  }
+
+  @Override
+  public Disposable scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    return addTimer(new Timer(command, deadlineTickAfter(unit.toNanos(initialDelay)), ticksIn(unit.toNanos(period)),
+        true));
+  }
+
+  /**
+   * Stop the thread and abandon every outstanding timer.
+   */
+  @Override
+  public void dispose() {
+    disposed = true;
+    LockSupport.unpark(thread);
+  }
+
+  private static class Timer implements Disposable {
+    private final Runnable command;
+    private final long periodTicks;
+    private final boolean fixedRate;
+    private long deadlineTick;
+    private Timer next;
+    private volatile boolean cancelled = false;
+
+    private Timer(Runnable command, long deadlineTick, long periodTicks, boolean fixedRate) {
+      this.command = command;
+      this.deadlineTick = deadlineTick;
+      this.periodTicks = periodTicks;
+      this.fixedRate = fixedRate;
+    }
+
+    @Override
+    public void dispose() {
+      cancelled = true;
+    }
+  }
+
+  private Timer addTimer(Timer timer) {
+    newTimers.add(timer);
+    return timer;
+  }
+
+  /**
+   * The first tick at which a timer with the given delay from now may expire: tick k is processed no
+   * sooner than k tick durations after the wheel was created.
+   */
+  private long deadlineTickAfter(long delayNanos) {
+    final long deadlineNanos = System.nanoTime() - startNanos + Math.max(delayNanos, 0);
+    return (deadlineNanos + tickNanos - 1) / tickNanos;
+  }
+
+  private long ticksIn(long nanos) {
+    return Math.max(1, (nanos + tickNanos - 1) / tickNanos);
+  }
+
+  private void run() {
+    while (!disposed) {
+      final long waitNanos = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(this, waitNanos);
+      } else {
+        advance();
+      }
+    }
+  }
+
+  private void advance() {
+    currentTick++;
+
+    for (int wheel = 1; wheel < NUMBER_OF_WHEELS; wheel++) {
+      if ((currentTick & ((1L << (WHEEL_BITS * wheel)) - 1)) != 0) {
+        break;
+      }
+      final int slot = (int) ((currentTick >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+      Timer timer = wheels[wheel][slot];
+      wheels[wheel][slot] = null;
+      while (timer != null) {
+        final Timer next = timer.next;
+        place(timer);
+        timer = next;
+      }
+    }
+
+    Timer newTimer;
+    while ((newTimer = newTimers.poll()) != null) {
+      place(newTimer);
+    }
+
+    final int slot = (int) (currentTick & WHEEL_MASK);
+    Timer timer = wheels[0][slot];
+    wheels[0][slot] = null;
+    while (timer != null) {
+      final Timer next = timer.next;
+      expire(timer);
+      timer = next;
+    }
+  }
+
+  /**
+   * Put a timer into the slot of the finest wheel whose turn reaches its deadline; or, if it is due
+   * now, into the slot about to expire. A timer due beyond the turn of the coarsest wheel is put as far
+   * ahead as that wheel reaches, and placed again when it is cascaded.
+   */
+  private void place(Timer timer) {
+    if (timer.cancelled) {
+      return;
+    }
+
+    final long ticksAhead = Math.min(Math.max(timer.deadlineTick - currentTick, 0), MAX_TICKS_AHEAD);
+    final long placementTick = currentTick + ticksAhead;
+    int wheel = 0;
+    while (ticksAhead >= (1L << (WHEEL_BITS * (wheel + 1)))) {
+      wheel++;
+    }
+
+    final int slot = (int) ((placementTick >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+    timer.next = wheels[wheel][slot];
+    wheels[wheel][slot] = timer;
+  }
+
+  private void expire(Timer timer) {
+    if (timer.cancelled) {
+      return;
+    }
+
+    try {
+      timer.command.run();
+    } catch (Throwable t) {
+      LOG.error("exception thrown by timer task", t);
+    }
+
+    if (timer.periodTicks > 0) {
+      if (timer.fixedRate) {
+        timer.deadlineTick = Math.max(timer.deadlineTick + timer.periodTicks, currentTick + 1);
+      } else {
+        timer.deadlineTick = currentTick + timer.periodTicks;
+      }
+      place(timer);
+    }
+  }
+}
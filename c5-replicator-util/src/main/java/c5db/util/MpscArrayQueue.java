@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer, backed by a ring
+ * buffer. Producers claim a slot by advancing the producer index with a compare-and-set, and then
+ * publish their element into it; the consumer, which alone advances the consumer index, never
+ * contends with producers for anything but the cache lines holding the indexes.
+ * <p>
+ * A producer may have claimed a slot without yet having published its element; the consumer then
+ * waits briefly for the element to appear, so elements are always consumed in the order their
+ * slots were claimed.
+ * <p>
+ * Methods which add elements may be called from any thread; methods which remove or examine
+ * elements at the head must only be called from the single consumer. {@link #size()} and
+ * {@link #isEmpty()} may be called from any thread, and are exact when called by the consumer.
+ *
+ * @param <E> The type of the elements; null elements are not permitted.
+ */
+public class MpscArrayQueue<E> {
+  private static final long PUT_RETRY_PARK_NANOS = 50_000;
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> buffer;
+
+  // The number of slots ever claimed by producers, and the number of elements ever consumed
+  private final AtomicLong producerIndex = new AtomicLong(0);
+  private final AtomicLong consumerIndex = new AtomicLong(0);
+
+  public MpscArrayQueue(int capacity) {
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("MpscArrayQueue: invalid capacity " + capacity);
+    }
+    this.capacity = capacity;
+
+    // The ring is a power of two in size, so a slot can be found by masking, but at most capacity
+    // slots are ever occupied.
+    final int ringSize = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+    this.mask = ringSize - 1;
+    this.buffer = new AtomicReferenceArray<>(ringSize);
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Add an element to the tail of the queue, if there is room.
+   *
+   * @return true if the element was added, or false if the queue was full.
+   */
+  public boolean offer(E element) {
+    if (element == null) {
+      throw new NullPointerException();
+    }
+
+    long claimedIndex;
+    do {
+      claimedIndex = producerIndex.get();
+      if (claimedIndex - consumerIndex.get() >= capacity) {
+        return false;
+      }
+    } while (!producerIndex.compareAndSet(claimedIndex, claimedIndex + 1));
+
+    buffer.lazySet(slotOf(claimedIndex), element);
+    return true;
+  }
+
+  /**
+   * Add an element to the tail of the queue, waiting for room if necessary. The queue has no lock
+   * to wait on, so a full queue is polled at short intervals until the consumer makes room.
+   */
+  public void put(E element) throws InterruptedException {
+    while (!offer(element)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      LockSupport.parkNanos(this, PUT_RETRY_PARK_NANOS);
+    }
+  }
+
+  /**
+   * Return the element at the head of the queue without removing it, or null if the queue is empty.
+   * Consumer only.
+   */
+  public E peek() {
+    return awaitElement(consumerIndex.get());
+  }
+
+  /**
+   * Remove and return the element at the head of the queue, or null if the queue is empty. Consumer only.
+   */
+  public E poll() {
+    final long index = consumerIndex.get();
+    final E element = awaitElement(index);
+    if (element != null) {
+      consume(index);
+    }
+    return element;
+  }
+
+  /**
+   * Remove elements from the head of the queue for as long as the given predicate accepts them. Each
+   * element is passed to the predicate in turn; if it returns true, the element is removed and the
+   * next one is considered; if it returns false, or the queue is empty, draining stops, and the
+   * refused element remains at the head. Consumer only.
+   *
+   * @return The number of elements removed.
+   */
+  public int drainWhile(Predicate<? super E> taker) {
+    long index = consumerIndex.get();
+    int drained = 0;
+
+    E element;
+    while ((element = awaitElement(index)) != null && taker.test(element)) {
+      consume(index);
+      index++;
+      drained++;
+    }
+    return drained;
+  }
+
+  /**
+   * Return the number of elements in the queue. This takes only a few volatile reads, so it is cheap
+   * enough to call on every submission.
+   */
+  public int size() {
+    long consumed = consumerIndex.get();
+    while (true) {
+      final long claimed = producerIndex.get();
+      final long consumedAfter = consumerIndex.get();
+      if (consumed == consumedAfter) {
+        return (int) Math.max(0, Math.min(claimed - consumed, capacity));
+      }
+      consumed = consumedAfter;
+    }
+  }
+
+  public boolean isEmpty() {
+    return consumerIndex.get() >= producerIndex.get();
+  }
+
+  private E awaitElement(long index) {
+    final int slot = slotOf(index);
+    E element = buffer.get(slot);
+    if (element == null && index < producerIndex.get()) {
+      // The slot has been claimed, and its element will be along in a moment.
+      do {
+        Thread.yield();
+        element = buffer.get(slot);
+      } while (element == null);
+    }
+    return element;
+  }
+
+  private void consume(long index) {
+    buffer.lazySet(slotOf(index), null);
+    consumerIndex.lazySet(index + 1);
+  }
+
+  private int slotOf(long index) {
+    return (int) (index & mask);
+  }
+}
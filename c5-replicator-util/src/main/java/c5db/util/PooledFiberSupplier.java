@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import org.jetlang.core.Disposable;
+import org.jetlang.fibers.Fiber;
+import org.jetlang.fibers.PoolFiberFactory;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+
+/**
+ * A FiberSupplier which multiplexes every fiber it supplies onto one fixed pool of threads, by default
+ * one per available processor, rather than giving each fiber a thread of its own; so a node hosting
+ * thousands of quorums need not run thousands of threads.
+ * <p>
+ * Each fiber still runs its tasks one at a time and in order, as jetlang's PoolFiber guarantees: a
+ * fiber with pending tasks is queued on the pool as a single unit of work, which runs a batch of those
+ * tasks. The pool is a ForkJoinPool in asynchronous mode, so a fiber made ready by a task running on a
+ * worker thread is queued on that worker, in first-in-first-out order, and workers which run out of
+ * work steal from the others. Fibers' scheduled tasks are timed by a single thread shared among them.
+ * <p>
+ * Tasks run on a shared thread, so a fiber which blocks holds up the others queued behind it on that
+ * worker until they are stolen. The supplier should be disposed of once every fiber it supplied has
+ * been disposed of.
+ */
+public class PooledFiberSupplier implements FiberSupplier, Disposable {
+  private final ForkJoinPool pool;
+  private final PoolFiberFactory fiberFactory;
+
+  public PooledFiberSupplier(String threadNamePrefix) {
+    this(Runtime.getRuntime().availableProcessors(), threadNamePrefix);
+  }
+
+  public PooledFiberSupplier(int numberOfThreads, String threadNamePrefix) {
+    if (numberOfThreads <= 0) {
+      throw new IllegalArgumentException("PooledFiberSupplier: invalid number of threads " + numberOfThreads);
+    }
+
+    this.pool = new ForkJoinPool(numberOfThreads,
+        (forkJoinPool) -> {
+          ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+          thread.setName(threadNamePrefix + "-" + thread.getPoolIndex());
+          return thread;
+        },
+        null, true);
+    this.fiberFactory = new PoolFiberFactory(pool);
+  }
+
+  @Override
+  public Fiber getNewFiber(Consumer<Throwable> throwableHandler) {
+    return fiberFactory.create(new ExceptionHandlingBatchExecutor(throwableHandler));
+  }
+
+  public int getNumberOfThreads() {
+    return pool.getParallelism();
+  }
+
+  @Override
+  public void dispose() {
+    fiberFactory.dispose();
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FlushCoalescingHandlerTest {
+  private static final int MAX_PENDING_BYTES = 100;
+
+  private final FlushStatistics statistics = new FlushStatistics();
+  private final EmbeddedChannel channel =
+      new EmbeddedChannel(new FlushCoalescingHandler(MAX_PENDING_BYTES, statistics));
+
+  @Test
+  public void flushesEverythingWrittenDuringAnEventLoopIterationTogether() {
+    channel.write(bytes(10));
+    channel.writeAndFlush(bytes(20));
+    channel.write(bytes(30));
+    assertThat(channel.readOutbound(), is(nullValue()));
+
+    channel.runPendingTasks();
+
+    assertThat(numberOfMessagesSent(), is(equalTo(3)));
+    assertThat(statistics.getFlushes(), is(equalTo(1L)));
+    assertThat(statistics.getMessagesFlushed(), is(equalTo(3L)));
+    assertThat(statistics.getBytesFlushed(), is(equalTo(60L)));
+  }
+
+  @Test
+  public void flushesAtOnceWhenThePendingBytesReachTheLimit() {
+    channel.write(bytes(MAX_PENDING_BYTES / 2));
+    channel.write(bytes(MAX_PENDING_BYTES / 2));
+
+    assertThat(numberOfMessagesSent(), is(equalTo(2)));
+    assertThat(statistics.getFlushes(), is(equalTo(1L)));
+
+    channel.runPendingTasks();
+    assertThat(statistics.getFlushes(), is(equalTo(1L)));
+  }
+
+  @Test
+  public void flushesPendingWritesWhenTheChannelIsClosed() {
+    channel.write(bytes(10));
+    channel.close();
+
+    assertThat(numberOfMessagesSent(), is(equalTo(1)));
+    assertThat(statistics.getBytesFlushed(), is(equalTo(10L)));
+  }
+
+  private int numberOfMessagesSent() {
+    int count = 0;
+    ByteBuf sent;
+    while ((sent = (ByteBuf) channel.readOutbound()) != null) {
+      sent.release();
+      count++;
+    }
+    return count;
+  }
+
+  private static ByteBuf bytes(int length) {
+    return Unpooled.wrappedBuffer(new byte[length]);
+  }
+}
@@ -17,6 +17,10 @@
 package c5db.codec;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.protostuff.Input;
 import io.protostuff.Message;
 import io.protostuff.Output;
@@ -205,4 +209,59 @@ public class ProtostuffCodecTest {
 
   }
 
+  @Test
+  public void testLengthPrefixedSerDeThroughPooledDirectBuffers() throws Exception {
+    // Long enough that its length takes more than one byte
+    String description = new String(new char[300]).replace('\0', 'x');
+    SerObj o = new SerObj(12, description, System.currentTimeMillis(), 1.5);
+
+    EmbeddedChannel encodingChannel = new EmbeddedChannel(new LengthPrefixedProtostuffEncoder<SerObj>());
+    encodingChannel.config().setOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    encodingChannel.writeOutbound(o, o);
+
+    ByteBuf first = (ByteBuf) encodingChannel.readOutbound();
+    ByteBuf second = (ByteBuf) encodingChannel.readOutbound();
+    for (ByteBuf encoded : new ByteBuf[]{first, second}) {
+      assertEquals(true, isDirectThroughout(encoded));
+      assertEquals(PooledByteBufAllocator.DEFAULT, encoded.alloc());
+    }
+
+    ProtostuffDecoder<SerObj> dec = new ProtostuffDecoder<>(o);
+    List<Object> results = new ArrayList<>();
+    for (ByteBuf encoded : new ByteBuf[]{first, second}) {
+      int length = readVarint32(encoded);
+      assertEquals(encoded.readableBytes(), length);
+      dec.decode(null, encoded, results);
+      encoded.release();
+    }
+
+    assertEquals(2, results.size());
+    assertEquals(o, results.get(0));
+    assertEquals(o, results.get(1));
+  }
+
+  private static boolean isDirectThroughout(ByteBuf buffer) {
+    if (!buffer.isDirect()) {
+      return false;
+    }
+    if (buffer instanceof CompositeByteBuf) {
+      for (ByteBuf component : (CompositeByteBuf) buffer) {
+        if (!isDirectThroughout(component)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static int readVarint32(ByteBuf buffer) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.readByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
 }
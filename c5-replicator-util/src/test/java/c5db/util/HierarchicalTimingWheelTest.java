@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import org.jetlang.core.Disposable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class HierarchicalTimingWheelTest {
+  private final HierarchicalTimingWheel timingWheel =
+      new HierarchicalTimingWheel(100, TimeUnit.MICROSECONDS, "timing-wheel-test");
+
+  @Before
+  public void startTimingWheel() {
+    timingWheel.start();
+  }
+
+  @After
+  public void disposeTimingWheel() {
+    timingWheel.dispose();
+  }
+
+  @Test(timeout = 10000)
+  public void firesTimersNoSoonerThanTheirDelaysAndInOrderOfDeadlineAcrossEveryWheel() throws Exception {
+    final List<Long> fired = new CopyOnWriteArrayList<>();
+    final AtomicInteger firedEarly = new AtomicInteger(0);
+    final CountDownLatch allFired = new CountDownLatch(3);
+    final long startNanos = System.nanoTime();
+
+    // At a tick of 100 microseconds, these fall into the finest wheel, the next, and the one after.
+    for (long delayMillis : new long[]{600, 2, 30}) {
+      timingWheel.schedule(() -> {
+        if (System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(delayMillis)) {
+          firedEarly.incrementAndGet();
+        }
+        fired.add(delayMillis);
+        allFired.countDown();
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    allFired.await();
+    assertThat(fired, contains(2L, 30L, 600L));
+    assertThat(firedEarly.get(), is(0));
+  }
+
+  @Test(timeout = 10000)
+  public void doesNotFireATimerWhichHasBeenCancelled() throws Exception {
+    final AtomicInteger cancelledFirings = new AtomicInteger(0);
+    final CountDownLatch laterTimerFired = new CountDownLatch(1);
+
+    Disposable cancelledTimer = timingWheel.schedule(cancelledFirings::incrementAndGet, 10, TimeUnit.MILLISECONDS);
+    timingWheel.schedule(laterTimerFired::countDown, 20, TimeUnit.MILLISECONDS);
+    cancelledTimer.dispose();
+
+    laterTimerFired.await();
+    assertThat(cancelledFirings.get(), is(0));
+  }
+
+  @Test(timeout = 10000)
+  public void firesAPeriodicTimerRepeatedlyUntilItIsCancelled() throws Exception {
+    final CountDownLatch firings = new CountDownLatch(5);
+    final AtomicInteger firingsAfterCancellation = new AtomicInteger(0);
+    final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    Disposable periodicTimer = timingWheel.scheduleAtFixedRate(() -> {
+      if (cancelled.get()) {
+        firingsAfterCancellation.incrementAndGet();
+      }
+      firings.countDown();
+    }, 0, 5, TimeUnit.MILLISECONDS);
+
+    firings.await();
+    periodicTimer.dispose();
+    cancelled.set(true);
+
+    // A firing already under way when the timer was cancelled may still complete, but no more may begin.
+    Thread.sleep(30);
+    assertThat(firingsAfterCancellation.get(), is(lessThanOrEqualTo(1)));
+  }
+}
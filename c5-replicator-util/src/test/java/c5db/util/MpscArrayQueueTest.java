@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static c5db.ConcurrencyTestUtil.runNTimesAndWaitForAllToComplete;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+public class MpscArrayQueueTest {
+  @Test
+  public void holdsNoMoreThanItsCapacityEvenWhenThatIsNotAPowerOfTwo() {
+    MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(3);
+
+    assertThat(queue.offer(1), is(true));
+    assertThat(queue.offer(2), is(true));
+    assertThat(queue.offer(3), is(true));
+    assertThat(queue.offer(4), is(false));
+    assertThat(queue.size(), is(equalTo(3)));
+
+    assertThat(queue.poll(), is(equalTo(1)));
+    assertThat(queue.offer(4), is(true));
+  }
+
+  @Test
+  public void returnsElementsInTheOrderTheyWereAddedAcrossTheEndOfTheRing() {
+    MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(2);
+    List<Integer> polled = new ArrayList<>();
+
+    for (int i = 0; i < 5; i++) {
+      queue.offer(i);
+      polled.add(queue.poll());
+    }
+
+    assertThat(polled, contains(0, 1, 2, 3, 4));
+    assertThat(queue.peek(), is(nullValue()));
+    assertThat(queue.isEmpty(), is(true));
+  }
+
+  @Test
+  public void drainsElementsForAsLongAsThePredicateAcceptsThem() {
+    MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(8);
+    for (int i = 1; i <= 5; i++) {
+      queue.offer(i);
+    }
+
+    List<Integer> drained = new ArrayList<>();
+    int count = queue.drainWhile(element -> element < 4 && drained.add(element));
+
+    assertThat(count, is(equalTo(3)));
+    assertThat(drained, contains(1, 2, 3));
+    assertThat(queue.peek(), is(equalTo(4)));
+    assertThat(queue.size(), is(equalTo(2)));
+  }
+
+  @Test(timeout = 10000)
+  public void deliversEveryElementFromManyProducersExactlyOnceAndInEachProducersOrder() throws Exception {
+    final int numProducers = 8;
+    final int elementsPerProducer = 20000;
+    final MpscArrayQueue<long[]> queue = new MpscArrayQueue<>(64);
+    final ExecutorService producers = Executors.newFixedThreadPool(numProducers);
+
+    final long[] lastSeenByProducer = new long[numProducers];
+    final boolean[] inOrder = {true};
+    final Thread consumer = new Thread(() -> {
+      int received = 0;
+      while (received < numProducers * elementsPerProducer) {
+        received += queue.drainWhile(element -> {
+          int producer = (int) element[0];
+          inOrder[0] &= element[1] == lastSeenByProducer[producer] + 1;
+          lastSeenByProducer[producer] = element[1];
+          return true;
+        });
+      }
+    });
+    consumer.start();
+
+    runNTimesAndWaitForAllToComplete(numProducers, producers, (int producer) -> {
+      for (long sequence = 1; sequence <= elementsPerProducer; sequence++) {
+        queue.put(new long[]{producer, sequence});
+      }
+    });
+
+    consumer.join();
+    producers.shutdown();
+    producers.awaitTermination(1, TimeUnit.SECONDS);
+
+    assertThat(inOrder[0], is(true));
+    for (long lastSeen : lastSeenByProducer) {
+      assertThat(lastSeen, is(equalTo((long) elementsPerProducer)));
+    }
+    assertThat(queue.isEmpty(), is(true));
+  }
+}
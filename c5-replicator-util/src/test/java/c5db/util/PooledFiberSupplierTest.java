@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.jetlang.fibers.Fiber;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PooledFiberSupplierTest {
+  private static final int NUMBER_OF_THREADS = 4;
+
+  private final PooledFiberSupplier fiberSupplier = new PooledFiberSupplier(NUMBER_OF_THREADS, "pooled-fiber-test");
+  private final List<Fiber> fibers = new ArrayList<>();
+
+  @After
+  public void disposeFibersAndSupplier() {
+    fibers.forEach(Fiber::dispose);
+    fiberSupplier.dispose();
+  }
+
+  @Test(timeout = 10000)
+  public void runsEachFibersTasksOneAtATimeAndInOrderOnNoMoreThanThePoolsThreads() throws Exception {
+    final int numberOfFibers = 200;
+    final int tasksPerFiber = 100;
+    final Set<String> threadNames = ConcurrentHashMap.newKeySet();
+    final AtomicInteger violations = new AtomicInteger(0);
+    final CountDownLatch allTasksRun = new CountDownLatch(numberOfFibers * tasksPerFiber);
+
+    for (int i = 0; i < numberOfFibers; i++) {
+      final Fiber fiber = startNewFiber((throwable) -> {
+      });
+      final AtomicBoolean running = new AtomicBoolean(false);
+      final AtomicInteger lastTaskRun = new AtomicInteger(-1);
+
+      for (int task = 0; task < tasksPerFiber; task++) {
+        final int thisTask = task;
+        fiber.execute(() -> {
+          if (!running.compareAndSet(false, true) || lastTaskRun.getAndSet(thisTask) != thisTask - 1) {
+            violations.incrementAndGet();
+          }
+          threadNames.add(Thread.currentThread().getName());
+          running.set(false);
+          allTasksRun.countDown();
+        });
+      }
+    }
+
+    allTasksRun.await();
+    assertThat(violations.get(), is(equalTo(0)));
+    assertThat(threadNames.size(), is(lessThanOrEqualTo(NUMBER_OF_THREADS)));
+  }
+
+  @Test(timeout = 10000)
+  public void passesExceptionsThrownByAFibersTasksToItsHandlerAndKeepsRunningItsTasks() throws Exception {
+    final RuntimeException exception = new RuntimeException("from a fiber task");
+    final SettableFuture<Throwable> handledThrowable = SettableFuture.create();
+    final CountDownLatch laterTaskRun = new CountDownLatch(1);
+
+    final Fiber fiber = startNewFiber(handledThrowable::set);
+    fiber.execute(() -> {
+      throw exception;
+    });
+    fiber.execute(laterTaskRun::countDown);
+
+    assertThat(handledThrowable.get(5, TimeUnit.SECONDS), is(sameInstance(exception)));
+    laterTaskRun.await();
+  }
+
+  private Fiber startNewFiber(Consumer<Throwable> throwableHandler) {
+    final Fiber fiber = fiberSupplier.getNewFiber(throwableHandler);
+    fibers.add(fiber);
+    fiber.start();
+    return fiber;
+  }
+}
@@ -24,12 +24,44 @@ public class ReplicatorConstants {
 
   public static final Path REPLICATOR_QUORUM_FILE_ROOT_DIRECTORY_RELATIVE_PATH = Paths.get("repl");
   public static final String REPLICATOR_PERSISTER_FILE_NAME = "replication-data";
+  public static final String REPLICATOR_TERM_AND_VOTE_STORE_FILE_NAME = "terms-and-votes";
+  public static final int REPLICATOR_TERM_AND_VOTE_STORE_MIN_RECORDS_BEFORE_COMPACTION = 4096;
   public static final int REPLICATOR_MAXIMUM_SIMULTANEOUS_LOG_REQUESTS = 10000;
 
   public static final int REPLICATOR_NODE_INFO_REQUEST_TIMEOUT_MILLISECONDS = 3000;
   public static final int REPLICATOR_DEFAULT_BASE_ELECTION_TIMEOUT_MILLISECONDS = 1000;
   public static final int REPLICATOR_DEFAULT_ELECTION_CHECK_INTERVAL_MILLISECONDS = 100;
   public static final int REPLICATOR_DEFAULT_LEADER_LOG_INTERVAL_MILLISECONDS = 100;
+  public static final int REPLICATOR_TIMING_WHEEL_TICK_MILLISECONDS = 10;
   public static final int REPLICATOR_VOTE_RPC_TIMEOUT_MILLISECONDS = 1000;
   public static final int REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS = 5000;
+  public static final int REPLICATOR_OUTSTANDING_RPC_EXPIRY_TICK_MILLISECONDS = 100;
+  public static final int REPLICATOR_OUTSTANDING_RPC_TABLE_INITIAL_CAPACITY = 1024;
+
+  public static final int REPLICATOR_DEFAULT_MAX_BATCH_ENTRIES = 1000;
+  public static final long REPLICATOR_DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+  public static final long REPLICATOR_DEFAULT_MAX_LINGER_DELAY_MILLISECONDS = 0;
+  public static final int REPLICATOR_DEFAULT_MAX_IN_FLIGHT_APPEND_REQUESTS = 16;
+  public static final long REPLICATOR_DEFAULT_MAX_IN_FLIGHT_APPEND_BYTES = 16 * 1024 * 1024;
+  public static final long REPLICATOR_DEFAULT_APPEND_RETRANSMIT_TIMEOUT_MILLISECONDS = 500;
+  public static final int REPLICATOR_DEFAULT_CATCH_UP_CHUNK_MAX_ENTRIES = 1000;
+  public static final long REPLICATOR_DEFAULT_CATCH_UP_CHUNK_MAX_BYTES = 1024 * 1024;
+  public static final long REPLICATOR_DEFAULT_MAX_QUEUED_LOG_BYTES = 64 * 1024 * 1024;
+  public static final long REPLICATOR_DEFAULT_LEADER_LEASE_MILLISECONDS = 0;
+  public static final long REPLICATOR_LEADER_LEASE_CLOCK_DRIFT_MARGIN_MILLISECONDS = 100;
+  public static final long REPLICATOR_DEFAULT_LEARNER_PROMOTION_MAX_LAG = 100;
+  public static final int REPLICATOR_DEFAULT_SNAPSHOT_CHUNK_BYTES = 1024 * 1024;
+  public static final long REPLICATOR_DEFAULT_HEARTBEAT_COALESCING_INTERVAL_MILLISECONDS = 20;
+  public static final int REPLICATOR_HEARTBEAT_BATCH_REPLY_TIMEOUT_MILLISECONDS = 500;
+  public static final int REPLICATOR_DEFAULT_DISPATCH_PARTITIONS = Runtime.getRuntime().availableProcessors();
+  public static final int REPLICATOR_DEFAULT_CONNECTIONS_PER_PEER = 2;
+  public static final long REPLICATOR_PEER_RECONNECT_MIN_BACKOFF_MILLISECONDS = 100;
+  public static final long REPLICATOR_PEER_RECONNECT_MAX_BACKOFF_MILLISECONDS = 5000;
+  public static final int REPLICATOR_PEER_CONNECTION_MAX_WAITING_MESSAGES = 1000;
+  public static final long REPLICATOR_PEER_CONNECTION_MAX_WAIT_MILLISECONDS = 1000;
+  public static final long REPLICATOR_FLUSH_COALESCING_MAX_PENDING_BYTES = 64 * 1024;
+  public static final boolean REPLICATOR_DEFAULT_USE_POOLED_DIRECT_BUFFERS = false;
+  public static final int REPLICATOR_LEADERSHIP_TRANSFER_SHUTDOWN_TIMEOUT_MILLISECONDS = 3000;
+  public static final long REPLICATOR_DEFAULT_LEADER_BALANCING_INTERVAL_MILLISECONDS = 60000;
+  public static final double REPLICATOR_LEADER_BALANCING_TOLERANCE = 1.0;
 }
@@ -18,6 +18,7 @@ package c5db.log;
 
 import c5db.interfaces.replication.QuorumConfiguration;
 import c5db.interfaces.replication.ReplicatorLog;
+import c5db.interfaces.replication.TermRun;
 import c5db.replication.generated.LogEntry;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -36,6 +37,13 @@ public class InRamLog implements ReplicatorLog {
 
   private final List<LogEntry> log = new ArrayList<>();
 
+  // The last entry replaced by a snapshot, if any, and the configuration as of that entry; the log
+  // holds the entries after it.
+  private long baseIndex = 0;
+  private long baseTerm = 0;
+  private QuorumConfiguration baseConfiguration = QuorumConfiguration.EMPTY;
+  private long baseConfigurationIndex = 0;
+
   public InRamLog() {
   }
 
@@ -67,6 +75,10 @@ public class InRamLog implements ReplicatorLog {
   public synchronized long getLogTerm(long index) {
     assert index > 0;
 
+    if (index == baseIndex) {
+      return baseTerm;
+    }
+
     Optional<LogEntry> requestedEntry = optionallyGetEntryInternal(index);
 
     if (requestedEntry.isPresent()) {
@@ -76,10 +88,48 @@ public class InRamLog implements ReplicatorLog {
     }
   }
 
+  @Override
+  public synchronized List<TermRun> getTermRuns(long firstIndex, long lastIndex) {
+    List<TermRun> termRuns = new ArrayList<>();
+    if (lastIndex < firstIndex) {
+      return termRuns;
+    }
+
+    // Entries are in sequence with no gaps, so an entry's position in the list follows from its index.
+    int firstPosition = (int) (firstIndex - log.get(0).getIndex());
+    assert log.get(firstPosition).getIndex() == firstIndex;
+    long runFirstIndex = firstIndex;
+    long runTerm = log.get(firstPosition).getTerm();
+
+    for (long index = firstIndex + 1; index <= lastIndex; index++) {
+      long term = log.get(firstPosition + (int) (index - firstIndex)).getTerm();
+      if (term != runTerm) {
+        termRuns.add(new TermRun(runFirstIndex, index - 1, runTerm));
+        runFirstIndex = index;
+        runTerm = term;
+      }
+    }
+    termRuns.add(new TermRun(runFirstIndex, lastIndex, runTerm));
+
+    return termRuns;
+  }
+
+  @Override
+  public synchronized TermRun getTermRun(long index) {
+    int position = (int) (index - log.get(0).getIndex());
+    assert log.get(position).getIndex() == index;
+    long term = log.get(position).getTerm();
+
+    // Terms never decrease along the log, so the bounds of the run can be found by binary search.
+    int firstPosition = firstPositionWithTermAbove(term - 1, 0, position);
+    int lastPosition = firstPositionWithTermAbove(term, position, log.size()) - 1;
+    return new TermRun(log.get(firstPosition).getIndex(), log.get(lastPosition).getIndex(), term);
+  }
+
   @Override
   public synchronized long getLastTerm() {
     if (log.isEmpty()) {
-      return 0;
+      return baseTerm;
     }
     return log.get(log.size() - 1).getTerm();
   }
@@ -87,11 +137,49 @@ public class InRamLog implements ReplicatorLog {
   @Override
   public synchronized long getLastIndex() {
     if (log.isEmpty()) {
-      return 0;
+      return baseIndex;
     }
     return log.get(log.size() - 1).getIndex();
   }
 
+  @Override
+  public synchronized long getFirstIndex() {
+    return baseIndex + 1;
+  }
+
+  @Override
+  public synchronized ListenableFuture<Boolean> discardPrefix(long lastIndexToDiscard) {
+    if (lastIndexToDiscard > baseIndex) {
+      final long termAtIndex = getLogTerm(lastIndexToDiscard);
+      for (LogEntry entry : log) {
+        if (entry.getIndex() > lastIndexToDiscard) {
+          break;
+        } else if (entry.getQuorumConfiguration() != null) {
+          baseConfiguration = QuorumConfiguration.fromProtostuff(entry.getQuorumConfiguration());
+          baseConfigurationIndex = entry.getIndex();
+        }
+      }
+
+      log.removeIf((entry) -> entry.getIndex() <= lastIndexToDiscard);
+      baseIndex = lastIndexToDiscard;
+      baseTerm = termAtIndex;
+    }
+
+    return blockingFuture(true);
+  }
+
+  @Override
+  public synchronized ListenableFuture<Boolean> resetToSnapshot(long lastIncludedIndex, long lastIncludedTerm,
+                                                                QuorumConfiguration lastIncludedConfiguration) {
+    log.clear();
+    baseIndex = lastIncludedIndex;
+    baseTerm = lastIncludedTerm;
+    baseConfiguration = lastIncludedConfiguration;
+    baseConfigurationIndex = lastIncludedIndex;
+
+    return blockingFuture(true);
+  }
+
   @Override
   public synchronized ListenableFuture<Boolean> truncateLog(long entryIndex) {
     LogEntry firstRemovedEntry = getEntryInternal(entryIndex);
@@ -109,7 +197,7 @@ public class InRamLog implements ReplicatorLog {
       }
     }
 
-    return QuorumConfiguration.EMPTY;
+    return baseConfiguration;
   }
 
   @Override
@@ -120,7 +208,7 @@ public class InRamLog implements ReplicatorLog {
       }
     }
 
-    return 0;
+    return baseConfigurationIndex;
   }
 
   private void validateEntries(List<LogEntry> entries) {
@@ -151,6 +239,24 @@ public class InRamLog implements ReplicatorLog {
     return requestedEntry.get();
   }
 
+  /**
+   * Return the first position from fromPosition, up to but not including toPosition, whose entry has
+   * a term greater than the given term; or toPosition if there is none.
+   */
+  private int firstPositionWithTermAbove(long term, int fromPosition, int toPosition) {
+    int low = fromPosition;
+    int high = toPosition;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (log.get(middle).getTerm() > term) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
   private static <V> ListenableFuture<V> blockingFuture(V result) {
     SettableFuture<V> future = SettableFuture.create();
     new Thread(() -> future.set(result))
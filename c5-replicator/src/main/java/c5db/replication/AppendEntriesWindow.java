@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The pipeline of AppendEntries requests a leader has sent to one peer, but which the peer has
+ * not yet acknowledged. The window is bounded both by the number of requests and by the total
+ * size of the entries they carry, so that a leader can keep several requests in flight to a
+ * distant peer without flooding a slow one.
+ * <p>
+ * Requests are tracked in the order they were sent. Acknowledgements are cumulative: a successful
+ * reply to one request also acknowledges every request sent before it, because a successful
+ * AppendEntries means the peer's log matches the leader's up to that request's last entry.
+ * <p>
+ * Whenever the leader has to resend from some earlier point -- after a rejection, or after a
+ * request has gone unacknowledged for too long -- it resets the window. Each reset begins a new
+ * generation, and replies to requests from earlier generations are then ignored as far as the
+ * window is concerned.
+ * <p>
+ * This class is not thread-safe; it is only used from the fiber of its ReplicatorInstance.
+ */
+class AppendEntriesWindow {
+  private final int maxRequests;
+  private final long maxBytes;
+  private final Deque<InFlightRequest> inFlight = new ArrayDeque<>();
+
+  private long inFlightBytes = 0;
+  private long generation = 0;
+
+  public AppendEntriesWindow(int maxRequests, long maxBytes) {
+    this.maxRequests = maxRequests;
+    this.maxBytes = maxBytes;
+  }
+
+  public static class InFlightRequest {
+    public final long generation;
+    public final long firstIndex;
+    public final long lastIndex;
+    public final long bytes;
+    public final long sendTimeMillis;
+
+    private InFlightRequest(long generation, long firstIndex, long lastIndex, long bytes, long sendTimeMillis) {
+      this.generation = generation;
+      this.firstIndex = firstIndex;
+      this.lastIndex = lastIndex;
+      this.bytes = bytes;
+      this.sendTimeMillis = sendTimeMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "InFlightRequest{" +
+          "generation=" + generation +
+          ", firstIndex=" + firstIndex +
+          ", lastIndex=" + lastIndex +
+          ", bytes=" + bytes +
+          ", sendTimeMillis=" + sendTimeMillis +
+          '}';
+    }
+  }
+
+  /**
+   * Determine whether a request carrying the given number of bytes may be sent now. An empty window
+   * always has room, so that a single oversized request can still make progress.
+   */
+  public boolean hasRoomFor(long bytes) {
+    return inFlight.isEmpty()
+        || (inFlight.size() < maxRequests && inFlightBytes + bytes <= maxBytes);
+  }
+
+  /**
+   * Record that a request carrying entries firstIndex through lastIndex, inclusive, has been sent.
+   */
+  public InFlightRequest add(long firstIndex, long lastIndex, long bytes, long sendTimeMillis) {
+    assert inFlight.isEmpty() || inFlight.peekLast().lastIndex < firstIndex;
+
+    InFlightRequest request = new InFlightRequest(generation, firstIndex, lastIndex, bytes, sendTimeMillis);
+    inFlight.addLast(request);
+    inFlightBytes += bytes;
+    return request;
+  }
+
+  /**
+   * Remove an acknowledged request from the window, together with all the requests sent before it.
+   * Does nothing if the request belongs to an earlier generation.
+   */
+  public void acknowledge(InFlightRequest request) {
+    if (!isCurrent(request.generation)) {
+      return;
+    }
+
+    while (!inFlight.isEmpty() && inFlight.peekFirst().lastIndex <= request.lastIndex) {
+      inFlightBytes -= inFlight.removeFirst().bytes;
+    }
+  }
+
+  /**
+   * Discard every in-flight request and begin a new generation.
+   */
+  public void reset() {
+    inFlight.clear();
+    inFlightBytes = 0;
+    generation++;
+  }
+
+  public boolean isCurrent(long requestGeneration) {
+    return requestGeneration == generation;
+  }
+
+  public long generation() {
+    return generation;
+  }
+
+  public boolean isEmpty() {
+    return inFlight.isEmpty();
+  }
+
+  public int size() {
+    return inFlight.size();
+  }
+
+  public long bytes() {
+    return inFlightBytes;
+  }
+
+  /**
+   * Return the index of the first entry sent but not yet acknowledged, or 0 if there is none.
+   */
+  public long firstUnacknowledgedIndex() {
+    return inFlight.isEmpty() ? 0 : inFlight.peekFirst().firstIndex;
+  }
+
+  /**
+   * Return the time the oldest unacknowledged request was sent, or 0 if there is none.
+   */
+  public long oldestSendTimeMillis() {
+    return inFlight.isEmpty() ? 0 : inFlight.peekFirst().sendTimeMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "AppendEntriesWindow{" +
+        "size=" + inFlight.size() +
+        ", inFlightBytes=" + inFlightBytes +
+        ", generation=" + generation +
+        '}';
+  }
+}
@@ -19,10 +19,13 @@ package c5db.replication;
 import c5db.ReplicatorConstants;
 import c5db.interfaces.replication.GeneralizedReplicator;
 import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.ReplicateBatchSubmissionInfo;
 import c5db.interfaces.replication.ReplicateSubmissionInfo;
 import c5db.interfaces.replication.Replicator;
+import c5db.interfaces.replication.ReplicatorBatchReceipt;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
 import c5db.interfaces.replication.ReplicatorReceipt;
+import c5db.interfaces.replication.SnapshotProvider;
 import c5db.util.C5Futures;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -90,6 +93,32 @@ public class C5GeneralizedReplicator implements GeneralizedReplicator {
             new ReplicateSubmissionInfo(receipt.seqNum, receiptWithCompletionFuture.completionFuture));
   }
 
+  @Override
+  public ListenableFuture<ReplicateBatchSubmissionInfo> replicateBatch(List<List<ByteBuffer>> dataBatch)
+      throws InterruptedException, InvalidReplicatorStateException {
+
+    final ListenableFuture<ReplicatorBatchReceipt> batchReceiptFuture = replicator.logDataBatch(dataBatch);
+
+    if (batchReceiptFuture == null) {
+      throw new InvalidReplicatorStateException("Replicator is not in the leader state");
+    }
+
+    // A batch receipt stands in for the receipt of the batch's last entry, so the whole batch
+    // takes a single place in the queue, and completes when that last entry is committed.
+    final ReceiptWithCompletionFuture receiptWithCompletionFuture =
+        new ReceiptWithCompletionFuture(batchReceiptFuture);
+
+    fiber.execute(
+        () -> receiptQueue.add(receiptWithCompletionFuture));
+
+    return Futures.transform(batchReceiptFuture,
+        (ReplicatorBatchReceipt receipt) ->
+            new ReplicateBatchSubmissionInfo(
+                receipt.firstSeqNum,
+                receipt.lastSeqNum(),
+                receiptWithCompletionFuture.completionFuture));
+  }
+
   @Override
   public ListenableFuture<Void> isAvailableFuture() {
     SettableFuture<Void> returnedFuture = SettableFuture.create();
@@ -110,6 +139,11 @@ public class C5GeneralizedReplicator implements GeneralizedReplicator {
     return returnedFuture;
   }
 
+  @Override
+  public void setSnapshotProvider(SnapshotProvider snapshotProvider) {
+    replicator.setSnapshotProvider(snapshotProvider);
+  }
+
   private void setupCommitNoticeSubscription() {
     final String quorumId = replicator.getQuorumId();
     final long serverNodeId = replicator.getId();
@@ -192,7 +226,7 @@ public class C5GeneralizedReplicator implements GeneralizedReplicator {
    */
   @Nullable
   private ReplicatorReceipt getReceiptOrSetException(ReceiptWithCompletionFuture receiptWithCompletionFuture) {
-    ListenableFuture<ReplicatorReceipt> receiptFuture = receiptWithCompletionFuture.receiptFuture;
+    ListenableFuture<? extends ReplicatorReceipt> receiptFuture = receiptWithCompletionFuture.receiptFuture;
     SettableFuture<?> completionFuture = receiptWithCompletionFuture.completionFuture;
 
     assert receiptFuture.isDone();
@@ -219,10 +253,10 @@ public class C5GeneralizedReplicator implements GeneralizedReplicator {
    * the completion future together.
    */
   private static class ReceiptWithCompletionFuture {
-    public final ListenableFuture<ReplicatorReceipt> receiptFuture;
+    public final ListenableFuture<? extends ReplicatorReceipt> receiptFuture;
     public final SettableFuture<Void> completionFuture = SettableFuture.create();
 
-    private ReceiptWithCompletionFuture(ListenableFuture<ReplicatorReceipt> receiptFuture) {
+    private ReceiptWithCompletionFuture(ListenableFuture<? extends ReplicatorReceipt> receiptFuture) {
       this.receiptFuture = receiptFuture;
     }
   }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.replication.generated.LogEntry;
+
+import java.util.List;
+
+/**
+ * The state of a leader's effort to send a lagging peer the entries it is missing. Rather than
+ * read the whole gap from the log at once, the leader reads it one bounded chunk at a time: when
+ * it sends one chunk, it begins reading the next, so that the next chunk is ready to go as soon
+ * as there is room for it in the peer's {@link AppendEntriesWindow}.
+ * <p>
+ * At most one read is outstanding, and at most one chunk is held ready, per peer; so the memory
+ * a lagging peer can cost the leader is bounded regardless of how far behind it is.
+ * <p>
+ * The log is read by index, not by size, so the byte limit can only be applied to a read once its
+ * entries are in hand; those beyond the limit are dropped, to be read again for the next chunk. To
+ * keep the reads themselves close to the limit, each one asks for as many entries as the limit
+ * allows at the average size of the entries last read, and never more than the entry limit. The
+ * first read, or one following a change in entry sizes, may still overshoot the byte limit, so the
+ * bound on what is read is approximate, while the bound on what is held ready is exact.
+ * <p>
+ * This class is not thread-safe; it is only used from the fiber of its ReplicatorInstance.
+ */
+class CatchUpStream {
+  private final int maxChunkEntries;
+  private final long maxChunkBytes;
+
+  private boolean fetching = false;
+  private List<LogEntry> readyChunk = null;
+
+  // The number of entries to read for the next chunk, estimated from the sizes of those last read
+  private int entriesToRead;
+
+  public CatchUpStream(int maxChunkEntries, long maxChunkBytes) {
+    this.maxChunkEntries = maxChunkEntries;
+    this.maxChunkBytes = maxChunkBytes;
+    this.entriesToRead = maxChunkEntries;
+  }
+
+  /**
+   * Return the exclusive end of the range of indexes to read for a chunk beginning at firstIndex,
+   * given that the log ends at lastIndexInLog.
+   */
+  public long chunkEnd(long firstIndex, long lastIndexInLog) {
+    return Math.min(lastIndexInLog + 1, firstIndex + entriesToRead);
+  }
+
+  public boolean isFetching() {
+    return fetching;
+  }
+
+  public void fetchStarted() {
+    assert !fetching;
+    fetching = true;
+    readyChunk = null;
+  }
+
+  /**
+   * Accept the entries read from the log, keeping as many of them as fit within the size limit;
+   * always at least one, so that a single oversized entry can still be sent. The sizes of the entries
+   * measured decide how many to read for the next chunk.
+   */
+  public void fetchCompleted(List<LogEntry> entries) {
+    fetching = false;
+
+    long chunkBytes = 0;
+    int entriesMeasured = 0;
+    int chunkSize = 0;
+    while (entriesMeasured < entries.size()) {
+      chunkBytes += ReplicatorInstance.sizeOf(entries.get(entriesMeasured));
+      entriesMeasured++;
+      if (chunkSize > 0 && chunkBytes > maxChunkBytes) {
+        break;
+      }
+      chunkSize++;
+    }
+
+    if (entriesMeasured > 0) {
+      final long averageEntryBytes = Math.max(1, chunkBytes / entriesMeasured);
+      entriesToRead = (int) Math.max(1, Math.min(maxChunkEntries, maxChunkBytes / averageEntryBytes));
+    }
+
+    readyChunk = entries.isEmpty() ? null : entries.subList(0, chunkSize);
+  }
+
+  public void fetchFailed() {
+    fetching = false;
+    readyChunk = null;
+  }
+
+  /**
+   * Return the chunk which is ready to send, if there is one and it begins at firstIndex. A ready
+   * chunk which begins anywhere else is of no further use, so it is discarded.
+   */
+  public List<LogEntry> getReadyChunk(long firstIndex) {
+    if (readyChunk != null && readyChunk.get(0).getIndex() != firstIndex) {
+      readyChunk = null;
+    }
+    return readyChunk;
+  }
+
+  public void readyChunkSent() {
+    readyChunk = null;
+  }
+}
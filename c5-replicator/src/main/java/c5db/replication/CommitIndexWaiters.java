@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.PriorityQueue;
+
+/**
+ * Callers waiting for a replicator's commit index to reach some index. The waiters are kept in a
+ * priority queue ordered by the index they are waiting for, so that each advance of the commit
+ * index costs only as much as the number of waiters it releases (plus a logarithmic factor), no
+ * matter how many are still waiting.
+ * <p>
+ * This class is not thread-safe; it is only used from the fiber of its replicator.
+ */
+class CommitIndexWaiters {
+  private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+      (first, second) -> Long.compare(first.index, second.index));
+
+  private static class Waiter {
+    public final long index;
+    public final SettableFuture<Long> future;
+
+    private Waiter(long index, SettableFuture<Long> future) {
+      this.index = index;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Add a waiter, whose future will be set to the commit index once it reaches the given index.
+   */
+  public void add(long index, SettableFuture<Long> future) {
+    waiters.add(new Waiter(index, future));
+  }
+
+  /**
+   * Release every waiter waiting for an index less than or equal to the new commit index.
+   */
+  public void commitIndexAdvanced(long commitIndex) {
+    while (!waiters.isEmpty() && waiters.peek().index <= commitIndex) {
+      waiters.poll().future.set(commitIndex);
+    }
+  }
+
+  public int size() {
+    return waiters.size();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.replication.generated.AppendEntries;
+import c5db.replication.generated.HeartbeatBatch;
+import c5db.replication.generated.HeartbeatBatchReply;
+import c5db.replication.generated.QuorumHeartbeat;
+import c5db.replication.generated.QuorumHeartbeatReply;
+import c5db.replication.rpc.RpcRequest;
+import c5db.replication.rpc.RpcWireReply;
+import org.jetlang.channels.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sending half of node-level heartbeat coalescing. Rather than send each quorum's heartbeat to
+ * a peer node as a separate message, each dispatch partition of ReplicatorService holds the
+ * heartbeats bound for each node for a short interval, and then sends them all as one
+ * {@link HeartbeatBatch}. The receiving node hands each heartbeat to the ReplicatorInstance for its
+ * quorum, and answers with one {@link HeartbeatBatchReply}, whose replies are in the same order as
+ * the heartbeats.
+ * <p>
+ * A heartbeat is an AppendEntries carrying no entries; it conveys only the leader's liveness and its
+ * commit index, so holding it back briefly is harmless, as long as the interval is small compared
+ * with the election timeout. The exception is an urgent one, such as those a leader sends to confirm
+ * a read index, whose reply a client is waiting on; those are not coalesced.
+ * <p>
+ * Batches awaiting replies are kept in an {@link OutstandingRpcTable}, which the owning partition
+ * expires on the same tick as its table of outstanding requests.
+ * <p>
+ * This class is not thread-safe; each dispatch partition of ReplicatorService has its own, which is
+ * only used from that partition's fiber. Heartbeats for quorums in different partitions are batched
+ * separately.
+ */
+class HeartbeatCoalescer {
+  private final Map<Long, List<Request<RpcRequest, RpcWireReply>>> pendingByNode = new HashMap<>();
+  private final OutstandingRpcTable<List<Request<RpcRequest, RpcWireReply>>> sentBatches;
+
+  /**
+   * @param initialCapacity The number of sent batches which can await replies before the table of
+   *                        them needs to grow.
+   * @param timeoutTicks    The number of calls to {@link #expireSentBatches} after which a sent batch
+   *                        whose reply has not come is forgotten.
+   */
+  HeartbeatCoalescer(int initialCapacity, int timeoutTicks) {
+    sentBatches = new OutstandingRpcTable<>(initialCapacity, timeoutTicks);
+  }
+
+  public static boolean isHeartbeat(RpcRequest request) {
+    if (request.urgent || !request.isAppendMessage()) {
+      return false;
+    }
+    List<?> entries = request.getAppendMessage().getEntriesList();
+    return entries == null || entries.isEmpty();
+  }
+
+  /**
+   * Hold a heartbeat until the next flush for its destination node. Return true if it is the first
+   * heartbeat held for that node since the last flush, in which case the caller should schedule one.
+   */
+  public boolean add(Request<RpcRequest, RpcWireReply> heartbeat) {
+    final long to = heartbeat.getRequest().to;
+    List<Request<RpcRequest, RpcWireReply>> pending = pendingByNode.get(to);
+    if (pending == null) {
+      pending = new ArrayList<>();
+      pendingByNode.put(to, pending);
+    }
+    pending.add(heartbeat);
+    return pending.size() == 1;
+  }
+
+  /**
+   * Remove and return the heartbeats held for the given node, in the order they were added.
+   */
+  public List<Request<RpcRequest, RpcWireReply>> takePending(long nodeId) {
+    List<Request<RpcRequest, RpcWireReply>> pending = pendingByNode.remove(nodeId);
+    return pending == null ? Collections.emptyList() : pending;
+  }
+
+  /**
+   * Record that the given heartbeats were sent together in the message with the given ID, so that
+   * the reply to that message can be matched back up with them.
+   */
+  public void batchSent(long messageId, List<Request<RpcRequest, RpcWireReply>> heartbeats) {
+    sentBatches.put(messageId, heartbeats);
+  }
+
+  /**
+   * Advance the expiry of sent batches by one tick, forgetting those which have waited for a reply
+   * for the full timeout.
+   *
+   * @return The number of batches forgotten.
+   */
+  public int expireSentBatches() {
+    return sentBatches.expire();
+  }
+
+  /**
+   * Deliver the replies to a batch of heartbeats to the ReplicatorInstances which sent them. Return
+   * false if the message ID is not that of a batch awaiting a reply.
+   */
+  public boolean handleReply(long messageId, long fromNodeId, HeartbeatBatchReply batchReply) {
+    List<Request<RpcRequest, RpcWireReply>> heartbeats = sentBatches.remove(messageId);
+    if (heartbeats == null) {
+      return false;
+    }
+
+    List<QuorumHeartbeatReply> replies = batchReply.getRepliesList();
+    if (replies == null) {
+      return true;
+    }
+
+    for (int i = 0; i < replies.size() && i < heartbeats.size(); i++) {
+      QuorumHeartbeatReply reply = replies.get(i);
+      if (reply.getAppendEntriesReply() == null) {
+        // The receiving node had no instance for the quorum, or the instance did not answer in time.
+        continue;
+      }
+      Request<RpcRequest, RpcWireReply> heartbeat = heartbeats.get(i);
+      heartbeat.reply(new RpcWireReply(heartbeat.getRequest().from, fromNodeId, reply.getQuorumId(),
+          reply.getAppendEntriesReply()));
+    }
+    return true;
+  }
+
+  public static HeartbeatBatch toHeartbeatBatch(List<Request<RpcRequest, RpcWireReply>> heartbeats) {
+    List<QuorumHeartbeat> quorumHeartbeats = new ArrayList<>(heartbeats.size());
+    for (Request<RpcRequest, RpcWireReply> heartbeat : heartbeats) {
+      RpcRequest request = heartbeat.getRequest();
+      AppendEntries appendEntries = request.getAppendMessage();
+      quorumHeartbeats.add(new QuorumHeartbeat(request.quorumId, appendEntries));
+    }
+    return new HeartbeatBatch(quorumHeartbeats);
+  }
+}
@@ -17,6 +17,7 @@
 package c5db.replication;
 
 import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.ReplicatorBatchReceipt;
 import c5db.interfaces.replication.ReplicatorReceipt;
 import c5db.replication.generated.LogEntry;
 import com.google.common.util.concurrent.SettableFuture;
@@ -26,28 +27,101 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Represents a log request, for internal use by ReplicatorInstance.
+ * Represents a log request, for internal use by ReplicatorInstance. A request is usually for a
+ * single entry; but a batch request stands for several entries, which are logged with consecutive
+ * indexes, and which share a single receipt.
  */
 class InternalReplicationRequest {
   public final List<ByteBuffer> data;
   public final QuorumConfiguration config;
   public final SettableFuture<ReplicatorReceipt> logReceiptFuture;
 
+  // For a batch request, the data for each entry, and the receipt covering all of them; otherwise null
+  public final List<List<ByteBuffer>> batchData;
+  public final SettableFuture<ReplicatorBatchReceipt> batchReceiptFuture;
+
+  // Number of log entries this request will produce
+  public final int entryCount;
+
+  // Total number of payload bytes, used to bound the size of the leader's batches
+  public final long dataSize;
+
   public static InternalReplicationRequest toLogData(List<ByteBuffer> data) {
     return new InternalReplicationRequest(data, null);
   }
 
+  public static InternalReplicationRequest toLogDataBatch(List<List<ByteBuffer>> dataBatch) {
+    if (dataBatch.isEmpty()) {
+      throw new IllegalArgumentException("InternalReplicationRequest#toLogDataBatch: empty batch");
+    }
+    return new InternalReplicationRequest(dataBatch);
+  }
+
+  /**
+   * A request for an entry carrying no data, which a new leader may log so as to have an entry from
+   * its own term to commit.
+   */
+  public static InternalReplicationRequest toNoOp() {
+    return new InternalReplicationRequest(new ArrayList<>(), null);
+  }
+
   public static InternalReplicationRequest toChangeConfig(QuorumConfiguration config) {
     return new InternalReplicationRequest(new ArrayList<>(), config);
   }
 
   public LogEntry getEntry(long term, long index) {
+    assert batchData == null;
     return new LogEntry(term, index, data, config == null ? null : config.toProtostuff());
   }
 
+  /**
+   * Create this request's entries, beginning at firstIndex, and add them to the given list; then let
+   * the client know which indexes they were assigned.
+   */
+  public void addEntriesTo(List<LogEntry> entries, long term, long firstIndex) {
+    if (batchData == null) {
+      entries.add(getEntry(term, firstIndex));
+      logReceiptFuture.set(new ReplicatorReceipt(term, firstIndex));
+    } else {
+      long index = firstIndex;
+      for (List<ByteBuffer> entryData : batchData) {
+        entries.add(new LogEntry(term, index, entryData, null));
+        index++;
+      }
+      batchReceiptFuture.set(new ReplicatorBatchReceipt(term, firstIndex, index - 1));
+    }
+  }
+
   private InternalReplicationRequest(List<ByteBuffer> data, QuorumConfiguration config) {
     this.data = data;
     this.config = config;
     this.logReceiptFuture = SettableFuture.create();
+    this.batchData = null;
+    this.batchReceiptFuture = null;
+    this.entryCount = 1;
+    this.dataSize = sizeOf(data);
+  }
+
+  private InternalReplicationRequest(List<List<ByteBuffer>> batchData) {
+    this.data = null;
+    this.config = null;
+    this.logReceiptFuture = null;
+    this.batchData = batchData;
+    this.batchReceiptFuture = SettableFuture.create();
+    this.entryCount = batchData.size();
+
+    long batchSize = 0;
+    for (List<ByteBuffer> entryData : batchData) {
+      batchSize += sizeOf(entryData);
+    }
+    this.dataSize = batchSize;
+  }
+
+  private static long sizeOf(List<ByteBuffer> data) {
+    long size = 0;
+    for (ByteBuffer buffer : data) {
+      size += buffer.remaining();
+    }
+    return size;
   }
 }
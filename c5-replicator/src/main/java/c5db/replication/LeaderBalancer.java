@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides when and where a node should hand off leadership of one of the quorums it leads, so that
+ * leadership, and the work of leading, is spread evenly among the nodes.
+ * <p>
+ * In each balancing round, ReplicatorService observes every quorum it hosts: its peers, its leader,
+ * and its commit index. The balancer weighs each quorum by its share of the writes committed since
+ * the previous round, so that a quorum taking a large share of the writes counts for more than an
+ * idle one; a node's load is the total weight of the quorums it leads. If this node's load exceeds
+ * the mean load of the nodes it can see by at least the tolerance, the balancer picks the quorum and
+ * target peer which most reduce the greater of the two loads involved.
+ * <p>
+ * Each node sees only the quorums it hosts, and moves only leaderships it holds itself, so nodes never
+ * contend over the same move. Pacing (one move at a time, at most one per round) is up to the caller.
+ * <p>
+ * This class is not thread-safe; it is only used from the fiber of ReplicatorService.
+ */
+class LeaderBalancer {
+  private final double tolerance;
+
+  private final Map<String, Long> commitIndexAtLastRound = new HashMap<>();
+  private final List<QuorumObservation> observations = new ArrayList<>();
+
+  public static class Move {
+    public final String quorumId;
+    public final long targetPeer;
+
+    private Move(String quorumId, long targetPeer) {
+      this.quorumId = quorumId;
+      this.targetPeer = targetPeer;
+    }
+
+    @Override
+    public String toString() {
+      return "Move{" +
+          "quorumId=" + quorumId +
+          ", targetPeer=" + targetPeer +
+          '}';
+    }
+  }
+
+  private static class QuorumObservation {
+    public final String quorumId;
+    public final Set<Long> peers;
+    public final long leaderId;
+    public final long writes;
+
+    private QuorumObservation(String quorumId, Set<Long> peers, long leaderId, long writes) {
+      this.quorumId = quorumId;
+      this.peers = peers;
+      this.leaderId = leaderId;
+      this.writes = writes;
+    }
+  }
+
+  /**
+   * @param tolerance How far above the mean load, in units of an average quorum's weight, this node's
+   *                  load may be before the balancer moves a leadership away.
+   */
+  public LeaderBalancer(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Record the state of a quorum for the current round.
+   *
+   * @param leaderId    The quorum's current leader, or 0 if it is not known.
+   * @param commitIndex The commit index of this node's replica of the quorum.
+   */
+  public void observe(String quorumId, Set<Long> peers, long leaderId, long commitIndex) {
+    final Long previousCommitIndex = commitIndexAtLastRound.put(quorumId, commitIndex);
+    final long writes = previousCommitIndex == null ? 0 : Math.max(0, commitIndex - previousCommitIndex);
+    if (leaderId != 0 && peers.contains(leaderId)) {
+      observations.add(new QuorumObservation(quorumId, peers, leaderId, writes));
+    }
+  }
+
+  /**
+   * End the current round: return the leadership this node, with the given ID, should move, or null
+   * if there is none; and forget the round's observations.
+   */
+  public Move endRound(long myId) {
+    try {
+      return chooseMove(myId);
+    } finally {
+      observations.clear();
+    }
+  }
+
+  /**
+   * Forget a quorum, as when its ReplicatorInstance is removed.
+   */
+  public void forget(String quorumId) {
+    commitIndexAtLastRound.remove(quorumId);
+  }
+
+  private Move chooseMove(long myId) {
+    if (observations.isEmpty()) {
+      return null;
+    }
+
+    long totalWrites = 0;
+    for (QuorumObservation observation : observations) {
+      totalWrites += observation.writes;
+    }
+
+    // Every node which could lead one of the observed quorums counts toward the mean, leader or not.
+    final Map<Long, Double> loadByNode = new HashMap<>();
+    final Map<String, Double> weightByQuorum = new HashMap<>();
+    double totalLoad = 0;
+    for (QuorumObservation observation : observations) {
+      final double weight = weightOf(observation, totalWrites);
+      weightByQuorum.put(observation.quorumId, weight);
+      for (long peer : observation.peers) {
+        loadByNode.putIfAbsent(peer, 0.0);
+      }
+      loadByNode.put(observation.leaderId, loadByNode.get(observation.leaderId) + weight);
+      totalLoad += weight;
+    }
+
+    final double myLoad = loadByNode.getOrDefault(myId, 0.0);
+    final double meanLoad = totalLoad / loadByNode.size();
+    if (myLoad - meanLoad < tolerance) {
+      return null;
+    }
+
+    // Among moves which reduce the peak equally, prefer the least loaded target.
+    Move bestMove = null;
+    double bestPeakLoad = myLoad;
+    double bestTargetLoad = Double.MAX_VALUE;
+    for (QuorumObservation observation : observations) {
+      if (observation.leaderId != myId) {
+        continue;
+      }
+
+      final double weight = weightByQuorum.get(observation.quorumId);
+      for (long peer : observation.peers) {
+        if (peer == myId) {
+          continue;
+        }
+        final double targetLoad = loadByNode.get(peer);
+        final double peakLoad = Math.max(myLoad - weight, targetLoad + weight);
+        if (peakLoad < bestPeakLoad || (peakLoad == bestPeakLoad && bestMove != null && targetLoad < bestTargetLoad)) {
+          bestPeakLoad = peakLoad;
+          bestTargetLoad = targetLoad;
+          bestMove = new Move(observation.quorumId, peer);
+        }
+      }
+    }
+    return bestMove;
+  }
+
+  /**
+   * A quorum's weight is half for leading it at all, and half for its share of the writes, scaled so
+   * that the mean weight over all observed quorums is 1.
+   */
+  private double weightOf(QuorumObservation observation, long totalWrites) {
+    if (totalWrites == 0) {
+      return 1.0;
+    }
+    return 0.5 + 0.5 * observations.size() * observation.writes / (double) totalWrites;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * Choice of Netty transport for replication traffic: Netty's native Linux epoll transport where it can
+ * be loaded, and NIO otherwise. The channel classes to use follow from the type of the event loop
+ * group, so a ReplicatorService uses epoll if, and only if, it is given epoll event loop groups, such
+ * as those made by {@link #newEventLoopGroup}.
+ */
+public final class NettyTransport {
+  private static final Logger LOG = LoggerFactory.getLogger(NettyTransport.class);
+
+  private static final boolean EPOLL_AVAILABLE = loadEpoll();
+
+  private NettyTransport() {
+  }
+
+  /**
+   * Return true if this is Linux, and Netty's native epoll library can be loaded.
+   */
+  public static boolean isEpollAvailable() {
+    return EPOLL_AVAILABLE;
+  }
+
+  /**
+   * Create an event loop group with the given number of threads (or Netty's default, if zero), using
+   * epoll if it is preferred and available, or NIO otherwise.
+   */
+  public static EventLoopGroup newEventLoopGroup(int numberOfThreads, boolean preferEpoll) {
+    if (preferEpoll && EPOLL_AVAILABLE) {
+      return new EpollEventLoopGroup(numberOfThreads);
+    }
+    return new NioEventLoopGroup(numberOfThreads);
+  }
+
+  public static Class<? extends ServerSocketChannel> serverSocketChannelClass(EventLoopGroup group) {
+    return group instanceof EpollEventLoopGroup ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+  }
+
+  public static Class<? extends SocketChannel> socketChannelClass(EventLoopGroup group) {
+    return group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class;
+  }
+
+  private static boolean loadEpoll() {
+    if (!System.getProperty("os.name", "").toLowerCase(Locale.US).startsWith("linux")) {
+      return false;
+    }
+    try {
+      // Creating an event loop loads the native library and opens an epoll descriptor, without starting a thread.
+      new EpollEventLoopGroup(1).shutdownGracefully();
+      return true;
+    } catch (Throwable t) {
+      LOG.info("native epoll transport is unavailable; using NIO: {}", t.toString());
+      return false;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import java.util.Arrays;
+
+/**
+ * The requests awaiting replies from other nodes, keyed by message ID, each of which is forgotten
+ * if its reply has not arrived within a fixed number of ticks.
+ * <p>
+ * The requests are kept in an open-addressing hash table of primitive long keys, with linear probing
+ * and backward-shift deletion, so adding or removing one allocates nothing and boxes nothing. Expiry
+ * uses a hashed timing wheel: each slot holds the IDs of the requests added during one tick, in a
+ * reusable array, and each tick expires the requests in the slot it reaches. A request which has
+ * already been answered is simply no longer in the table when its slot comes round, so replies cost
+ * nothing on the wheel.
+ * <p>
+ * Message IDs must not be 0. This class is not thread-safe; it is only used from the fiber of its
+ * owner.
+ *
+ * @param <V> The type of the requests.
+ */
+class OutstandingRpcTable<V> {
+  private static final long EMPTY_KEY = 0;
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int shift;
+  private int size = 0;
+
+  private final long[][] wheel;
+  private final int[] wheelSlotSizes;
+  private long currentTick = 0;
+
+  /**
+   * @param initialCapacity The number of requests the table can hold before it needs to grow.
+   * @param timeoutTicks    The number of calls to {@link #expire} after which a request is forgotten.
+   */
+  OutstandingRpcTable(int initialCapacity, int timeoutTicks) {
+    if (timeoutTicks <= 0) {
+      throw new IllegalArgumentException("timeoutTicks must be positive");
+    }
+    allocate(Math.max(2, Integer.highestOneBit(Math.max(1, initialCapacity) * 2 - 1) * 2));
+
+    wheel = new long[timeoutTicks + 1][];
+    wheelSlotSizes = new int[timeoutTicks + 1];
+    for (int slot = 0; slot < wheel.length; slot++) {
+      wheel[slot] = new long[16];
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Add a request, which will be forgotten when {@link #expire} has been called timeoutTicks times,
+   * unless it is removed before then.
+   */
+  public void put(long messageId, V request) {
+    if (messageId == EMPTY_KEY) {
+      throw new IllegalArgumentException("message ID must not be " + EMPTY_KEY);
+    }
+    if ((size + 1) * 2 > keys.length) {
+      allocateAndRehash(keys.length * 2);
+    }
+
+    int slot = slotOf(messageId);
+    while (keys[slot] != EMPTY_KEY && keys[slot] != messageId) {
+      slot = (slot + 1) & mask;
+    }
+    if (keys[slot] == EMPTY_KEY) {
+      size++;
+    }
+    keys[slot] = messageId;
+    values[slot] = request;
+
+    addToWheel(messageId);
+  }
+
+  public V get(long messageId) {
+    final int slot = find(messageId);
+    return slot < 0 ? null : valueAt(slot);
+  }
+
+  /**
+   * Remove and return the request with the given ID, or return null if there is none.
+   */
+  public V remove(long messageId) {
+    final int slot = find(messageId);
+    if (slot < 0) {
+      return null;
+    }
+    final V request = valueAt(slot);
+    deleteAt(slot);
+    return request;
+  }
+
+  /**
+   * Advance the wheel by one tick, forgetting every request added timeoutTicks ticks ago which is still
+   * outstanding.
+   *
+   * @return The number of requests forgotten.
+   */
+  public int expire() {
+    currentTick++;
+    final int wheelSlot = (int) (currentTick % wheel.length);
+    final long[] messageIds = wheel[wheelSlot];
+    int expired = 0;
+    for (int i = 0; i < wheelSlotSizes[wheelSlot]; i++) {
+      final int slot = find(messageIds[i]);
+      if (slot >= 0) {
+        deleteAt(slot);
+        expired++;
+      }
+    }
+    wheelSlotSizes[wheelSlot] = 0;
+    return expired;
+  }
+
+  private void addToWheel(long messageId) {
+    // Expires when the wheel next comes round to the slot after the current one.
+    final int wheelSlot = (int) ((currentTick + wheel.length - 1) % wheel.length);
+    final int slotSize = wheelSlotSizes[wheelSlot];
+    if (slotSize == wheel[wheelSlot].length) {
+      wheel[wheelSlot] = Arrays.copyOf(wheel[wheelSlot], slotSize * 2);
+    }
+    wheel[wheelSlot][slotSize] = messageId;
+    wheelSlotSizes[wheelSlot] = slotSize + 1;
+  }
+
+  private int find(long messageId) {
+    if (messageId == EMPTY_KEY) {
+      return -1;
+    }
+    int slot = slotOf(messageId);
+    while (keys[slot] != EMPTY_KEY) {
+      if (keys[slot] == messageId) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Empty the given slot, and move back any entries following it in the same probe run which would
+   * otherwise become unreachable.
+   */
+  private void deleteAt(int slot) {
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != EMPTY_KEY) {
+      final int home = slotOf(keys[next]);
+      // The entry at next may fill the hole if its home slot is not cyclically within (hole, next].
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = EMPTY_KEY;
+    values[hole] = null;
+    size--;
+  }
+
+  private int slotOf(long messageId) {
+    return (int) ((messageId * HASH_MULTIPLIER) >>> shift);
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(int slot) {
+    return (V) values[slot];
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  private void allocateAndRehash(int capacity) {
+    final long[] oldKeys = keys;
+    final Object[] oldValues = values;
+    allocate(capacity);
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY_KEY) {
+        int slot = slotOf(oldKeys[i]);
+        while (keys[slot] != EMPTY_KEY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
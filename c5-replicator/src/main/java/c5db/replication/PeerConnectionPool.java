@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import c5db.ReplicatorConstants;
+import c5db.interfaces.DiscoveryModule;
+import c5db.interfaces.discovery.NodeInfoReply;
+import c5db.interfaces.discovery.NodeInfoRequest;
+import c5db.messages.generated.ModuleType;
+import c5db.util.FiberOnly;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import org.jetlang.channels.AsyncRequest;
+import org.jetlang.fibers.Fiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections from this node to the other nodes it replicates with. Each peer node has a fixed
+ * number of connections, or stripes, and each message is sent on the stripe chosen by a key, such as
+ * the hash of its quorum ID; so the quorums shared with a peer are spread over several TCP streams,
+ * and several event loops, and a large message for one quorum does not hold up the others.
+ * <p>
+ * Connections are made as soon as a peer becomes known, rather than when a message first needs
+ * one, and are remade whenever they close or fail to open, after a delay which doubles with each
+ * consecutive failure up to a limit. The address of each peer is looked up once, and looked up
+ * again only after a connection to it fails to open. Peers no longer needed may be removed, which
+ * closes their connections and stops reconnecting to them.
+ * <p>
+ * Messages only wait for a stripe while it is connecting for the first time since it was last
+ * connected, and then only a bounded number of them, for a bounded time. Once an attempt has
+ * failed, the peer is taken to be down, and messages for it are dropped until it connects again;
+ * the replicators resend whatever is still needed when their RPCs time out.
+ * <p>
+ * Connections may be requested from any thread; the pool's own state is only changed on its fiber.
+ */
+class PeerConnectionPool {
+  private static final Logger LOG = LoggerFactory.getLogger(PeerConnectionPool.class);
+
+  /**
+   * Opens a connection to a host and port; normally Bootstrap::connect.
+   */
+  interface Connector {
+    ChannelFuture connect(String host, int port);
+  }
+
+  private final Connector connector;
+  private final DiscoveryModule discoveryModule;
+  private final Fiber fiber;
+  private final int stripesPerPeer;
+  private final int maxWaitingMessages;
+  private final long maxWaitMillis;
+
+  private final Map<Long, Peer> peers = new ConcurrentHashMap<>();
+  private volatile boolean disposed = false;
+
+  private class Peer {
+    public final long peerId;
+    public final Stripe[] stripes;
+
+    // The last address found for the peer, or null if it must be looked up
+    public String host = null;
+    public int port = 0;
+
+    // Set on the fiber when the peer is removed from the pool, after which its stripes never reconnect
+    public boolean removed = false;
+
+    private Peer(long peerId) {
+      this.peerId = peerId;
+      this.stripes = new Stripe[stripesPerPeer];
+      for (int i = 0; i < stripesPerPeer; i++) {
+        stripes[i] = new Stripe(this, i);
+      }
+    }
+  }
+
+  private static class Stripe {
+    public final Peer peer;
+    public final int index;
+
+    // The open connection, if any; read from any thread, but only set on the fiber.
+    public volatile Channel channel = null;
+
+    // True from when an attempt to connect is begun, or scheduled, until it succeeds or fails; read from
+    // any thread, so that a caller finding the stripe unconnected need not ask for another attempt.
+    public volatile boolean connecting = false;
+
+    // The delay before the next attempt to connect; zero until an attempt fails, or the connection closes.
+    public long backoffMillis = 0;
+
+    // Actions waiting for the stripe to connect
+    public final Queue<Waiter> waiters = new ArrayDeque<>();
+
+    private Stripe(Peer peer, int index) {
+      this.peer = peer;
+      this.index = index;
+    }
+
+    public boolean isDown() {
+      return backoffMillis > 0;
+    }
+  }
+
+  private static class Waiter {
+    public final Runnable action;
+    public final long deadlineMillis;
+
+    private Waiter(Runnable action, long deadlineMillis) {
+      this.action = action;
+      this.deadlineMillis = deadlineMillis;
+    }
+  }
+
+  PeerConnectionPool(Bootstrap bootstrap, DiscoveryModule discoveryModule, Fiber fiber, int stripesPerPeer) {
+    this(bootstrap::connect, discoveryModule, fiber, stripesPerPeer,
+        ReplicatorConstants.REPLICATOR_PEER_CONNECTION_MAX_WAITING_MESSAGES,
+        ReplicatorConstants.REPLICATOR_PEER_CONNECTION_MAX_WAIT_MILLISECONDS);
+  }
+
+  PeerConnectionPool(Connector connector, DiscoveryModule discoveryModule, Fiber fiber, int stripesPerPeer,
+                     int maxWaitingMessages, long maxWaitMillis) {
+    if (stripesPerPeer <= 0) {
+      throw new IllegalArgumentException("stripesPerPeer must be positive");
+    }
+    this.connector = connector;
+    this.discoveryModule = discoveryModule;
+    this.fiber = fiber;
+    this.stripesPerPeer = stripesPerPeer;
+    this.maxWaitingMessages = maxWaitingMessages;
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  /**
+   * Begin connecting every stripe to each of the given peers, if not already connected or connecting.
+   */
+  public void connect(Collection<Long> peerIds) {
+    for (long peerId : peerIds) {
+      final Peer peer = peerOf(peerId);
+      fiber.execute(() -> {
+        for (Stripe stripe : peer.stripes) {
+          connect(stripe);
+        }
+      });
+    }
+  }
+
+  /**
+   * Remove every peer not among the given ones, closing its connections and dropping any messages
+   * waiting for them. A peer removed this way is added again if a message is later sent to it.
+   */
+  public void retainOnly(Collection<Long> peerIds) {
+    final Set<Long> peerIdsToKeep = new HashSet<>(peerIds);
+    fiber.execute(() -> {
+      for (Peer peer : peers.values()) {
+        if (!peerIdsToKeep.contains(peer.peerId)) {
+          remove(peer);
+        }
+      }
+    });
+  }
+
+  /**
+   * Return the open connection to the given peer for the given stripe key, or null if that stripe is
+   * not connected at the moment; in that case, connecting it is begun if it is not already under way.
+   */
+  public Channel getChannel(long peerId, int stripeKey) {
+    final Stripe stripe = stripeOf(peerId, stripeKey);
+    final Channel channel = stripe.channel;
+    if (channel != null && channel.isOpen()) {
+      return channel;
+    }
+    if (!stripe.connecting) {
+      fiber.execute(() -> connect(stripe));
+    }
+    return null;
+  }
+
+  /**
+   * Run the given action on the pool's fiber once the stripe for the given key is connected, or at
+   * once if it already is. The action is dropped if the peer is down, or if it would have to wait
+   * longer than the pool's limit, or behind too many others, or if the pool is disposed.
+   */
+  public void whenConnected(long peerId, int stripeKey, Runnable action) {
+    final Stripe stripe = stripeOf(peerId, stripeKey);
+    fiber.execute(() -> {
+      if (isOpen(stripe)) {
+        action.run();
+        return;
+      }
+      connect(stripe);
+
+      if (disposed || stripe.peer.removed || stripe.isDown()) {
+        LOG.trace("connection {} to peer {} is down; dropping a message", stripe.index, peerId);
+        return;
+      }
+
+      final long now = System.currentTimeMillis();
+      dropExpiredWaiters(stripe, now);
+      if (stripe.waiters.size() < maxWaitingMessages) {
+        stripe.waiters.add(new Waiter(action, now + maxWaitMillis));
+      } else {
+        LOG.debug("too many messages waiting for connection {} to peer {}; dropping one", stripe.index, peerId);
+      }
+    });
+  }
+
+  /**
+   * Close every connection and stop reconnecting.
+   */
+  public void dispose() {
+    disposed = true;
+    for (Peer peer : peers.values()) {
+      for (Stripe stripe : peer.stripes) {
+        final Channel channel = stripe.channel;
+        if (channel != null) {
+          channel.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * The delay before the next attempt to connect, after an attempt which followed the given delay has
+   * failed: the minimum after a first failure, and then double the last delay, up to the maximum.
+   */
+  static long nextBackoffMillis(long backoffMillis) {
+    return backoffMillis == 0
+        ? ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MIN_BACKOFF_MILLISECONDS
+        : Math.min(backoffMillis * 2, ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MAX_BACKOFF_MILLISECONDS);
+  }
+
+  private Peer peerOf(long peerId) {
+    return peers.computeIfAbsent(peerId, Peer::new);
+  }
+
+  private Stripe stripeOf(long peerId, int stripeKey) {
+    return peerOf(peerId).stripes[Math.floorMod(stripeKey, stripesPerPeer)];
+  }
+
+  private static boolean isOpen(Stripe stripe) {
+    final Channel channel = stripe.channel;
+    return channel != null && channel.isOpen();
+  }
+
+  @FiberOnly
+  private void remove(Peer peer) {
+    LOG.debug("no longer connecting to peer {}", peer.peerId);
+    peers.remove(peer.peerId, peer);
+    peer.removed = true;
+    for (Stripe stripe : peer.stripes) {
+      stripe.waiters.clear();
+      final Channel channel = stripe.channel;
+      if (channel != null) {
+        stripe.channel = null;
+        channel.close();
+      }
+    }
+  }
+
+  @FiberOnly
+  private static void dropExpiredWaiters(Stripe stripe, long now) {
+    // Waiters are added in order of their deadlines, so the expired ones are all at the head.
+    while (!stripe.waiters.isEmpty() && stripe.waiters.peek().deadlineMillis < now) {
+      stripe.waiters.poll();
+    }
+  }
+
+  @FiberOnly
+  private void connect(Stripe stripe) {
+    if (disposed || stripe.peer.removed || stripe.connecting || isOpen(stripe)) {
+      return;
+    }
+    stripe.connecting = true;
+
+    final Peer peer = stripe.peer;
+    if (peer.host != null) {
+      openChannel(stripe, peer.host, peer.port);
+      return;
+    }
+
+    final NodeInfoRequest nodeInfoRequest = new NodeInfoRequest(peer.peerId, ModuleType.Replication);
+    LOG.debug("sending node info request {}", nodeInfoRequest);
+    AsyncRequest.withOneReply(fiber, discoveryModule.getNodeInfo(), nodeInfoRequest,
+        (NodeInfoReply nodeInfoReply) -> {
+          if (!nodeInfoReply.found) {
+            LOG.debug("Can't find the info for the peer {}", peer.peerId);
+            connectFailed(stripe);
+            return;
+          }
+          peer.host = nodeInfoReply.addresses.get(0);
+          peer.port = nodeInfoReply.port;
+          openChannel(stripe, peer.host, peer.port);
+        },
+        ReplicatorConstants.REPLICATOR_NODE_INFO_REQUEST_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS,
+        () -> {
+          LOG.warn("node info request timeout {} ", nodeInfoRequest);
+          connectFailed(stripe);
+        });
+  }
+
+  @FiberOnly
+  private void openChannel(Stripe stripe, String host, int port) {
+    LOG.trace("Connecting to peer {} at address {} port {}, stripe {}", stripe.peer.peerId, host, port, stripe.index);
+
+    //noinspection RedundantCast
+    connector.connect(host, port).addListener((ChannelFutureListener)
+        future -> fiber.execute(() -> {
+          if (!future.isSuccess()) {
+            LOG.debug("Unable to connect to peer {}: {}", stripe.peer.peerId, future.cause().toString());
+            connectFailed(stripe);
+          } else if (disposed || stripe.peer.removed) {
+            stripe.connecting = false;
+            future.channel().close();
+          } else {
+            connected(stripe, future.channel());
+          }
+        }));
+  }
+
+  @FiberOnly
+  private void connected(Stripe stripe, Channel channel) {
+    stripe.connecting = false;
+    stripe.backoffMillis = 0;
+    stripe.channel = channel;
+
+    //noinspection RedundantCast
+    channel.closeFuture().addListener((ChannelFutureListener)
+        future -> fiber.execute(() -> {
+          // Only if the stripe has not moved on to another connection in the meantime
+          if (stripe.channel == channel) {
+            stripe.channel = null;
+            scheduleReconnect(stripe);
+          }
+        }));
+
+    dropExpiredWaiters(stripe, System.currentTimeMillis());
+    Waiter waiter;
+    while ((waiter = stripe.waiters.poll()) != null) {
+      waiter.action.run();
+    }
+  }
+
+  @FiberOnly
+  private void connectFailed(Stripe stripe) {
+    stripe.connecting = false;
+    // The peer may have moved, so look it up again next time.
+    stripe.peer.host = null;
+    scheduleReconnect(stripe);
+  }
+
+  /**
+   * The stripe has lost its connection, or failed to make one: the peer is down, so drop whatever is
+   * waiting, and try again after the backoff delay.
+   */
+  @FiberOnly
+  private void scheduleReconnect(Stripe stripe) {
+    stripe.waiters.clear();
+    stripe.backoffMillis = nextBackoffMillis(stripe.backoffMillis);
+    if (disposed || stripe.peer.removed) {
+      return;
+    }
+    stripe.connecting = true;
+    fiber.schedule(() -> {
+      stripe.connecting = false;
+      connect(stripe);
+    }, stripe.backoffMillis, TimeUnit.MILLISECONDS);
+  }
+}
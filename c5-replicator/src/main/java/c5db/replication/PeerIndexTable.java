@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.interfaces.replication.QuorumConfiguration;
+
+import java.util.Arrays;
+
+/**
+ * The per-peer log indexes a leader keeps track of: the next index it needs to send to each peer,
+ * and the last index each peer has acknowledged. They are held in primitive arrays indexed by the
+ * peers' slots in the current {@link QuorumConfiguration}, so that neither updating them nor
+ * calculating the committed index from them allocates any memory.
+ * <p>
+ * Only peers in the current configuration have entries. Setting an index for any other peer does
+ * nothing, and getting one returns the default. When the configuration changes, the indexes of the
+ * peers which are part of both the old and the new configurations are carried over.
+ * <p>
+ * This class is not thread-safe; it is only used from the fiber of its ReplicatorInstance.
+ */
+class PeerIndexTable {
+  private QuorumConfiguration configuration = QuorumConfiguration.EMPTY;
+
+  // A value of 0 means there is no entry for the peer in that slot; log indexes begin at 1.
+  private long[] nextIndexBySlot = new long[0];
+  private long[] lastAckedIndexBySlot = new long[0];
+  private long[] scratch = new long[0];
+
+  public void setConfiguration(QuorumConfiguration newConfiguration) {
+    if (newConfiguration == configuration || newConfiguration.equals(configuration)) {
+      return;
+    }
+
+    final int numberOfSlots = newConfiguration.numberOfSlots();
+    final long[] newNextIndexBySlot = new long[numberOfSlots];
+    final long[] newLastAckedIndexBySlot = new long[numberOfSlots];
+
+    for (int slot = 0; slot < numberOfSlots; slot++) {
+      final int oldSlot = configuration.slotOf(newConfiguration.peerIdOfSlot(slot));
+      if (oldSlot >= 0) {
+        newNextIndexBySlot[slot] = nextIndexBySlot[oldSlot];
+        newLastAckedIndexBySlot[slot] = lastAckedIndexBySlot[oldSlot];
+      }
+    }
+
+    configuration = newConfiguration;
+    nextIndexBySlot = newNextIndexBySlot;
+    lastAckedIndexBySlot = newLastAckedIndexBySlot;
+    scratch = new long[numberOfSlots];
+  }
+
+  public long getNextIndex(long peerId, long defaultIndex) {
+    final int slot = configuration.slotOf(peerId);
+    if (slot < 0 || nextIndexBySlot[slot] == 0) {
+      return defaultIndex;
+    }
+    return nextIndexBySlot[slot];
+  }
+
+  public void setNextIndex(long peerId, long index) {
+    final int slot = configuration.slotOf(peerId);
+    if (slot >= 0) {
+      nextIndexBySlot[slot] = index;
+    }
+  }
+
+  /**
+   * Return the last index acknowledged by the given peer, or 0 if there is none.
+   */
+  public long getLastAckedIndex(long peerId) {
+    final int slot = configuration.slotOf(peerId);
+    return slot < 0 ? 0 : lastAckedIndexBySlot[slot];
+  }
+
+  public void setLastAckedIndex(long peerId, long index) {
+    final int slot = configuration.slotOf(peerId);
+    if (slot >= 0) {
+      lastAckedIndexBySlot[slot] = index;
+    }
+  }
+
+  /**
+   * Forget every peer's indexes, without changing the configuration.
+   */
+  public void clear() {
+    Arrays.fill(nextIndexBySlot, 0);
+    Arrays.fill(lastAckedIndexBySlot, 0);
+  }
+
+  /**
+   * Find the greatest index acknowledged by a majority of the current configuration; see
+   * {@link QuorumConfiguration#calculateCommittedIndex(long[], long[])}.
+   */
+  public long calculateCommittedIndex() {
+    return configuration.calculateCommittedIndex(lastAckedIndexBySlot, scratch);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("PeerIndexTable{");
+    for (int slot = 0; slot < nextIndexBySlot.length; slot++) {
+      if (slot > 0) {
+        builder.append(", ");
+      }
+      builder.append(configuration.peerIdOfSlot(slot))
+          .append("=(next=").append(nextIndexBySlot[slot])
+          .append(", lastAcked=").append(lastAckedIndexBySlot[slot]).append(')');
+    }
+    return builder.append('}').toString();
+  }
+}
@@ -16,6 +16,9 @@
 
 package c5db.replication;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -56,11 +59,19 @@ class Persister implements ReplicatorInfoPersistence {
     }
   }
 
+  /**
+   * Rewrite the quorum's file, synchronously, before returning an already-completed future.
+   */
   @Override
-  public void writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor) throws IOException {
+  public ListenableFuture<Void> writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor) {
     List<String> data = new ArrayList<>(2);
     data.add(Long.toString(currentTerm));
     data.add(Long.toString(votedFor));
-    quorumFileReaderWriter.writeQuorumFile(quorumId, REPLICATOR_PERSISTER_FILE_NAME, data);
+    try {
+      quorumFileReaderWriter.writeQuorumFile(quorumId, REPLICATOR_PERSISTER_FILE_NAME, data);
+      return Futures.immediateFuture(null);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
   }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.interfaces.replication.QuorumConfiguration;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The evidence a leader has that it is still the leader, used to answer read index requests.
+ * <p>
+ * Each AppendEntries request the leader sends is stamped with the current round number and the time
+ * it was sent. When a peer replies without having moved on to a later term, it confirms that it
+ * still recognized the leader when it received that request. A round is confirmed once a majority
+ * of the quorum has confirmed it (or a later round); a read which arrived before a round began can
+ * be answered once that round is confirmed. Likewise, the latest send time a majority has
+ * confirmed is the start of the leader's lease, if leases are in use.
+ * <p>
+ * Confirmations are held in arrays indexed by slot in the current {@link QuorumConfiguration}, in
+ * the same way as in {@link PeerIndexTable}.
+ * <p>
+ * This class is not thread-safe; it is only used from the fiber of its ReplicatorInstance.
+ */
+class ReadIndexTracker {
+  private QuorumConfiguration configuration = QuorumConfiguration.EMPTY;
+
+  private long[] confirmedRoundBySlot = new long[0];
+  private long[] confirmedSendTimeBySlot = new long[0];
+  private long[] scratch = new long[0];
+
+  private long currentRound = 0;
+  private final Deque<PendingRead> pendingReads = new ArrayDeque<>();
+
+  private static class PendingRead {
+    public final long round;
+    public final SettableFuture<Long> future;
+
+    private PendingRead(long round, SettableFuture<Long> future) {
+      this.round = round;
+      this.future = future;
+    }
+  }
+
+  public void setConfiguration(QuorumConfiguration newConfiguration) {
+    if (newConfiguration == configuration || newConfiguration.equals(configuration)) {
+      return;
+    }
+
+    final int numberOfSlots = newConfiguration.numberOfSlots();
+    final long[] newConfirmedRoundBySlot = new long[numberOfSlots];
+    final long[] newConfirmedSendTimeBySlot = new long[numberOfSlots];
+
+    for (int slot = 0; slot < numberOfSlots; slot++) {
+      final int oldSlot = configuration.slotOf(newConfiguration.peerIdOfSlot(slot));
+      if (oldSlot >= 0) {
+        newConfirmedRoundBySlot[slot] = confirmedRoundBySlot[oldSlot];
+        newConfirmedSendTimeBySlot[slot] = confirmedSendTimeBySlot[oldSlot];
+      }
+    }
+
+    configuration = newConfiguration;
+    confirmedRoundBySlot = newConfirmedRoundBySlot;
+    confirmedSendTimeBySlot = newConfirmedSendTimeBySlot;
+    scratch = new long[numberOfSlots];
+  }
+
+  /**
+   * Return the round number with which to stamp a request sent now.
+   */
+  public long currentRound() {
+    return currentRound;
+  }
+
+  /**
+   * Begin a new round; every pending read added before now will be answered once it is confirmed.
+   */
+  public long beginRound() {
+    return ++currentRound;
+  }
+
+  /**
+   * Add a read to be answered once a round beginning after now has been confirmed.
+   */
+  public void addPendingRead(SettableFuture<Long> future) {
+    pendingReads.addLast(new PendingRead(currentRound + 1, future));
+  }
+
+  public boolean hasPendingReads() {
+    return !pendingReads.isEmpty();
+  }
+
+  /**
+   * Return true if some pending read is waiting for a round which has not yet begun.
+   */
+  public boolean needsNewRound() {
+    return !pendingReads.isEmpty() && pendingReads.peekLast().round > currentRound;
+  }
+
+  /**
+   * Record that the given peer replied to a request stamped with the given round and send time,
+   * without having moved on to a later term.
+   */
+  public void confirmedBy(long peerId, long round, long sendTimeMillis) {
+    final int slot = configuration.slotOf(peerId);
+    if (slot >= 0) {
+      confirmedRoundBySlot[slot] = Math.max(confirmedRoundBySlot[slot], round);
+      confirmedSendTimeBySlot[slot] = Math.max(confirmedSendTimeBySlot[slot], sendTimeMillis);
+    }
+  }
+
+  /**
+   * Remove and return the pending reads whose rounds have been confirmed by a majority; the leader
+   * itself, with the given ID, confirms every round.
+   */
+  public List<SettableFuture<Long>> takeConfirmedReads(long myId) {
+    final List<SettableFuture<Long>> confirmedReads = new ArrayList<>();
+    if (pendingReads.isEmpty()) {
+      return confirmedReads;
+    }
+
+    confirmedBy(myId, currentRound, 0);
+    final long confirmedRound = configuration.calculateCommittedIndex(confirmedRoundBySlot, scratch);
+    while (!pendingReads.isEmpty() && pendingReads.peekFirst().round <= confirmedRound) {
+      confirmedReads.add(pendingReads.removeFirst().future);
+    }
+    return confirmedReads;
+  }
+
+  /**
+   * Remove and return every pending read, confirmed or not.
+   */
+  public List<SettableFuture<Long>> takeAllPendingReads() {
+    final List<SettableFuture<Long>> reads = new ArrayList<>(pendingReads.size());
+    while (!pendingReads.isEmpty()) {
+      reads.add(pendingReads.removeFirst().future);
+    }
+    return reads;
+  }
+
+  /**
+   * Return the latest send time confirmed by a majority, taking the leader itself, with the given ID,
+   * to confirm the current time; or 0 if there is none.
+   */
+  public long leaseStartMillis(long myId, long nowMillis) {
+    confirmedBy(myId, currentRound, nowMillis);
+    return configuration.calculateCommittedIndex(confirmedSendTimeBySlot, scratch);
+  }
+
+  /**
+   * Forget every confirmation, as at the start of a new term as leader.
+   */
+  public void clearConfirmations() {
+    Arrays.fill(confirmedRoundBySlot, 0);
+    Arrays.fill(confirmedSendTimeBySlot, 0);
+  }
+}
@@ -16,16 +16,25 @@
 
 package c5db.replication;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import java.io.IOException;
 
 /**
  * Persist snippets of information for the replication algorithm.  These bits are critical to recover during
- * crash-recovery, so the interface is sync and expected to durably write the data to disk before returning.
+ * crash-recovery, so a write is only complete once the data is durably on disk; a replicator must not act on
+ * a new term or vote, by sending any message which reveals it, until then.
  */
 public interface ReplicatorInfoPersistence {
   public long readCurrentTerm(String quorumId) throws IOException;
 
   public long readVotedFor(String quorumId) throws IOException;
 
-  public void writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor) throws IOException;
+  /**
+   * Write the current term and vote of a quorum. The write may be carried out asynchronously, and
+   * together with writes for other quorums.
+   *
+   * @return A future set once the data is durable, or set with an exception if the write failed.
+   */
+  public ListenableFuture<Void> writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor);
 }
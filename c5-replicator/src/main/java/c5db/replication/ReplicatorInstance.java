@@ -16,26 +16,36 @@
 
 package c5db.replication;
 
-import c5db.ReplicatorConstants;
 import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.LogDataSubmission;
 import c5db.interfaces.replication.QuorumConfiguration;
 import c5db.interfaces.replication.Replicator;
+import c5db.interfaces.replication.ReplicatorBatchReceipt;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
 import c5db.interfaces.replication.ReplicatorLog;
 import c5db.interfaces.replication.ReplicatorReceipt;
+import c5db.interfaces.replication.SnapshotDescriptor;
+import c5db.interfaces.replication.SnapshotProvider;
+import c5db.interfaces.replication.TermRun;
 import c5db.replication.generated.AppendEntries;
 import c5db.replication.generated.AppendEntriesReply;
+import c5db.replication.generated.InstallSnapshot;
+import c5db.replication.generated.InstallSnapshotReply;
 import c5db.replication.generated.LogEntry;
 import c5db.replication.generated.PreElectionPoll;
 import c5db.replication.generated.PreElectionReply;
 import c5db.replication.generated.RequestVote;
 import c5db.replication.generated.RequestVoteReply;
+import c5db.replication.generated.TimeoutNow;
+import c5db.replication.generated.TimeoutNowReply;
 import c5db.replication.rpc.RpcReply;
 import c5db.replication.rpc.RpcRequest;
 import c5db.replication.rpc.RpcWireReply;
 import c5db.replication.rpc.RpcWireRequest;
 import c5db.util.C5Futures;
+import c5db.util.MpscArrayQueue;
 import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -50,6 +60,7 @@ import org.jetlang.channels.Request;
 import org.jetlang.channels.RequestChannel;
 import org.jetlang.channels.Subscriber;
 import org.jetlang.core.Disposable;
+import org.jetlang.core.Scheduler;
 import org.jetlang.fibers.Fiber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,9 +74,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import static c5db.ReplicatorConstants.REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS;
 import static c5db.ReplicatorConstants.REPLICATOR_VOTE_RPC_TIMEOUT_MILLISECONDS;
@@ -86,10 +100,12 @@ public class ReplicatorInstance implements Replicator {
   private final Channel<IndexCommitNotice> commitNoticeChannel;
 
   private final Fiber fiber;
+  private final Scheduler timers;
   private final long myId;
   private final String quorumId;
   private final Logger logger;
   private final ReplicatorLog log;
+  private final ReplicatorOptions options;
   private final long myElectionTimeout;
 
   /**
@@ -103,18 +119,46 @@ public class ReplicatorInstance implements Replicator {
    * These fields are mutable state used by leader. All of these must only be accessed from the fiber.
    */
 
-  private final BlockingQueue<InternalReplicationRequest> logRequests =
-      new ArrayBlockingQueue<>(ReplicatorConstants.REPLICATOR_MAXIMUM_SIMULTANEOUS_LOG_REQUESTS);
+  // Submitted to from any thread, but drained only by the fiber
+  private final MpscArrayQueue<InternalReplicationRequest> logRequests;
 
-  // this is the next index from our log we need to send to each peer, kept track of on a per-peer basis.
-  private final Map<Long, Long> peersNextIndex = new HashMap<>();
+  // Payload bytes currently waiting in logRequests; may be updated from any thread.
+  private final AtomicLong logRequestsBytes = new AtomicLong(0);
 
-  // The last successfully acked message from our peers.  I also keep track of my own acked log messages in here.
-  private final Map<Long, Long> peersLastAckedIndex = new HashMap<>();
+  // True when a flush of logRequests has been scheduled on the fiber but has not yet started.
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+  // For each peer in the current configuration: the next index from our log we need to send to it, and
+  // the last index it has successfully acked.  I also keep track of my own acked log messages in here.
+  private final PeerIndexTable peerIndexes = new PeerIndexTable();
+
+  // The AppendEntries requests in flight to each peer
+  private final Map<Long, AppendEntriesWindow> appendEntriesWindows = new HashMap<>();
+
+  // Progress of sending the entries each lagging peer is missing
+  private final Map<Long, CatchUpStream> catchUpStreams = new HashMap<>();
+
+  // Progress of sending a snapshot to each peer which needs entries from before the start of the log
+  private final Map<Long, SnapshotTransfer> snapshotTransfers = new HashMap<>();
+
+  // Callers waiting for the commit index to reach some index; used by followers as well as the leader
+  private final CommitIndexWaiters commitIndexWaiters = new CommitIndexWaiters();
+
+  // The transfer of leadership in progress, if any. Only set from the fiber, but read by submitting threads,
+  // because no new requests are accepted during a transfer.
+  private volatile LeadershipTransfer leadershipTransfer = null;
+
+  // With addPeersAsLearners, the quorum change waiting for its joining peers to catch up as learners, if any;
+  // and the index of the configuration whose learners have already been put forward for promotion.
+  private PendingQuorumChange pendingQuorumChange = null;
+  private long learnersPromotedFromConfigIndex = 0;
+
+  // Confirmations of leadership, and the read index requests waiting on them
+  private final ReadIndexTracker readIndexTracker = new ReadIndexTracker();
+  private boolean readRoundScheduled = false;
 
   private long myFirstIndexAsLeader;
   private Disposable queueConsumer;
-
   /**
    * These fields are mutable state used by everyone; volatiles should only be updated from the
    * fiber, but may be read not-on-the-fiber; for instance, several of these are included in
@@ -130,6 +174,17 @@ public class ReplicatorInstance implements Replicator {
   private volatile long lastRPC;
   private long whosLeader = 0;
 
+  // Set by the application, from any thread
+  private volatile SnapshotProvider snapshotProvider = null;
+
+  // The most recent write of currentTerm and votedFor. Nothing revealing a new term or vote may be sent
+  // until it is durable; see whenMetadataIsDurable.
+  private ListenableFuture<Void> pendingMetadataWrite = Futures.immediateFuture(null);
+
+  // As a follower, the snapshot being received from the leader, if any, and the offset of the next chunk
+  private SnapshotDescriptor receivingSnapshot = null;
+  private long receivingSnapshotOffset = 0;
+
 
   public ReplicatorInstance(final Fiber fiber,
                             final long myId,
@@ -141,7 +196,45 @@ public class ReplicatorInstance implements Replicator {
                             final Channel<ReplicatorInstanceEvent> eventChannel,
                             final Channel<IndexCommitNotice> commitNoticeChannel,
                             State initialState) {
+    this(fiber, myId, quorumId, log, clock, persister, sendRpcChannel, eventChannel, commitNoticeChannel,
+        initialState, ReplicatorOptions.DEFAULT);
+  }
+
+  public ReplicatorInstance(final Fiber fiber,
+                            final long myId,
+                            final String quorumId,
+                            ReplicatorLog log,
+                            ReplicatorClock clock,
+                            ReplicatorInfoPersistence persister,
+                            RequestChannel<RpcRequest, RpcWireReply> sendRpcChannel,
+                            final Channel<ReplicatorInstanceEvent> eventChannel,
+                            final Channel<IndexCommitNotice> commitNoticeChannel,
+                            State initialState,
+                            ReplicatorOptions options) {
+    this(fiber, myId, quorumId, log, clock, persister, sendRpcChannel, eventChannel, commitNoticeChannel,
+        initialState, options, fiber);
+  }
+
+  /**
+   * Create a ReplicatorInstance whose election timeouts and leader ticks are timed by the given
+   * Scheduler, which may be shared by every ReplicatorInstance on the node, such as a
+   * {@link c5db.util.HierarchicalTimingWheel}. Its tasks need not run on the instance's fiber, because
+   * they only hand work off to it.
+   */
+  public ReplicatorInstance(final Fiber fiber,
+                            final long myId,
+                            final String quorumId,
+                            ReplicatorLog log,
+                            ReplicatorClock clock,
+                            ReplicatorInfoPersistence persister,
+                            RequestChannel<RpcRequest, RpcWireReply> sendRpcChannel,
+                            final Channel<ReplicatorInstanceEvent> eventChannel,
+                            final Channel<IndexCommitNotice> commitNoticeChannel,
+                            State initialState,
+                            ReplicatorOptions options,
+                            Scheduler timers) {
     this.fiber = fiber;
+    this.timers = timers;
     this.myId = myId;
     this.quorumId = quorumId;
     this.logger = getNewLogger();
@@ -151,9 +244,16 @@ public class ReplicatorInstance implements Replicator {
     this.persister = persister;
     this.eventChannel = eventChannel;
     this.commitNoticeChannel = commitNoticeChannel;
+    this.options = options;
+    this.logRequests = new MpscArrayQueue<>(options.maxQueuedLogRequests);
     this.myElectionTimeout = clock.electionTimeout();
     this.lastRPC = clock.currentTimeMillis();
 
+    if (options.leaderLeaseMillis > 0 && myElectionTimeout < options.minElectionTimeoutMillis) {
+      throw new IllegalArgumentException("election timeout of " + myElectionTimeout
+          + " ms is less than the minimum of " + options.minElectionTimeoutMillis + " ms the leader lease relies on");
+    }
+
     commitNoticeChannel.subscribe(
         new ChannelSubscription<>(fiber, this::onCommit,
             (notice) ->
@@ -161,8 +261,7 @@ public class ReplicatorInstance implements Replicator {
                     && notice.quorumId.equals(quorumId)));
 
     incomingChannel.subscribe(fiber, this::onIncomingMessage);
-    fiber.scheduleWithFixedDelay(this::checkOnElection, clock.electionCheckInterval(),
-        clock.electionCheckInterval(), TimeUnit.MILLISECONDS);
+    scheduleOnFiber(this::onElectionTimer, clock.electionCheckInterval());
 
     this.myState = initialState;
 
@@ -210,33 +309,156 @@ public class ReplicatorInstance implements Replicator {
 
   @Override
   public ListenableFuture<ReplicatorReceipt> changeQuorum(Collection<Long> newPeers) throws InterruptedException {
-    if (!isLeader()) {
-      logger.debug("attempted to changeQuorum on a non-leader");
+    if (!isAcceptingRequests()) {
+      logger.debug("attempted to changeQuorum on a non-leader, or during a leadership transfer");
       return null;
     }
 
+    if (options.addPeersAsLearners) {
+      SettableFuture<ReplicatorReceipt> receiptFuture = SettableFuture.create();
+      final Set<Long> newPeerSet = ImmutableSet.copyOf(newPeers);
+      fiber.execute(() -> beginQuorumChangeWithLearners(newPeerSet, receiptFuture));
+      return receiptFuture;
+    }
+
     final QuorumConfiguration transitionConfig = quorumConfig.getTransitionalConfiguration(newPeers);
     return putQuorumChangeRequest(transitionConfig);
   }
 
   @Override
   public ListenableFuture<ReplicatorReceipt> logData(List<ByteBuffer> data) throws InterruptedException {
-    if (!isLeader()) {
-      logger.debug("attempted to logData on a non-leader");
+    if (!isAcceptingRequests()) {
+      logger.debug("attempted to logData on a non-leader, or during a leadership transfer");
       return null;
     }
 
     InternalReplicationRequest req = InternalReplicationRequest.toLogData(data);
     logRequests.put(req);
+    notifyLogRequestQueued(req);
 
     return req.logReceiptFuture;
   }
 
+  @Override
+  public ListenableFuture<ReplicatorBatchReceipt> logDataBatch(List<List<ByteBuffer>> dataBatch)
+      throws InterruptedException {
+    if (!isAcceptingRequests()) {
+      logger.debug("attempted to logDataBatch on a non-leader, or during a leadership transfer");
+      return null;
+    }
+
+    InternalReplicationRequest req = InternalReplicationRequest.toLogDataBatch(dataBatch);
+    logRequests.put(req);
+    notifyLogRequestQueued(req);
+
+    return req.batchReceiptFuture;
+  }
+
+  @Override
+  public LogDataSubmission tryLogData(List<ByteBuffer> data) {
+    if (!isAcceptingRequests()) {
+      logger.debug("attempted to tryLogData on a non-leader, or during a leadership transfer");
+      return LogDataSubmission.rejected(LogDataSubmission.Outcome.NOT_LEADER,
+          logRequests.size(), logRequestsBytes.get());
+    }
+
+    InternalReplicationRequest req = InternalReplicationRequest.toLogData(data);
+    final long queuedBytes = tryReserveLogRequestBytes(req.dataSize);
+
+    if (queuedBytes < 0) {
+      return LogDataSubmission.rejected(LogDataSubmission.Outcome.QUEUE_FULL,
+          logRequests.size(), logRequestsBytes.get());
+    }
+
+    if (!logRequests.offer(req)) {
+      logRequestsBytes.addAndGet(-req.dataSize);
+      return LogDataSubmission.rejected(LogDataSubmission.Outcome.QUEUE_FULL,
+          logRequests.size(), logRequestsBytes.get());
+    }
+
+    notifyLogRequestQueued(req, queuedBytes);
+    return LogDataSubmission.accepted(req.logReceiptFuture, logRequests.size(), queuedBytes);
+  }
+
+  @Override
+  public ListenableFuture<Long> getReadIndex() {
+    if (!isAcceptingRequests()) {
+      logger.debug("attempted to getReadIndex on a non-leader, or during a leadership transfer");
+      return null;
+    }
+
+    SettableFuture<Long> readIndexFuture = SettableFuture.create();
+    fiber.execute(() -> requestReadIndex(readIndexFuture));
+    return readIndexFuture;
+  }
+
+  @Override
+  public ListenableFuture<Void> transferLeadership(long targetPeer) {
+    if (!isAcceptingRequests()) {
+      logger.debug("attempted to transferLeadership on a non-leader, or during a leadership transfer");
+      return null;
+    }
+
+    SettableFuture<Void> transferFuture = SettableFuture.create();
+    fiber.execute(() -> startLeadershipTransfer(targetPeer, transferFuture));
+    return transferFuture;
+  }
+
+  /**
+   * As {@link #transferLeadership(long)}, but transfer leadership to whichever peer has acknowledged the
+   * most of the log, as a leader does before it shuts down.
+   */
+  public ListenableFuture<Void> transferLeadershipToAnyPeer() {
+    return transferLeadership(0);
+  }
+
+  @Override
+  public ListenableFuture<Long> waitForCommitIndex(long index) {
+    final long commitIndex = lastCommittedIndex;
+    if (commitIndex >= index) {
+      return Futures.immediateFuture(commitIndex);
+    }
+
+    SettableFuture<Long> commitIndexFuture = SettableFuture.create();
+    fiber.execute(() -> {
+      if (lastCommittedIndex >= index) {
+        commitIndexFuture.set(lastCommittedIndex);
+      } else {
+        commitIndexWaiters.add(index, commitIndexFuture);
+      }
+    });
+    return commitIndexFuture;
+  }
+
+  @Override
+  public ListenableFuture<Void> compactLog(long snapshotIndex) {
+    SettableFuture<Void> compactionFuture = SettableFuture.create();
+    fiber.execute(() -> discardLogPrefix(snapshotIndex, compactionFuture));
+    return compactionFuture;
+  }
+
+  @Override
+  public void setSnapshotProvider(SnapshotProvider snapshotProvider) {
+    this.snapshotProvider = snapshotProvider;
+  }
+
   @Override
   public long getId() {
     return myId;
   }
 
+  /**
+   * The most recently known configuration and commit index, as read without a trip through the fiber;
+   * these may be called from any thread, for instance to gather statistics across many instances.
+   */
+  QuorumConfiguration getCurrentQuorumConfiguration() {
+    return quorumConfig;
+  }
+
+  long getLastCommittedIndex() {
+    return lastCommittedIndex;
+  }
+
   @Override
   public String toString() {
     return "ReplicatorInstance{" +
@@ -351,9 +573,113 @@ public class ReplicatorInstance implements Replicator {
       throws InterruptedException {
     InternalReplicationRequest req = InternalReplicationRequest.toChangeConfig(quorumConfig);
     logRequests.put(req);
+    notifyLogRequestQueued(req);
     return req.logReceiptFuture;
   }
 
+  private static class PendingQuorumChange {
+    public final Set<Long> newPeers;
+    public final SettableFuture<ReplicatorReceipt> receiptFuture;
+
+    private PendingQuorumChange(Set<Long> newPeers, SettableFuture<ReplicatorReceipt> receiptFuture) {
+      this.newPeers = newPeers;
+      this.receiptFuture = receiptFuture;
+    }
+  }
+
+  /**
+   * Begin a quorum change by adding the peers joining the quorum as learners. The transitional
+   * configuration follows once they have caught up; see {@link #checkOnLearnerPromotion()}. The given
+   * future receives the receipt of the transitional configuration entry, as with a quorum change which
+   * doesn't use learners.
+   */
+  @FiberOnly
+  private void beginQuorumChangeWithLearners(Set<Long> newPeers, SettableFuture<ReplicatorReceipt> receiptFuture) {
+    if (!isLeader()) {
+      receiptFuture.setException(new IllegalStateException("not the leader of quorum " + quorumId));
+      return;
+    }
+
+    final Set<Long> joiningPeers = Sets.difference(newPeers, quorumConfig.voters()).immutableCopy();
+    if (joiningPeers.isEmpty() || quorumConfig.isTransitional) {
+      forwardReceipt(offerQuorumChangeRequest(quorumConfig.getTransitionalConfiguration(newPeers)), receiptFuture);
+      return;
+    }
+
+    if (pendingQuorumChange != null) {
+      pendingQuorumChange.receiptFuture.setException(new IllegalStateException("superseded by a later quorum change"));
+    }
+    pendingQuorumChange = new PendingQuorumChange(newPeers, receiptFuture);
+
+    if (quorumConfig.learners().equals(joiningPeers)) {
+      checkOnLearnerPromotion();
+    } else if (offerQuorumChangeRequest(quorumConfig.withLearners(joiningPeers)) == null) {
+      pendingQuorumChange = null;
+      receiptFuture.setException(new IllegalStateException("could not submit quorum change for quorum " + quorumId));
+    }
+  }
+
+  /**
+   * If the current configuration has learners, and it is committed, and every learner has acknowledged
+   * all but at most learnerPromotionMaxLag entries of the log, begin the transition to a configuration in
+   * which they are voters: either the one requested by the pending quorum change, or, if this leader
+   * was elected after the learners were added, the current voters together with the learners.
+   */
+  @FiberOnly
+  private void checkOnLearnerPromotion() {
+    if (!isLeader()
+        || quorumConfig.isTransitional
+        || quorumConfig.learners().isEmpty()
+        || lastCommittedIndex < quorumConfigIndex
+        || learnersPromotedFromConfigIndex == quorumConfigIndex) {
+      return;
+    }
+
+    final long lastIndex = log.getLastIndex();
+    for (long learner : quorumConfig.learners()) {
+      if (peerIndexes.getLastAckedIndex(learner) + options.learnerPromotionMaxLag < lastIndex) {
+        return;
+      }
+    }
+
+    final Set<Long> newVoters = pendingQuorumChange != null
+        ? pendingQuorumChange.newPeers
+        : Sets.union(quorumConfig.voters(), quorumConfig.learners());
+
+    // If the request queue is full, this will be tried again on the next acknowledgement from a learner.
+    final ListenableFuture<ReplicatorReceipt> receiptFuture =
+        offerQuorumChangeRequest(quorumConfig.getTransitionalConfiguration(newVoters));
+    if (receiptFuture == null) {
+      return;
+    }
+
+    logger.info("learners {} have caught up; changing voters to {}", quorumConfig.learners(), newVoters);
+    learnersPromotedFromConfigIndex = quorumConfigIndex;
+    if (pendingQuorumChange != null) {
+      forwardReceipt(receiptFuture, pendingQuorumChange.receiptFuture);
+      pendingQuorumChange = null;
+    }
+  }
+
+  @FiberOnly
+  private void failPendingQuorumChange() {
+    if (pendingQuorumChange != null) {
+      pendingQuorumChange.receiptFuture.setException(new IllegalStateException("lost leadership of quorum "
+          + quorumId + " before completing the quorum change"));
+      pendingQuorumChange = null;
+    }
+  }
+
+  @FiberOnly
+  private void forwardReceipt(@Nullable ListenableFuture<ReplicatorReceipt> receiptFuture,
+                              SettableFuture<ReplicatorReceipt> destination) {
+    if (receiptFuture == null) {
+      destination.setException(new IllegalStateException("could not submit quorum change for quorum " + quorumId));
+    } else {
+      C5Futures.addCallback(receiptFuture, destination::set, destination::setException, fiber);
+    }
+  }
+
   /**
    * Submits a request to change the quorum, but only if it is possible to do so without blocking.
    *
@@ -370,6 +696,7 @@ public class ReplicatorInstance implements Replicator {
 
     InternalReplicationRequest req = InternalReplicationRequest.toChangeConfig(quorumConfig);
     if (logRequests.offer(req)) {
+      notifyLogRequestQueued(req);
       return req.logReceiptFuture;
     } else {
       logger.warn("change request could not be submitted because log request queue was full {}", quorumConfig);
@@ -396,6 +723,12 @@ public class ReplicatorInstance implements Replicator {
       } else if (req.isAppendMessage()) {
         doAppendMessage(message);
 
+      } else if (req.isTimeoutNowMessage()) {
+        doTimeoutNow(message);
+
+      } else if (req.isInstallSnapshotMessage()) {
+        doInstallSnapshot(message);
+
       } else {
         logger.warn("got a message of protobuf type I don't know: {}", req);
       }
@@ -415,12 +748,13 @@ public class ReplicatorInstance implements Replicator {
     final boolean wouldVote =
         msg.getTerm() >= currentTerm
             && atLeastAsUpToDateAsLocalLog(msgLastLogTerm, msgLastLogIndex)
-            && !rejectPollFromOldConfiguration(request.from, msgLastLogTerm, msgLastLogIndex);
+            && !rejectPollFromOldConfiguration(request.from, msgLastLogTerm, msgLastLogIndex)
+            && !rejectPollDuringLeaderLease();
 
     logger.debug("sending pre-election reply to {} wouldVote = {}", message.getRequest().from, wouldVote);
     PreElectionReply m = new PreElectionReply(currentTerm, wouldVote);
     RpcReply reply = new RpcReply(m);
-    message.reply(reply);
+    replyWhenMetadataIsDurable(message, reply);
   }
 
   /**
@@ -448,6 +782,19 @@ public class ReplicatorInstance implements Replicator {
         && myState == State.FOLLOWER;
   }
 
+  /**
+   * When leases are in use, a leader answers reads on the strength of having heard from a majority
+   * recently; so a follower which has heard from the leader within the election timeout must not
+   * help anyone else start an election.
+   */
+  @FiberOnly
+  private boolean rejectPollDuringLeaderLease() {
+    return options.leaderLeaseMillis > 0
+        && myState == State.FOLLOWER
+        && whosLeader != 0
+        && clock.currentTimeMillis() - lastRPC < myElectionTimeout;
+  }
+
   @FiberOnly
   private void doRequestVote(Request<RpcWireRequest, RpcReply> message) {
     RequestVote msg = message.getRequest().getRequestVoteMessage();
@@ -456,7 +803,7 @@ public class ReplicatorInstance implements Replicator {
     if (msg.getTerm() < currentTerm) {
       RequestVoteReply m = new RequestVoteReply(currentTerm, false);
       RpcReply reply = new RpcReply(m);
-      message.reply(reply);
+      replyWhenMetadataIsDurable(message, reply);
       return;
     }
 
@@ -492,7 +839,7 @@ public class ReplicatorInstance implements Replicator {
     logger.debug("sending vote reply to {} vote = {}, voted = {}", message.getRequest().from, votedFor, vote);
     RequestVoteReply m = new RequestVoteReply(currentTerm, vote);
     RpcReply reply = new RpcReply(m);
-    message.reply(reply);
+    replyWhenMetadataIsDurable(message, reply);
   }
 
   @FiberOnly
@@ -538,9 +885,9 @@ public class ReplicatorInstance implements Replicator {
     long msgPrevLogIndex = appendMessage.getPrevLogIndex();
     long msgPrevLogTerm = appendMessage.getPrevLogTerm();
     if (msgPrevLogIndex != 0 && log.getLogTerm(msgPrevLogIndex) != msgPrevLogTerm) {
-      AppendEntriesReply m = new AppendEntriesReply(currentTerm, false, log.getLastIndex() + 1);
+      AppendEntriesReply m = conflictingAppendReply(msgPrevLogIndex);
       RpcReply reply = new RpcReply(m);
-      request.reply(reply);
+      replyWhenMetadataIsDurable(request, reply);
       return;
     }
 
@@ -577,9 +924,167 @@ public class ReplicatorInstance implements Replicator {
 
   @FiberOnly
   private void appendReply(Request<RpcWireRequest, RpcReply> request, boolean success) {
-    AppendEntriesReply m = new AppendEntriesReply(currentTerm, success, 0);
+    AppendEntriesReply m = new AppendEntriesReply(currentTerm, success, 0, 0, 0);
     RpcReply reply = new RpcReply(m);
-    request.reply(reply);
+    replyWhenMetadataIsDurable(request, reply);
+  }
+
+  /**
+   * Build the reply to an AppendEntries request whose prevLogTerm differs from the term of the entry at
+   * prevLogIndex in the local log. If the log has such an entry, the reply names its term and the index
+   * of the first entry of that term, so the leader can step back past the whole term in one round trip
+   * instead of one entry at a time. Either way, it suggests the next index after the end of the log.
+   */
+  @FiberOnly
+  private AppendEntriesReply conflictingAppendReply(long prevLogIndex) {
+    final long nextIndex = log.getLastIndex() + 1;
+    if (prevLogIndex >= nextIndex || prevLogIndex < log.getFirstIndex()) {
+      return new AppendEntriesReply(currentTerm, false, nextIndex, 0, 0);
+    }
+
+    final TermRun conflictingRun = log.getTermRun(prevLogIndex);
+    return new AppendEntriesReply(currentTerm, false, nextIndex, conflictingRun.term, conflictingRun.firstIndex);
+  }
+
+  @FiberOnly
+  private void discardLogPrefix(long lastIndexToDiscard, SettableFuture<Void> compactionFuture) {
+    if (lastIndexToDiscard > lastCommittedIndex) {
+      compactionFuture.setException(new IllegalArgumentException("cannot discard entries up to index "
+          + lastIndexToDiscard + ", beyond the commit index " + lastCommittedIndex));
+      return;
+    } else if (lastIndexToDiscard < log.getFirstIndex()) {
+      compactionFuture.set(null);
+      return;
+    }
+
+    logger.debug("discarding log entries up to index {}", lastIndexToDiscard);
+    C5Futures.addCallback(log.discardPrefix(lastIndexToDiscard),
+        (ignore) -> compactionFuture.set(null),
+        compactionFuture::setException, fiber);
+  }
+
+  /**
+   * The leader is sending us a snapshot, one chunk at a time, because we need entries its log no longer
+   * retains. Each chunk is passed to the snapshot provider as it arrives; after the last one, the
+   * provider installs the snapshot, and our log begins again just after it. The entries the snapshot
+   * covers are committed without commit notices, because the application already has their effects.
+   * But if our log turns out to contain the snapshot's last entry, the snapshot is not installed; the
+   * log, including whatever follows that entry, is kept.
+   */
+  @FiberOnly
+  private void doInstallSnapshot(Request<RpcWireRequest, RpcReply> request) {
+    final InstallSnapshot msg = request.getRequest().getInstallSnapshotMessage();
+
+    // As for AppendEntries: reject an old term, adopt a newer one, and recognize the sender as leader.
+    if (msg.getTerm() < currentTerm) {
+      installSnapshotReply(request, false);
+      return;
+    }
+
+    if (msg.getTerm() > currentTerm) {
+      setCurrentTerm(msg.getTerm());
+    }
+
+    if (myState != State.FOLLOWER) {
+      becomeFollower();
+    }
+
+    lastRPC = clock.currentTimeMillis();
+
+    if (whosLeader != msg.getLeaderId()) {
+      updateFollowersKnowledgeOfCurrentLeader(msg.getLeaderId());
+    }
+
+    final SnapshotProvider provider = snapshotProvider;
+    if (provider == null) {
+      logger.warn("leader {} sent a snapshot, but there is no snapshot provider to receive it", msg.getLeaderId());
+      installSnapshotReply(request, false);
+      return;
+    }
+
+    final SnapshotDescriptor snapshot = new SnapshotDescriptor(msg.getLastIncludedIndex(), msg.getLastIncludedTerm(),
+        QuorumConfiguration.fromProtostuff(msg.getLastIncludedConfiguration()));
+
+    if (msg.getOffset() == 0) {
+      receivingSnapshot = snapshot;
+    } else if (!snapshot.equals(receivingSnapshot) || msg.getOffset() != receivingSnapshotOffset) {
+      logger.debug("unexpected snapshot chunk at offset {} of {}", msg.getOffset(), snapshot);
+      installSnapshotReply(request, false);
+      return;
+    }
+
+    final ByteBuffer data = msg.getData() == null ? ByteBuffer.allocate(0) : msg.getData();
+    receivingSnapshotOffset = msg.getOffset() + data.remaining();
+
+    C5Futures.addCallback(provider.receiveSnapshotChunk(snapshot, msg.getOffset(), data),
+        (ignore) -> {
+          if (msg.getDone()) {
+            receivingSnapshot = null;
+            installReceivedSnapshot(request, provider, snapshot);
+          } else {
+            installSnapshotReply(request, true);
+          }
+        },
+        (Throwable t) -> {
+          logger.error("failed to receive a chunk of snapshot {}", snapshot, t);
+          receivingSnapshot = null;
+          installSnapshotReply(request, false);
+        }, fiber);
+  }
+
+  @FiberOnly
+  private void installReceivedSnapshot(Request<RpcWireRequest, RpcReply> request,
+                                       SnapshotProvider provider,
+                                       SnapshotDescriptor snapshot) {
+    if (snapshot.lastIncludedIndex <= lastCommittedIndex) {
+      // Everything the snapshot covers is already committed here.
+      installSnapshotReply(request, true);
+      return;
+    }
+
+    if (logContainsEntry(snapshot.lastIncludedIndex, snapshot.lastIncludedTerm)) {
+      // The log agrees with the leader's up to the end of the snapshot, and what follows may already have
+      // been acknowledged to the leader, so keep it all. The snapshot covers only committed entries, so
+      // they may be committed here too, and applied from the log as usual.
+      logger.info("log already contains the last entry of snapshot {}; keeping it", snapshot);
+      setLastCommittedIndex(snapshot.lastIncludedIndex);
+      installSnapshotReply(request, true);
+      return;
+    }
+
+    C5Futures.addCallback(provider.installSnapshot(snapshot),
+        (ignore) -> C5Futures.addCallback(
+            log.resetToSnapshot(snapshot.lastIncludedIndex, snapshot.lastIncludedTerm,
+                snapshot.lastIncludedConfiguration),
+            (ignore2) -> {
+              logger.info("installed snapshot {}", snapshot);
+              if (snapshot.lastIncludedIndex > lastCommittedIndex) {
+                lastCommittedIndex = snapshot.lastIncludedIndex;
+                commitIndexWaiters.commitIndexAdvanced(lastCommittedIndex);
+              }
+              refreshQuorumConfigurationFromLog();
+              installSnapshotReply(request, true);
+            },
+            (Throwable t) -> {
+              logger.error("failed to reset the log to snapshot {}", snapshot, t);
+              failReplicatorInstance(t);
+            }, fiber),
+        (Throwable t) -> {
+          logger.error("failed to install snapshot {}", snapshot, t);
+          installSnapshotReply(request, false);
+        }, fiber);
+  }
+
+  @FiberOnly
+  private boolean logContainsEntry(long index, long term) {
+    return index >= log.getFirstIndex() - 1
+        && index <= log.getLastIndex()
+        && log.getLogTerm(index) == term;
+  }
+
+  @FiberOnly
+  private void installSnapshotReply(Request<RpcWireRequest, RpcReply> request, boolean success) {
+    replyWhenMetadataIsDurable(request, new RpcReply(new InstallSnapshotReply(currentTerm, success)));
   }
 
   @FiberOnly
@@ -587,6 +1092,10 @@ public class ReplicatorInstance implements Replicator {
     return myState == State.LEADER;
   }
 
+  private boolean isAcceptingRequests() {
+    return myState == State.LEADER && leadershipTransfer == null;
+  }
+
   @FiberOnly
   private void updateFollowersKnowledgeOfCurrentLeader(long theLeader) {
     logger.debug("discovered new leader: {}", theLeader);
@@ -618,6 +1127,11 @@ public class ReplicatorInstance implements Replicator {
     for (LogEntry entry : entriesFromMessage) {
       long entryIndex = entry.getIndex();
 
+      if (entryIndex < log.getFirstIndex()) {
+        // Covered by an installed snapshot, so it is already committed here.
+        continue;
+      }
+
       if (entryIndex == nextIndex) {
         entriesToCommit.add(entry);
         nextIndex++;
@@ -656,6 +1170,26 @@ public class ReplicatorInstance implements Replicator {
     return logOperationFutures;
   }
 
+  /**
+   * Check on the election, and schedule the next check for when the election timeout would next pass,
+   * if no RPC arrives in the meantime, rather than polling at a fixed interval. A leader has no election
+   * timeout, so it checks again only after a whole timeout. The wait is never longer than the election
+   * timeout, in case the clock jumps, nor shorter than the election check interval.
+   */
+  @FiberOnly
+  private void onElectionTimer() {
+    checkOnElection();
+
+    final long untilTimeout;
+    if (myState == State.LEADER) {
+      untilTimeout = myElectionTimeout;
+    } else {
+      untilTimeout = lastRPC + myElectionTimeout + 1 - clock.currentTimeMillis();
+    }
+    scheduleOnFiber(this::onElectionTimer,
+        Math.max(clock.electionCheckInterval(), Math.min(untilTimeout, myElectionTimeout)));
+  }
+
   @FiberOnly
   private void checkOnElection() {
     if (myState == State.LEADER) {
@@ -664,7 +1198,7 @@ public class ReplicatorInstance implements Replicator {
     }
 
     if (lastRPC + this.myElectionTimeout < clock.currentTimeMillis()
-        && quorumConfig.allPeers().contains(myId)) {
+        && quorumConfig.voters().contains(myId)) {
       logger.trace("timed out checking on election, try new election");
       if (myState == State.CANDIDATE) {
         doElection();
@@ -770,6 +1304,26 @@ public class ReplicatorInstance implements Replicator {
     }
   }
 
+  /**
+   * A leader transferring its leadership to us has brought our log up to date, and asks us to begin
+   * an election without waiting for a timeout, or for a pre-election poll.
+   */
+  @FiberOnly
+  private void doTimeoutNow(Request<RpcWireRequest, RpcReply> message) {
+    final TimeoutNow msg = message.getRequest().getTimeoutNowMessage();
+    final boolean startElection =
+        msg.getTerm() == currentTerm
+            && myState == State.FOLLOWER
+            && quorumConfig.voters().contains(myId);
+
+    replyWhenMetadataIsDurable(message, new RpcReply(new TimeoutNowReply(currentTerm, startElection)));
+
+    if (startElection) {
+      logger.info("leader {} is transferring leadership to me; starting an election", msg.getLeaderId());
+      doElection();
+    }
+  }
+
   @FiberOnly
   private void doElection() {
     eventChannel.publish(
@@ -794,13 +1348,21 @@ public class ReplicatorInstance implements Replicator {
 
     final long termBeingVotedFor = currentTerm;
     final Set<Long> votes = new HashSet<>();
-    for (long peer : quorumConfig.allPeers()) {
-      RpcRequest req = new RpcRequest(peer, myId, quorumId, msg);
-      AsyncRequest.withOneReply(fiber, sendRpcChannel, req,
-          message -> handleElectionReply0(message, termBeingVotedFor, votes),
-          REPLICATOR_VOTE_RPC_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS,
-          new RequestVoteTimeout(req, termBeingVotedFor, votes));
-    }
+    final Set<Long> peers = quorumConfig.allPeers();
+
+    // Asking for votes reveals the new term, so it must be durable first.
+    whenMetadataIsDurable(() -> {
+      if (currentTerm != termBeingVotedFor || myState != State.CANDIDATE) {
+        return;
+      }
+      for (long peer : peers) {
+        RpcRequest req = new RpcRequest(peer, myId, quorumId, msg);
+        AsyncRequest.withOneReply(fiber, sendRpcChannel, req,
+            message -> handleElectionReply0(message, termBeingVotedFor, votes),
+            REPLICATOR_VOTE_RPC_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS,
+            new RequestVoteTimeout(req, termBeingVotedFor, votes));
+      }
+    });
   }
 
   private class RequestVoteTimeout implements Runnable {
@@ -916,12 +1478,16 @@ public class ReplicatorInstance implements Replicator {
     }
 
     stopQueueConsumer();
+    failPendingReads();
+    failPendingQuorumChange();
+    finishLeadershipTransfer();
   }
 
   @FiberOnly
   private void stopQueueConsumer() {
     if (queueConsumer != null) {
       queueConsumer.dispose();
+      fiber.remove(queueConsumer);
       queueConsumer = null;
     }
   }
@@ -935,11 +1501,14 @@ public class ReplicatorInstance implements Replicator {
     // Page 7, para 5
     long myNextLog = log.getLastIndex() + 1;
 
-    peersLastAckedIndex.clear();
-    peersNextIndex.clear();
+    peerIndexes.clear();
+    appendEntriesWindows.clear();
+    catchUpStreams.clear();
+    snapshotTransfers.clear();
+    readIndexTracker.clearConfirmations();
 
     for (long peer : allPeersExceptMe()) {
-      peersNextIndex.put(peer, myNextLog);
+      peerIndexes.setNextIndex(peer, myNextLog);
     }
 
     // none so far!
@@ -958,91 +1527,592 @@ public class ReplicatorInstance implements Replicator {
     startQueueConsumer();
   }
 
+  private static class LeadershipTransfer {
+    public final long target;
+    public final SettableFuture<Void> future;
+    public boolean timeoutNowSent = false;
+
+    private LeadershipTransfer(long target, SettableFuture<Void> future) {
+      this.target = target;
+      this.future = future;
+    }
+  }
+
+  /**
+   * Begin transferring leadership to the given peer, or if it is 0, to the peer which has acknowledged
+   * the most of the log. No new requests, reads included, are accepted from now on, and reads waiting to
+   * be confirmed are failed; once the target has acknowledged the whole log, it is told to start an
+   * election. If the transfer hasn't succeeded within an election timeout, it is abandoned, and
+   * requests are accepted again.
+   */
   @FiberOnly
-  private void startQueueConsumer() {
-    queueConsumer = fiber.scheduleAtFixedRate(() -> {
+  private void startLeadershipTransfer(long targetPeer, SettableFuture<Void> transferFuture) {
+    if (!isAcceptingRequests()) {
+      transferFuture.setException(new IllegalStateException("not the leader of quorum " + quorumId
+          + ", or already transferring leadership"));
+      return;
+    }
+
+    final long target = targetPeer == 0 ? mostUpToDatePeer() : targetPeer;
+    if (target == 0 || target == myId || !quorumConfig.voters().contains(target)) {
+      transferFuture.setException(new IllegalArgumentException("cannot transfer leadership of quorum " + quorumId
+          + " to peer " + targetPeer));
+      return;
+    }
+
+    logger.info("transferring leadership to {}", target);
+    final LeadershipTransfer transfer = new LeadershipTransfer(target, transferFuture);
+    leadershipTransfer = transfer;
+    failPendingReads("began transferring leadership of quorum " + quorumId + " before confirming read index");
+
+    fiber.schedule(() -> abandonLeadershipTransfer(transfer), myElectionTimeout, TimeUnit.MILLISECONDS);
+
+    replicateToPeer(target, new ArrayList<>(), false);
+    checkOnLeadershipTransfer();
+  }
+
+  /**
+   * Return the peer other than this one which has acknowledged the most of the log, preferring peers which
+   * will remain after a quorum change in progress; or 0 if there is none.
+   */
+  @FiberOnly
+  private long mostUpToDatePeer() {
+    long bestPeer = 0;
+    long bestAckedIndex = -1;
+    for (long peer : quorumConfig.isTransitional ? quorumConfig.nextPeers() : quorumConfig.voters()) {
+      final long ackedIndex = peerIndexes.getLastAckedIndex(peer);
+      if (peer != myId && ackedIndex > bestAckedIndex) {
+        bestPeer = peer;
+        bestAckedIndex = ackedIndex;
+      }
+    }
+    return bestPeer;
+  }
+
+  /**
+   * If a leadership transfer is in progress, and its target has acknowledged everything in the log, with
+   * nothing left waiting to be logged, tell the target to start an election.
+   */
+  @FiberOnly
+  private void checkOnLeadershipTransfer() {
+    final LeadershipTransfer transfer = leadershipTransfer;
+    if (transfer == null || transfer.timeoutNowSent || !isLeader()) {
+      return;
+    }
+
+    if (!logRequests.isEmpty() || peerIndexes.getLastAckedIndex(transfer.target) < log.getLastIndex()) {
+      return;
+    }
+
+    transfer.timeoutNowSent = true;
+    RpcRequest request = new RpcRequest(transfer.target, myId, quorumId, new TimeoutNow(currentTerm, myId));
+    AsyncRequest.withOneReply(fiber, sendRpcChannel, request, message -> {
+      if (!message.getTimeoutNowReplyMessage().getElectionStarted()) {
+        logger.info("peer {} declined to start an election", transfer.target);
+        abandonLeadershipTransfer(transfer);
+      }
+    }, REPLICATOR_VOTE_RPC_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS, () ->
+        // The transfer is abandoned anyway if the target doesn't take over within an election timeout.
+        logger.debug("peer {} did not reply to TimeoutNow", transfer.target));
+  }
+
+  /**
+   * Called when this replicator stops being leader; if it was transferring leadership, the transfer is
+   * complete, provided the target had been told to start an election.
+   */
+  @FiberOnly
+  private void finishLeadershipTransfer() {
+    final LeadershipTransfer transfer = leadershipTransfer;
+    if (transfer == null) {
+      return;
+    }
+
+    leadershipTransfer = null;
+    if (transfer.timeoutNowSent) {
+      transfer.future.set(null);
+    } else {
+      transfer.future.setException(new IllegalStateException("lost leadership of quorum " + quorumId
+          + " before transferring it to " + transfer.target));
+    }
+  }
+
+  @FiberOnly
+  private void abandonLeadershipTransfer(LeadershipTransfer transfer) {
+    if (leadershipTransfer != transfer) {
+      return;
+    }
+
+    logger.info("abandoning leadership transfer to {}", transfer.target);
+    leadershipTransfer = null;
+    transfer.future.setException(new TimeoutException("leadership of quorum " + quorumId
+        + " was not transferred to " + transfer.target));
+  }
+
+  @FiberOnly
+  private void startQueueConsumer() {
+    final FiberTimer leaderTick = new FiberTimer(() -> {
       try {
-        consumeQueue();
+        consumeQueue(true);
         checkOnQuorumChange();
       } catch (Throwable t) {
         logger.error("Exception in consumeQueue: ", t);
         failReplicatorInstance(t);
       }
-    }, 0, clock.leaderLogRequestsProcessingInterval(), TimeUnit.MILLISECONDS);
+    }, false);
+    fiber.add(leaderTick);
+    leaderTick.timer = timers.scheduleAtFixedRate(leaderTick, 0, clock.leaderLogRequestsProcessingInterval(),
+        TimeUnit.MILLISECONDS);
+    queueConsumer = leaderTick;
+  }
+
+  /**
+   * Run a task once on the fiber after a delay, timed by the timers. The returned Disposable is
+   * registered with the fiber, so that disposing of the fiber cancels it; once it has been disposed,
+   * the task will not run, even if its timer has already expired.
+   */
+  private Disposable scheduleOnFiber(Runnable task, long delayMillis) {
+    final FiberTimer fiberTimer = new FiberTimer(task, true);
+    fiber.add(fiberTimer);
+    fiberTimer.timer = timers.schedule(fiberTimer, delayMillis, TimeUnit.MILLISECONDS);
+    return fiberTimer;
+  }
+
+  /**
+   * A task timed by the timers, which hands itself off to the fiber when its timer expires.
+   */
+  private class FiberTimer implements Runnable, Disposable {
+    private final Runnable task;
+    private final boolean oneShot;
+    private volatile boolean disposed = false;
+    private volatile Disposable timer = null;
+
+    private FiberTimer(Runnable task, boolean oneShot) {
+      this.task = task;
+      this.oneShot = oneShot;
+    }
+
+    @Override
+    public void run() {
+      fiber.execute(() -> {
+        if (!disposed) {
+          if (oneShot) {
+            fiber.remove(this);
+          }
+          task.run();
+        }
+      });
+    }
+
+    @Override
+    public void dispose() {
+      disposed = true;
+      if (timer != null) {
+        timer.dispose();
+      }
+    }
+  }
+
+  /**
+   * Account for a request just added to logRequests, and, in event-driven mode, make sure a flush
+   * is scheduled to pick it up. The first request arriving in an empty queue schedules the flush,
+   * after the linger delay, if any; a request which fills up a batch flushes right away. May be
+   * called from any thread.
+   */
+  private void notifyLogRequestQueued(InternalReplicationRequest req) {
+    notifyLogRequestQueued(req, logRequestsBytes.addAndGet(req.dataSize));
+  }
+
+  /**
+   * As notifyLogRequestQueued(InternalReplicationRequest), for a request whose bytes have already
+   * been added to logRequestsBytes, bringing the total to queuedBytes.
+   */
+  private void notifyLogRequestQueued(InternalReplicationRequest req, long queuedBytes) {
+    if (!options.eventDrivenFlush) {
+      return;
+    }
+
+    final boolean batchIsFull =
+        logRequests.size() == options.maxBatchEntries
+            || req.entryCount >= options.maxBatchEntries
+            || (queuedBytes >= options.maxBatchBytes && queuedBytes - req.dataSize < options.maxBatchBytes);
+
+    if (flushScheduled.compareAndSet(false, true)) {
+      if (batchIsFull || options.maxLingerDelayMillis == 0) {
+        fiber.execute(this::flushQueue);
+      } else {
+        fiber.schedule(this::flushQueue, options.maxLingerDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    } else if (batchIsFull) {
+      fiber.execute(this::flushQueue);
+    }
+  }
+
+  /**
+   * Add the given number of bytes to logRequestsBytes, but only if the total would not then exceed the
+   * limit; except that a request may always be added when no bytes are waiting, however large it is.
+   *
+   * @return The new total, or -1 if the bytes could not be added.
+   */
+  private long tryReserveLogRequestBytes(long bytes) {
+    while (true) {
+      final long queuedBytes = logRequestsBytes.get();
+      if (queuedBytes > 0 && queuedBytes + bytes > options.maxQueuedLogBytes) {
+        return -1;
+      }
+      if (logRequestsBytes.compareAndSet(queuedBytes, queuedBytes + bytes)) {
+        return queuedBytes + bytes;
+      }
+    }
+  }
+
+  /**
+   * Event-driven counterpart to the periodic consumeQueue: replicate whatever is waiting in the
+   * queue, but send nothing if it is empty, since heartbeats are left to the periodic task.
+   */
+  @FiberOnly
+  private void flushQueue() {
+    flushScheduled.set(false);
+
+    if (!isLeader() || logRequests.isEmpty()) {
+      return;
+    }
+
+    try {
+      consumeQueue(false);
+    } catch (Throwable t) {
+      logger.error("Exception in flushQueue: ", t);
+      failReplicatorInstance(t);
+    }
   }
 
   @FiberOnly
-  private void consumeQueue() {
-    // retrieve as many items as possible. send rpc.
-    // If there are no pending log requests, this method sends out heartbeats.
+  private List<InternalReplicationRequest> drainBatchFromQueue() {
+    final BatchCollector batch = new BatchCollector();
+    logRequests.drainWhile(batch);
+    if (batch.batchBytes > 0) {
+      logRequestsBytes.addAndGet(-batch.batchBytes);
+    }
+    return batch.reqs;
+  }
+
+  /**
+   * Takes requests off the head of logRequests, in a single drain, for as long as they fit in a batch.
+   */
+  private class BatchCollector implements Predicate<InternalReplicationRequest> {
     final List<InternalReplicationRequest> reqs = new ArrayList<>();
+    int batchEntries = 0;
+    long batchBytes = 0;
 
-    logger.trace("queue consuming");
-    while (logRequests.peek() != null) {
-      reqs.add(logRequests.poll());
+    @Override
+    public boolean test(InternalReplicationRequest req) {
+      // A batch request is never split, so it may take the batch over the limits only if it is the first.
+      if (!reqs.isEmpty()
+          && (batchEntries + req.entryCount > options.maxBatchEntries
+          || batchBytes >= options.maxBatchBytes
+          || batchBytes + req.dataSize > options.maxBatchBytes)) {
+        return false;
+      }
+
+      batchEntries += req.entryCount;
+      batchBytes += req.dataSize;
+      reqs.add(req);
+      return true;
     }
+  }
+
+  @FiberOnly
+  private void consumeQueue(boolean heartbeatIdlePeers) {
+    // retrieve as many items as will fit in a batch. send rpc.
+    // If there are no pending log requests, and heartbeatIdlePeers is true, this method sends out heartbeats.
+    logger.trace("queue consuming");
+    final List<InternalReplicationRequest> reqs = drainBatchFromQueue();
 
     logger.trace("{} queue items to commit", reqs.size());
 
-    final long firstIndexInList = log.getLastIndex() + 1;
-    final long lastIndexInList = firstIndexInList + reqs.size() - 1;
+    if (options.eventDrivenFlush && !logRequests.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+      // Whatever didn't fit in this batch goes out in the next one, without waiting for a tick.
+      fiber.execute(this::flushQueue);
+    }
 
+    final long firstIndexInList = log.getLastIndex() + 1;
     List<LogEntry> newLogEntries = createLogEntriesFromIntRequests(reqs, firstIndexInList);
+    final long lastIndexInList = firstIndexInList + newLogEntries.size() - 1;
+
     leaderLogNewEntries(newLogEntries, lastIndexInList);
     refreshQuorumConfigurationFromLog();
 
     assert lastIndexInList == log.getLastIndex();
 
     for (final long peer : allPeersExceptMe()) {
+      replicateToPeer(peer, newLogEntries, heartbeatIdlePeers);
+    }
+  }
 
-      // for each peer, figure out how many "back messages" should I send:
-      final long peerNextIdx = this.peersNextIndex.getOrDefault(peer, firstIndexInList);
+  /**
+   * Send a peer the entries it is due, as far as its {@link AppendEntriesWindow} allows. newLogEntries
+   * are the entries just added to the end of the log, if any; any entries the peer needs from before
+   * them are retrieved from the log. If there is nothing to send, and nothing in flight to the peer,
+   * then if sendHeartbeat is true, send the peer an empty AppendEntries instead. Requests in flight
+   * serve the purpose of a heartbeat, unless the oldest of them has gone unacknowledged for too
+   * long; in that case, when sendHeartbeat is true, resend everything from that request onward.
+   */
+  @FiberOnly
+  private void replicateToPeer(long peer, List<LogEntry> newLogEntries, boolean sendHeartbeat) {
+    if (snapshotTransfers.containsKey(peer)) {
+      // The snapshot's own requests serve as heartbeats; entries follow once it has been installed.
+      return;
+    }
 
-      if (peerNextIdx < firstIndexInList) {
-        final long moreCount = firstIndexInList - peerNextIdx;
-        logger.debug("sending {} more log entries to peer {}", moreCount, peer);
+    final AppendEntriesWindow window = getAppendEntriesWindow(peer);
 
-        // TODO check moreCount is reasonable, and available in log. Otherwise do alternative peer catch up
-        // TODO alternative peer catchup is by a different process, send message to that then skip sending AppendRpc
+    if (sendHeartbeat
+        && !window.isEmpty()
+        && clock.currentTimeMillis() - window.oldestSendTimeMillis() >= options.appendRetransmitTimeoutMillis) {
+      final long firstUnacknowledgedIndex = window.firstUnacknowledgedIndex();
+      logger.debug("peer {} has not acknowledged index {}; resending", peer, firstUnacknowledgedIndex);
+      window.reset();
+      peerIndexes.setNextIndex(peer, firstUnacknowledgedIndex);
+    }
 
-        // TODO allow for smaller 'catch up' messages so we don't try to create a 400GB sized message.
+    final long lastIndexInList = log.getLastIndex();
+    final long firstIndexInList = lastIndexInList - newLogEntries.size() + 1;
+    final long peerNextIdx = peerIndexes.getNextIndex(peer, firstIndexInList);
 
-        // TODO cache these extra LogEntry objects so we don't recreate too many of them.
+    assert peerNextIdx <= firstIndexInList || peerNextIdx > lastIndexInList;
 
-        ListenableFuture<List<LogEntry>> peerEntriesFuture = log.getLogEntries(peerNextIdx, firstIndexInList);
+    if (peerNextIdx < log.getFirstIndex()) {
+      sendSnapshotToPeer(peer);
+      return;
+    }
 
-        C5Futures.addCallback(peerEntriesFuture,
-            (entriesFromLog) -> {
-              // TODO make sure the lists splice neatly together.
-              assert entriesFromLog.size() == moreCount;
-              if (peerNextIdx != peersNextIndex.get(peer) ||
-                  myState != State.LEADER) {
-                // These were the same when we started checking the log, but they're not now -- that means
-                // things happened while the log was retrieving, so discard this result. This is safe because
-                // the next (or concurrent) run of consumeQueue has better information.
-                return;
-              }
+    if (peerNextIdx > lastIndexInList) {
+      if (sendHeartbeat && window.isEmpty()) {
+        sendAppendEntries(peer, peerNextIdx, peerNextIdx - 1, new ArrayList<>());
+      }
+      return;
+    }
 
-              List<LogEntry> entriesToAppend = new ArrayList<>((int) (newLogEntries.size() + moreCount));
-              entriesToAppend.addAll(entriesFromLog);
-              entriesToAppend.addAll(newLogEntries);
-              sendAppendEntries(peer, peerNextIdx, lastIndexInList, entriesToAppend);
-            },
-            (Throwable t) -> {
-              // TODO is this situation ever recoverable?
-              logger.error("failed to retrieve from log", t);
-              failReplicatorInstance(t);
-            }, fiber);
-      } else {
-        sendAppendEntries(peer, peerNextIdx, lastIndexInList, newLogEntries);
+    if (!window.hasRoomFor(sizeOf(newLogEntries))) {
+      // The next acknowledgement will prompt another attempt.
+      return;
+    }
+
+    if (peerNextIdx == firstIndexInList) {
+      sendAppendEntries(peer, peerNextIdx, lastIndexInList, newLogEntries);
+      return;
+    }
+
+    // The peer is behind: stream it what it is missing from the log, one chunk at a time. Entries new
+    // in this batch are only sent along with the chunk that reaches them, so that they do not pile up
+    // in flight while the peer is still far from the tip of the log.
+    sendCatchUpChunk(peer, peerNextIdx, newLogEntries);
+  }
+
+  @FiberOnly
+  private void sendCatchUpChunk(long peer, long peerNextIdx, List<LogEntry> newLogEntries) {
+    final CatchUpStream stream = getCatchUpStream(peer);
+    final List<LogEntry> chunk = stream.getReadyChunk(peerNextIdx);
+
+    if (chunk == null) {
+      if (!stream.isFetching()) {
+        fetchCatchUpChunk(peer, stream, peerNextIdx);
       }
+      // When the chunk has been read, this will be tried again.
+      return;
+    }
+
+    final long lastIndexInChunk = chunk.get(chunk.size() - 1).getIndex();
+    final List<LogEntry> entriesToSend;
+
+    if (!newLogEntries.isEmpty() && newLogEntries.get(0).getIndex() == lastIndexInChunk + 1) {
+      entriesToSend = new ArrayList<>(chunk.size() + newLogEntries.size());
+      entriesToSend.addAll(chunk);
+      entriesToSend.addAll(newLogEntries);
+    } else {
+      entriesToSend = chunk;
+    }
+
+    if (!getAppendEntriesWindow(peer).hasRoomFor(sizeOf(entriesToSend))) {
+      // Keep the chunk ready; the next acknowledgement will prompt another attempt.
+      return;
+    }
+
+    stream.readyChunkSent();
+    final long lastIndexSent = entriesToSend.get(entriesToSend.size() - 1).getIndex();
+    logger.debug("sending {} log entries to lagging peer {}, from index {}",
+        entriesToSend.size(), peer, peerNextIdx);
+    sendAppendEntries(peer, peerNextIdx, lastIndexSent, entriesToSend);
+
+    // Read ahead while this chunk is in flight.
+    if (lastIndexSent < log.getLastIndex()) {
+      fetchCatchUpChunk(peer, stream, lastIndexSent + 1);
     }
   }
 
+  @FiberOnly
+  private void fetchCatchUpChunk(long peer, CatchUpStream stream, long firstIndex) {
+    final long endIndex = stream.chunkEnd(firstIndex, log.getLastIndex());
+
+    // TODO cache these extra LogEntry objects so we don't recreate too many of them.
+
+    stream.fetchStarted();
+    C5Futures.addCallback(log.getLogEntries(firstIndex, endIndex),
+        (entriesFromLog) -> {
+          assert entriesFromLog.size() == endIndex - firstIndex;
+          stream.fetchCompleted(entriesFromLog);
+
+          if (myState != State.LEADER || catchUpStreams.get(peer) != stream) {
+            return;
+          }
+          replicateToPeer(peer, new ArrayList<>(), false);
+        },
+        (Throwable t) -> {
+          stream.fetchFailed();
+          if (firstIndex < log.getFirstIndex()) {
+            // The entries were discarded while being read; the peer will be sent a snapshot instead.
+            logger.debug("entries from index {} for peer {} were discarded while being read", firstIndex, peer);
+            catchUpStreams.remove(peer, stream);
+            return;
+          }
+
+          // TODO is this situation ever recoverable?
+          logger.error("failed to retrieve from log", t);
+          failReplicatorInstance(t);
+        }, fiber);
+  }
+
+  private static class SnapshotTransfer {
+    public SnapshotDescriptor snapshot = null;
+    public long offset = 0;
+  }
+
+  /**
+   * Begin sending the peer the application's latest snapshot, because it needs entries from before the
+   * first one the log retains. The snapshot is read from the snapshot provider and sent one chunk at a
+   * time, each once the last has been accepted. If any step fails, the transfer is dropped, to be begun
+   * again on a later tick.
+   */
+  @FiberOnly
+  private void sendSnapshotToPeer(long peer) {
+    final SnapshotProvider provider = snapshotProvider;
+    if (provider == null) {
+      logger.debug("peer {} needs entries from before index {}, but there is no snapshot provider",
+          peer, log.getFirstIndex());
+      return;
+    }
+
+    final SnapshotTransfer transfer = new SnapshotTransfer();
+    snapshotTransfers.put(peer, transfer);
+
+    C5Futures.addCallback(provider.getLatestSnapshot(),
+        (snapshot) -> {
+          if (myState != State.LEADER || snapshotTransfers.get(peer) != transfer) {
+            return;
+          }
+
+          if (snapshot == null || snapshot.lastIncludedIndex < log.getFirstIndex() - 1) {
+            logger.warn("peer {} needs entries from before index {}, but no snapshot covers them",
+                peer, log.getFirstIndex());
+            snapshotTransfers.remove(peer);
+            return;
+          }
+
+          logger.info("sending snapshot {} to peer {}", snapshot, peer);
+          transfer.snapshot = snapshot;
+          sendSnapshotChunk(peer, provider, transfer);
+        },
+        (Throwable t) -> {
+          logger.error("failed to get the latest snapshot", t);
+          snapshotTransfers.remove(peer, transfer);
+        }, fiber);
+  }
+
+  @FiberOnly
+  private void sendSnapshotChunk(long peer, SnapshotProvider provider, SnapshotTransfer transfer) {
+    final SnapshotDescriptor snapshot = transfer.snapshot;
+    final long offset = transfer.offset;
+
+    C5Futures.addCallback(provider.readSnapshotChunk(snapshot, offset, options.snapshotChunkBytes),
+        (data) -> {
+          if (myState != State.LEADER || snapshotTransfers.get(peer) != transfer) {
+            return;
+          }
+
+          final int length = data.remaining();
+          final boolean done = length < options.snapshotChunkBytes;
+          final InstallSnapshot msg = new InstallSnapshot(currentTerm, myId, snapshot.lastIncludedIndex,
+              snapshot.lastIncludedTerm, snapshot.lastIncludedConfiguration.toProtostuff(), offset, data, done);
+
+          RpcRequest request = new RpcRequest(peer, myId, quorumId, msg);
+          AsyncRequest.withOneReply(fiber, sendRpcChannel, request,
+              message -> handleInstallSnapshotReply(peer, provider, transfer, length, done, message),
+              REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS, () -> {
+                logger.debug("peer {} timed out receiving snapshot {}", peer, snapshot);
+                snapshotTransfers.remove(peer, transfer);
+              });
+        },
+        (Throwable t) -> {
+          logger.error("failed to read snapshot {}", snapshot, t);
+          snapshotTransfers.remove(peer, transfer);
+        }, fiber);
+  }
+
+  @FiberOnly
+  private void handleInstallSnapshotReply(long peer, SnapshotProvider provider, SnapshotTransfer transfer,
+                                          int chunkLength, boolean done, RpcWireReply message) {
+    if (myState != State.LEADER || snapshotTransfers.get(peer) != transfer) {
+      return;
+    }
+
+    final InstallSnapshotReply reply = message.getInstallSnapshotReplyMessage();
+    if (reply.getTerm() > currentTerm) {
+      logger.warn("snapshot reply from {} has term {}, later than mine {}; stepping down",
+          peer, reply.getTerm(), currentTerm);
+      setCurrentTerm(reply.getTerm());
+      becomeFollower();
+      return;
+    }
+
+    if (!reply.getSuccess()) {
+      logger.debug("peer {} refused a chunk of snapshot {}", peer, transfer.snapshot);
+      snapshotTransfers.remove(peer);
+      return;
+    }
+
+    if (!done) {
+      transfer.offset += chunkLength;
+      sendSnapshotChunk(peer, provider, transfer);
+      return;
+    }
+
+    final long lastIncludedIndex = transfer.snapshot.lastIncludedIndex;
+    logger.info("peer {} installed snapshot {}", peer, transfer.snapshot);
+    snapshotTransfers.remove(peer);
+    getAppendEntriesWindow(peer).reset();
+    peerIndexes.setNextIndex(peer, lastIncludedIndex + 1);
+    peerIndexes.setLastAckedIndex(peer, Math.max(lastIncludedIndex, peerIndexes.getLastAckedIndex(peer)));
+
+    checkIfMajorityCanCommit(lastIncludedIndex);
+    replicateToPeer(peer, new ArrayList<>(), false);
+
+    checkOnLeadershipTransfer();
+    if (quorumConfig.learners().contains(peer)) {
+      checkOnLearnerPromotion();
+    }
+  }
+
+  @FiberOnly
+  private CatchUpStream getCatchUpStream(long peer) {
+    return catchUpStreams.computeIfAbsent(peer,
+        (ignore) -> new CatchUpStream(options.catchUpChunkMaxEntries, options.catchUpChunkMaxBytes));
+  }
+
   @FiberOnly
   private void checkOnQuorumChange() {
 
     if (lastCommittedIndex >= quorumConfigIndex) {
+      checkOnLearnerPromotion();
+
       if (quorumConfig.isTransitional) {
         // Current transitional quorum is committed, so begin replicating the next stage.
         // If this call happens to fail because the log request queue is full, we'll catch
@@ -1064,21 +2134,17 @@ public class ReplicatorInstance implements Replicator {
   private List<LogEntry> createLogEntriesFromIntRequests(List<InternalReplicationRequest> requests, long firstEntryIndex) {
     long idAssigner = firstEntryIndex;
 
-    // Build the log entries:
+    // Build the log entries, and let each client know what our id is:
     List<LogEntry> newLogEntries = new ArrayList<>(requests.size());
     for (InternalReplicationRequest logReq : requests) {
-      final LogEntry entry = logReq.getEntry(currentTerm, idAssigner);
-      newLogEntries.add(entry);
+      logReq.addEntriesTo(newLogEntries, currentTerm, idAssigner);
 
       if (myFirstIndexAsLeader == 0) {
         myFirstIndexAsLeader = idAssigner;
         logger.debug("my first index as leader is: {}", myFirstIndexAsLeader);
       }
 
-      // let the client know what our id is
-      logReq.logReceiptFuture.set(new ReplicatorReceipt(currentTerm, idAssigner));
-
-      idAssigner++;
+      idAssigner += logReq.entryCount;
     }
     return newLogEntries;
   }
@@ -1095,7 +2161,7 @@ public class ReplicatorInstance implements Replicator {
     // TODO this callback and some others should have timeouts in case the log hangs somehow
     C5Futures.addCallback(localLogFuture,
         (result) -> {
-          peersLastAckedIndex.put(myId, lastIndexInList);
+          peerIndexes.setLastAckedIndex(myId, lastIndexInList);
           checkIfMajorityCanCommit(lastIndexInList);
         },
         (Throwable t) -> {
@@ -1104,6 +2170,12 @@ public class ReplicatorInstance implements Replicator {
         }, fiber);
   }
 
+  @FiberOnly
+  private AppendEntriesWindow getAppendEntriesWindow(long peer) {
+    return appendEntriesWindows.computeIfAbsent(peer,
+        (ignore) -> new AppendEntriesWindow(options.maxInFlightAppendRequests, options.maxInFlightAppendBytes));
+  }
+
   @FiberOnly
   private void sendAppendEntries(long peer, long peerNextIdx, long lastIndexSent, final List<LogEntry> entries) {
 
@@ -1118,8 +2190,21 @@ public class ReplicatorInstance implements Replicator {
       prevLogTerm = log.getLogTerm(prevLogIndex);
     }
 
-    // catch them up so the next RPC wont over-send old junk.
-    peersNextIndex.put(peer, lastIndexSent + 1);
+    final AppendEntriesWindow window = getAppendEntriesWindow(peer);
+    final long generation = window.generation();
+    final AppendEntriesWindow.InFlightRequest inFlightRequest;
+    final long termSent = currentTerm;
+    final long readRound = readIndexTracker.currentRound();
+    final long sendTimeMillis = clock.currentTimeMillis();
+
+    if (entries.isEmpty()) {
+      inFlightRequest = null;
+    } else {
+      inFlightRequest = window.add(peerNextIdx, lastIndexSent, sizeOf(entries), clock.currentTimeMillis());
+
+      // catch them up so the next RPC wont over-send old junk.
+      peerIndexes.setNextIndex(peer, lastIndexSent + 1);
+    }
 
     AppendEntries msg = new AppendEntries(
         currentTerm, myId, prevLogIndex, prevLogTerm,
@@ -1131,27 +2216,258 @@ public class ReplicatorInstance implements Replicator {
     AsyncRequest.withOneReply(fiber, sendRpcChannel, request, message -> {
       logger.trace("got a reply {}", message);
 
+      if (myState != State.LEADER) {
+        return;
+      }
+
+      leadershipConfirmedBy(peer, termSent, message.getAppendReplyMessage().getTerm(), readRound, sendTimeMillis);
+
+      if (appendEntriesWindows.get(peer) != window) {
+        return;
+      }
+
       boolean wasSuccessful = message.getAppendReplyMessage().getSuccess();
       if (!wasSuccessful) {
-        // This is per Page 7, paragraph 5.  "After a rejection, the leader decrements nextIndex and retries"
-        if (message.getAppendReplyMessage().getMyNextLogEntry() != 0) {
-          peersNextIndex.put(peer, message.getAppendReplyMessage().getMyNextLogEntry());
-        } else {
-          peersNextIndex.put(peer, Math.max(peerNextIdx - 1, 1));
+        if (!window.isCurrent(generation) && peerNextIdx > peerIndexes.getNextIndex(peer, 0)) {
+          // The window has been reset since this request was sent, and we have already stepped back past it.
+          return;
+        }
+
+        // Everything else in flight to this peer will be rejected too, so forget about it.
+        window.reset();
+
+        final long newPeerNextIdx = nextIndexAfterRejection(peerNextIdx, message.getAppendReplyMessage());
+        peerIndexes.setNextIndex(peer, newPeerNextIdx);
+
+        // Retry right away as long as we are making progress backward; otherwise leave it to the next tick.
+        if (newPeerNextIdx < peerNextIdx) {
+          replicateToPeer(peer, new ArrayList<>(), false);
         }
       } else {
         // we have been successfully acked up to this point.
         logger.trace("peer {} acked for {}", peer, lastIndexSent);
-        peersLastAckedIndex.put(peer, lastIndexSent);
+        peerIndexes.setLastAckedIndex(peer, Math.max(lastIndexSent, peerIndexes.getLastAckedIndex(peer)));
+
+        if (inFlightRequest != null) {
+          window.acknowledge(inFlightRequest);
+        }
 
         checkIfMajorityCanCommit(lastIndexSent);
+
+        // Keep the pipeline full, if there is anything more to send.
+        replicateToPeer(peer, new ArrayList<>(), false);
+
+        checkOnLeadershipTransfer();
+        if (quorumConfig.learners().contains(peer)) {
+          checkOnLearnerPromotion();
+        }
       }
     }, REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS, () ->
-        // Do nothing -> let next timeout handle things.
+        // Do nothing -> if the request was lost, the next tick will resend it.
         // This timeout exists just so that we can cancel and clean up stuff in jetlang.
         logger.trace("peer {} timed out", peer));
   }
 
+  /**
+   * Choose the next index to try with a peer which rejected an AppendEntries request beginning at
+   * peerNextIdx. If the peer named the term of its conflicting entry, skip that whole term: resume just
+   * after the leader's own last entry of that term, if it has one, or else at the first entry of that
+   * term in the peer's log. Otherwise, take the peer's suggested next index if it is further back, or
+   * else decrement, per Page 7, paragraph 5: "After a rejection, the leader decrements nextIndex and retries"
+   */
+  @FiberOnly
+  private long nextIndexAfterRejection(long peerNextIdx, AppendEntriesReply reply) {
+    final long conflictTerm = reply.getConflictTerm();
+    if (conflictTerm != 0) {
+      final long lastIndexOfConflictTerm = lastIndexOfTermBefore(conflictTerm, peerNextIdx);
+      final long hintedNextIdx =
+          lastIndexOfConflictTerm > 0 ? lastIndexOfConflictTerm + 1 : reply.getConflictTermFirstIndex();
+      if (hintedNextIdx > 0 && hintedNextIdx < peerNextIdx) {
+        return hintedNextIdx;
+      }
+    }
+
+    final long peerSuggestedNextIdx = reply.getMyNextLogEntry();
+    if (peerSuggestedNextIdx != 0 && peerSuggestedNextIdx < peerNextIdx) {
+      return peerSuggestedNextIdx;
+    } else {
+      return Math.max(peerNextIdx - 1, 1);
+    }
+  }
+
+  /**
+   * Find the index of the last entry in the log with the given term, among those retained entries
+   * preceding the given index; or return 0 if there is none. This steps back one term run at a time
+   * from the given index, and stops at the first run whose term is no greater than the one sought, so
+   * it only looks at the terms between that one and the given index.
+   */
+  @FiberOnly
+  private long lastIndexOfTermBefore(long term, long index) {
+    long searchIndex = Math.min(index - 1, log.getLastIndex());
+    while (searchIndex >= log.getFirstIndex()) {
+      final TermRun termRun = log.getTermRun(searchIndex);
+      if (termRun.term == term) {
+        return searchIndex;
+      } else if (termRun.term < term) {
+        break;
+      }
+      searchIndex = termRun.firstIndex - 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Serve a read index request on the fiber: at once, if the leader holds a valid lease; otherwise
+   * once a round of heartbeats beginning after now has been confirmed by a majority. No reads are
+   * served during a leadership transfer, since its target may be elected, and commit writes, without
+   * waiting out this leader's lease.
+   */
+  @FiberOnly
+  private void requestReadIndex(SettableFuture<Long> readIndexFuture) {
+    if (!isAcceptingRequests()) {
+      readIndexFuture.setException(new IllegalStateException("not the leader of quorum " + quorumId
+          + ", or transferring leadership"));
+      return;
+    }
+
+    if (hasCommittedEntryInCurrentTerm() && holdsLeaderLease()) {
+      readIndexFuture.set(lastCommittedIndex);
+      return;
+    }
+
+    readIndexTracker.addPendingRead(readIndexFuture);
+
+    if (myFirstIndexAsLeader == 0 && logRequests.isEmpty()) {
+      // Without an entry from this term, the leader cannot be sure its commit index is up to date.
+      InternalReplicationRequest noOp = InternalReplicationRequest.toNoOp();
+      if (logRequests.offer(noOp)) {
+        notifyLogRequestQueued(noOp);
+      }
+    }
+
+    // Reads which arrive before the round actually begins share it.
+    if (!readRoundScheduled) {
+      readRoundScheduled = true;
+      fiber.execute(this::beginReadRound);
+    }
+  }
+
+  @FiberOnly
+  private void beginReadRound() {
+    readRoundScheduled = false;
+    if (!isLeader() || !readIndexTracker.needsNewRound()) {
+      return;
+    }
+
+    readIndexTracker.beginRound();
+    for (long peer : allPeersExceptMe()) {
+      sendReadHeartbeat(peer);
+    }
+
+    completeConfirmedReads();
+  }
+
+  /**
+   * Send a peer an empty AppendEntries whose only purpose is to confirm leadership. It refers to
+   * the last entry the peer is known to have, so that it doesn't disturb the AppendEntriesWindow,
+   * and its reply has no effect other than the confirmation. The peer's log is only known to match
+   * this one up to that entry, so the commit index sent goes no further; anything the peer has
+   * after it may yet be replaced. A read is waiting on the reply, so the request is marked urgent,
+   * and the transport sends it at once instead of holding it to coalesce with other heartbeats.
+   */
+  @FiberOnly
+  private void sendReadHeartbeat(long peer) {
+    final long prevLogIndex = peerIndexes.getLastAckedIndex(peer);
+    final long prevLogTerm = prevLogIndex == 0 ? 0 : log.getLogTerm(prevLogIndex);
+    final long termSent = currentTerm;
+    final long readRound = readIndexTracker.currentRound();
+    final long sendTimeMillis = clock.currentTimeMillis();
+
+    AppendEntries msg = new AppendEntries(
+        currentTerm, myId, prevLogIndex, prevLogTerm,
+        new ArrayList<>(),
+        Math.min(lastCommittedIndex, prevLogIndex)
+    );
+
+    RpcRequest request = new RpcRequest(peer, myId, quorumId, msg, true);
+    AsyncRequest.withOneReply(fiber, sendRpcChannel, request, message -> {
+      if (myState == State.LEADER) {
+        leadershipConfirmedBy(peer, termSent, message.getAppendReplyMessage().getTerm(), readRound, sendTimeMillis);
+      }
+    }, REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS, () ->
+        logger.trace("peer {} timed out confirming leadership", peer));
+  }
+
+  /**
+   * Handle the reply to an AppendEntries sent in the given term, stamped with the given read round and
+   * send time. If the peer was in the same term when it replied, it still recognized this leader.
+   */
+  @FiberOnly
+  private void leadershipConfirmedBy(long peer, long termSent, long replyTerm, long readRound, long sendTimeMillis) {
+    if (termSent != currentTerm || replyTerm != currentTerm) {
+      return;
+    }
+
+    readIndexTracker.confirmedBy(peer, readRound, sendTimeMillis);
+    completeConfirmedReads();
+  }
+
+  @FiberOnly
+  private void completeConfirmedReads() {
+    if (!readIndexTracker.hasPendingReads() || !hasCommittedEntryInCurrentTerm()) {
+      return;
+    }
+
+    for (SettableFuture<Long> readIndexFuture : readIndexTracker.takeConfirmedReads(myId)) {
+      readIndexFuture.set(lastCommittedIndex);
+    }
+  }
+
+  @FiberOnly
+  private void failPendingReads() {
+    failPendingReads("lost leadership of quorum " + quorumId + " before confirming read index");
+  }
+
+  @FiberOnly
+  private void failPendingReads(String reason) {
+    for (SettableFuture<Long> readIndexFuture : readIndexTracker.takeAllPendingReads()) {
+      readIndexFuture.setException(new IllegalStateException(reason));
+    }
+  }
+
+  @FiberOnly
+  private boolean hasCommittedEntryInCurrentTerm() {
+    return myFirstIndexAsLeader != 0 && lastCommittedIndex >= myFirstIndexAsLeader;
+  }
+
+  @FiberOnly
+  private boolean holdsLeaderLease() {
+    if (options.leaderLeaseMillis <= 0 || leadershipTransfer != null) {
+      return false;
+    }
+
+    final long now = clock.currentTimeMillis();
+    return now - readIndexTracker.leaseStartMillis(myId, now) < options.leaderLeaseMillis;
+  }
+
+  private static long sizeOf(List<LogEntry> entries) {
+    long size = 0;
+    for (LogEntry entry : entries) {
+      size += sizeOf(entry);
+    }
+    return size;
+  }
+
+  static long sizeOf(LogEntry entry) {
+    long size = 0;
+    if (entry.getDataList() != null) {
+      for (ByteBuffer buffer : entry.getDataList()) {
+        size += buffer.remaining();
+      }
+    }
+    return size;
+  }
+
   @FiberOnly
   private void checkIfMajorityCanCommit(long lastAckedIndex) {
     /**
@@ -1179,7 +2495,7 @@ public class ReplicatorInstance implements Replicator {
      * commit up to the greatest such N. (sec 5.3, sec 5.4).
      */
 
-    final long newCommitIndex = quorumConfig.calculateCommittedIndex(peersLastAckedIndex);
+    final long newCommitIndex = peerIndexes.calculateCommittedIndex();
 
     if (newCommitIndex <= lastCommittedIndex) {
       return;
@@ -1210,23 +2526,19 @@ public class ReplicatorInstance implements Replicator {
       long oldLastCommittedIndex = lastCommittedIndex;
       lastCommittedIndex = newLastCommittedIndex;
       issueCommitNotifications(oldLastCommittedIndex);
+      commitIndexWaiters.commitIndexAdvanced(lastCommittedIndex);
+      if (myState == State.LEADER) {
+        completeConfirmedReads();
+      }
     }
   }
 
   @FiberOnly
   private void issueCommitNotifications(long oldLastCommittedIndex) {
-    // TODO inefficient, because it calls getLogTerm once for every index. Possible optimization here.
-    final long firstCommittedIndex = oldLastCommittedIndex + 1;
-    long firstIndexOfTerm = firstCommittedIndex;
-    long nextTerm = log.getLogTerm(firstCommittedIndex);
-
-    for (long index = firstCommittedIndex; index <= lastCommittedIndex; index++) {
-      long currentTerm = nextTerm;
-      if (index == lastCommittedIndex
-          || (nextTerm = log.getLogTerm(index + 1)) != currentTerm) {
-        commitNoticeChannel.publish(new IndexCommitNotice(quorumId, myId, firstIndexOfTerm, index, currentTerm));
-        firstIndexOfTerm = index + 1;
-      }
+    // One notice per term, so the cost depends on the number of terms committed, not the number of entries.
+    for (TermRun termRun : log.getTermRuns(oldLastCommittedIndex + 1, lastCommittedIndex)) {
+      commitNoticeChannel.publish(
+          new IndexCommitNotice(quorumId, myId, termRun.firstIndex, termRun.lastIndex, termRun.term));
     }
   }
 
@@ -1248,25 +2560,60 @@ public class ReplicatorInstance implements Replicator {
 
   @FiberOnly
   private void setVotedFor(long votedFor) {
-    try {
-      persister.writeCurrentTermAndVotedFor(quorumId, currentTerm, votedFor);
-    } catch (IOException e) {
-      failReplicatorInstance(e);
-    }
-
     this.votedFor = votedFor;
+    persistCurrentTermAndVotedFor();
   }
 
   @FiberOnly
   private void setCurrentTerm(long newTerm) {
+    this.currentTerm = newTerm;
+    this.votedFor = 0;
+    persistCurrentTermAndVotedFor();
+  }
+
+  /**
+   * Begin writing currentTerm and votedFor. The write may not be durable when this returns (the
+   * persister may be committing writes from many quorums together), so anything sent which depends
+   * on it must wait, using whenMetadataIsDurable. A failed write is fatal to the instance.
+   */
+  @FiberOnly
+  private void persistCurrentTermAndVotedFor() {
+    final ListenableFuture<Void> write = persister.writeCurrentTermAndVotedFor(quorumId, currentTerm, votedFor);
+    pendingMetadataWrite = write;
+    C5Futures.addCallback(write,
+        (ignore) -> {
+        },
+        (Throwable t) -> {
+          logger.error("failed to persist currentTerm {} and votedFor {}", currentTerm, votedFor, t);
+          failReplicatorInstance(t);
+        }, fiber);
+  }
+
+  /**
+   * Run the action once the latest write of currentTerm and votedFor is durable: at once if it already
+   * is, otherwise on the fiber when it completes. Writes complete in the order they were made, so
+   * actions run in the order they were passed. If the write fails, the action never runs.
+   */
+  @FiberOnly
+  private void whenMetadataIsDurable(Runnable action) {
+    final ListenableFuture<Void> write = pendingMetadataWrite;
+    if (!write.isDone()) {
+      C5Futures.addCallback(write, (ignore) -> action.run(), (Throwable t) -> {
+      }, fiber);
+      return;
+    }
+
     try {
-      persister.writeCurrentTermAndVotedFor(quorumId, newTerm, 0);
-    } catch (IOException e) {
-      failReplicatorInstance(e);
+      C5Futures.getUninterruptibly(write);
+    } catch (ExecutionException e) {
+      return;
     }
+    action.run();
+  }
 
-    this.currentTerm = newTerm;
-    this.votedFor = 0;
+  @FiberOnly
+  private void replyWhenMetadataIsDurable(Request<RpcWireRequest, RpcReply> request, RpcReply reply) {
+    whenMetadataIsDurable(() -> request.reply(reply));
   }
 
   @FiberOnly
@@ -1276,6 +2623,8 @@ public class ReplicatorInstance implements Replicator {
 
   private void refreshQuorumConfigurationFromLog() {
     quorumConfig = log.getLastConfiguration();
+    peerIndexes.setConfiguration(quorumConfig);
+    readIndexTracker.setConfiguration(quorumConfig);
     quorumConfigIndex = log.getLastConfigurationIndex();
   }
 }
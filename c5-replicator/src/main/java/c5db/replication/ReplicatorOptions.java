@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.ReplicatorConstants;
+
+/**
+ * Immutable value type holding the tunable parameters of a {@link ReplicatorInstance}. Timing
+ * parameters which depend on the passage of time are provided by {@link ReplicatorClock}; this
+ * class holds the rest. Start from {@link #DEFAULT} and derive new instances using a
+ * {@link ReplicatorOptions.Builder}.
+ */
+public final class ReplicatorOptions {
+
+  public static final ReplicatorOptions DEFAULT = new Builder().build();
+
+  /**
+   * If true, the leader sends new entries as soon as they are submitted, rather than waiting
+   * for the next periodic tick (see {@link ReplicatorClock#leaderLogRequestsProcessingInterval()}),
+   * which is then only used for heartbeats and retries.
+   */
+  public final boolean eventDrivenFlush;
+
+  /**
+   * The greatest number of entries, and the greatest total payload size, the leader will
+   * take off its request queue to form a single batch.
+   */
+  public final int maxBatchEntries;
+  public final long maxBatchBytes;
+
+  /**
+   * With eventDrivenFlush, how long the leader may wait after the first request arrives in an
+   * empty queue, in the hope of forming a larger batch. A batch which fills up before this
+   * delay elapses is sent immediately.
+   */
+  public final long maxLingerDelayMillis;
+
+  /**
+   * The greatest number of AppendEntries requests, and the greatest total payload size, the leader
+   * will have in flight to any one peer at a time. A single request may exceed the size limit,
+   * if nothing else is in flight.
+   */
+  public final int maxInFlightAppendRequests;
+  public final long maxInFlightAppendBytes;
+
+  /**
+   * How long the leader waits for a peer to acknowledge an AppendEntries request before it resends
+   * everything from that request onward. Resends happen on the leader's periodic tick.
+   */
+  public final long appendRetransmitTimeoutMillis;
+
+  /**
+   * The greatest number of entries, and the greatest total payload size, the leader will read from
+   * its log at a time when sending a lagging peer the entries it is missing. A chunk always contains
+   * at least one entry, however large.
+   */
+  public final int catchUpChunkMaxEntries;
+  public final long catchUpChunkMaxBytes;
+
+  /**
+   * The greatest number of log requests, and the greatest total payload size, which may wait in
+   * the leader's request queue. A blocking submission waits for room in the queue, though only
+   * the number of requests is enforced for it; a non-blocking submission which does not fit
+   * is rejected. A submission to an empty queue always fits, however large.
+   */
+  public final int maxQueuedLogRequests;
+  public final long maxQueuedLogBytes;
+
+  /**
+   * If greater than zero, the leader answers read index requests without a round of heartbeats,
+   * for as long as this many milliseconds have not passed since it last sent a request which a
+   * majority of its quorum went on to acknowledge. Followers then also refuse pre-election polls
+   * while they are hearing from a leader. This relies on the clocks of the peers not drifting too
+   * far apart: the lease must be shorter than the election timeout of every follower, so it may be
+   * at most minElectionTimeoutMillis less a margin for clock drift. Zero disables leases.
+   */
+  public final long leaderLeaseMillis;
+
+  /**
+   * The least election timeout any peer of the quorum may choose; each peer picks its own at random
+   * from this value up to twice it. A replicator whose clock gives it a shorter timeout refuses to
+   * start while leases are enabled.
+   */
+  public final long minElectionTimeoutMillis;
+
+  /**
+   * If true, a quorum change first adds the peers joining the quorum as learners, which receive every
+   * entry but do not count toward the majority; the change to the new set of voters begins only once
+   * every learner is within learnerPromotionMaxLag entries of the end of the leader's log. This keeps
+   * empty new peers from holding up commits while they catch up. If false, new peers are voters as
+   * soon as the quorum change begins.
+   */
+  public final boolean addPeersAsLearners;
+  public final long learnerPromotionMaxLag;
+
+  /**
+   * The most snapshot data sent in one InstallSnapshot request, when a peer needs entries the leader's
+   * log no longer retains.
+   */
+  public final int snapshotChunkBytes;
+
+  private ReplicatorOptions(Builder builder) {
+    this.eventDrivenFlush = builder.eventDrivenFlush;
+    this.maxBatchEntries = builder.maxBatchEntries;
+    this.maxBatchBytes = builder.maxBatchBytes;
+    this.maxLingerDelayMillis = builder.maxLingerDelayMillis;
+    this.maxInFlightAppendRequests = builder.maxInFlightAppendRequests;
+    this.maxInFlightAppendBytes = builder.maxInFlightAppendBytes;
+    this.appendRetransmitTimeoutMillis = builder.appendRetransmitTimeoutMillis;
+    this.catchUpChunkMaxEntries = builder.catchUpChunkMaxEntries;
+    this.catchUpChunkMaxBytes = builder.catchUpChunkMaxBytes;
+    this.maxQueuedLogRequests = builder.maxQueuedLogRequests;
+    this.maxQueuedLogBytes = builder.maxQueuedLogBytes;
+    this.leaderLeaseMillis = builder.leaderLeaseMillis;
+    this.minElectionTimeoutMillis = builder.minElectionTimeoutMillis;
+    this.addPeersAsLearners = builder.addPeersAsLearners;
+    this.learnerPromotionMaxLag = builder.learnerPromotionMaxLag;
+    this.snapshotChunkBytes = builder.snapshotChunkBytes;
+  }
+
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  @Override
+  public String toString() {
+    return "ReplicatorOptions{" +
+        "eventDrivenFlush=" + eventDrivenFlush +
+        ", maxBatchEntries=" + maxBatchEntries +
+        ", maxBatchBytes=" + maxBatchBytes +
+        ", maxLingerDelayMillis=" + maxLingerDelayMillis +
+        ", maxInFlightAppendRequests=" + maxInFlightAppendRequests +
+        ", maxInFlightAppendBytes=" + maxInFlightAppendBytes +
+        ", appendRetransmitTimeoutMillis=" + appendRetransmitTimeoutMillis +
+        ", catchUpChunkMaxEntries=" + catchUpChunkMaxEntries +
+        ", catchUpChunkMaxBytes=" + catchUpChunkMaxBytes +
+        ", maxQueuedLogRequests=" + maxQueuedLogRequests +
+        ", maxQueuedLogBytes=" + maxQueuedLogBytes +
+        ", leaderLeaseMillis=" + leaderLeaseMillis +
+        ", minElectionTimeoutMillis=" + minElectionTimeoutMillis +
+        ", addPeersAsLearners=" + addPeersAsLearners +
+        ", learnerPromotionMaxLag=" + learnerPromotionMaxLag +
+        ", snapshotChunkBytes=" + snapshotChunkBytes +
+        '}';
+  }
+
+  public static class Builder {
+    private boolean eventDrivenFlush = true;
+    private int maxBatchEntries = ReplicatorConstants.REPLICATOR_DEFAULT_MAX_BATCH_ENTRIES;
+    private long maxBatchBytes = ReplicatorConstants.REPLICATOR_DEFAULT_MAX_BATCH_BYTES;
+    private long maxLingerDelayMillis = ReplicatorConstants.REPLICATOR_DEFAULT_MAX_LINGER_DELAY_MILLISECONDS;
+    private int maxInFlightAppendRequests = ReplicatorConstants.REPLICATOR_DEFAULT_MAX_IN_FLIGHT_APPEND_REQUESTS;
+    private long maxInFlightAppendBytes = ReplicatorConstants.REPLICATOR_DEFAULT_MAX_IN_FLIGHT_APPEND_BYTES;
+    private long appendRetransmitTimeoutMillis =
+        ReplicatorConstants.REPLICATOR_DEFAULT_APPEND_RETRANSMIT_TIMEOUT_MILLISECONDS;
+    private int catchUpChunkMaxEntries = ReplicatorConstants.REPLICATOR_DEFAULT_CATCH_UP_CHUNK_MAX_ENTRIES;
+    private long catchUpChunkMaxBytes = ReplicatorConstants.REPLICATOR_DEFAULT_CATCH_UP_CHUNK_MAX_BYTES;
+    private int maxQueuedLogRequests = ReplicatorConstants.REPLICATOR_MAXIMUM_SIMULTANEOUS_LOG_REQUESTS;
+    private long maxQueuedLogBytes = ReplicatorConstants.REPLICATOR_DEFAULT_MAX_QUEUED_LOG_BYTES;
+    private long leaderLeaseMillis = ReplicatorConstants.REPLICATOR_DEFAULT_LEADER_LEASE_MILLISECONDS;
+    private long minElectionTimeoutMillis = ReplicatorConstants.REPLICATOR_DEFAULT_BASE_ELECTION_TIMEOUT_MILLISECONDS;
+    private boolean addPeersAsLearners = false;
+    private long learnerPromotionMaxLag = ReplicatorConstants.REPLICATOR_DEFAULT_LEARNER_PROMOTION_MAX_LAG;
+    private int snapshotChunkBytes = ReplicatorConstants.REPLICATOR_DEFAULT_SNAPSHOT_CHUNK_BYTES;
+
+    public Builder() {
+    }
+
+    private Builder(ReplicatorOptions options) {
+      this.eventDrivenFlush = options.eventDrivenFlush;
+      this.maxBatchEntries = options.maxBatchEntries;
+      this.maxBatchBytes = options.maxBatchBytes;
+      this.maxLingerDelayMillis = options.maxLingerDelayMillis;
+      this.maxInFlightAppendRequests = options.maxInFlightAppendRequests;
+      this.maxInFlightAppendBytes = options.maxInFlightAppendBytes;
+      this.appendRetransmitTimeoutMillis = options.appendRetransmitTimeoutMillis;
+      this.catchUpChunkMaxEntries = options.catchUpChunkMaxEntries;
+      this.catchUpChunkMaxBytes = options.catchUpChunkMaxBytes;
+      this.maxQueuedLogRequests = options.maxQueuedLogRequests;
+      this.maxQueuedLogBytes = options.maxQueuedLogBytes;
+      this.leaderLeaseMillis = options.leaderLeaseMillis;
+      this.minElectionTimeoutMillis = options.minElectionTimeoutMillis;
+      this.addPeersAsLearners = options.addPeersAsLearners;
+      this.learnerPromotionMaxLag = options.learnerPromotionMaxLag;
+      this.snapshotChunkBytes = options.snapshotChunkBytes;
+    }
+
+    public Builder setEventDrivenFlush(boolean eventDrivenFlush) {
+      this.eventDrivenFlush = eventDrivenFlush;
+      return this;
+    }
+
+    public Builder setMaxBatchEntries(int maxBatchEntries) {
+      this.maxBatchEntries = maxBatchEntries;
+      return this;
+    }
+
+    public Builder setMaxBatchBytes(long maxBatchBytes) {
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    public Builder setMaxLingerDelayMillis(long maxLingerDelayMillis) {
+      this.maxLingerDelayMillis = maxLingerDelayMillis;
+      return this;
+    }
+
+    public Builder setMaxInFlightAppendRequests(int maxInFlightAppendRequests) {
+      this.maxInFlightAppendRequests = maxInFlightAppendRequests;
+      return this;
+    }
+
+    public Builder setMaxInFlightAppendBytes(long maxInFlightAppendBytes) {
+      this.maxInFlightAppendBytes = maxInFlightAppendBytes;
+      return this;
+    }
+
+    public Builder setAppendRetransmitTimeoutMillis(long appendRetransmitTimeoutMillis) {
+      this.appendRetransmitTimeoutMillis = appendRetransmitTimeoutMillis;
+      return this;
+    }
+
+    public Builder setCatchUpChunkMaxEntries(int catchUpChunkMaxEntries) {
+      this.catchUpChunkMaxEntries = catchUpChunkMaxEntries;
+      return this;
+    }
+
+    public Builder setCatchUpChunkMaxBytes(long catchUpChunkMaxBytes) {
+      this.catchUpChunkMaxBytes = catchUpChunkMaxBytes;
+      return this;
+    }
+
+    public Builder setMaxQueuedLogRequests(int maxQueuedLogRequests) {
+      this.maxQueuedLogRequests = maxQueuedLogRequests;
+      return this;
+    }
+
+    public Builder setMaxQueuedLogBytes(long maxQueuedLogBytes) {
+      this.maxQueuedLogBytes = maxQueuedLogBytes;
+      return this;
+    }
+
+    public Builder setLeaderLeaseMillis(long leaderLeaseMillis) {
+      this.leaderLeaseMillis = leaderLeaseMillis;
+      return this;
+    }
+
+    public Builder setMinElectionTimeoutMillis(long minElectionTimeoutMillis) {
+      this.minElectionTimeoutMillis = minElectionTimeoutMillis;
+      return this;
+    }
+
+    public Builder setAddPeersAsLearners(boolean addPeersAsLearners) {
+      this.addPeersAsLearners = addPeersAsLearners;
+      return this;
+    }
+
+    public Builder setLearnerPromotionMaxLag(long learnerPromotionMaxLag) {
+      this.learnerPromotionMaxLag = learnerPromotionMaxLag;
+      return this;
+    }
+
+    public Builder setSnapshotChunkBytes(int snapshotChunkBytes) {
+      this.snapshotChunkBytes = snapshotChunkBytes;
+      return this;
+    }
+
+    public ReplicatorOptions build() {
+      if (maxBatchEntries <= 0 || maxBatchBytes <= 0 || maxLingerDelayMillis < 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid batch parameters");
+      }
+      if (maxInFlightAppendRequests <= 0 || maxInFlightAppendBytes <= 0 || appendRetransmitTimeoutMillis <= 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid in-flight window parameters");
+      }
+      if (catchUpChunkMaxEntries <= 0 || catchUpChunkMaxBytes <= 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid catch-up chunk parameters");
+      }
+      if (maxQueuedLogRequests <= 0 || maxQueuedLogBytes <= 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid request queue parameters");
+      }
+      if (minElectionTimeoutMillis <= 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid minimum election timeout");
+      }
+      if (leaderLeaseMillis < 0 || leaderLeaseMillis > maxLeaderLeaseMillis(minElectionTimeoutMillis)) {
+        throw new IllegalArgumentException("ReplicatorOptions: leader lease must not exceed "
+            + maxLeaderLeaseMillis(minElectionTimeoutMillis) + " ms");
+      }
+      if (learnerPromotionMaxLag < 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid learner promotion lag");
+      }
+      if (snapshotChunkBytes <= 0) {
+        throw new IllegalArgumentException("ReplicatorOptions: invalid snapshot chunk size");
+      }
+      return new ReplicatorOptions(this);
+    }
+
+    private static long maxLeaderLeaseMillis(long minElectionTimeoutMillis) {
+      return Math.max(0,
+          minElectionTimeoutMillis - ReplicatorConstants.REPLICATOR_LEADER_LEASE_CLOCK_DRIFT_MARGIN_MILLISECONDS);
+    }
+  }
+}
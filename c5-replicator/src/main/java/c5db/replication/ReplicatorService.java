@@ -17,20 +17,24 @@
 package c5db.replication;
 
 import c5db.ReplicatorConstants;
+import c5db.codec.FlushCoalescingHandler;
+import c5db.codec.FlushStatistics;
 import c5db.codec.ProtostuffDecoder;
-import c5db.codec.ProtostuffEncoder;
+import c5db.codec.LengthPrefixedProtostuffEncoder;
 import c5db.interfaces.C5Module;
 import c5db.interfaces.DiscoveryModule;
 import c5db.interfaces.LogModule;
 import c5db.interfaces.ModuleInformationProvider;
 import c5db.interfaces.ReplicationModule;
-import c5db.interfaces.discovery.NodeInfoReply;
-import c5db.interfaces.discovery.NodeInfoRequest;
 import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.QuorumConfiguration;
 import c5db.interfaces.replication.Replicator;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
 import c5db.interfaces.replication.ReplicatorLog;
 import c5db.messages.generated.ModuleType;
+import c5db.replication.generated.HeartbeatBatchReply;
+import c5db.replication.generated.QuorumHeartbeat;
+import c5db.replication.generated.QuorumHeartbeatReply;
 import c5db.replication.generated.ReplicationWireMessage;
 import c5db.replication.rpc.RpcRequest;
 import c5db.replication.rpc.RpcWireReply;
@@ -38,14 +42,15 @@ import c5db.replication.rpc.RpcWireRequest;
 import c5db.util.C5Futures;
 import c5db.util.FiberOnly;
 import c5db.util.FiberSupplier;
+import c5db.util.HierarchicalTimingWheel;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -57,10 +62,7 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
-import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import org.jetlang.channels.AsyncRequest;
@@ -68,19 +70,24 @@ import org.jetlang.channels.MemoryChannel;
 import org.jetlang.channels.MemoryRequestChannel;
 import org.jetlang.channels.Request;
 import org.jetlang.channels.RequestChannel;
-import org.jetlang.channels.Session;
 import org.jetlang.core.Callback;
 import org.jetlang.fibers.Fiber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 
 /**
@@ -118,13 +125,24 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
   @Override
   public ListenableFuture<Replicator> createReplicator(final String quorumId,
                                                        final Collection<Long> peers) {
+    return createReplicator(quorumId, peers, ReplicatorOptions.DEFAULT);
+  }
+
+  /**
+   * As {@link #createReplicator(String, java.util.Collection)}, but if a new Replicator is created,
+   * it uses the given options, such as the capacity of its request queue. The options are ignored if
+   * a Replicator for the quorum already exists.
+   */
+  public ListenableFuture<Replicator> createReplicator(final String quorumId,
+                                                       final Collection<Long> peers,
+                                                       final ReplicatorOptions options) {
     final SettableFuture<Replicator> future = SettableFuture.create();
 
     ListenableFuture<ReplicatorLog> logFuture = logModule.getReplicatorLog(quorumId);
 
     C5Futures.addCallback(logFuture,
         (ReplicatorLog log) -> {
-          Replicator replicator = createReplicatorWithLog(log, quorumId, peers);
+          Replicator replicator = createReplicatorWithLog(log, quorumId, peers, options);
           future.set(replicator);
         },
         future::setException,
@@ -143,25 +161,41 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
   private final EventLoopGroup bossGroup;
   private final EventLoopGroup workerGroup;
   private final ChannelGroup allChannels;
+  private final FlushStatistics flushStatistics = new FlushStatistics();
   private final ServerBootstrap serverBootstrap = new ServerBootstrap();
   private final Bootstrap outgoingBootstrap = new Bootstrap();
 
-  // ReplicatorInstances and objects shared among them
-  private final Map<String, ReplicatorInstance> replicatorInstances = new HashMap<>();
-  private final Persister persister;
-  private final RequestChannel<RpcRequest, RpcWireReply> outgoingRequests = new MemoryRequestChannel<>();
+  // ReplicatorInstances and objects shared among them. Instances are added and removed on the service's fiber,
+  // but looked up by every DispatchPartition.
+  private final Map<String, ReplicatorInstance> replicatorInstances = new ConcurrentHashMap<>();
+  private final ReplicatorInfoPersistence persister;
   private final MemoryChannel<ReplicatorInstanceEvent> replicatorEventChannel = new MemoryChannel<>();
   private final MemoryChannel<IndexCommitNotice> indexCommitNotices = new MemoryChannel<>();
 
-  // Connections to other servers by their node IDs
-  private final Map<Long, Channel> connections = new HashMap<>();
+  // Times the election timeouts and leader ticks of every ReplicatorInstance, so that idle quorums cost
+  // no timer firings beyond their own deadlines
+  private final HierarchicalTimingWheel timingWheel;
+
+  // Message handling for the quorums on this node, divided by quorum among several fibers; see DispatchPartition
+  private int numberOfDispatchPartitions = ReplicatorConstants.REPLICATOR_DEFAULT_DISPATCH_PARTITIONS;
+  private DispatchPartition[] partitions;
+
+  // Connections to the other nodes, shared by every partition; see PeerConnectionPool
+  private int connectionsPerPeer = ReplicatorConstants.REPLICATOR_DEFAULT_CONNECTIONS_PER_PEER;
+  private PeerConnectionPool connectionPool;
 
-  // Map of message ID -> Request
-  // TODO we need a way to remove these after a while, because if we fail to get a reply we will be unhappy.
-  private final Map<Long, Request<RpcRequest, RpcWireReply>> outstandingRPCs = new HashMap<>();
+  private boolean usePooledDirectBuffers = ReplicatorConstants.REPLICATOR_DEFAULT_USE_POOLED_DIRECT_BUFFERS;
 
-  // Map of Session -> message ID
-  private final Map<Session, Long> outstandingRPCbySession = new HashMap<>();
+  private long heartbeatCoalescingIntervalMillis =
+      ReplicatorConstants.REPLICATOR_DEFAULT_HEARTBEAT_COALESCING_INTERVAL_MILLISECONDS;
+
+  // Periodic moves of leadership away from this node when it leads more than its share; see LeaderBalancer
+  private final LeaderBalancer leaderBalancer =
+      new LeaderBalancer(ReplicatorConstants.REPLICATOR_LEADER_BALANCING_TOLERANCE);
+  private final Map<String, Long> leaderByQuorumId = new HashMap<>();
+  private long leaderBalancingIntervalMillis =
+      ReplicatorConstants.REPLICATOR_DEFAULT_LEADER_BALANCING_INTERVAL_MILLISECONDS;
+  private boolean leadershipMoveInProgress = false;
 
   // Initialized in the module start, by the time any messages or fiber executions trigger, these should be not-null
   private DiscoveryModule discoveryModule = null;
@@ -169,9 +203,6 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
   private Channel listenChannel;
   private Fiber fiber;
 
-  // Sequence number for sent messages
-  private long messageIdGen = 1;
-
   /**
    * ReplicatorService creates and starts fibers; it must be stopped (or failed) in
    * order to dispose them.
@@ -183,6 +214,22 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
                            ModuleInformationProvider moduleInformationProvider,
                            FiberSupplier fiberSupplier,
                            QuorumFileReaderWriter quorumFileReaderWriter) {
+    this(bossGroup, workerGroup, nodeId, port, moduleInformationProvider, fiberSupplier,
+        new Persister(quorumFileReaderWriter));
+  }
+
+  /**
+   * Use the given persistence for the current term and vote of every quorum, such as a
+   * {@link TermAndVoteStore} shared by all of them. The caller remains responsible for closing it, after
+   * the service has stopped.
+   */
+  public ReplicatorService(EventLoopGroup bossGroup,
+                           EventLoopGroup workerGroup,
+                           long nodeId,
+                           int port,
+                           ModuleInformationProvider moduleInformationProvider,
+                           FiberSupplier fiberSupplier,
+                           ReplicatorInfoPersistence persister) {
     this.bossGroup = bossGroup;
     this.workerGroup = workerGroup;
     this.nodeId = nodeId;
@@ -191,7 +238,90 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
     this.fiberSupplier = fiberSupplier;
 
     this.allChannels = new DefaultChannelGroup(workerGroup.next());
-    this.persister = new Persister(quorumFileReaderWriter);
+    this.persister = persister;
+    this.timingWheel = new HierarchicalTimingWheel(ReplicatorConstants.REPLICATOR_TIMING_WHEEL_TICK_MILLISECONDS,
+        TimeUnit.MILLISECONDS, "replicator-timers-" + nodeId);
+  }
+
+  /**
+   * Set how long heartbeats bound for a peer node are held, so that the heartbeats of all the quorums
+   * this node leads and shares with that peer are sent as a single message. Zero sends each heartbeat
+   * on its own, as soon as its ReplicatorInstance produces it. Must be called before the service is
+   * started.
+   */
+  public void setHeartbeatCoalescingIntervalMillis(long heartbeatCoalescingIntervalMillis) {
+    if (heartbeatCoalescingIntervalMillis < 0) {
+      throw new IllegalArgumentException("heartbeatCoalescingIntervalMillis must not be negative");
+    }
+    if (state() != State.NEW) {
+      throw new IllegalStateException("heartbeat coalescing interval may only be set before starting");
+    }
+    this.heartbeatCoalescingIntervalMillis = heartbeatCoalescingIntervalMillis;
+  }
+
+  /**
+   * Return counts of the flushes made to this node's connections, and of the messages and bytes they
+   * carried. Messages written to a connection within one event loop iteration are flushed together.
+   */
+  public FlushStatistics getFlushStatistics() {
+    return flushStatistics;
+  }
+
+  /**
+   * Set whether the buffers used to read and write messages come from Netty's pool of direct buffers,
+   * rather than from its default allocator; pooling spares the garbage collector a buffer or two for
+   * every message sent or received. Epoll is used instead of NIO when the event loop groups given to
+   * the service are epoll groups; see {@link NettyTransport}. Must be called before the service is
+   * started.
+   */
+  public void setUsePooledDirectBuffers(boolean usePooledDirectBuffers) {
+    if (state() != State.NEW) {
+      throw new IllegalStateException("buffer allocation may only be set before starting");
+    }
+    this.usePooledDirectBuffers = usePooledDirectBuffers;
+  }
+
+  /**
+   * Set how many connections this node keeps to each other node; the quorums shared with a node are
+   * divided among them by the hash of their IDs. Must be called before the service is started.
+   */
+  public void setConnectionsPerPeer(int connectionsPerPeer) {
+    if (connectionsPerPeer <= 0) {
+      throw new IllegalArgumentException("connectionsPerPeer must be positive");
+    }
+    if (state() != State.NEW) {
+      throw new IllegalStateException("connections per peer may only be set before starting");
+    }
+    this.connectionsPerPeer = connectionsPerPeer;
+  }
+
+  /**
+   * Set how many fibers divide the handling of messages to and from the quorums on this node. Every
+   * message for a given quorum is handled by the same one. Must be called before the service is started.
+   */
+  public void setNumberOfDispatchPartitions(int numberOfDispatchPartitions) {
+    if (numberOfDispatchPartitions <= 0) {
+      throw new IllegalArgumentException("numberOfDispatchPartitions must be positive");
+    }
+    if (state() != State.NEW) {
+      throw new IllegalStateException("number of dispatch partitions may only be set before starting");
+    }
+    this.numberOfDispatchPartitions = numberOfDispatchPartitions;
+  }
+
+  /**
+   * Set how often this node checks whether it leads more than its share of the quorums it hosts,
+   * weighted by their write rates, and if so hands off leadership of one of them. Zero disables
+   * balancing. Must be called before the service is started.
+   */
+  public void setLeaderBalancingIntervalMillis(long leaderBalancingIntervalMillis) {
+    if (leaderBalancingIntervalMillis < 0) {
+      throw new IllegalArgumentException("leaderBalancingIntervalMillis must not be negative");
+    }
+    if (state() != State.NEW) {
+      throw new IllegalStateException("leader balancing interval may only be set before starting");
+    }
+    this.leaderBalancingIntervalMillis = leaderBalancingIntervalMillis;
   }
 
   /**
@@ -208,206 +338,368 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final ReplicationWireMessage msg) throws Exception {
-      fiber.execute(() -> handleWireInboundMessage(ctx.channel(), msg));
+      final DispatchPartition partition = partitionOfWireMessage(msg);
+      partition.fiber.execute(() -> partition.handleWireInboundMessage(ctx.channel(), msg));
     }
   }
 
-  @FiberOnly
-  private void handleWireInboundMessage(Channel channel, ReplicationWireMessage msg) {
-    long messageId = msg.getMessageId();
-    if (msg.getReceiverId() != nodeId) {
-      LOG.debug("Got messageId {} for {} but I am {}, ignoring!", messageId, msg.getReceiverId(), nodeId);
-      return;
+  private DispatchPartition partitionOfWireMessage(ReplicationWireMessage msg) {
+    return partitions[partitionIndexOfWireMessage(msg, partitions.length)];
+  }
+
+  private DispatchPartition partitionOfQuorum(String quorumId) {
+    return partitions[partitionIndexOfQuorum(quorumId, partitions.length)];
+  }
+
+  /**
+   * The ID of the given message, numbered in sequence from one, sent by the partition with the given
+   * index; the index can be recovered from the ID alone, given the number of partitions.
+   */
+  static long messageIdOf(long messageSequenceNumber, int partitionIndex, int numberOfPartitions) {
+    return messageSequenceNumber * numberOfPartitions + partitionIndex;
+  }
+
+  /**
+   * Replies, and heartbeat batches (which span quorums), are handled by the partition whose index is
+   * encoded in their message ID; other requests by the partition owning their quorum.
+   */
+  static int partitionIndexOfWireMessage(ReplicationWireMessage msg, int numberOfPartitions) {
+    if (msg.getInReply() || msg.getHeartbeatBatch() != null) {
+      return (int) Math.floorMod(msg.getMessageId(), (long) numberOfPartitions);
     }
+    return partitionIndexOfQuorum(msg.getQuorumId(), numberOfPartitions);
+  }
 
-    if (msg.getInReply()) {
-      Request<RpcRequest, RpcWireReply> request = outstandingRPCs.get(messageId);
-      if (request == null) {
-        LOG.debug("Got a reply message_id {} which we don't track", messageId);
+  static int partitionIndexOfQuorum(String quorumId, int numberOfPartitions) {
+    return Math.floorMod(stripeKeyOf(quorumId), numberOfPartitions);
+  }
+
+  private static int stripeKeyOf(String quorumId) {
+    return quorumId == null ? 0 : quorumId.hashCode();
+  }
+
+  /**
+   * One share of the service's message handling. Each quorum belongs to one partition, chosen by the
+   * hash of its ID: the partition's fiber receives the quorum's requests from the wire, sends the
+   * requests of its ReplicatorInstance, and tracks the replies outstanding for them. A partition
+   * encodes its index in the IDs of the messages it sends, so that each reply can be handed straight
+   * from the Netty I/O thread which read it to the partition awaiting it. Partitions share nothing
+   * mutable but the (concurrent) map of instances.
+   */
+  private class DispatchPartition {
+    private final int index;
+    private final Fiber fiber;
+    private final RequestChannel<RpcRequest, RpcWireReply> outgoingRequests = new MemoryRequestChannel<>();
+
+    // Requests awaiting replies, by message ID. Those whose replies never come are forgotten after the
+    // longest RPC timeout; a request cancelled by its sender is simply left to be forgotten in this way.
+    private final OutstandingRpcTable<Request<RpcRequest, RpcWireReply>> outstandingRPCs =
+        new OutstandingRpcTable<>(ReplicatorConstants.REPLICATOR_OUTSTANDING_RPC_TABLE_INITIAL_CAPACITY,
+            ReplicatorConstants.REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS
+                / ReplicatorConstants.REPLICATOR_OUTSTANDING_RPC_EXPIRY_TICK_MILLISECONDS);
+
+    // Heartbeats from idle quorums, held to be sent to each peer node together; see HeartbeatCoalescer.
+    // Sent batches whose replies never come are forgotten in the same way as other requests.
+    private final HeartbeatCoalescer heartbeatCoalescer =
+        new HeartbeatCoalescer(ReplicatorConstants.REPLICATOR_OUTSTANDING_RPC_TABLE_INITIAL_CAPACITY,
+            ReplicatorConstants.REPLICATOR_APPEND_RPC_TIMEOUT_MILLISECONDS
+                / ReplicatorConstants.REPLICATOR_OUTSTANDING_RPC_EXPIRY_TICK_MILLISECONDS);
+
+    // Sequence number for sent messages
+    private long messageIdGen = 1;
+
+    private DispatchPartition(int index, Fiber fiber) {
+      this.index = index;
+      this.fiber = fiber;
+    }
+
+    private void start() {
+      //noinspection Convert2MethodRef
+      outgoingRequests.subscribe(fiber, message -> handleOutgoingMessage(message));
+      fiber.scheduleAtFixedRate(this::expireOutstandingRPCs,
+          ReplicatorConstants.REPLICATOR_OUTSTANDING_RPC_EXPIRY_TICK_MILLISECONDS,
+          ReplicatorConstants.REPLICATOR_OUTSTANDING_RPC_EXPIRY_TICK_MILLISECONDS, TimeUnit.MILLISECONDS);
+      fiber.start();
+    }
+
+    @FiberOnly
+    private long nextMessageId() {
+      return messageIdOf(messageIdGen++, index, partitions.length);
+    }
+
+    @FiberOnly
+    private void handleWireInboundMessage(Channel channel, ReplicationWireMessage msg) {
+      long messageId = msg.getMessageId();
+      if (msg.getReceiverId() != nodeId) {
+        LOG.debug("Got messageId {} for {} but I am {}, ignoring!", messageId, msg.getReceiverId(), nodeId);
         return;
       }
 
-      outstandingRPCs.remove(messageId);
-      outstandingRPCbySession.remove(request.getSession());
-      request.reply(new RpcWireReply(msg));
-    } else {
-      handleWireRequestMessage(channel, msg);
+      if (msg.getInReply()) {
+        if (msg.getHeartbeatBatchReply() != null) {
+          if (!heartbeatCoalescer.handleReply(messageId, msg.getSenderId(), msg.getHeartbeatBatchReply())) {
+            LOG.debug("Got a heartbeat batch reply message_id {} which we don't track", messageId);
+          }
+          return;
+        }
+
+        Request<RpcRequest, RpcWireReply> request = outstandingRPCs.remove(messageId);
+        if (request == null) {
+          LOG.debug("Got a reply message_id {} which we don't track", messageId);
+          return;
+        }
+
+        request.reply(new RpcWireReply(msg));
+      } else {
+        handleWireRequestMessage(channel, msg);
+      }
     }
-  }
 
-  @FiberOnly
-  private void handleWireRequestMessage(final Channel channel, final ReplicationWireMessage msg) {
-    RpcWireRequest wireRequest = new RpcWireRequest(msg);
-    String quorumId = wireRequest.quorumId;
-
-    ReplicatorInstance replInst = replicatorInstances.get(quorumId);
-    if (replInst == null) {
-      LOG.trace("Instance not found {} for message id {} from {} (normal during region bootstrap)",
-          quorumId,
-          msg.getMessageId(),
-          msg.getSenderId());
-      // TODO send RPC failure to the sender?
-      return;
+    @FiberOnly
+    private void handleWireRequestMessage(final Channel channel, final ReplicationWireMessage msg) {
+      if (msg.getHeartbeatBatch() != null) {
+        handleHeartbeatBatch(channel, msg);
+        return;
+      }
+
+      RpcWireRequest wireRequest = new RpcWireRequest(msg);
+      String quorumId = wireRequest.quorumId;
+
+      ReplicatorInstance replInst = replicatorInstances.get(quorumId);
+      if (replInst == null) {
+        LOG.trace("Instance not found {} for message id {} from {} (normal during region bootstrap)",
+            quorumId,
+            msg.getMessageId(),
+            msg.getSenderId());
+        // TODO send RPC failure to the sender?
+        return;
+      }
+
+      AsyncRequest.withOneReply(fiber, replInst.getIncomingChannel(), wireRequest, reply -> {
+        if (!channel.isOpen()) {
+          // TODO cant signal comms failure, so just drop on the floor. Is there a better thing to do?
+          return;
+        }
+
+        ReplicationWireMessage b = reply.getWireMessage(
+            msg.getMessageId(),
+            nodeId,
+            msg.getSenderId(),
+            true
+        );
+
+        channel.writeAndFlush(b).addListener(
+            future -> {
+              if (!future.isSuccess()) {
+                LOG.warn("node {} error sending reply {} to node {} in response to request {}: {}",
+                    nodeId, reply, wireRequest.from, wireRequest, future.cause());
+              }
+            });
+      });
     }
 
-    AsyncRequest.withOneReply(fiber, replInst.getIncomingChannel(), wireRequest, reply -> {
+    /**
+     * Hand each heartbeat in a batch to the ReplicatorInstance for its quorum, and once every one of
+     * them has answered (or failed to), send all their replies back in a single message, in the same
+     * order as the heartbeats.
+     */
+    @FiberOnly
+    private void handleHeartbeatBatch(final Channel channel, final ReplicationWireMessage msg) {
+      List<QuorumHeartbeat> heartbeats = msg.getHeartbeatBatch().getHeartbeatsList();
+      if (heartbeats == null || heartbeats.isEmpty()) {
+        return;
+      }
+
+      final QuorumHeartbeatReply[] replies = new QuorumHeartbeatReply[heartbeats.size()];
+      final int[] remaining = {heartbeats.size()};
+
+      for (int i = 0; i < heartbeats.size(); i++) {
+        final int position = i;
+        final String quorumId = heartbeats.get(i).getQuorumId();
+        final Callback<QuorumHeartbeatReply> onReply = reply -> {
+          if (replies[position] != null) {
+            return;
+          }
+          replies[position] = reply;
+          if (--remaining[0] == 0) {
+            sendHeartbeatBatchReply(channel, msg, replies);
+          }
+        };
+
+        ReplicatorInstance replInst = replicatorInstances.get(quorumId);
+        if (replInst == null) {
+          LOG.trace("Instance not found {} for heartbeat in message id {} from {}",
+              quorumId, msg.getMessageId(), msg.getSenderId());
+          onReply.onMessage(new QuorumHeartbeatReply(quorumId, null));
+          continue;
+        }
+
+        RpcWireRequest wireRequest =
+            new RpcWireRequest(msg.getSenderId(), quorumId, heartbeats.get(i).getAppendEntries());
+        AsyncRequest.withOneReply(fiber, replInst.getIncomingChannel(), wireRequest,
+            reply -> onReply.onMessage(new QuorumHeartbeatReply(quorumId, reply.getAppendReplyMessage())),
+            ReplicatorConstants.REPLICATOR_HEARTBEAT_BATCH_REPLY_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS,
+            () -> onReply.onMessage(new QuorumHeartbeatReply(quorumId, null)));
+      }
+    }
+
+    @FiberOnly
+    private void sendHeartbeatBatchReply(Channel channel, ReplicationWireMessage msg, QuorumHeartbeatReply[] replies) {
       if (!channel.isOpen()) {
-        // TODO cant signal comms failure, so just drop on the floor. Is there a better thing to do?
         return;
       }
 
-      ReplicationWireMessage b = reply.getWireMessage(
+      ReplicationWireMessage wireMessage = new ReplicationWireMessage(
           msg.getMessageId(),
           nodeId,
           msg.getSenderId(),
-          true
-      );
+          null,
+          true,
+          null, null, null, null, null, null,
+          null,
+          new HeartbeatBatchReply(Arrays.asList(replies)),
+          null, null, null, null);
 
-      channel.writeAndFlush(b).addListener(
+      channel.writeAndFlush(wireMessage).addListener(
           future -> {
             if (!future.isSuccess()) {
-              LOG.warn("node {} error sending reply {} to node {} in response to request {}: {}",
-                  nodeId, reply, wireRequest.from, wireRequest, future.cause());
+              LOG.warn("node {} error sending heartbeat batch reply to node {}: {}",
+                  nodeId, msg.getSenderId(), future.cause());
             }
           });
-    });
-  }
+    }
 
-  /**
-   * ************* Handlers for Request<> from replicator instances ***********************************
-   */
-  @FiberOnly
-  private void handleCancelledSession(Session session) {
-    Long messageId = outstandingRPCbySession.get(session);
-    outstandingRPCbySession.remove(session);
-    if (messageId == null) {
-      return;
+    /**
+     * ************* Handlers for Request<> from replicator instances ***********************************
+     */
+    @FiberOnly
+    private void expireOutstandingRPCs() {
+      final int expired = outstandingRPCs.expire();
+      if (expired > 0) {
+        LOG.debug("node {} forgot {} RPCs which received no reply", nodeId, expired);
+      }
+      final int expiredBatches = heartbeatCoalescer.expireSentBatches();
+      if (expiredBatches > 0) {
+        LOG.debug("node {} forgot {} heartbeat batches which received no reply", nodeId, expiredBatches);
+      }
     }
-    LOG.trace("Removing cancelled RPC, message ID {}", messageId);
-    outstandingRPCs.remove(messageId);
-  }
 
-  @FiberOnly
-  private void handleOutgoingMessage(final Request<RpcRequest, RpcWireReply> message) {
-    final RpcRequest request = message.getRequest();
-    final long to = request.to;
+    @FiberOnly
+    private void handleOutgoingMessage(final Request<RpcRequest, RpcWireReply> message) {
+      final RpcRequest request = message.getRequest();
+      final long to = request.to;
 
-    if (to == nodeId) {
-      handleLoopBackMessage(message);
-      return;
-    }
+      if (to == nodeId) {
+        handleLoopBackMessage(message);
+        return;
+      }
 
-    // check to see if we have a connection:
-    Channel channel = connections.get(to);
-    if (channel != null && channel.isOpen()) {
-      sendMessageAsync(message, channel);
-      return;
-    } else if (channel != null) {
-      // stale?
-      LOG.debug("Removing stale !isOpen channel from connections.get() for peer {}", to);
-      connections.remove(to);
-    }
-
-    NodeInfoRequest nodeInfoRequest = new NodeInfoRequest(to, ModuleType.Replication);
-    LOG.debug("node {} sending node info request {} ", nodeId, nodeInfoRequest);
-    AsyncRequest.withOneReply(fiber, discoveryModule.getNodeInfo(), nodeInfoRequest, new Callback<NodeInfoReply>() {
-      @SuppressWarnings("RedundantCast")
-      @FiberOnly
-      @Override
-      public void onMessage(NodeInfoReply nodeInfoReply) {
-        if (!nodeInfoReply.found) {
-          LOG.debug("Can't find the info for the peer {}", to);
-          // TODO signal TCP/transport layer failure in a better way
-          //message.reply(null);
-          return;
-        }
+      final int stripeKey = stripeKeyOf(request.quorumId);
+      Channel channel = connectionPool.getChannel(to, stripeKey);
+      if (channel == null) {
+        // Try again once connected, in case the connection closes again in the meantime.
+        connectionPool.whenConnected(to, stripeKey, () -> fiber.execute(() -> handleOutgoingMessage(message)));
+        return;
+      }
 
-        LOG.debug("node {} got node info for node {} reply {} ", nodeId, to, nodeInfoReply);
-        // what if existing outgoing connection attempt?
-        Channel channel = connections.get(to);
-        if (channel != null && channel.isOpen()) {
-          sendMessageAsync(message, channel);
-          return;
-        } else if (channel != null) {
-          LOG.debug("Removing stale2 !isOpen channel from connections.get() for peer {}", to);
-          connections.remove(to);
+      if (heartbeatCoalescingIntervalMillis > 0 && HeartbeatCoalescer.isHeartbeat(request)) {
+        if (heartbeatCoalescer.add(message)) {
+          fiber.schedule(() -> flushHeartbeats(to), heartbeatCoalescingIntervalMillis, TimeUnit.MILLISECONDS);
         }
+      } else {
+        sendMessageAsync(message, channel);
+      }
+    }
+
+    private void sendMessageAsync(final Request<RpcRequest, RpcWireReply> message, final Channel channel) {
+      fiber.execute(() -> {
+        RpcRequest request = message.getRequest();
+        long to = request.to;
+        long messageId = nextMessageId();
+
+        outstandingRPCs.put(messageId, message);
 
-        // ok so we connect now:
-        ChannelFuture channelFuture = outgoingBootstrap.connect(nodeInfoReply.addresses.get(0), nodeInfoReply.port);
-        LOG.trace("Connecting to peer {} at address {} port {}", to, nodeInfoReply.addresses.get(0), nodeInfoReply.port);
-
-        // the channel might not be open, so defer the write.
-        connections.put(to, channelFuture.channel());
-        channelFuture.channel().closeFuture().addListener((ChannelFutureListener)
-            future ->
-                fiber.execute(() -> {
-                  // remove only THIS channel. It might have been removed prior so.
-                  connections.remove(to, future.channel());
-                }));
-
-        // funny hack, if the channel future is already open, we execute immediately!
-        channelFuture.addListener((ChannelFutureListener)
+        LOG.trace("Sending message id {} to {} / {}", messageId, to, request.quorumId);
+
+        ReplicationWireMessage wireMessage = request.getWireMessage(
+            messageId,
+            nodeId,
+            to,
+            false
+        );
+
+        channel.writeAndFlush(wireMessage).addListener(
             future -> {
-              if (future.isSuccess()) {
-                sendMessageAsync(message, future.channel());
+              if (!future.isSuccess()) {
+                LOG.warn("Error sending from node {} request {}: {}", nodeId, request, future.cause());
               }
             });
+      });
+    }
+
+    /**
+     * Send every heartbeat held for the given node as a single message. If the connection to the node
+     * has gone away in the meantime, each heartbeat instead takes the ordinary path, which reconnects.
+     */
+    @FiberOnly
+    private void flushHeartbeats(long to) {
+      List<Request<RpcRequest, RpcWireReply>> heartbeats = heartbeatCoalescer.takePending(to);
+      if (heartbeats.isEmpty()) {
+        return;
       }
-    },
-        // If the NodeInfoRequest times out:
-        ReplicatorConstants.REPLICATOR_NODE_INFO_REQUEST_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS,
-        () -> LOG.warn("node info request timeout {} ", nodeInfoRequest));
-  }
 
-  private void sendMessageAsync(final Request<RpcRequest, RpcWireReply> message, final Channel channel) {
-    fiber.execute(() -> {
-      RpcRequest request = message.getRequest();
-      long to = request.to;
-      long messageId = messageIdGen++;
+      // A batch spans quorums, so it goes on the stripe chosen by the partition rather than by any one quorum.
+      Channel channel = connectionPool.getChannel(to, index);
+      if (channel == null) {
+        heartbeats.forEach(this::handleOutgoingMessage);
+        return;
+      }
 
-      outstandingRPCs.put(messageId, message);
-      outstandingRPCbySession.put(message.getSession(), messageId);
+      final long messageId = nextMessageId();
+      heartbeatCoalescer.batchSent(messageId, heartbeats);
 
-      LOG.trace("Sending message id {} to {} / {}", messageId, to, request.quorumId);
+      LOG.trace("Sending message id {} to {} with {} heartbeats", messageId, to, heartbeats.size());
 
-      ReplicationWireMessage wireMessage = request.getWireMessage(
+      ReplicationWireMessage wireMessage = new ReplicationWireMessage(
           messageId,
           nodeId,
           to,
-          false
-      );
+          null,
+          false,
+          null, null, null, null, null, null,
+          HeartbeatCoalescer.toHeartbeatBatch(heartbeats),
+          null,
+          null, null, null, null);
 
       channel.writeAndFlush(wireMessage).addListener(
           future -> {
             if (!future.isSuccess()) {
-              LOG.warn("Error sending from node {} request {}: {}", nodeId, request, future.cause());
+              LOG.warn("Error sending from node {} heartbeat batch to node {}: {}", nodeId, to, future.cause());
             }
           });
-    });
-  }
+    }
 
-  private void handleLoopBackMessage(final Request<RpcRequest, RpcWireReply> origMessage) {
-    final long toFrom = nodeId; // I am me.
-    final RpcRequest request = origMessage.getRequest();
-    final String quorumId = request.quorumId;
+    private void handleLoopBackMessage(final Request<RpcRequest, RpcWireReply> origMessage) {
+      final long toFrom = nodeId; // I am me.
+      final RpcRequest request = origMessage.getRequest();
+      final String quorumId = request.quorumId;
 
-    // Funny thing we don't have a direct handle on who sent us this message, so we have to do this. Sok though.
-    final ReplicatorInstance repl = replicatorInstances.get(quorumId);
-    if (repl == null) {
-      // rare failure condition, whereby the replicator died AFTER it send messages.
-      return; // ignore the message.
-    }
+      // Funny thing we don't have a direct handle on who sent us this message, so we have to do this. Sok though.
+      final ReplicatorInstance repl = replicatorInstances.get(quorumId);
+      if (repl == null) {
+        // rare failure condition, whereby the replicator died AFTER it send messages.
+        return; // ignore the message.
+      }
 
-    final RpcWireRequest newRequest = new RpcWireRequest(toFrom, quorumId, request.message);
-    AsyncRequest.withOneReply(fiber, repl.getIncomingChannel(), newRequest, msg -> {
-      assert msg.message != null;
-      RpcWireReply newReply = new RpcWireReply(toFrom, toFrom, quorumId, msg.message);
-      origMessage.reply(newReply);
-    });
+      final RpcWireRequest newRequest = new RpcWireRequest(toFrom, quorumId, request.message);
+      AsyncRequest.withOneReply(fiber, repl.getIncomingChannel(), newRequest, msg -> {
+        assert msg.message != null;
+        RpcWireReply newReply = new RpcWireReply(toFrom, toFrom, quorumId, msg.message);
+        origMessage.reply(newReply);
+      });
+    }
   }
 
-
   /**
    * ********** Service startup/registration and shutdown/termination **************
    */
@@ -417,6 +709,11 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
     fiber = fiberSupplier.getNewFiber(this::failModule);
     setupEventChannelSubscription();
     fiber.start();
+    partitions = new DispatchPartition[numberOfDispatchPartitions];
+    for (int i = 0; i < partitions.length; i++) {
+      partitions[i] = new DispatchPartition(i, fiberSupplier.getNewFiber(this::failModule));
+    }
+    timingWheel.start();
 
     C5Futures.addCallback(getDependedOnModules(),
         (ignore) -> {
@@ -424,18 +721,20 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
               ChannelPipeline p = ch.pipeline();
+              // Coalesces the flush requested with each message written; see FlushCoalescingHandler
+              p.addLast("flushCoalesce", new FlushCoalescingHandler(
+                  ReplicatorConstants.REPLICATOR_FLUSH_COALESCING_MAX_PENDING_BYTES, flushStatistics));
               p.addLast("frameDecode", new ProtobufVarint32FrameDecoder());
               p.addLast("pbufDecode", new ProtostuffDecoder<>(ReplicationWireMessage.getSchema()));
 
-              p.addLast("frameEncode", new ProtobufVarint32LengthFieldPrepender());
-              p.addLast("pbufEncoder", new ProtostuffEncoder<ReplicationWireMessage>());
+              p.addLast("pbufEncoder", new LengthPrefixedProtostuffEncoder<ReplicationWireMessage>());
 
               p.addLast(new MessageHandler());
             }
           };
 
           serverBootstrap.group(bossGroup, workerGroup)
-              .channel(NioServerSocketChannel.class)
+              .channel(NettyTransport.serverSocketChannelClass(bossGroup))
               .option(ChannelOption.SO_REUSEADDR, true)
               .option(ChannelOption.SO_BACKLOG, 100)
               .childOption(ChannelOption.TCP_NODELAY, true)
@@ -454,16 +753,26 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
               });
 
           outgoingBootstrap.group(workerGroup)
-              .channel(NioSocketChannel.class)
+              .channel(NettyTransport.socketChannelClass(workerGroup))
               .option(ChannelOption.SO_REUSEADDR, true)
               .option(ChannelOption.TCP_NODELAY, true)
               .handler(initer);
 
-          //noinspection Convert2MethodRef
-          outgoingRequests.subscribe(fiber, message -> handleOutgoingMessage(message),
-              // Clean up cancelled requests.
-              message -> handleCancelledSession(message.getSession())
-          );
+          if (usePooledDirectBuffers) {
+            serverBootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+            outgoingBootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+          }
+
+          connectionPool = new PeerConnectionPool(outgoingBootstrap, discoveryModule, fiber, connectionsPerPeer);
+          for (DispatchPartition partition : partitions) {
+            partition.start();
+          }
+
+          if (leaderBalancingIntervalMillis > 0) {
+            fiber.scheduleWithFixedDelay(this::balanceLeaders,
+                leaderBalancingIntervalMillis, leaderBalancingIntervalMillis, TimeUnit.MILLISECONDS);
+          }
 
           notifyStarted();
 
@@ -479,6 +788,11 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
     try {
       replicatorInstances.values().forEach(ReplicatorInstance::dispose);
       replicatorInstances.clear();
+      timingWheel.dispose();
+      disposePartitions();
+      if (connectionPool != null) {
+        connectionPool.dispose();
+      }
       fiber.dispose();
       if (listenChannel != null) {
         listenChannel.close();
@@ -489,41 +803,155 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
     }
   }
 
+  /**
+   * Before shutting down, hand off leadership of every quorum this node leads, so that each quorum
+   * elects a new leader at once rather than after an election timeout. Shutdown proceeds once every
+   * transfer has finished, successfully or not, or after a time limit.
+   */
   @Override
   protected void doStop() {
     fiber.execute(() -> {
-      final AtomicInteger countDown = new AtomicInteger(1);
-      GenericFutureListener<? extends Future<? super Void>> listener = future -> {
-        if (countDown.decrementAndGet() == 0) {
-          fiber.dispose();
-          fiber = null;
-          notifyStopped();
+      final List<ListenableFuture<Void>> transfers = new ArrayList<>();
+      for (ReplicatorInstance instance : replicatorInstances.values()) {
+        ListenableFuture<Void> transfer = instance.transferLeadershipToAnyPeer();
+        if (transfer != null) {
+          transfers.add(transfer);
         }
+      }
 
-      };
-      if (listenChannel != null) {
-        countDown.incrementAndGet();
-        listenChannel.close().addListener(listener);
+      if (transfers.isEmpty()) {
+        shutDown();
+        return;
       }
 
-      allChannels.close().addListener(listener);
-      replicatorInstances.values().forEach(ReplicatorInstance::dispose);
-      replicatorInstances.clear();
+      final AtomicBoolean shutDownStarted = new AtomicBoolean(false);
+      final Runnable shutDownOnce = () -> {
+        if (shutDownStarted.compareAndSet(false, true)) {
+          shutDown();
+        }
+      };
+      C5Futures.addCallback(Futures.successfulAsList(transfers),
+          (ignore) -> shutDownOnce.run(),
+          (t) -> shutDownOnce.run(),
+          fiber);
+      fiber.schedule(shutDownOnce,
+          ReplicatorConstants.REPLICATOR_LEADERSHIP_TRANSFER_SHUTDOWN_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
     });
   }
 
+  @FiberOnly
+  private void shutDown() {
+    final AtomicInteger countDown = new AtomicInteger(1);
+    GenericFutureListener<? extends Future<? super Void>> listener = future -> {
+      if (countDown.decrementAndGet() == 0) {
+        fiber.dispose();
+        fiber = null;
+        notifyStopped();
+      }
+
+    };
+    if (listenChannel != null) {
+      countDown.incrementAndGet();
+      listenChannel.close().addListener(listener);
+    }
+
+    allChannels.close().addListener(listener);
+    replicatorInstances.values().forEach(ReplicatorInstance::dispose);
+    replicatorInstances.clear();
+    timingWheel.dispose();
+    disposePartitions();
+    if (connectionPool != null) {
+      connectionPool.dispose();
+    }
+  }
+
+  private void disposePartitions() {
+    if (partitions == null) {
+      return;
+    }
+    for (DispatchPartition partition : partitions) {
+      partition.fiber.dispose();
+    }
+  }
+
+  /**
+   * One round of leader balancing. At most one leadership transfer is in progress at a time, and at
+   * most one is begun per round, so that each move has taken effect, and the write rates have had time
+   * to reflect it, before the next is chosen.
+   */
+  @FiberOnly
+  private void balanceLeaders() {
+    for (ReplicatorInstance instance : replicatorInstances.values()) {
+      final QuorumConfiguration configuration = instance.getCurrentQuorumConfiguration();
+      if (configuration.isTransitional || configuration.isEmpty()) {
+        continue;
+      }
+      leaderBalancer.observe(instance.getQuorumId(), configuration.voters(),
+          leaderByQuorumId.getOrDefault(instance.getQuorumId(), 0L), instance.getLastCommittedIndex());
+    }
+
+    final LeaderBalancer.Move move = leaderBalancer.endRound(nodeId);
+    if (move == null || leadershipMoveInProgress) {
+      return;
+    }
+
+    final ReplicatorInstance instance = replicatorInstances.get(move.quorumId);
+    final ListenableFuture<Void> transfer = instance.transferLeadership(move.targetPeer);
+    if (transfer == null) {
+      return;
+    }
+
+    LOG.info("node {} moving leadership of quorum {} to node {} to balance load", nodeId, move.quorumId,
+        move.targetPeer);
+    leadershipMoveInProgress = true;
+    C5Futures.addCallback(transfer,
+        (ignore) -> leadershipMoveInProgress = false,
+        (Throwable t) -> {
+          LOG.info("leadership of quorum {} was not moved: {}", move.quorumId, t.toString());
+          leadershipMoveInProgress = false;
+        },
+        fiber);
+  }
+
   private void setupEventChannelSubscription() {
     replicatorEventChannel.subscribe(fiber, message -> {
       if (message.eventType == ReplicatorInstanceEvent.EventType.QUORUM_FAILURE) {
         LOG.error("replicator {} indicates failure, removing. Error {}", message.instance,
             message.error);
         replicatorInstances.remove(message.instance.getQuorumId());
+        leaderByQuorumId.remove(message.instance.getQuorumId());
+        leaderBalancer.forget(message.instance.getQuorumId());
+        updatePeerConnections();
+      } else if (message.eventType == ReplicatorInstanceEvent.EventType.LEADER_ELECTED) {
+        leaderByQuorumId.put(message.instance.getQuorumId(), message.newLeader);
+      } else if (message.eventType == ReplicatorInstanceEvent.EventType.QUORUM_CONFIGURATION_COMMITTED) {
+        updatePeerConnections();
       } else {
         LOG.debug("replicator indicates state change {}", message);
       }
     });
   }
 
+  /**
+   * Connect to every peer in the current configuration of any quorum on this node, and stop connecting
+   * to any other peers, such as those which have left every quorum they shared with this node.
+   */
+  @FiberOnly
+  private void updatePeerConnections() {
+    if (connectionPool == null) {
+      return;
+    }
+
+    final Set<Long> peersInUse = new HashSet<>();
+    for (ReplicatorInstance instance : replicatorInstances.values()) {
+      peersInUse.addAll(instance.getCurrentQuorumConfiguration().allPeers());
+    }
+    peersInUse.remove(nodeId);
+
+    connectionPool.retainOnly(peersInUse);
+    connectionPool.connect(peersInUse);
+  }
+
   private ListenableFuture<Void> getDependedOnModules() {
     SettableFuture<Void> doneFuture = SettableFuture.create();
 
@@ -547,7 +975,10 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
     return doneFuture;
   }
 
-  private Replicator createReplicatorWithLog(ReplicatorLog log, String quorumId, Collection<Long> peers) {
+  private Replicator createReplicatorWithLog(ReplicatorLog log,
+                                             String quorumId,
+                                             Collection<Long> peers,
+                                             ReplicatorOptions options) {
     if (replicatorInstances.containsKey(quorumId)) {
       LOG.debug("Replicator for quorum {} exists already", quorumId);
       return replicatorInstances.get(quorumId);
@@ -570,14 +1001,17 @@ public class ReplicatorService extends AbstractService implements ReplicationMod
             log,
             new DefaultSystemTimeReplicatorClock(),
             persister,
-            outgoingRequests,
+            partitionOfQuorum(quorumId).outgoingRequests,
             replicatorEventChannel,
             indexCommitNotices,
-            Replicator.State.FOLLOWER
+            Replicator.State.FOLLOWER,
+            options,
+            timingWheel
         );
     if (log.getLastIndex() == 0) {
       instance.bootstrapQuorum(peers);
     }
+    connectionPool.connect(peers.stream().filter(peer -> peer != nodeId).collect(Collectors.toList()));
     throwableChannel.subscribe(fiber, instance::failReplicatorInstance);
     replicatorInstances.put(quorumId, instance);
     instance.start();
@@ -17,10 +17,13 @@
 package c5db.replication;
 
 import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.LogDataSubmission;
 import c5db.interfaces.replication.QuorumConfiguration;
 import c5db.interfaces.replication.Replicator;
+import c5db.interfaces.replication.ReplicatorBatchReceipt;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
 import c5db.interfaces.replication.ReplicatorReceipt;
+import c5db.interfaces.replication.SnapshotProvider;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -43,7 +46,10 @@ public class SingleNodeFakeReplicator implements Replicator {
   private final Channel<IndexCommitNotice> commitNoticeChannel = new MemoryChannel<>();
   private final Fiber fiber;
 
+  private final CommitIndexWaiters commitIndexWaiters = new CommitIndexWaiters();
+
   private long nextSeqNum = 1;
+  private long committedSeqNum = 0;
   private long term = 1;
   private State state = State.FOLLOWER;
 
@@ -78,13 +84,81 @@ public class SingleNodeFakeReplicator implements Replicator {
 
     doLater(() -> {
       receiptFuture.set(new ReplicatorReceipt(term, thisSeqNum));
-      doLater(() ->
-          commitNoticeChannel.publish(new IndexCommitNotice(quorumId, nodeId, thisSeqNum, thisSeqNum, term)));
+      doLater(() -> {
+        commitNoticeChannel.publish(new IndexCommitNotice(quorumId, nodeId, thisSeqNum, thisSeqNum, term));
+        commitThrough(thisSeqNum);
+      });
+    });
+
+    return receiptFuture;
+  }
+
+  @Override
+  public synchronized ListenableFuture<ReplicatorBatchReceipt> logDataBatch(List<List<ByteBuffer>> dataBatch) {
+    SettableFuture<ReplicatorBatchReceipt> receiptFuture = SettableFuture.create();
+    final long firstSeqNum = nextSeqNum;
+    final long lastSeqNum = nextSeqNum + dataBatch.size() - 1;
+    nextSeqNum = lastSeqNum + 1;
+
+    doLater(() -> {
+      receiptFuture.set(new ReplicatorBatchReceipt(term, firstSeqNum, lastSeqNum));
+      doLater(() -> {
+        commitNoticeChannel.publish(new IndexCommitNotice(quorumId, nodeId, firstSeqNum, lastSeqNum, term));
+        commitThrough(lastSeqNum);
+      });
     });
 
     return receiptFuture;
   }
 
+  @Override
+  public LogDataSubmission tryLogData(List<ByteBuffer> data) {
+    return LogDataSubmission.accepted(logData(data), 0, 0);
+  }
+
+  @Override
+  public synchronized ListenableFuture<Long> getReadIndex() {
+    SettableFuture<Long> readIndexFuture = SettableFuture.create();
+    final long readIndex = nextSeqNum - 1;
+
+    // Answer only after the commit notices already scheduled for earlier submissions.
+    doLater(() ->
+        doLater(() -> readIndexFuture.set(readIndex)));
+
+    return readIndexFuture;
+  }
+
+  @Override
+  public ListenableFuture<Long> waitForCommitIndex(long index) {
+    SettableFuture<Long> commitIndexFuture = SettableFuture.create();
+
+    doLater(() -> {
+      if (committedSeqNum >= index) {
+        commitIndexFuture.set(committedSeqNum);
+      } else {
+        commitIndexWaiters.add(index, commitIndexFuture);
+      }
+    });
+
+    return commitIndexFuture;
+  }
+
+  @Override
+  public ListenableFuture<Void> transferLeadership(long targetPeer) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ListenableFuture<Void> compactLog(long snapshotIndex) {
+    // There is no log to compact.
+    return Futures.immediateFuture(null);
+  }
+
+  @Override
+  public void setSnapshotProvider(SnapshotProvider snapshotProvider) {
+    // With no peers, there is never a snapshot to send or receive.
+  }
+
   @Override
   public long getId() {
     return nodeId;
@@ -111,6 +185,11 @@ public class SingleNodeFakeReplicator implements Replicator {
     return commitNoticeChannel;
   }
 
+  private void commitThrough(long seqNum) {
+    committedSeqNum = Math.max(committedSeqNum, seqNum);
+    commitIndexWaiters.commitIndexAdvanced(committedSeqNum);
+  }
+
   private void doLater(Runnable runnable) {
     fiber.execute(runnable);
   }
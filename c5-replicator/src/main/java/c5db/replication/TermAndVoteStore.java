@@ -0,0 +1,357 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import c5db.ReplicatorConstants;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+/**
+ * Keeps the current term and vote of every quorum on a node in a single append-only file, rather than
+ * a file for each quorum which is rewritten on every change.
+ * <p>
+ * Each write appends one small binary record. Writes are made by a single writer thread, which takes
+ * every write waiting for it, appends them all, and forces the file to disk once; so an election storm
+ * across thousands of quorums costs a few dozen fsyncs rather than thousands of file rewrites. The
+ * future returned for each write is set once its record is durable.
+ * <p>
+ * Since only the latest record for each quorum matters, the file is periodically compacted: once it
+ * holds more than twice as many records as there are quorums (and at least a minimum number), the
+ * latest records are written to a new file which then replaces the old one.
+ * <p>
+ * Each record is laid out as follows, with a checksum of everything preceding it in the record:
+ * <pre>
+ *   [2-byte quorum ID length] [UTF-8 quorum ID] [8-byte term] [8-byte votedFor] [4-byte Adler-32]
+ * </pre>
+ * On opening, records are read up to the end of the file or the first incomplete or corrupt record,
+ * as left by a crash part way through a write; the file is truncated there. A write is only
+ * acknowledged once forced to disk, so no acknowledged write is lost this way.
+ * <p>
+ * Reads are served from memory, and may be made from any thread, as may writes.
+ */
+public class TermAndVoteStore implements ReplicatorInfoPersistence, AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(TermAndVoteStore.class);
+
+  private static final int RECORD_OVERHEAD_BYTES = 2 + 8 + 8 + 4;
+  private static final String COMPACTION_FILE_SUFFIX = ".compacting";
+
+  private final Path path;
+  private final Path compactionPath;
+  private final int minRecordsBeforeCompaction;
+
+  // The latest values written for each quorum, whether or not they are durable yet
+  private final Map<String, TermAndVote> latest = new ConcurrentHashMap<>();
+
+  private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+  private final Thread writerThread;
+  private volatile boolean closed = false;
+
+  // Used only by the writer thread, once the constructor has returned
+  private FileChannel channel;
+  private final Map<String, TermAndVote> durable = new HashMap<>();
+  private long recordsInFile = 0;
+
+  private static class TermAndVote {
+    public final long term;
+    public final long votedFor;
+
+    private TermAndVote(long term, long votedFor) {
+      this.term = term;
+      this.votedFor = votedFor;
+    }
+  }
+
+  private static class PendingWrite {
+    public final String quorumId;
+    public final TermAndVote termAndVote;
+    public final SettableFuture<Void> future = SettableFuture.create();
+
+    private PendingWrite(String quorumId, TermAndVote termAndVote) {
+      this.quorumId = quorumId;
+      this.termAndVote = termAndVote;
+    }
+  }
+
+  /**
+   * Open the store kept under the given base path, creating it if it does not exist, and start its
+   * writer thread.
+   */
+  public TermAndVoteStore(Path basePath) throws IOException {
+    this(basePath
+            .resolve(ReplicatorConstants.REPLICATOR_QUORUM_FILE_ROOT_DIRECTORY_RELATIVE_PATH)
+            .resolve(ReplicatorConstants.REPLICATOR_TERM_AND_VOTE_STORE_FILE_NAME),
+        ReplicatorConstants.REPLICATOR_TERM_AND_VOTE_STORE_MIN_RECORDS_BEFORE_COMPACTION);
+  }
+
+  TermAndVoteStore(Path path, int minRecordsBeforeCompaction) throws IOException {
+    this.path = path;
+    this.compactionPath = path.resolveSibling(path.getFileName() + COMPACTION_FILE_SUFFIX);
+    this.minRecordsBeforeCompaction = minRecordsBeforeCompaction;
+
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    // A compaction file is only complete once it has replaced the store, so any left over is discarded.
+    Files.deleteIfExists(compactionPath);
+
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    recover();
+    latest.putAll(durable);
+
+    writerThread = new Thread(this::writeRecords, "term-and-vote-store");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  @Override
+  public long readCurrentTerm(String quorumId) {
+    final TermAndVote termAndVote = latest.get(quorumId);
+    return termAndVote == null ? 0 : termAndVote.term;
+  }
+
+  @Override
+  public long readVotedFor(String quorumId) {
+    final TermAndVote termAndVote = latest.get(quorumId);
+    return termAndVote == null ? 0 : termAndVote.votedFor;
+  }
+
+  @Override
+  public ListenableFuture<Void> writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor) {
+    if (quorumId.getBytes(StandardCharsets.UTF_8).length > Short.MAX_VALUE) {
+      return Futures.immediateFailedFuture(new IllegalArgumentException("quorum ID is too long: " + quorumId));
+    }
+    if (closed) {
+      return Futures.immediateFailedFuture(new IllegalStateException("TermAndVoteStore is closed"));
+    }
+
+    final PendingWrite write = new PendingWrite(quorumId, new TermAndVote(currentTerm, votedFor));
+    latest.put(quorumId, write.termAndVote);
+    pendingWrites.add(write);
+    return write.future;
+  }
+
+  /**
+   * Stop accepting writes, wait for those already made to become durable, and close the file.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+
+    // Writes which raced with closing may have been queued after the writer thread finished.
+    final IllegalStateException closedException = new IllegalStateException("TermAndVoteStore is closed");
+    PendingWrite write;
+    while ((write = pendingWrites.poll()) != null) {
+      write.future.setException(closedException);
+    }
+  }
+
+  private void writeRecords() {
+    final List<PendingWrite> batch = new ArrayList<>();
+
+    while (!closed || !pendingWrites.isEmpty()) {
+      try {
+        final PendingWrite first = pendingWrites.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+      } catch (InterruptedException e) {
+        continue;
+      }
+      pendingWrites.drainTo(batch);
+
+      try {
+        appendAndForce(batch);
+        batch.forEach((write) -> write.future.set(null));
+      } catch (IOException | RuntimeException e) {
+        LOG.error("error writing {} terms and votes to {}", batch.size(), path, e);
+        batch.forEach((write) -> write.future.setException(e));
+      }
+      batch.clear();
+
+      try {
+        if (needsCompaction()) {
+          compact();
+        }
+      } catch (IOException e) {
+        // The records are still durable in the uncompacted file, so compaction can simply be tried again.
+        LOG.error("error compacting {}", path, e);
+      }
+    }
+  }
+
+  private void appendAndForce(List<PendingWrite> batch) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(sizeOf(batch));
+    for (PendingWrite write : batch) {
+      putRecord(buffer, write.quorumId, write.termAndVote);
+    }
+    buffer.flip();
+
+    final long position = channel.size();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, position + buffer.position());
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      // Remove whatever part of the batch may have been written, so that a failed write is never
+      // mistaken for a durable one.
+      channel.truncate(position);
+      throw e;
+    }
+
+    for (PendingWrite write : batch) {
+      durable.put(write.quorumId, write.termAndVote);
+    }
+    recordsInFile += batch.size();
+  }
+
+  private boolean needsCompaction() {
+    return recordsInFile > Math.max(minRecordsBeforeCompaction, 2L * durable.size());
+  }
+
+  private void compact() throws IOException {
+    int size = 0;
+    for (String quorumId : durable.keySet()) {
+      size += recordSize(quorumId);
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    durable.forEach((quorumId, termAndVote) -> putRecord(buffer, quorumId, termAndVote));
+    buffer.flip();
+
+    try (FileChannel compacted = FileChannel.open(compactionPath,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        compacted.write(buffer);
+      }
+      compacted.force(false);
+    }
+
+    Files.move(compactionPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    forceDirectory(path.toAbsolutePath().getParent());
+    channel.close();
+    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    recordsInFile = durable.size();
+  }
+
+  /**
+   * Read every intact record in the file into the durable map, and truncate the file after the last one.
+   */
+  private void recover() throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, buffer.position()) < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+
+    final Adler32 checksum = new Adler32();
+    int endOfLastRecord = 0;
+    try {
+      while (buffer.hasRemaining()) {
+        final int start = buffer.position();
+        final byte[] quorumIdBytes = new byte[buffer.getShort()];
+        buffer.get(quorumIdBytes);
+        final long term = buffer.getLong();
+        final long votedFor = buffer.getLong();
+
+        checksum.reset();
+        checksum.update(buffer.array(), start, buffer.position() - start);
+        if (buffer.getInt() != (int) checksum.getValue()) {
+          LOG.warn("corrupt record at offset {} of {}; ignoring it and anything following it", start, path);
+          break;
+        }
+
+        durable.put(new String(quorumIdBytes, StandardCharsets.UTF_8), new TermAndVote(term, votedFor));
+        recordsInFile++;
+        endOfLastRecord = buffer.position();
+      }
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      LOG.warn("incomplete record at offset {} of {}; ignoring it", endOfLastRecord, path);
+    }
+
+    if (endOfLastRecord < channel.size()) {
+      channel.truncate(endOfLastRecord);
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Make the renaming of a file within the given directory durable, where the platform allows a
+   * directory to be opened and forced; where it does not, the rename is left to the file system.
+   */
+  private static void forceDirectory(Path directory) {
+    try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      directoryChannel.force(true);
+    } catch (IOException e) {
+      LOG.debug("unable to force directory {}", directory, e);
+    }
+  }
+
+  private static int sizeOf(List<PendingWrite> batch) {
+    int size = 0;
+    for (PendingWrite write : batch) {
+      size += recordSize(write.quorumId);
+    }
+    return size;
+  }
+
+  private static int recordSize(String quorumId) {
+    return RECORD_OVERHEAD_BYTES + quorumId.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  private static void putRecord(ByteBuffer buffer, String quorumId, TermAndVote termAndVote) {
+    final byte[] quorumIdBytes = quorumId.getBytes(StandardCharsets.UTF_8);
+    final int start = buffer.position();
+    buffer.putShort((short) quorumIdBytes.length)
+        .put(quorumIdBytes)
+        .putLong(termAndVote.term)
+        .putLong(termAndVote.votedFor);
+
+    final Adler32 checksum = new Adler32();
+    checksum.update(buffer.array(), start, buffer.position() - start);
+    buffer.putInt((int) checksum.getValue());
+  }
+}
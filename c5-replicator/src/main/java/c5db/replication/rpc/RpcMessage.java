@@ -18,11 +18,15 @@ package c5db.replication.rpc;
 
 import c5db.replication.generated.AppendEntries;
 import c5db.replication.generated.AppendEntriesReply;
+import c5db.replication.generated.InstallSnapshot;
+import c5db.replication.generated.InstallSnapshotReply;
 import c5db.replication.generated.PreElectionPoll;
 import c5db.replication.generated.PreElectionReply;
 import c5db.replication.generated.ReplicationWireMessage;
 import c5db.replication.generated.RequestVote;
 import c5db.replication.generated.RequestVoteReply;
+import c5db.replication.generated.TimeoutNow;
+import c5db.replication.generated.TimeoutNowReply;
 import io.protostuff.Message;
 
 /**
@@ -81,6 +85,22 @@ public class RpcMessage {
       return wireMessage.getPreElectionReply();
     }
 
+    if (wireMessage.getTimeoutNow() != null) {
+      return wireMessage.getTimeoutNow();
+    }
+
+    if (wireMessage.getTimeoutNowReply() != null) {
+      return wireMessage.getTimeoutNowReply();
+    }
+
+    if (wireMessage.getInstallSnapshot() != null) {
+      return wireMessage.getInstallSnapshot();
+    }
+
+    if (wireMessage.getInstallSnapshotReply() != null) {
+      return wireMessage.getInstallSnapshotReply();
+    }
+
     return null;
   }
 
@@ -106,7 +126,13 @@ public class RpcMessage {
         getAppendMessage(),
         getAppendReplyMessage(),
         getPreElectionPollMessage(),
-        getPreElectionReplyMessage()
+        getPreElectionReplyMessage(),
+        null,
+        null,
+        getTimeoutNowMessage(),
+        getTimeoutNowReplyMessage(),
+        getInstallSnapshotMessage(),
+        getInstallSnapshotReplyMessage()
     );
   }
 
@@ -123,6 +149,14 @@ public class RpcMessage {
     return message instanceof PreElectionPoll;
   }
 
+  public boolean isTimeoutNowMessage() {
+    return message instanceof TimeoutNow;
+  }
+
+  public boolean isInstallSnapshotMessage() {
+    return message instanceof InstallSnapshot;
+  }
+
   public boolean isAppendReplyMessage() {
     return message instanceof AppendEntriesReply;
   }
@@ -135,6 +169,14 @@ public class RpcMessage {
     return message instanceof PreElectionReply;
   }
 
+  public boolean isTimeoutNowReplyMessage() {
+    return message instanceof TimeoutNowReply;
+  }
+
+  public boolean isInstallSnapshotReplyMessage() {
+    return message instanceof InstallSnapshotReply;
+  }
+
   public AppendEntries getAppendMessage() {
     if (isAppendMessage()) {
       return (AppendEntries) message;
@@ -176,4 +218,32 @@ public class RpcMessage {
     }
     return null;
   }
+
+  public TimeoutNow getTimeoutNowMessage() {
+    if (isTimeoutNowMessage()) {
+      return (TimeoutNow) message;
+    }
+    return null;
+  }
+
+  public TimeoutNowReply getTimeoutNowReplyMessage() {
+    if (isTimeoutNowReplyMessage()) {
+      return (TimeoutNowReply) message;
+    }
+    return null;
+  }
+
+  public InstallSnapshot getInstallSnapshotMessage() {
+    if (isInstallSnapshotMessage()) {
+      return (InstallSnapshot) message;
+    }
+    return null;
+  }
+
+  public InstallSnapshotReply getInstallSnapshotReplyMessage() {
+    if (isInstallSnapshotReplyMessage()) {
+      return (InstallSnapshotReply) message;
+    }
+    return null;
+  }
 }
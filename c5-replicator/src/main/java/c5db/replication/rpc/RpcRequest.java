@@ -27,11 +27,21 @@ import io.protostuff.Message;
  * who 'we' are.  So include that.
  */
 public class RpcRequest extends RpcMessage {
+  /**
+   * True if someone is waiting on the reply, so the transport should send the request at once
+   * rather than hold it back to batch it with others.
+   */
+  public final boolean urgent;
 
   public RpcRequest(long to, long from, String quorumId, Message message) {
+    this(to, from, quorumId, message, false);
+  }
+
+  public RpcRequest(long to, long from, String quorumId, Message message, boolean urgent) {
     // Note that the RPC system should sub in a message id, that is an implementation detail
     // since not all transports (eg: in RAM only transport) need message IDs to keep request/replies in line.
     super(to, from, quorumId, message);
+    this.urgent = urgent;
   }
 }
 
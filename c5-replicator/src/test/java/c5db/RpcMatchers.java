@@ -182,6 +182,22 @@ public class RpcMatchers {
               description.appendText(" with 'myNextLogEntry' ").appendDescriptionOf(indexMatcher));
     }
 
+    public ReplyMatcher withConflictTerm(Matcher<Long> termMatcher) {
+      return addCriterion(
+          (reply) ->
+              termMatcher.matches(reply.getAppendReplyMessage().getConflictTerm()),
+          (description) ->
+              description.appendText(" with 'conflictTerm' ").appendDescriptionOf(termMatcher));
+    }
+
+    public ReplyMatcher withConflictTermFirstIndex(Matcher<Long> indexMatcher) {
+      return addCriterion(
+          (reply) ->
+              indexMatcher.matches(reply.getAppendReplyMessage().getConflictTermFirstIndex()),
+          (description) ->
+              description.appendText(" with 'conflictTermFirstIndex' ").appendDescriptionOf(indexMatcher));
+    }
+
     public ReplyMatcher withPollResult(boolean wouldVote) {
       return addCriterion(
           (reply) ->
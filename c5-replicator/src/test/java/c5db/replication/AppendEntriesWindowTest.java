@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AppendEntriesWindowTest {
+  private static final int MAX_REQUESTS = 3;
+  private static final long MAX_BYTES = 1000;
+
+  private final AppendEntriesWindow window = new AppendEntriesWindow(MAX_REQUESTS, MAX_BYTES);
+
+  @Test
+  public void isBoundedByTheNumberOfRequestsInFlight() {
+    window.add(1, 1, 10, 0);
+    window.add(2, 2, 10, 0);
+    assertThat(window.hasRoomFor(10), is(true));
+
+    window.add(3, 3, 10, 0);
+    assertThat(window.hasRoomFor(10), is(false));
+  }
+
+  @Test
+  public void isBoundedByTheNumberOfBytesInFlight() {
+    window.add(1, 5, 600, 0);
+
+    assertThat(window.hasRoomFor(400), is(true));
+    assertThat(window.hasRoomFor(401), is(false));
+  }
+
+  @Test
+  public void alwaysHasRoomForOneRequestWhenEmpty() {
+    assertThat(window.hasRoomFor(MAX_BYTES * 10), is(true));
+  }
+
+  @Test
+  public void treatsAcknowledgementsAsCumulative() {
+    window.add(1, 2, 10, 0);
+    window.add(3, 4, 10, 0);
+    AppendEntriesWindow.InFlightRequest third = window.add(5, 6, 10, 0);
+    window.add(7, 8, 10, 0);
+
+    window.acknowledge(third);
+
+    assertThat(window.size(), is(equalTo(1)));
+    assertThat(window.bytes(), is(equalTo(10L)));
+    assertThat(window.firstUnacknowledgedIndex(), is(equalTo(7L)));
+  }
+
+  @Test
+  public void reportsTheSendTimeOfTheOldestUnacknowledgedRequest() {
+    AppendEntriesWindow.InFlightRequest first = window.add(1, 1, 10, 100);
+    window.add(2, 2, 10, 200);
+
+    assertThat(window.oldestSendTimeMillis(), is(equalTo(100L)));
+
+    window.acknowledge(first);
+    assertThat(window.oldestSendTimeMillis(), is(equalTo(200L)));
+  }
+
+  @Test
+  public void ignoresAcknowledgementsOfRequestsSentBeforeTheLastReset() {
+    AppendEntriesWindow.InFlightRequest staleRequest = window.add(1, 2, 10, 0);
+    window.reset();
+    window.add(1, 2, 10, 0);
+
+    window.acknowledge(staleRequest);
+
+    assertThat(window.isCurrent(staleRequest.generation), is(false));
+    assertThat(window.size(), is(equalTo(1)));
+    assertThat(window.firstUnacknowledgedIndex(), is(equalTo(1L)));
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.replication.generated.LogEntry;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class CatchUpStreamTest {
+  private static final int MAX_CHUNK_ENTRIES = 10;
+  private static final long MAX_CHUNK_BYTES = 100;
+
+  private final CatchUpStream stream = new CatchUpStream(MAX_CHUNK_ENTRIES, MAX_CHUNK_BYTES);
+
+  @Test
+  public void limitsTheRangeOfEachChunkByEntryCountAndByTheEndOfTheLog() {
+    assertThat(stream.chunkEnd(1, 100), is(equalTo(11L)));
+    assertThat(stream.chunkEnd(95, 100), is(equalTo(101L)));
+  }
+
+  @Test
+  public void trimsAFetchedChunkToTheSizeLimit() {
+    stream.fetchStarted();
+    stream.fetchCompleted(entries(1, 5, 40));
+
+    List<LogEntry> chunk = stream.getReadyChunk(1);
+    assertThat(chunk.size(), is(equalTo(2)));
+    assertThat(chunk.get(1).getIndex(), is(equalTo(2L)));
+  }
+
+  @Test
+  public void readsOnlyAsManyEntriesAsTheSizeLimitAllowsAtTheSizeOfThoseLastRead() {
+    stream.fetchStarted();
+    stream.fetchCompleted(entries(1, 5, 40));
+    assertThat(stream.chunkEnd(3, 100), is(equalTo(5L)));
+
+    stream.fetchStarted();
+    stream.fetchCompleted(entries(3, 2, 1));
+    assertThat(stream.chunkEnd(5, 100), is(equalTo(15L)));
+  }
+
+  @Test
+  public void alwaysIncludesAtLeastOneEntryInAChunk() {
+    stream.fetchStarted();
+    stream.fetchCompleted(entries(1, 3, MAX_CHUNK_BYTES * 2));
+
+    assertThat(stream.getReadyChunk(1).size(), is(equalTo(1)));
+  }
+
+  @Test
+  public void discardsAReadyChunkWhichDoesNotBeginAtTheRequestedIndex() {
+    stream.fetchStarted();
+    stream.fetchCompleted(entries(5, 3, 1));
+
+    assertThat(stream.getReadyChunk(4), is(nullValue()));
+    assertThat(stream.getReadyChunk(5), is(nullValue()));
+  }
+
+  @Test
+  public void tracksWhetherAFetchIsInProgress() {
+    assertThat(stream.isFetching(), is(false));
+
+    stream.fetchStarted();
+    assertThat(stream.isFetching(), is(true));
+
+    stream.fetchCompleted(entries(1, 1, 1));
+    assertThat(stream.isFetching(), is(false));
+  }
+
+  private static List<LogEntry> entries(long firstIndex, int count, long bytesPerEntry) {
+    List<LogEntry> entries = new ArrayList<>();
+    for (long index = firstIndex; index < firstIndex + count; index++) {
+      entries.add(new LogEntry(1L, index, Lists.newArrayList(ByteBuffer.allocate((int) bytesPerEntry)), null));
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import static c5db.FutureMatchers.resultsIn;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class CommitIndexWaitersTest {
+  private final CommitIndexWaiters waiters = new CommitIndexWaiters();
+
+  @Test
+  public void releasesOnlyTheWaitersWhoseIndexHasBeenReached() {
+    SettableFuture<Long> waitingForTen = SettableFuture.create();
+    SettableFuture<Long> waitingForFive = SettableFuture.create();
+    SettableFuture<Long> waitingForSeven = SettableFuture.create();
+    waiters.add(10, waitingForTen);
+    waiters.add(5, waitingForFive);
+    waiters.add(7, waitingForSeven);
+
+    waiters.commitIndexAdvanced(7);
+
+    assertThat(waitingForFive, resultsIn(equalTo(7L)));
+    assertThat(waitingForSeven, resultsIn(equalTo(7L)));
+    assertThat(waitingForTen.isDone(), is(false));
+    assertThat(waiters.size(), is(equalTo(1)));
+  }
+
+  @Test
+  public void releasesEveryWaiterForTheSameIndexTogether() {
+    SettableFuture<Long> first = SettableFuture.create();
+    SettableFuture<Long> second = SettableFuture.create();
+    waiters.add(3, first);
+    waiters.add(3, second);
+
+    waiters.commitIndexAdvanced(2);
+    assertThat(waiters.size(), is(equalTo(2)));
+
+    waiters.commitIndexAdvanced(4);
+    assertThat(first, resultsIn(equalTo(4L)));
+    assertThat(second, resultsIn(equalTo(4L)));
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.replication.generated.AppendEntries;
+import c5db.replication.generated.AppendEntriesReply;
+import c5db.replication.generated.HeartbeatBatch;
+import c5db.replication.generated.HeartbeatBatchReply;
+import c5db.replication.generated.LogEntry;
+import c5db.replication.generated.QuorumHeartbeatReply;
+import c5db.replication.generated.RequestVote;
+import c5db.replication.rpc.RpcRequest;
+import c5db.replication.rpc.RpcWireReply;
+import com.google.common.collect.Lists;
+import org.jetlang.channels.Request;
+import org.jetlang.channels.Session;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+public class HeartbeatCoalescerTest {
+  private static final long LOCAL_NODE = 1;
+  private static final long PEER_NODE = 2;
+  private static final long OTHER_PEER_NODE = 3;
+
+  private static final int BATCH_TIMEOUT_TICKS = 2;
+
+  private final HeartbeatCoalescer coalescer = new HeartbeatCoalescer(16, BATCH_TIMEOUT_TICKS);
+
+  @Test
+  public void recognizesOnlyAppendEntriesWithoutEntriesAsHeartbeats() {
+    assertThat(HeartbeatCoalescer.isHeartbeat(heartbeat("q", PEER_NODE).getRequest()), is(true));
+
+    RpcRequest append = new RpcRequest(PEER_NODE, LOCAL_NODE, "q",
+        new AppendEntries(1, LOCAL_NODE, 0, 0, Lists.newArrayList(new LogEntry()), 0));
+    assertThat(HeartbeatCoalescer.isHeartbeat(append), is(false));
+
+    RpcRequest vote = new RpcRequest(PEER_NODE, LOCAL_NODE, "q", new RequestVote(1, LOCAL_NODE, 0, 0));
+    assertThat(HeartbeatCoalescer.isHeartbeat(vote), is(false));
+  }
+
+  @Test
+  public void doesNotTreatAnUrgentAppendEntriesWithoutEntriesAsAHeartbeat() {
+    RpcRequest readHeartbeat = new RpcRequest(PEER_NODE, LOCAL_NODE, "q",
+        new AppendEntries(1, LOCAL_NODE, 0, 0, new ArrayList<>(), 0), true);
+    assertThat(HeartbeatCoalescer.isHeartbeat(readHeartbeat), is(false));
+  }
+
+  @Test
+  public void holdsHeartbeatsPerDestinationNodeAndAsksForOneFlushPerNode() {
+    assertThat(coalescer.add(heartbeat("a", PEER_NODE)), is(true));
+    assertThat(coalescer.add(heartbeat("b", PEER_NODE)), is(false));
+    assertThat(coalescer.add(heartbeat("c", OTHER_PEER_NODE)), is(true));
+
+    HeartbeatBatch batch = HeartbeatCoalescer.toHeartbeatBatch(coalescer.takePending(PEER_NODE));
+    assertThat(batch.getHeartbeatsList().size(), is(equalTo(2)));
+    assertThat(batch.getHeartbeatsList().get(1).getQuorumId(), is(equalTo("b")));
+
+    assertThat(coalescer.takePending(PEER_NODE), is(empty()));
+    assertThat(coalescer.add(heartbeat("a", PEER_NODE)), is(true));
+  }
+
+  @Test
+  public void deliversEachReplyInABatchToTheHeartbeatInTheSamePosition() {
+    RecordingRequest first = heartbeat("a", PEER_NODE);
+    RecordingRequest second = heartbeat("b", PEER_NODE);
+    RecordingRequest third = heartbeat("c", PEER_NODE);
+    coalescer.add(first);
+    coalescer.add(second);
+    coalescer.add(third);
+    coalescer.batchSent(7, coalescer.takePending(PEER_NODE));
+
+    HeartbeatBatchReply batchReply = new HeartbeatBatchReply(Lists.newArrayList(
+        new QuorumHeartbeatReply("a", new AppendEntriesReply(1, true, 0, 0, 0)),
+        new QuorumHeartbeatReply("b", null),
+        new QuorumHeartbeatReply("c", new AppendEntriesReply(2, false, 5, 0, 0))));
+
+    assertThat(coalescer.handleReply(7, PEER_NODE, batchReply), is(true));
+
+    assertThat(first.replies.size(), is(equalTo(1)));
+    assertThat(first.replies.get(0).from, is(equalTo(PEER_NODE)));
+    assertThat(first.replies.get(0).to, is(equalTo(LOCAL_NODE)));
+    assertThat(first.replies.get(0).getAppendReplyMessage().getSuccess(), is(true));
+    assertThat(second.replies, is(empty()));
+    assertThat(third.replies.get(0).getAppendReplyMessage().getMyNextLogEntry(), is(equalTo(5L)));
+  }
+
+  @Test
+  public void forgetsASentBatchAfterTheTimeoutAndIgnoresItsReply() {
+    RecordingRequest heartbeat = heartbeat("a", PEER_NODE);
+    coalescer.add(heartbeat);
+    coalescer.batchSent(7, coalescer.takePending(PEER_NODE));
+
+    for (int tick = 1; tick < BATCH_TIMEOUT_TICKS; tick++) {
+      assertThat(coalescer.expireSentBatches(), is(equalTo(0)));
+    }
+    assertThat(coalescer.expireSentBatches(), is(equalTo(1)));
+
+    HeartbeatBatchReply batchReply = new HeartbeatBatchReply(Lists.newArrayList(
+        new QuorumHeartbeatReply("a", new AppendEntriesReply(1, true, 0, 0, 0))));
+
+    assertThat(coalescer.handleReply(7, PEER_NODE, batchReply), is(false));
+    assertThat(heartbeat.replies, is(empty()));
+  }
+
+  @Test
+  public void keepsTheOrderOfHeartbeatsHeldForANode() {
+    coalescer.add(heartbeat("a", PEER_NODE));
+    coalescer.add(heartbeat("b", PEER_NODE));
+
+    List<String> quorumIds = new ArrayList<>();
+    coalescer.takePending(PEER_NODE).forEach(request -> quorumIds.add(request.getRequest().quorumId));
+    assertThat(quorumIds, contains("a", "b"));
+  }
+
+  private static RecordingRequest heartbeat(String quorumId, long to) {
+    return new RecordingRequest(new RpcRequest(to, LOCAL_NODE, quorumId,
+        new AppendEntries(1, LOCAL_NODE, 0, 0, new ArrayList<>(), 0)));
+  }
+
+  private static class RecordingRequest implements Request<RpcRequest, RpcWireReply> {
+    private final RpcRequest request;
+    private final List<RpcWireReply> replies = new ArrayList<>();
+
+    private RecordingRequest(RpcRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public Session getSession() {
+      return null;
+    }
+
+    @Override
+    public RpcRequest getRequest() {
+      return request;
+    }
+
+    @Override
+    public void reply(RpcWireReply reply) {
+      replies.add(reply);
+    }
+  }
+}
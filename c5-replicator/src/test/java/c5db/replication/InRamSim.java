@@ -16,6 +16,7 @@
 
 package c5db.replication;
 
+import c5db.ReplicatorConstants;
 import c5db.interfaces.replication.IndexCommitNotice;
 import c5db.interfaces.replication.Replicator;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
@@ -25,7 +26,9 @@ import c5db.replication.rpc.RpcMessage;
 import c5db.replication.rpc.RpcRequest;
 import c5db.replication.rpc.RpcWireReply;
 import c5db.replication.rpc.RpcWireRequest;
+import c5db.util.HierarchicalTimingWheel;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang.time.StopWatch;
 import org.jetlang.channels.AsyncRequest;
@@ -143,9 +146,10 @@ public class InRamSim {
     }
 
     @Override
-    public void writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor) {
+    public ListenableFuture<Void> writeCurrentTermAndVotedFor(String quorumId, long currentTerm, long votedFor) {
       this.currentTerm = currentTerm;
       this.votedFor = votedFor;
+      return Futures.immediateFuture(null);
     }
   }
 
@@ -170,6 +174,9 @@ public class InRamSim {
   private final Fiber rpcFiber;
   private final ExecutorService executorService = Executors.newCachedThreadPool();
   private final PoolFiberFactory fiberPool = new PoolFiberFactory(executorService);
+  private final HierarchicalTimingWheel timingWheel =
+      new HierarchicalTimingWheel(ReplicatorConstants.REPLICATOR_TIMING_WHEEL_TICK_MILLISECONDS, TimeUnit.MILLISECONDS,
+          "InRamSim-timers");
   private final BatchExecutor batchExecutor;
   private final Channel<RpcMessage> replyChannel = new MemoryChannel<>();
   private final Channel<ReplicatorInstanceEvent> eventChannel = new MemoryChannel<>();
@@ -178,6 +185,7 @@ public class InRamSim {
 
   private final long electionTimeout;
   private final long electionTimeoutOffset;
+  private final ReplicatorOptions options;
 
   /**
    * Set up the simulation (but don't actually start it yet).
@@ -187,10 +195,20 @@ public class InRamSim {
    * @param batchExecutor         The jetlang batch executor for the simulation's fibers to use.
    */
   public InRamSim(long electionTimeout, long electionTimeoutOffset, BatchExecutor batchExecutor) {
+    this(electionTimeout, electionTimeoutOffset, batchExecutor, ReplicatorOptions.DEFAULT);
+  }
+
+  /**
+   * Set up the simulation, using the given options for each of its replicators.
+   */
+  public InRamSim(long electionTimeout, long electionTimeoutOffset, BatchExecutor batchExecutor,
+                  ReplicatorOptions options) {
+    this.options = options;
     this.batchExecutor = batchExecutor;
     this.electionTimeout = electionTimeout;
     this.electionTimeoutOffset = electionTimeoutOffset;
     this.rpcFiber = fiberPool.create(batchExecutor);
+    timingWheel.start();
 
     rpcChannel.subscribe(rpcFiber, this::messageForwarder);
     commitNotices.subscribe(rpcFiber, message -> LOG.debug("Commit notice {}", message));
@@ -213,7 +231,9 @@ public class InRamSim {
           rpcChannel,
           eventChannel,
           commitNotices,
-          Replicator.State.FOLLOWER);
+          Replicator.State.FOLLOWER,
+          options,
+          timingWheel);
       peerIds.add(peerId);
       replicators.put(peerId, rep);
       replicatorLogs.put(peerId, log);
@@ -245,7 +265,9 @@ public class InRamSim {
         rpcChannel,
         eventChannel,
         commitNotices,
-        Replicator.State.FOLLOWER);
+        Replicator.State.FOLLOWER,
+        options,
+        timingWheel);
     replicators.put(peerId, repl);
     replicatorLogs.put(peerId, log);
     stateMonitors.put(peerId, new ChannelHistoryMonitor<>(repl.getStateChannel(), rpcFiber));
@@ -396,6 +418,7 @@ public class InRamSim {
     for (ReplicatorInstance repl : replicators.values()) {
       repl.dispose();
     }
+    timingWheel.dispose();
     fiberPool.dispose();
     executorService.shutdownNow();
   }
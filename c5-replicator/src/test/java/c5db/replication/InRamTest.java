@@ -22,6 +22,8 @@ import c5db.interfaces.replication.Replicator;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
 import c5db.interfaces.replication.ReplicatorLog;
 import c5db.interfaces.replication.ReplicatorReceipt;
+import c5db.interfaces.replication.SnapshotDescriptor;
+import c5db.interfaces.replication.SnapshotProvider;
 import c5db.replication.rpc.RpcMessage;
 import c5db.replication.rpc.RpcRequest;
 import c5db.replication.rpc.RpcWireReply;
@@ -30,6 +32,7 @@ import c5db.util.ExceptionHandlingBatchExecutor;
 import c5db.util.JUnitRuleFiberExceptions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import io.netty.util.CharsetUtil;
 import org.hamcrest.Matcher;
@@ -45,12 +48,14 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -238,6 +243,82 @@ public class InRamTest {
     assertThat(follower, willCommitEntriesUpTo(index(3)));
   }
 
+  @Test
+  public void aLeaderConfirmsAReadIndexCoveringEveryWriteCommittedBeforeTheRead() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+    leader().log(someData());
+    leader().waitForCommit(lastIndexLogged());
+
+    assertThat(leader().instance.getReadIndex(), resultsIn(greaterThanOrEqualTo(lastIndexLogged())));
+  }
+
+  @Test
+  public void aNewLeaderCommitsAnEntryFromItsOwnTermBeforeConfirmingAReadIndex() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+    final LeaderController leader = leader();
+
+    final long readIndex = leader.instance.getReadIndex().get();
+
+    assertThat(leader.log.getLogTerm(readIndex), is(equalTo(currentTerm())));
+    assertThat(leader, willCommitEntriesUpTo(readIndex));
+  }
+
+  @Test
+  public void aFollowerCanWaitForItsCommitIndexToReachTheLeadersReadIndex() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+    leader().log(someData());
+    final long readIndex = leader().instance.getReadIndex().get();
+
+    assertThat(pickFollower().instance.waitForCommitIndex(readIndex), resultsIn(greaterThanOrEqualTo(readIndex)));
+  }
+
+  @Test
+  public void aReplicatorReturnsNullIfAskedForAReadIndexWhenItIsNotInTheLeaderState() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+
+    assertThat(pickNonLeader().instance.getReadIndex(), nullValue());
+  }
+
+  @Test
+  public void aLeaderCanTransferLeadershipToAChosenFollowerWithoutWaitingForAnElectionTimeout() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+    final LeaderController firstLeader = leader();
+    final long firstLeaderTerm = currentTerm();
+    final PeerController follower = pickFollower();
+    firstLeader.log(someData());
+
+    // Only the first leader's election timeout is running, so the follower can only win by being told to.
+    ListenableFuture<Void> transfer = firstLeader.instance.transferLeadership(follower.id);
+    eventMonitor.waitFor(leaderElectedEvent(equalTo(follower.id), greaterThan(firstLeaderTerm)));
+
+    assertThat(transfer, resultsIn(nullValue()));
+    final long lastIndexLoggedByFirstLeader = lastIndexLogged();
+    leader().log(someData());
+    assertThat(follower.log.getLogTerm(lastIndexLoggedByFirstLeader), is(equalTo(firstLeaderTerm)));
+    assertThat(follower, willCommitEntriesUpTo(lastIndexLogged()));
+  }
+
+  @Test
+  public void aLeaderReturnsNullIfAskedForAReadIndexWhileTransferringLeadership() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+    final LeaderController leader = leader();
+    final PeerController follower = pickFollower();
+
+    // The target never hears of the transfer, so it stays in progress until it is abandoned.
+    follower.willDropAllIncomingTraffic();
+    leader.instance.transferLeadership(follower.id);
+    leader.instance.getQuorumConfiguration().get(); // wait for the transfer to begin on the leader's fiber
+
+    assertThat(leader.instance.getReadIndex(), nullValue());
+  }
+
+  @Test
+  public void aReplicatorReturnsNullIfAskedToTransferLeadershipWhenItIsNotInTheLeaderState() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+
+    assertThat(pickNonLeader().instance.transferLeadership(leader().id), nullValue());
+  }
+
   @Test
   public void aReplicatorReturnsNullIfAskedToChangeQuorumsWhenItIsNotInTheLeaderState() throws Exception {
     final Set<Long> newPeerIds = smallerPeerSetWithOneInCommonWithInitialSet();
@@ -364,6 +445,77 @@ public class InRamTest {
     });
   }
 
+  @Test
+  public void newNodesNeedingEntriesReplacedBySnapshotsWillInstallASnapshotAndThenCatchUp() throws Exception {
+    final Set<Long> newPeerIds = largerPeerSetWithSomeInCommonWithInitialSet();
+    final long snapshotIndex = 5;
+    final long maximumIndex = 8;
+    final byte[] snapshotData = "the state as of index 5".getBytes(CharsetUtil.UTF_8);
+
+    havingElectedALeaderAtOrAfter(term(1));
+
+    leader().logDataUpToIndex(snapshotIndex);
+    allPeers((peer) -> assertThat(peer, willCommitEntriesUpTo(snapshotIndex)));
+
+    final SnapshotDescriptor snapshot = new SnapshotDescriptor(snapshotIndex,
+        leader().log.getLogTerm(snapshotIndex), leader().log.getLastConfiguration());
+    allPeers((peer) -> {
+      peer.instance.setSnapshotProvider(new InRamSnapshotProvider(snapshot, snapshotData));
+      peer.log.resetToSnapshot(snapshot.lastIncludedIndex, snapshot.lastIncludedTerm,
+          snapshot.lastIncludedConfiguration).get();
+    });
+
+    leader()
+        .logDataUpToIndex(maximumIndex)
+        .waitForCommit(maximumIndex);
+
+    final Map<Long, InRamSnapshotProvider> newPeerSnapshotProviders = new HashMap<>();
+    sim.createAndStartReplicators(newPeerIds);
+    for (long peerId : Sets.difference(newPeerIds, initialPeerSet())) {
+      newPeerSnapshotProviders.put(peerId, new InRamSnapshotProvider(null, new byte[0]));
+      peer(peerId).instance.setSnapshotProvider(newPeerSnapshotProviders.get(peerId));
+    }
+    leader().changeQuorum(newPeerIds);
+
+    peers(newPeerIds).forEach((peer) -> {
+      assertThat(peer, willCommitEntriesUpTo(maximumIndex));
+      assertThat(peer, willCommitConfiguration(QuorumConfiguration.of(newPeerIds)));
+    });
+
+    for (InRamSnapshotProvider provider : newPeerSnapshotProviders.values()) {
+      assertThat(provider.installedSnapshot(), is(equalTo(snapshot)));
+      assertThat(provider.installedData(), is(equalTo(snapshotData)));
+    }
+  }
+
+  @Test
+  public void replicatorsCanDiscardCommittedEntriesFromTheirLogsAndKeepReplicating() throws Exception {
+    final long snapshotIndex = 3;
+
+    havingElectedALeaderAtOrAfter(term(1));
+    leader().logDataUpToIndex(5);
+    allPeers((peer) -> assertThat(peer, willCommitEntriesUpTo(5)));
+
+    final long termAtSnapshotIndex = leader().log.getLogTerm(snapshotIndex);
+    allPeers((peer) -> {
+      peer.instance.compactLog(snapshotIndex).get();
+      assertThat(peer.log.getFirstIndex(), is(equalTo(snapshotIndex + 1)));
+      assertThat(peer.log.getLogTerm(snapshotIndex), is(equalTo(termAtSnapshotIndex)));
+    });
+
+    leader().logDataUpToIndex(8);
+    allPeers((peer) -> assertThat(peer, willCommitEntriesUpTo(8)));
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void aReplicatorRefusesToDiscardEntriesWhichHaveNotBeenCommitted() throws Exception {
+    havingElectedALeaderAtOrAfter(term(1));
+    leader().logDataUpToIndex(2);
+    leader().waitForCommit(2);
+
+    leader().instance.compactLog(100).get();
+  }
+
   @Test
   public void aQuorumCanMakeProgressEvenIfAFollowerCanSendRequestsButNotReceiveReplies() throws Exception {
     final long maximumIndex = 5;
@@ -775,4 +927,57 @@ public class InRamTest {
   private static Set<Long> largerPeerSetWithSomeInCommonWithInitialSet() {
     return Sets.newHashSet(4L, 5L, 6L, 7L, 8L, 9L, 10L);
   }
+
+  /**
+   * Holds one snapshot in memory, and receives another into memory, in place of an application.
+   */
+  private static class InRamSnapshotProvider implements SnapshotProvider {
+    private SnapshotDescriptor snapshot;
+    private byte[] data;
+    private final ByteArrayOutputStream receivedData = new ByteArrayOutputStream();
+
+    public InRamSnapshotProvider(SnapshotDescriptor snapshot, byte[] data) {
+      this.snapshot = snapshot;
+      this.data = data;
+    }
+
+    public synchronized SnapshotDescriptor installedSnapshot() {
+      return snapshot;
+    }
+
+    public synchronized byte[] installedData() {
+      return data;
+    }
+
+    @Override
+    public synchronized ListenableFuture<SnapshotDescriptor> getLatestSnapshot() {
+      return Futures.immediateFuture(snapshot);
+    }
+
+    @Override
+    public synchronized ListenableFuture<ByteBuffer> readSnapshotChunk(SnapshotDescriptor snapshot, long offset,
+                                                                       int maxBytes) {
+      final int start = (int) Math.min(offset, data.length);
+      return Futures.immediateFuture(ByteBuffer.wrap(data, start, Math.min(maxBytes, data.length - start)).slice());
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> receiveSnapshotChunk(SnapshotDescriptor snapshot, long offset,
+                                                                    ByteBuffer data) {
+      if (offset == 0) {
+        receivedData.reset();
+      }
+      final byte[] bytes = new byte[data.remaining()];
+      data.duplicate().get(bytes);
+      receivedData.write(bytes, 0, bytes.length);
+      return Futures.immediateFuture(null);
+    }
+
+    @Override
+    public synchronized ListenableFuture<Void> installSnapshot(SnapshotDescriptor snapshot) {
+      this.snapshot = snapshot;
+      this.data = receivedData.toByteArray();
+      return Futures.immediateFuture(null);
+    }
+  }
 }
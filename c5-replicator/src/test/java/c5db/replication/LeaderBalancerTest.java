@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class LeaderBalancerTest {
+  private static final long MY_ID = 1;
+  private static final Set<Long> PEERS = Sets.newHashSet(MY_ID, 2L, 3L);
+
+  private final LeaderBalancer balancer = new LeaderBalancer(1.0);
+
+  @Test
+  public void movesALeadershipAwayWhenThisNodeLeadsEveryQuorum() {
+    for (int i = 0; i < 3; i++) {
+      balancer.observe("quorum" + i, PEERS, MY_ID, 0);
+    }
+
+    LeaderBalancer.Move move = balancer.endRound(MY_ID);
+
+    assertThat(move, is(notNullValue()));
+    assertThat(PEERS.contains(move.targetPeer), is(true));
+    assertThat(move.targetPeer == MY_ID, is(false));
+  }
+
+  @Test
+  public void makesNoMoveWhenLeadershipIsEvenlySpread() {
+    balancer.observe("quorum0", PEERS, MY_ID, 0);
+    balancer.observe("quorum1", PEERS, 2L, 0);
+    balancer.observe("quorum2", PEERS, 3L, 0);
+
+    assertThat(balancer.endRound(MY_ID), is(nullValue()));
+  }
+
+  @Test
+  public void movesTheBusiestQuorumToTheLeastLoadedPeerWhenWriteRatesAreUneven() {
+    observeRound(0, 0, 0, 0);
+    observeRound(1000, 10, 1000, 10);
+
+    LeaderBalancer.Move move = balancer.endRound(MY_ID);
+
+    assertThat(move, is(notNullValue()));
+    assertThat(move.quorumId, is(equalTo("busy0")));
+    assertThat(move.targetPeer, is(equalTo(3L)));
+  }
+
+  private void observeRound(long busy0, long idle0, long busy1, long idle1) {
+    // This node leads two busy quorums and an idle one; node 2 leads an idle one; node 3 leads none.
+    balancer.endRound(MY_ID);
+    balancer.observe("busy0", PEERS, MY_ID, busy0);
+    balancer.observe("busy1", Sets.newHashSet(MY_ID, 2L), MY_ID, busy1);
+    balancer.observe("idle0", PEERS, MY_ID, idle0);
+    balancer.observe("idle1", PEERS, 2L, idle1);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class OutstandingRpcTableTest {
+  private static final int TIMEOUT_TICKS = 3;
+
+  private final OutstandingRpcTable<String> table = new OutstandingRpcTable<>(4, TIMEOUT_TICKS);
+
+  @Test
+  public void returnsEachRequestOnceAndOnlyOnceWhenRemoved() {
+    table.put(1, "one");
+    table.put(2, "two");
+
+    assertThat(table.remove(1), is(equalTo("one")));
+    assertThat(table.remove(1), is(nullValue()));
+    assertThat(table.get(2), is(equalTo("two")));
+    assertThat(table.size(), is(equalTo(1)));
+  }
+
+  @Test
+  public void forgetsARequestOnlyAfterItsTimeoutHasElapsed() {
+    table.put(1, "one");
+    table.expire();
+    table.put(2, "two");
+
+    assertThat(table.expire(), is(equalTo(0)));
+    assertThat(table.expire(), is(equalTo(1)));
+    assertThat(table.get(1), is(nullValue()));
+    assertThat(table.get(2), is(equalTo("two")));
+
+    assertThat(table.expire(), is(equalTo(1)));
+    assertThat(table.size(), is(equalTo(0)));
+  }
+
+  @Test
+  public void doesNotCountRequestsAlreadyRemovedWhenTheirTimeoutElapses() {
+    table.put(1, "one");
+    table.put(2, "two");
+    table.remove(1);
+
+    for (int tick = 1; tick < TIMEOUT_TICKS; tick++) {
+      table.expire();
+    }
+    assertThat(table.expire(), is(equalTo(1)));
+  }
+
+  @Test
+  public void agreesWithAHashMapThroughManyRandomInsertionsAndRemovalsAcrossGrowth() {
+    final Map<Long, String> expected = new HashMap<>();
+    final Random random = new Random(1);
+
+    for (int i = 0; i < 100000; i++) {
+      final long messageId = 1 + random.nextInt(5000) * 7L;
+      if (random.nextBoolean()) {
+        table.put(messageId, Long.toString(messageId));
+        expected.put(messageId, Long.toString(messageId));
+      } else {
+        assertThat(table.remove(messageId), is(equalTo(expected.remove(messageId))));
+      }
+    }
+
+    assertThat(table.size(), is(equalTo(expected.size())));
+    for (Map.Entry<Long, String> entry : expected.entrySet()) {
+      assertThat(table.get(entry.getKey()), is(equalTo(entry.getValue())));
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import c5db.ReplicatorConstants;
+import c5db.interfaces.DiscoveryModule;
+import c5db.interfaces.discovery.NodeInfoReply;
+import c5db.interfaces.discovery.NodeInfoRequest;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jetlang.channels.MemoryRequestChannel;
+import org.jetlang.channels.RequestChannel;
+import org.jetlang.fibers.Fiber;
+import org.jetlang.fibers.ThreadFiber;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PeerConnectionPoolTest {
+  private static final long PEER_ID = 2;
+  private static final int STRIPE_KEY = 0;
+  private static final int TIMEOUT_MILLIS = 2000;
+
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(new Synchroniser());
+  }};
+  private final DiscoveryModule discoveryModule = context.mock(DiscoveryModule.class);
+
+  private final Fiber fiber = new ThreadFiber();
+  private final RequestChannel<NodeInfoRequest, NodeInfoReply> nodeInfoChannel = new MemoryRequestChannel<>();
+
+  // Each attempt to connect, waiting for the test to decide its outcome
+  private final BlockingQueue<ChannelPromise> connectAttempts = new LinkedBlockingQueue<>();
+
+  private PeerConnectionPool pool;
+
+  @Before
+  public void setUpDiscoveryAndStartFiber() {
+    context.checking(new Expectations() {{
+      allowing(discoveryModule).getNodeInfo();
+      will(returnValue(nodeInfoChannel));
+    }});
+    nodeInfoChannel.subscribe(fiber,
+        (request) -> request.reply(new NodeInfoReply(true, Lists.newArrayList("127.0.0.1"), 1234)));
+    fiber.start();
+  }
+
+  @After
+  public void disposePoolAndFiber() {
+    if (pool != null) {
+      pool.dispose();
+    }
+    fiber.dispose();
+  }
+
+  @Test
+  public void doublesTheDelayBeforeReconnectingAfterEachFailureUpToALimit() {
+    long backoffMillis = PeerConnectionPool.nextBackoffMillis(0);
+    assertThat(backoffMillis, is(equalTo(ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MIN_BACKOFF_MILLISECONDS)));
+
+    assertThat(PeerConnectionPool.nextBackoffMillis(backoffMillis), is(equalTo(2 * backoffMillis)));
+    final long maxBackoffMillis = ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MAX_BACKOFF_MILLISECONDS;
+    assertThat(PeerConnectionPool.nextBackoffMillis(maxBackoffMillis), is(equalTo(maxBackoffMillis)));
+  }
+
+  @Test
+  public void retriesAFailedConnectionAfterTheBackoffDelayAndDoublesItAfterAnotherFailure() throws Exception {
+    havingCreatedAPool(10, TIMEOUT_MILLIS);
+    pool.connect(Sets.newHashSet(PEER_ID));
+
+    nextConnectAttempt().setFailure(new ConnectException());
+    long failedAt = System.currentTimeMillis();
+    ChannelPromise secondAttempt = nextConnectAttempt();
+    assertThat(System.currentTimeMillis() - failedAt,
+        is(greaterThanOrEqualTo(ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MIN_BACKOFF_MILLISECONDS)));
+
+    secondAttempt.setFailure(new ConnectException());
+    failedAt = System.currentTimeMillis();
+    nextConnectAttempt().setSuccess();
+    assertThat(System.currentTimeMillis() - failedAt,
+        is(greaterThanOrEqualTo(2 * ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MIN_BACKOFF_MILLISECONDS)));
+
+    assertThat(eventuallyConnectedChannel(), is(notNullValue()));
+  }
+
+  @Test
+  public void runsMessagesWaitingForAConnectionOnceItOpensButOnlyAsManyAsTheLimit() throws Exception {
+    final AtomicInteger messagesSent = new AtomicInteger(0);
+    havingCreatedAPool(2, TIMEOUT_MILLIS);
+
+    for (int i = 0; i < 3; i++) {
+      pool.whenConnected(PEER_ID, STRIPE_KEY, messagesSent::incrementAndGet);
+    }
+    nextConnectAttempt().setSuccess();
+    waitForPoolFiber();
+
+    assertThat(messagesSent.get(), is(equalTo(2)));
+  }
+
+  @Test
+  public void dropsMessagesWhichHaveWaitedLongerThanTheLimit() throws Exception {
+    final AtomicInteger messagesSent = new AtomicInteger(0);
+    havingCreatedAPool(10, 1);
+
+    pool.whenConnected(PEER_ID, STRIPE_KEY, messagesSent::incrementAndGet);
+    final ChannelPromise attempt = nextConnectAttempt();
+    Thread.sleep(20);
+    attempt.setSuccess();
+    waitForPoolFiber();
+
+    assertThat(messagesSent.get(), is(equalTo(0)));
+  }
+
+  @Test
+  public void dropsMessagesForAPeerWhichIsDownUntilItConnectsAgain() throws Exception {
+    final AtomicInteger messagesSent = new AtomicInteger(0);
+    havingCreatedAPool(10, TIMEOUT_MILLIS);
+
+    pool.whenConnected(PEER_ID, STRIPE_KEY, messagesSent::incrementAndGet);
+    nextConnectAttempt().setFailure(new ConnectException());
+    pool.whenConnected(PEER_ID, STRIPE_KEY, messagesSent::incrementAndGet);
+    nextConnectAttempt().setSuccess();
+    waitForPoolFiber();
+
+    assertThat(messagesSent.get(), is(equalTo(0)));
+
+    pool.whenConnected(PEER_ID, STRIPE_KEY, messagesSent::incrementAndGet);
+    waitForPoolFiber();
+
+    assertThat(messagesSent.get(), is(equalTo(1)));
+  }
+
+  @Test
+  public void closesTheConnectionsToARemovedPeerAndDoesNotReconnect() throws Exception {
+    havingCreatedAPool(10, TIMEOUT_MILLIS);
+    pool.connect(Sets.newHashSet(PEER_ID));
+    nextConnectAttempt().setSuccess();
+    final Channel channel = eventuallyConnectedChannel();
+
+    pool.retainOnly(Sets.newHashSet());
+    waitForPoolFiber();
+
+    assertThat(channel.isOpen(), is(false));
+    assertThat(connectAttempts.poll(
+        2 * ReplicatorConstants.REPLICATOR_PEER_RECONNECT_MIN_BACKOFF_MILLISECONDS, TimeUnit.MILLISECONDS),
+        is(nullValue()));
+  }
+
+  private void havingCreatedAPool(int maxWaitingMessages, long maxWaitMillis) {
+    pool = new PeerConnectionPool(
+        (host, port) -> {
+          final ChannelPromise attempt = new EmbeddedChannel().newPromise();
+          connectAttempts.add(attempt);
+          return attempt;
+        },
+        discoveryModule, fiber, 1, maxWaitingMessages, maxWaitMillis);
+  }
+
+  private ChannelPromise nextConnectAttempt() throws Exception {
+    final ChannelPromise attempt = connectAttempts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertThat(attempt, is(notNullValue()));
+    return attempt;
+  }
+
+  private Channel eventuallyConnectedChannel() throws Exception {
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    Channel channel;
+    while ((channel = pool.getChannel(PEER_ID, STRIPE_KEY)) == null && System.currentTimeMillis() < deadline) {
+      waitForPoolFiber();
+    }
+    return channel;
+  }
+
+  private void waitForPoolFiber() throws Exception {
+    final SettableFuture<Void> done = SettableFuture.create();
+    fiber.execute(() -> done.set(null));
+    done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+}
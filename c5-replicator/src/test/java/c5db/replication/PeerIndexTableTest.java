@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.interfaces.replication.QuorumConfiguration;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class PeerIndexTableTest {
+  private final PeerIndexTable table = new PeerIndexTable();
+
+  @Test
+  public void returnsTheDefaultNextIndexForAPeerWithNoEntry() {
+    table.setConfiguration(QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L)));
+    table.setNextIndex(1L, 5);
+
+    assertThat(table.getNextIndex(1L, 100), is(equalTo(5L)));
+    assertThat(table.getNextIndex(2L, 100), is(equalTo(100L)));
+  }
+
+  @Test
+  public void ignoresPeersOutsideTheCurrentConfiguration() {
+    table.setConfiguration(QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L)));
+    table.setNextIndex(4L, 5);
+    table.setLastAckedIndex(4L, 5);
+
+    assertThat(table.getNextIndex(4L, 100), is(equalTo(100L)));
+    assertThat(table.getLastAckedIndex(4L), is(equalTo(0L)));
+  }
+
+  @Test
+  public void carriesOverTheIndexesOfPeersWhichRemainAfterAConfigurationChange() {
+    final QuorumConfiguration configuration = QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L));
+    table.setConfiguration(configuration);
+    table.setLastAckedIndex(1L, 10);
+    table.setLastAckedIndex(3L, 30);
+
+    table.setConfiguration(configuration.getTransitionalConfiguration(Sets.newHashSet(0L, 3L, 4L)));
+
+    assertThat(table.getLastAckedIndex(1L), is(equalTo(10L)));
+    assertThat(table.getLastAckedIndex(3L), is(equalTo(30L)));
+    assertThat(table.getLastAckedIndex(0L), is(equalTo(0L)));
+  }
+
+  @Test
+  public void calculatesTheCommittedIndexFromTheLastAckedIndexes() {
+    table.setConfiguration(QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L)));
+    table.setLastAckedIndex(1L, 8);
+    table.setLastAckedIndex(2L, 6);
+    assertThat(table.calculateCommittedIndex(), is(equalTo(6L)));
+
+    table.setLastAckedIndex(3L, 7);
+    assertThat(table.calculateCommittedIndex(), is(equalTo(7L)));
+
+    table.clear();
+    assertThat(table.calculateCommittedIndex(), is(equalTo(0L)));
+  }
+}
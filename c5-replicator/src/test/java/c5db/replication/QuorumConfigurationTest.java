@@ -17,9 +17,12 @@
 package c5db.replication;
 
 import c5db.interfaces.replication.QuorumConfiguration;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.is;
@@ -65,6 +68,93 @@ public class QuorumConfigurationTest {
     assertThat(transitional.nextPeers(), equalTo(aDestinationPeerSet()));
   }
 
+  @Test
+  public void assignsEachPeerADistinctSlot() {
+    final QuorumConfiguration configuration = transitionalConfiguration;
+    final Set<Integer> slots = Sets.newHashSet();
+
+    for (long peerId : configuration.allPeers()) {
+      final int slot = configuration.slotOf(peerId);
+      assertThat(configuration.peerIdOfSlot(slot), is(equalTo(peerId)));
+      slots.add(slot);
+    }
+
+    assertThat(slots.size(), is(equalTo(configuration.numberOfSlots())));
+    assertThat(configuration.slotOf(10L), is(equalTo(-1)));
+  }
+
+  @Test
+  public void calculatesTheGreatestIndexAcknowledgedByAMajorityOfAStableConfiguration() {
+    final Map<Long, Long> lastAckedIndexes = ImmutableMap.of(1L, 7L, 2L, 3L, 3L, 9L, 4L, 5L);
+
+    assertThat(stableConfiguration.calculateCommittedIndex(lastAckedIndexes), is(equalTo(5L)));
+  }
+
+  @Test
+  public void calculatesTheCommittedIndexAsTheLesserOfTheTwoMajoritiesOfATransitionalConfiguration() {
+    final QuorumConfiguration configuration = QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L))
+        .getTransitionalConfiguration(Sets.newHashSet(3L, 4L, 5L));
+    final Map<Long, Long> lastAckedIndexes = ImmutableMap.of(1L, 10L, 2L, 10L, 3L, 6L, 4L, 2L, 5L, 1L);
+
+    assertThat(configuration.calculateCommittedIndex(lastAckedIndexes), is(equalTo(2L)));
+  }
+
+  @Test
+  public void calculatesTheSameCommittedIndexFromAnArrayIndexedBySlot() {
+    final long[] lastAckedIndexBySlot = new long[transitionalConfiguration.numberOfSlots()];
+    final long[] scratch = new long[transitionalConfiguration.numberOfSlots()];
+    final Map<Long, Long> lastAckedIndexes = new HashMap<>();
+
+    for (long peerId : transitionalConfiguration.allPeers()) {
+      final long index = (peerId * 7) % 5;
+      lastAckedIndexBySlot[transitionalConfiguration.slotOf(peerId)] = index;
+      lastAckedIndexes.put(peerId, index);
+    }
+
+    assertThat(transitionalConfiguration.calculateCommittedIndex(lastAckedIndexBySlot, scratch),
+        is(equalTo(transitionalConfiguration.calculateCommittedIndex(lastAckedIndexes))));
+  }
+
+  @Test
+  public void determinesWhetherASetOfPeersContainsAMajority() {
+    assertThat(stableConfiguration.setContainsMajority(Sets.newHashSet(1L, 2L, 6L)), is(false));
+    assertThat(stableConfiguration.setContainsMajority(Sets.newHashSet(1L, 2L, 5L)), is(true));
+
+    // A transitional configuration needs a majority of both its previous and its next peer sets
+    assertThat(transitionalConfiguration.setContainsMajority(Sets.newHashSet(1L, 2L, 3L)), is(false));
+    assertThat(transitionalConfiguration.setContainsMajority(Sets.newHashSet(1L, 2L, 3L, 6L, 7L, 8L)), is(true));
+  }
+
+  @Test
+  public void excludesLearnersFromTheMajorityAndTheCommittedIndex() {
+    final QuorumConfiguration configuration = QuorumConfiguration.of(Sets.newHashSet(1L, 2L, 3L))
+        .withLearners(Sets.newHashSet(4L, 5L));
+    final Map<Long, Long> lastAckedIndexes = ImmutableMap.of(1L, 9L, 2L, 2L, 3L, 1L, 4L, 9L, 5L, 9L);
+
+    assertThat(configuration.allPeers(), is(equalTo(Sets.newHashSet(1L, 2L, 3L, 4L, 5L))));
+    assertThat(configuration.voters(), is(equalTo(Sets.newHashSet(1L, 2L, 3L))));
+    assertThat(configuration.calculateCommittedIndex(lastAckedIndexes), is(equalTo(2L)));
+    assertThat(configuration.setContainsMajority(Sets.newHashSet(1L, 4L, 5L)), is(false));
+  }
+
+  @Test
+  public void convertsAConfigurationWithLearnersToAndFromProtostuffFormat() {
+    final QuorumConfiguration configuration = stableConfiguration.withLearners(Sets.newHashSet(6L, 7L));
+
+    assertThat(QuorumConfiguration.fromProtostuff(configuration.toProtostuff()), is(equalTo(configuration)));
+  }
+
+  @Test
+  public void promotesLearnersWhichAreAmongTheNextPeersOfATransitionalConfiguration() {
+    final QuorumConfiguration transitional = stableConfiguration
+        .withLearners(Sets.newHashSet(6L, 7L))
+        .getTransitionalConfiguration(aDestinationPeerSet());
+
+    assertThat(transitional.nextPeers(), is(equalTo(aDestinationPeerSet())));
+    assertThat(transitional.learners(), is(equalTo(Sets.newHashSet(7L))));
+    assertThat(transitional.getCompletedConfiguration().voters(), is(equalTo(aDestinationPeerSet())));
+  }
+
 
   private Set<Long> aPeerSet() {
     return Sets.newHashSet(1L, 2L, 3L, 4L, 5L);
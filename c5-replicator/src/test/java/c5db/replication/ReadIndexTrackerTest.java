@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.interfaces.replication.QuorumConfiguration;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ReadIndexTrackerTest {
+  private static final long LEADER = 1;
+
+  private final ReadIndexTracker tracker = new ReadIndexTracker();
+
+  @Before
+  public void setConfiguration() {
+    tracker.setConfiguration(QuorumConfiguration.of(Sets.newHashSet(LEADER, 2L, 3L)));
+  }
+
+  @Test
+  public void confirmsAReadOnceAMajorityHasConfirmedARoundBegunAfterIt() {
+    final long roundBeforeRead = tracker.currentRound();
+    SettableFuture<Long> read = SettableFuture.create();
+    tracker.addPendingRead(read);
+    assertThat(tracker.needsNewRound(), is(true));
+
+    tracker.confirmedBy(2L, roundBeforeRead, 0);
+    assertThat(tracker.takeConfirmedReads(LEADER), is(empty()));
+
+    final long round = tracker.beginRound();
+    assertThat(tracker.needsNewRound(), is(false));
+
+    tracker.confirmedBy(3L, round, 0);
+    assertThat(tracker.takeConfirmedReads(LEADER), contains(read));
+    assertThat(tracker.hasPendingReads(), is(false));
+  }
+
+  @Test
+  public void confirmsOnlyTheReadsWhoseRoundsHaveBeenConfirmed() {
+    SettableFuture<Long> firstRead = SettableFuture.create();
+    tracker.addPendingRead(firstRead);
+    final long firstRound = tracker.beginRound();
+
+    SettableFuture<Long> secondRead = SettableFuture.create();
+    tracker.addPendingRead(secondRead);
+    tracker.beginRound();
+
+    tracker.confirmedBy(2L, firstRound, 0);
+
+    assertThat(tracker.takeConfirmedReads(LEADER), contains(firstRead));
+    assertThat(tracker.takeAllPendingReads(), contains(secondRead));
+  }
+
+  @Test
+  public void beginsTheLeaseAtTheLatestSendTimeConfirmedByAMajority() {
+    assertThat(tracker.leaseStartMillis(LEADER, 1000), is(equalTo(0L)));
+
+    tracker.confirmedBy(2L, 0, 400);
+    tracker.confirmedBy(3L, 0, 700);
+    assertThat(tracker.leaseStartMillis(LEADER, 1000), is(equalTo(700L)));
+
+    tracker.clearConfirmations();
+    assertThat(tracker.leaseStartMillis(LEADER, 1000), is(equalTo(0L)));
+  }
+}
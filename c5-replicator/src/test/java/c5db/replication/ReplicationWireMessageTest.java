@@ -36,7 +36,7 @@ public class ReplicationWireMessageTest {
   public void testSimpleSerialization() throws Exception {
     RequestVote rv = new RequestVote(1, 22222, 34, 22);
     ReplicationWireMessage rwm = new ReplicationWireMessage(
-        1, 1, 0, "quorumId", false, rv, null, null, null, null, null
+        1, 1, 0, "quorumId", false, rv, null, null, null, null, null, null, null, null, null, null, null
     );
 
     LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput(new LinkBuffer(24));
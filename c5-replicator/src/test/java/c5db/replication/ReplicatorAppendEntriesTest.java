@@ -20,14 +20,18 @@ import c5db.interfaces.replication.IndexCommitNotice;
 import c5db.interfaces.replication.QuorumConfiguration;
 import c5db.interfaces.replication.ReplicatorInstanceEvent;
 import c5db.interfaces.replication.ReplicatorLog;
+import c5db.interfaces.replication.SnapshotDescriptor;
+import c5db.interfaces.replication.SnapshotProvider;
 import c5db.log.InRamLog;
 import c5db.replication.generated.AppendEntries;
+import c5db.replication.generated.InstallSnapshot;
 import c5db.replication.generated.LogEntry;
 import c5db.replication.rpc.RpcReply;
 import c5db.replication.rpc.RpcWireRequest;
 import c5db.util.ExceptionHandlingBatchExecutor;
 import c5db.util.JUnitRuleFiberExceptions;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import org.hamcrest.Matcher;
 import org.hamcrest.Matchers;
@@ -49,6 +53,7 @@ import org.junit.Test;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -113,9 +118,12 @@ public class ReplicatorAppendEntriesTest {
        * The replicator uses a Proxy ReplicatorLog which allows us to use jmock
        * expectations for the log, but also use a working InRamLog.
        */
+      allowing(log).getFirstIndex();
       allowing(log).getLastIndex();
       allowing(log).getLastTerm();
       allowing(log).getLogTerm(with(any(Long.class)));
+      allowing(log).getTermRuns(with(any(Long.class)), with(any(Long.class)));
+      allowing(log).getTermRun(with(any(Long.class)));
       allowing(log).getLastConfiguration();
       allowing(log).getLastConfigurationIndex();
     }});
@@ -199,12 +207,31 @@ public class ReplicatorAppendEntriesTest {
     ));
   }
 
+  @Test
+  public void willReplyWithTheConflictingTermAndTheFirstIndexOfThatTermInItsLog() throws Exception {
+    havingLogged(
+        entries()
+            .term(1).indexes(1, 2)
+            .term(2).indexes(3, 4, 5, 6));
+
+    havingReceived(
+        anAppendEntriesRequest()
+            .withPrevLogTerm(3).withPrevLogIndex(5)
+            .withEntries(entries().term(3).indexes(6, 7)));
+
+    assertThat(reply(), is(
+        anAppendReply()
+            .withResult(false).withConflictTerm(equalTo(2L)).withConflictTermFirstIndex(equalTo(3L))
+    ));
+  }
+
   @Test
   public void updatesAndPersistsCurrentTermIfItReceivesARequestWithANewerTerm() throws Exception {
     final long newerTerm = CURRENT_TERM + 1;
 
     context.checking(new Expectations() {{
       oneOf(persistence).writeCurrentTermAndVotedFor(QUORUM_ID, newerTerm, votedForNoOne());
+      will(returnValue(Futures.immediateFuture(null)));
     }});
 
     havingReceived(
@@ -276,6 +303,25 @@ public class ReplicatorAppendEntriesTest {
     assertThatReplicatorWillCommitUpToIndex(receivedCommitIndex);
   }
 
+  @Test
+  public void doesNotCommitADivergentTailBeyondTheEntryAReadHeartbeatRefersTo() throws Exception {
+    // Entries 3 and 4 are from a deposed leader, and the new leader has not yet replaced them.
+    havingLogged(
+        entries()
+            .term(1).indexes(1, 2)
+            .term(3).indexes(3, 4));
+
+    // A heartbeat confirming leadership for a read, referring to the last entry the leader knows we have.
+    havingReceived(
+        anAppendEntriesRequest()
+            .withPrevLogTerm(1).withPrevLogIndex(2)
+            .withNoEntries()
+            .withCommitIndex(2));
+
+    assertThat(reply(), is(anAppendReply().withResult(true)));
+    assertThatReplicatorWillCommitUpToIndex(2);
+  }
+
   @Test
   public void commitsIfItReceivesAnAppendEntriesRequestWithACommitIndexWithinTheEntriesSent() throws Exception {
     final List<LogEntry> receivedEntries = entries().term(1).indexes(1, 2, 3).build();
@@ -380,6 +426,33 @@ public class ReplicatorAppendEntriesTest {
     assertThat(internalLog.getLogEntries(1, 6), resultsIn(aListOfEntriesWithConsecutiveSeqNums(1, 6)));
   }
 
+  @Test
+  public void keepsItsLogWhenItReceivesASnapshotWhoseLastEntryTheLogAlreadyContains() throws Exception {
+    final SnapshotProvider snapshotProvider = context.mock(SnapshotProvider.class);
+    context.checking(new Expectations() {{
+      allowing(snapshotProvider).receiveSnapshotChunk(
+          with(any(SnapshotDescriptor.class)), with(any(Long.class)), with(any(ByteBuffer.class)));
+      will(returnValue(Futures.immediateFuture(null)));
+
+      never(snapshotProvider).installSnapshot(with(any(SnapshotDescriptor.class)));
+      never(log).resetToSnapshot(with(any(Long.class)), with(any(Long.class)), with(any(QuorumConfiguration.class)));
+    }});
+    replicatorInstance.setSnapshotProvider(snapshotProvider);
+
+    havingLogged(
+        entries()
+            .term(1).indexes(1, 2)
+            .term(2).indexes(3, 4));
+
+    // A delayed snapshot, covering only entries the log already has; entries 3 and 4 may have been acknowledged.
+    havingReceived(new InstallSnapshot(CURRENT_TERM, LEADER_ID, 2, 1, aNewConfiguration().toProtostuff(),
+        0, ByteBuffer.allocate(0), true));
+
+    assertThat(reply().getInstallSnapshotReplyMessage().getSuccess(), is(true));
+    assertThatReplicatorWillCommitUpToIndex(2);
+    assertThat(internalLog.getLastIndex(), is(equalTo(4L)));
+  }
+
   private final Channel<IndexCommitNotice> commitNotices = new MemoryChannel<>();
   private final ChannelHistoryMonitor<IndexCommitNotice> commitMonitor =
       new ChannelHistoryMonitor<>(commitNotices, rpcFiber);
@@ -442,6 +515,12 @@ public class ReplicatorAppendEntriesTest {
     AsyncRequest.withOneReply(rpcFiber, replicatorInstance.getIncomingChannel(), request, lastReply::set);
   }
 
+  private void havingReceived(InstallSnapshot message) {
+    lastReply = SettableFuture.create();
+    final RpcWireRequest request = new RpcWireRequest(LEADER_ID, QUORUM_ID, message);
+    AsyncRequest.withOneReply(rpcFiber, replicatorInstance.getIncomingChannel(), request, lastReply::set);
+  }
+
   private RpcReply reply() throws Exception {
     return lastReply.get(RPC_REPLY_TIMEOUT, TimeUnit.SECONDS);
   }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.ReplicatorInstanceEvent;
+import c5db.interfaces.replication.ReplicatorReceipt;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jetlang.core.BatchExecutorImpl;
+import org.jetlang.fibers.Fiber;
+import org.jetlang.fibers.ThreadFiber;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides for measurement of the latency from the moment a client submits data to the leader of
+ * a quorum, to the moment the leader learns that the data is committed. The measurement is
+ * taken with an in-RAM simulation of a three-peer quorum, once with the leader waiting for its
+ * periodic tick to send new entries, and once with event-driven flushing (see
+ * {@link ReplicatorOptions#eventDrivenFlush}).
+ * <p>
+ * Requests are submitted one-at-a-time, each after the previous one has committed, so that
+ * the result reflects latency rather than throughput.
+ */
+public class ReplicatorCommitLatencyMeasurement {
+  private static final long ELECTION_TIMEOUT_MILLIS = 1000;
+  private static final long OFFSET_STAGGERING_MILLIS = 50;
+  private static final int WARMUP_REQUESTS = 100;
+  private static final int TIMED_REQUESTS = 500;
+  private static final int PAYLOAD_SIZE = 128;
+
+  public static void main(String[] args) throws Exception {
+    ReplicatorOptions periodicOptions = ReplicatorOptions.DEFAULT.toBuilder()
+        .setEventDrivenFlush(false)
+        .build();
+
+    new ReplicatorCommitLatencyMeasurement(periodicOptions).doMeasurement();
+    new ReplicatorCommitLatencyMeasurement(ReplicatorOptions.DEFAULT).doMeasurement();
+  }
+
+  private final ReplicatorOptions options;
+  private final Fiber fiber = new ThreadFiber();
+  private final Object commitLock = new Object();
+  private final SettableFuture<Long> leaderIdFuture = SettableFuture.create();
+  private long leaderCommittedIndex = 0;
+
+  public ReplicatorCommitLatencyMeasurement(ReplicatorOptions options) {
+    this.options = options;
+  }
+
+  private void doMeasurement() throws Exception {
+    InRamSim sim = new InRamSim(ELECTION_TIMEOUT_MILLIS, OFFSET_STAGGERING_MILLIS, new BatchExecutorImpl(), options);
+
+    sim.getEventChannel().subscribe(fiber, this::handleEvent);
+    sim.getCommitNotices().subscribe(fiber, this::handleCommitNotice);
+    fiber.start();
+
+    try {
+      sim.start(Lists.newArrayList(1L, 2L, 3L));
+      sim.startAllTimeouts();
+
+      ReplicatorInstance leader = sim.getReplicators().get(leaderIdFuture.get(10, TimeUnit.SECONDS));
+
+      logAndWaitForCommit(leader, WARMUP_REQUESTS);
+      long[] latenciesNanos = logAndWaitForCommit(leader, TIMED_REQUESTS);
+
+      outputResults(latenciesNanos);
+    } finally {
+      sim.dispose();
+      fiber.dispose();
+    }
+  }
+
+  private long[] logAndWaitForCommit(ReplicatorInstance leader, int numRequests) throws Exception {
+    long[] latenciesNanos = new long[numRequests];
+
+    for (int i = 0; i < numRequests; i++) {
+      long startTime = System.nanoTime();
+      ReplicatorReceipt receipt = leader.logData(payload()).get(10, TimeUnit.SECONDS);
+      waitForLeaderCommit(receipt.seqNum);
+      latenciesNanos[i] = System.nanoTime() - startTime;
+    }
+
+    return latenciesNanos;
+  }
+
+  private void handleEvent(ReplicatorInstanceEvent event) {
+    if (event.eventType == ReplicatorInstanceEvent.EventType.LEADER_ELECTED
+        && event.newLeader == event.instance.getId()) {
+      leaderIdFuture.set(event.newLeader);
+    }
+  }
+
+  private void handleCommitNotice(IndexCommitNotice notice) {
+    if (leaderIdFuture.isDone() && notice.nodeId == getLeaderId()) {
+      synchronized (commitLock) {
+        leaderCommittedIndex = Math.max(leaderCommittedIndex, notice.lastIndex);
+        commitLock.notifyAll();
+      }
+    }
+  }
+
+  private long getLeaderId() {
+    try {
+      return leaderIdFuture.get();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void waitForLeaderCommit(long index) throws InterruptedException {
+    synchronized (commitLock) {
+      while (leaderCommittedIndex < index) {
+        commitLock.wait();
+      }
+    }
+  }
+
+  private void outputResults(long[] latenciesNanos) {
+    Arrays.sort(latenciesNanos);
+    long totalNanos = 0;
+    for (long latency : latenciesNanos) {
+      totalNanos += latency;
+    }
+
+    System.out.println(options);
+    System.out.println("  mean commit latency: " + formatMillis(totalNanos / latenciesNanos.length) + " ms");
+    System.out.println("  median: " + formatMillis(percentile(latenciesNanos, 50)) + " ms"
+        + ", p99: " + formatMillis(percentile(latenciesNanos, 99)) + " ms"
+        + ", max: " + formatMillis(latenciesNanos[latenciesNanos.length - 1]) + " ms");
+  }
+
+  private static long percentile(long[] sortedValues, int percentile) {
+    return sortedValues[(sortedValues.length - 1) * percentile / 100];
+  }
+
+  private static String formatMillis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  private static List<ByteBuffer> payload() {
+    return Lists.newArrayList(ByteBuffer.allocate(PAYLOAD_SIZE));
+  }
+}
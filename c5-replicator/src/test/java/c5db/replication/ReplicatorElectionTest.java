@@ -35,6 +35,7 @@ import c5db.util.JUnitRuleFiberExceptions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import io.protostuff.Message;
 import org.hamcrest.Matcher;
@@ -402,9 +403,11 @@ public class ReplicatorElectionTest {
     return new Expectations() {{
       oneOf(persistence).writeCurrentTermAndVotedFor(
           with(equalTo(QUORUM_ID)), with(equalTo(CURRENT_TERM + 1)), with(anyVotedFor()));
+      will(returnValue(Futures.immediateFuture(null)));
 
       // May vote for self
       allowing(persistence).writeCurrentTermAndVotedFor(QUORUM_ID, CURRENT_TERM + 1, MY_ID);
+      will(returnValue(Futures.immediateFuture(null)));
     }};
   }
 
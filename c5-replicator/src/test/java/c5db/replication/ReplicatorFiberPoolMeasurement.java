@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.ReplicatorConstants;
+import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.Replicator;
+import c5db.interfaces.replication.ReplicatorInstanceEvent;
+import c5db.interfaces.replication.ReplicatorLog;
+import c5db.interfaces.replication.ReplicatorReceipt;
+import c5db.log.InRamLog;
+import c5db.replication.generated.LogEntry;
+import c5db.replication.rpc.RpcRequest;
+import c5db.replication.rpc.RpcWireReply;
+import c5db.util.ExceptionHandlingBatchExecutor;
+import c5db.util.FiberSupplier;
+import c5db.util.HierarchicalTimingWheel;
+import c5db.util.PooledFiberSupplier;
+import com.google.common.collect.Lists;
+import org.jetlang.channels.MemoryChannel;
+import org.jetlang.channels.MemoryRequestChannel;
+import org.jetlang.core.RunnableExecutorImpl;
+import org.jetlang.fibers.ThreadFiber;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides for measurement of the number of threads, and the commit latency, of a node hosting many
+ * quorums, once with a thread for each ReplicatorInstance's fiber, and once with every fiber sharing a
+ * {@link PooledFiberSupplier}. Each quorum has a single peer, its leader, so that the measurement
+ * reflects the cost of running many fibers (and their timers) rather than that of exchanging messages;
+ * every leader ticks periodically, as on an idle cluster.
+ * <p>
+ * Requests are submitted one-at-a-time, each to a randomly chosen quorum, after the previous one has
+ * committed, so that the result reflects latency rather than throughput. Pass the numbers of quorums
+ * to measure as arguments; by default, 1000 and 10000.
+ */
+public class ReplicatorFiberPoolMeasurement {
+  private static final long LEADER_ID = 1;
+  private static final long TERM = 1;
+  private static final int WARMUP_REQUESTS = 1000;
+  private static final int TIMED_REQUESTS = 5000;
+  private static final int PAYLOAD_SIZE = 128;
+
+  public static void main(String[] args) throws Exception {
+    final List<Integer> quorumCounts = new ArrayList<>();
+    for (String arg : args) {
+      quorumCounts.add(Integer.parseInt(arg));
+    }
+    if (quorumCounts.isEmpty()) {
+      quorumCounts.addAll(Arrays.asList(1000, 10000));
+    }
+
+    for (int numberOfQuorums : quorumCounts) {
+      new ReplicatorFiberPoolMeasurement("thread per fiber", numberOfQuorums, threadPerFiberSupplier())
+          .doMeasurement();
+
+      PooledFiberSupplier pooledFiberSupplier = new PooledFiberSupplier("measurement-pool");
+      try {
+        new ReplicatorFiberPoolMeasurement("pooled fibers (" + pooledFiberSupplier.getNumberOfThreads() + " threads)",
+            numberOfQuorums, pooledFiberSupplier).doMeasurement();
+      } finally {
+        pooledFiberSupplier.dispose();
+      }
+    }
+  }
+
+  private final String description;
+  private final int numberOfQuorums;
+  private final FiberSupplier fiberSupplier;
+  private final Random random = new Random(112233);
+
+  public ReplicatorFiberPoolMeasurement(String description, int numberOfQuorums, FiberSupplier fiberSupplier) {
+    this.description = description;
+    this.numberOfQuorums = numberOfQuorums;
+    this.fiberSupplier = fiberSupplier;
+  }
+
+  private void doMeasurement() throws Exception {
+    final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+    final HierarchicalTimingWheel timingWheel = new HierarchicalTimingWheel(
+        ReplicatorConstants.REPLICATOR_TIMING_WHEEL_TICK_MILLISECONDS, TimeUnit.MILLISECONDS, "measurement-timers");
+    final List<ReplicatorInstance> leaders = new ArrayList<>(numberOfQuorums);
+    timingWheel.start();
+
+    try {
+      for (int i = 0; i < numberOfQuorums; i++) {
+        leaders.add(createLeader("quorum-" + i, timingWheel));
+      }
+
+      final int threadsDuring = ManagementFactory.getThreadMXBean().getThreadCount();
+
+      logAndWaitForCommit(leaders, WARMUP_REQUESTS);
+      long[] latenciesNanos = logAndWaitForCommit(leaders, TIMED_REQUESTS);
+
+      outputResults(threadsDuring - threadsBefore, latenciesNanos);
+    } finally {
+      leaders.forEach(ReplicatorInstance::dispose);
+      timingWheel.dispose();
+    }
+  }
+
+  private ReplicatorInstance createLeader(String quorumId, HierarchicalTimingWheel timingWheel) throws Exception {
+    final ReplicatorLog log = new InRamLog();
+    log.logEntries(Lists.newArrayList(
+        new LogEntry(TERM, 1, new ArrayList<>(), QuorumConfiguration.of(Lists.newArrayList(LEADER_ID)).toProtostuff())))
+        .get();
+
+    final ReplicatorInfoPersistence persister = new InRamSim.Persister();
+    persister.writeCurrentTermAndVotedFor(quorumId, TERM, LEADER_ID);
+
+    final ReplicatorInstance leader = new ReplicatorInstance(
+        fiberSupplier.getNewFiber(Throwable::printStackTrace),
+        LEADER_ID,
+        quorumId,
+        log,
+        new DefaultSystemTimeReplicatorClock(),
+        persister,
+        new MemoryRequestChannel<RpcRequest, RpcWireReply>(),
+        new MemoryChannel<ReplicatorInstanceEvent>(),
+        new MemoryChannel<IndexCommitNotice>(),
+        Replicator.State.LEADER,
+        ReplicatorOptions.DEFAULT,
+        timingWheel);
+    leader.start();
+    return leader;
+  }
+
+  private long[] logAndWaitForCommit(List<ReplicatorInstance> leaders, int numRequests) throws Exception {
+    long[] latenciesNanos = new long[numRequests];
+
+    for (int i = 0; i < numRequests; i++) {
+      final ReplicatorInstance leader = leaders.get(random.nextInt(leaders.size()));
+      long startTime = System.nanoTime();
+      ReplicatorReceipt receipt = leader.logData(payload()).get(10, TimeUnit.SECONDS);
+      leader.waitForCommitIndex(receipt.seqNum).get(10, TimeUnit.SECONDS);
+      latenciesNanos[i] = System.nanoTime() - startTime;
+    }
+
+    return latenciesNanos;
+  }
+
+  private void outputResults(int threadsAdded, long[] latenciesNanos) {
+    Arrays.sort(latenciesNanos);
+    long totalNanos = 0;
+    for (long latency : latenciesNanos) {
+      totalNanos += latency;
+    }
+
+    System.out.println(numberOfQuorums + " quorums, " + description);
+    System.out.println("  threads added: " + threadsAdded);
+    System.out.println("  mean commit latency: " + formatMillis(totalNanos / latenciesNanos.length) + " ms");
+    System.out.println("  median: " + formatMillis(percentile(latenciesNanos, 50)) + " ms"
+        + ", p99: " + formatMillis(percentile(latenciesNanos, 99)) + " ms"
+        + ", max: " + formatMillis(latenciesNanos[latenciesNanos.length - 1]) + " ms");
+  }
+
+  private static FiberSupplier threadPerFiberSupplier() {
+    return (throwableHandler) ->
+        new ThreadFiber(new RunnableExecutorImpl(new ExceptionHandlingBatchExecutor(throwableHandler)), null, true);
+  }
+
+  private static long percentile(long[] sortedValues, int percentile) {
+    return sortedValues[(sortedValues.length - 1) * percentile / 100];
+  }
+
+  private static String formatMillis(long nanos) {
+    return String.format("%.3f", nanos / 1e6);
+  }
+
+  private static List<ByteBuffer> payload() {
+    return Lists.newArrayList(ByteBuffer.allocate(PAYLOAD_SIZE));
+  }
+}
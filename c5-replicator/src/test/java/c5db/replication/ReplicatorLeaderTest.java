@@ -17,8 +17,11 @@
 package c5db.replication;
 
 import c5db.interfaces.replication.IndexCommitNotice;
+import c5db.interfaces.replication.LogDataSubmission;
 import c5db.interfaces.replication.QuorumConfiguration;
+import c5db.interfaces.replication.ReplicatorBatchReceipt;
 import c5db.interfaces.replication.ReplicatorLog;
+import c5db.interfaces.replication.ReplicatorReceipt;
 import c5db.log.InRamLog;
 import c5db.replication.generated.AppendEntriesReply;
 import c5db.replication.generated.LogEntry;
@@ -27,7 +30,9 @@ import c5db.replication.rpc.RpcWireReply;
 import c5db.util.ExceptionHandlingBatchExecutor;
 import c5db.util.JUnitRuleFiberExceptions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.hamcrest.Matcher;
 import org.jetlang.channels.Channel;
 import org.jetlang.channels.MemoryChannel;
@@ -51,6 +56,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -61,10 +67,13 @@ import static c5db.IndexCommitMatcher.aCommitNotice;
 import static c5db.RpcMatchers.RequestMatcher;
 import static c5db.RpcMatchers.RequestMatcher.anAppendRequest;
 import static c5db.interfaces.replication.Replicator.State;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertFalse;
 
 
@@ -112,10 +121,6 @@ public class ReplicatorLeaderTest {
     sendRpcChannel.subscribe(rpcFiber, this::routeOutboundRequests);
     sendRpcChannel.subscribe(rpcFiber, requestLog::publish);
 
-    Fiber replicatorFiber = new ThreadFiber(new RunnableExecutorImpl(batchExecutor), "replicatorFiber-Thread", true);
-    InRamSim.StoppableClock clock = new InRamSim.StoppableClock(0, 1000);
-    clock.startTimeout();
-
     log.logEntries(
         Lists.newArrayList(
             new LogEntry(CURRENT_TERM, 1, new ArrayList<>(), QuorumConfiguration.of(PEER_ID_LIST).toProtostuff())));
@@ -124,17 +129,7 @@ public class ReplicatorLeaderTest {
     ReplicatorInfoPersistence persister = new InRamSim.Persister();
     persister.writeCurrentTermAndVotedFor(QUORUM_ID, CURRENT_TERM, LEADER_ID);
 
-    replicatorInstance = new ReplicatorInstance(replicatorFiber,
-        LEADER_ID,
-        QUORUM_ID,
-        log,
-        clock,
-        new InRamSim.Persister(),
-        sendRpcChannel,
-        new MemoryChannel<>(),
-        commitNotices,
-        State.LEADER);
-    replicatorInstance.start();
+    replicatorInstance = aStartedLeader(ReplicatorOptions.DEFAULT);
     rpcFiber.start();
   }
 
@@ -248,6 +243,191 @@ public class ReplicatorLeaderTest {
         .withPrevLogIndex(equalTo(nextIndexPeerRepliesWith - 1)));
   }
 
+  @Test
+  public void skipsBackToTheFirstIndexOfAConflictingTermWhichItsOwnLogDoesNotContain() throws Throwable {
+    final long maxIndexLogged = 8;
+    final long conflictTerm = CURRENT_TERM - 1;
+    final long conflictTermFirstIndex = 3;
+
+    leader().logDataUpToIndex(maxIndexLogged);
+
+    final SentRequest problematicRequest = waitUntilLeaderSends(aRequestToPeer(2).withLogIndex(maxIndexLogged));
+    ignoringRequestsTheLeaderHasAlreadySent();
+
+    problematicRequest.thenPeerWillReplyWithConflict(conflictTerm, conflictTermFirstIndex);
+    expectLeaderToSend(aRequestToPeer(2)
+        .withLogIndex(conflictTermFirstIndex)
+        .withPrevLogIndex(equalTo(conflictTermFirstIndex - 1)));
+  }
+
+  @Test
+  public void doesNotTellAPeerToCommitPastTheLastEntryItHasAcknowledgedWhenConfirmingAReadIndex() throws Throwable {
+    peer(2).willIgnoreAllRequests();
+    peer(3).willReplyToAllRequestsWith(true);
+
+    leader().logDataUpToIndex(5);
+    expectLeaderToCommitUpToIndex(5);
+
+    assertThat(replicatorInstance.getReadIndex(), is(notNullValue()));
+
+    expectLeaderToSend(aRequestToPeer(2).withPrevLogIndex(0).withCommitIndex(equalTo(0L)));
+  }
+
+  @Test
+  public void replicatesToALearnerWithoutCountingItTowardTheMajorityAndPromotesItOnceItHasCaughtUp()
+      throws Throwable {
+    final long learnerId = 4;
+    final Set<Long> newPeerIds = ImmutableSet.of(1L, 2L, 3L, learnerId);
+    final QuorumConfiguration learnerConfig = QuorumConfiguration.of(PEER_ID_LIST).withLearners(newPeerIds);
+    final long learnerConfigIndex = 3;
+
+    replacingTheLeaderWithOneUsing(ReplicatorOptions.DEFAULT.toBuilder()
+        .setAddPeersAsLearners(true)
+        .setLearnerPromotionMaxLag(0)
+        .build());
+
+    peer(2).willReplyToAllRequestsWith(true);
+    peer(3).willIgnoreAllRequests();
+
+    leader().logDataUpToIndex(learnerConfigIndex - 1);
+    final ListenableFuture<ReplicatorReceipt> receiptFuture = replicatorInstance.changeQuorum(newPeerIds);
+
+    expectLeaderToSend(anAppendRequest().to(learnerId).containingQuorumConfig(learnerConfig));
+    expectLeaderToCommitUpToIndex(learnerConfigIndex);
+
+    // Now only the learner acknowledges anything; the entry logged next must not commit on its account.
+    peer(2).willIgnoreAllRequests();
+    leader().logSomeData();
+    peer(learnerId).willReplyToAllRequestsWith(true);
+
+    expectLeaderToSend(anAppendRequest().to(learnerId)
+        .containingQuorumConfig(learnerConfig.getTransitionalConfiguration(newPeerIds)));
+    assertThat(receiptFuture.get().seqNum, is(equalTo(lastIndexLogged() + 1)));
+    assertFalse(commitMonitor.hasAny(aCommitNotice().withIndex(greaterThan(learnerConfigIndex))));
+  }
+
+  @Test
+  public void logsABatchOfDataAsConsecutiveEntriesCoveredByASingleReceipt() throws Throwable {
+    peer(2).willReplyToAllRequestsWith(true);
+    peer(3).willReplyToAllRequestsWith(true);
+
+    ReplicatorBatchReceipt receipt =
+        replicatorInstance.logDataBatch(Lists.newArrayList(TEST_DATUM, TEST_DATUM, TEST_DATUM)).get();
+
+    assertThat(receipt.firstSeqNum, is(equalTo(lastIndexLogged() + 1)));
+    assertThat(receipt.lastSeqNum(), is(equalTo(lastIndexLogged() + 3)));
+
+    expectLeaderToCommitUpToIndex(receipt.lastSeqNum());
+  }
+
+  @Test
+  public void rejectsANonBlockingSubmissionWhenTheRequestQueueHoldsAsManyRequestsAsItCan() throws Throwable {
+    ReplicatorInstance unstartedLeader = anUnstartedReplicator(State.LEADER,
+        ReplicatorOptions.DEFAULT.toBuilder().setMaxQueuedLogRequests(2).build());
+
+    assertThat(unstartedLeader.tryLogData(TEST_DATUM).isAccepted(), is(true));
+    LogDataSubmission secondSubmission = unstartedLeader.tryLogData(TEST_DATUM);
+    assertThat(secondSubmission.isAccepted(), is(true));
+    assertThat(secondSubmission.receiptFuture, is(notNullValue()));
+
+    LogDataSubmission rejectedSubmission = unstartedLeader.tryLogData(TEST_DATUM);
+    assertThat(rejectedSubmission.outcome, is(equalTo(LogDataSubmission.Outcome.QUEUE_FULL)));
+    assertThat(rejectedSubmission.queuedRequests, is(equalTo(2)));
+    assertThat(rejectedSubmission.queuedBytes, is(equalTo(2L * TEST_DATUM.get(0).remaining())));
+
+    unstartedLeader.dispose();
+  }
+
+  @Test
+  public void rejectsANonBlockingSubmissionWhichWouldTakeTheRequestQueueOverItsByteLimit() throws Throwable {
+    final long datumSize = TEST_DATUM.get(0).remaining();
+    ReplicatorInstance unstartedLeader = anUnstartedReplicator(State.LEADER,
+        ReplicatorOptions.DEFAULT.toBuilder().setMaxQueuedLogBytes(datumSize + 1).build());
+
+    assertThat(unstartedLeader.tryLogData(TEST_DATUM).isAccepted(), is(true));
+
+    LogDataSubmission rejectedSubmission = unstartedLeader.tryLogData(TEST_DATUM);
+    assertThat(rejectedSubmission.outcome, is(equalTo(LogDataSubmission.Outcome.QUEUE_FULL)));
+    assertThat(rejectedSubmission.queuedRequests, is(equalTo(1)));
+    assertThat(rejectedSubmission.queuedBytes, is(equalTo(datumSize)));
+
+    unstartedLeader.dispose();
+  }
+
+  @Test
+  public void rejectsANonBlockingSubmissionToANonLeader() throws Throwable {
+    ReplicatorInstance follower = anUnstartedReplicator(State.FOLLOWER, ReplicatorOptions.DEFAULT);
+
+    assertThat(follower.tryLogData(TEST_DATUM).outcome, is(equalTo(LogDataSubmission.Outcome.NOT_LEADER)));
+
+    follower.dispose();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesALeaderLeaseLongerThanTheShortestElectionTimeoutAFollowerMightChoose() throws Throwable {
+    ReplicatorOptions.DEFAULT.toBuilder()
+        .setMinElectionTimeoutMillis(1000)
+        .setLeaderLeaseMillis(1500)
+        .build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesToStartWithALeaseIfItsOwnElectionTimeoutIsShorterThanTheMinimumTheLeaseAllowsFor()
+      throws Throwable {
+    // The clock used chooses an election timeout between 1000 and 2000 ms
+    anUnstartedReplicator(State.FOLLOWER, ReplicatorOptions.DEFAULT.toBuilder()
+        .setMinElectionTimeoutMillis(3000)
+        .setLeaderLeaseMillis(500)
+        .build());
+  }
+
+
+  private ReplicatorInstance aStartedLeader(ReplicatorOptions options) {
+    Fiber replicatorFiber = new ThreadFiber(new RunnableExecutorImpl(batchExecutor), "replicatorFiber-Thread", true);
+    InRamSim.StoppableClock clock = new InRamSim.StoppableClock(0, 1000);
+    clock.startTimeout();
+
+    ReplicatorInstance leader = new ReplicatorInstance(replicatorFiber,
+        LEADER_ID,
+        QUORUM_ID,
+        log,
+        clock,
+        new InRamSim.Persister(),
+        sendRpcChannel,
+        new MemoryChannel<>(),
+        commitNotices,
+        State.LEADER,
+        options);
+    leader.start();
+    return leader;
+  }
+
+  /**
+   * Replace the leader created for every test with one using the given options, before any requests
+   * have been made of it.
+   */
+  private void replacingTheLeaderWithOneUsing(ReplicatorOptions options) {
+    replicatorInstance.dispose();
+    ignoringRequestsTheLeaderHasAlreadySent();
+    replicatorInstance = aStartedLeader(options);
+  }
+
+  /**
+   * Create a replicator whose fiber is never started, so that nothing it queues is ever consumed.
+   */
+  private ReplicatorInstance anUnstartedReplicator(State initialState, ReplicatorOptions options) {
+    return new ReplicatorInstance(new ThreadFiber(),
+        LEADER_ID,
+        QUORUM_ID,
+        new InRamLog(),
+        new InRamSim.StoppableClock(0, 1000),
+        new InRamSim.Persister(),
+        sendRpcChannel,
+        new MemoryChannel<>(),
+        new MemoryChannel<>(),
+        initialState,
+        options);
+  }
 
   private long lastIndexLogged() {
     return lastIndex;
@@ -385,6 +565,10 @@ public class ReplicatorLeaderTest {
       sendAppendEntriesReply(request, success, myNextIndex);
     }
 
+    public void thenPeerWillReplyWithConflict(long conflictTerm, long conflictTermFirstIndex) {
+      sendAppendEntriesReply(request, false, 0, conflictTerm, conflictTermFirstIndex);
+    }
+
     public long lastEntryIndex() {
       List<LogEntry> entryList = request.getRequest().getAppendMessage().getEntriesList();
       if (entryList.isEmpty()) {
@@ -401,9 +585,18 @@ public class ReplicatorLeaderTest {
   private void sendAppendEntriesReply(Request<RpcRequest, RpcWireReply> request,
                                       boolean trueIsSuccessFlag,
                                       long myNextIndex) {
+    sendAppendEntriesReply(request, trueIsSuccessFlag, myNextIndex, 0, 0);
+  }
+
+  private void sendAppendEntriesReply(Request<RpcRequest, RpcWireReply> request,
+                                      boolean trueIsSuccessFlag,
+                                      long myNextIndex,
+                                      long conflictTerm,
+                                      long conflictTermFirstIndex) {
     RpcRequest message = request.getRequest();
     long termFromMessage = message.getAppendMessage().getTerm();
-    AppendEntriesReply replyMessage = new AppendEntriesReply(termFromMessage, trueIsSuccessFlag, myNextIndex);
+    AppendEntriesReply replyMessage = new AppendEntriesReply(termFromMessage, trueIsSuccessFlag, myNextIndex,
+        conflictTerm, conflictTermFirstIndex);
     request.reply(new RpcWireReply(message.from, message.to, QUORUM_ID, replyMessage));
   }
 
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.replication;
+
+import c5db.replication.generated.AppendEntries;
+import c5db.replication.generated.AppendEntriesReply;
+import c5db.replication.generated.HeartbeatBatch;
+import c5db.replication.generated.HeartbeatBatchReply;
+import c5db.replication.generated.ReplicationWireMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import static c5db.replication.ReplicatorService.messageIdOf;
+import static c5db.replication.ReplicatorService.partitionIndexOfQuorum;
+import static c5db.replication.ReplicatorService.partitionIndexOfWireMessage;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class ReplicatorServiceMessageRoutingTest {
+  private static final int NUMBER_OF_PARTITIONS = 3;
+  private static final long LOCAL_NODE = 1;
+  private static final long PEER_NODE = 2;
+
+  @Test
+  public void givesEachPartitionDistinctMessageIdsWhichEncodeItsIndex() {
+    Set<Long> messageIds = new HashSet<>();
+
+    for (int index = 0; index < NUMBER_OF_PARTITIONS; index++) {
+      for (long sequenceNumber = 1; sequenceNumber <= 100; sequenceNumber++) {
+        long messageId = messageIdOf(sequenceNumber, index, NUMBER_OF_PARTITIONS);
+
+        assertThat(messageIds.add(messageId), is(true));
+        assertThat(partitionIndexOfWireMessage(anAppendEntriesReply(messageId, "q"), NUMBER_OF_PARTITIONS),
+            is(equalTo(index)));
+      }
+    }
+  }
+
+  @Test
+  public void routesARequestToThePartitionOwningItsQuorumWhateverItsMessageId() {
+    for (String quorumId : new String[]{"q", "another quorum", "yet another quorum"}) {
+      int owningPartition = partitionIndexOfQuorum(quorumId, NUMBER_OF_PARTITIONS);
+
+      for (long messageId = 1; messageId <= NUMBER_OF_PARTITIONS; messageId++) {
+        assertThat(partitionIndexOfWireMessage(anAppendEntriesRequest(messageId, quorumId), NUMBER_OF_PARTITIONS),
+            is(equalTo(owningPartition)));
+      }
+    }
+  }
+
+  @Test
+  public void routesAReplyToThePartitionWhichSentTheRequestRatherThanThePartitionOwningItsQuorum() {
+    String quorumId = "q";
+    int senderIndex = (partitionIndexOfQuorum(quorumId, NUMBER_OF_PARTITIONS) + 1) % NUMBER_OF_PARTITIONS;
+    long messageId = messageIdOf(7, senderIndex, NUMBER_OF_PARTITIONS);
+
+    assertThat(partitionIndexOfWireMessage(anAppendEntriesReply(messageId, quorumId), NUMBER_OF_PARTITIONS),
+        is(equalTo(senderIndex)));
+  }
+
+  @Test
+  public void routesAHeartbeatBatchAndItsReplyByTheMessageIdOfTheBatch() {
+    for (int index = 0; index < NUMBER_OF_PARTITIONS; index++) {
+      long messageId = messageIdOf(7, index, NUMBER_OF_PARTITIONS);
+
+      assertThat(partitionIndexOfWireMessage(aHeartbeatBatch(messageId), NUMBER_OF_PARTITIONS),
+          is(equalTo(index)));
+      assertThat(partitionIndexOfWireMessage(aHeartbeatBatchReply(messageId), NUMBER_OF_PARTITIONS),
+          is(equalTo(index)));
+    }
+  }
+
+  @Test
+  public void routesEverythingToTheOnlyPartitionWhenThereIsJustOne() {
+    long messageId = messageIdOf(7, 0, 1);
+
+    assertThat(partitionIndexOfWireMessage(anAppendEntriesRequest(messageId, "q"), 1), is(equalTo(0)));
+    assertThat(partitionIndexOfWireMessage(anAppendEntriesReply(messageId, "q"), 1), is(equalTo(0)));
+    assertThat(partitionIndexOfWireMessage(aHeartbeatBatch(messageId), 1), is(equalTo(0)));
+    assertThat(partitionIndexOfWireMessage(aHeartbeatBatchReply(messageId), 1), is(equalTo(0)));
+  }
+
+  private static ReplicationWireMessage anAppendEntriesRequest(long messageId, String quorumId) {
+    return new ReplicationWireMessage(messageId, PEER_NODE, LOCAL_NODE, quorumId, false,
+        null, null, new AppendEntries(1, PEER_NODE, 0, 0, new ArrayList<>(), 0), null, null, null,
+        null, null, null, null, null, null);
+  }
+
+  private static ReplicationWireMessage anAppendEntriesReply(long messageId, String quorumId) {
+    return new ReplicationWireMessage(messageId, PEER_NODE, LOCAL_NODE, quorumId, true,
+        null, null, null, new AppendEntriesReply(1, true, 0, 0, 0), null, null,
+        null, null, null, null, null, null);
+  }
+
+  private static ReplicationWireMessage aHeartbeatBatch(long messageId) {
+    return new ReplicationWireMessage(messageId, PEER_NODE, LOCAL_NODE, null, false,
+        null, null, null, null, null, null,
+        new HeartbeatBatch(new ArrayList<>()), null,
+        null, null, null, null);
+  }
+
+  private static ReplicationWireMessage aHeartbeatBatchReply(long messageId) {
+    return new ReplicationWireMessage(messageId, PEER_NODE, LOCAL_NODE, null, true,
+        null, null, null, null, null, null,
+        null, new HeartbeatBatchReply(new ArrayList<>()),
+        null, null, null, null);
+  }
+}
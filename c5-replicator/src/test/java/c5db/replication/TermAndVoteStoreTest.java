@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package c5db.replication;
+
+import c5db.C5CommonTestUtil;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class TermAndVoteStoreTest {
+  private static final int MIN_RECORDS_BEFORE_COMPACTION = 10;
+
+  private final Path storePath = new C5CommonTestUtil().getDataTestDir("term-and-vote-store-test")
+      .resolve("terms-and-votes");
+  private TermAndVoteStore store;
+
+  @After
+  public void closeStore() throws Exception {
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void readsBackTheLatestTermAndVoteOfEachQuorumAfterReopening() throws Exception {
+    openStore();
+    store.writeCurrentTermAndVotedFor("a", 1, 0).get();
+    store.writeCurrentTermAndVotedFor("a", 2, 7).get();
+    store.writeCurrentTermAndVotedFor("b", 5, 3).get();
+
+    reopenStore();
+
+    assertThat(store.readCurrentTerm("a"), is(equalTo(2L)));
+    assertThat(store.readVotedFor("a"), is(equalTo(7L)));
+    assertThat(store.readCurrentTerm("b"), is(equalTo(5L)));
+    assertThat(store.readVotedFor("b"), is(equalTo(3L)));
+    assertThat(store.readCurrentTerm("never-written"), is(equalTo(0L)));
+  }
+
+  @Test(timeout = 5000)
+  public void completesEveryWriteOfAConcurrentBurstAndPersistsThemAll() throws Exception {
+    openStore();
+    final int numberOfQuorums = 500;
+    final List<ListenableFuture<Void>> writes = new ArrayList<>();
+    for (int i = 0; i < numberOfQuorums; i++) {
+      writes.add(store.writeCurrentTermAndVotedFor("quorum-" + i, i + 1, i));
+    }
+    Futures.allAsList(writes).get(4, TimeUnit.SECONDS);
+
+    reopenStore();
+
+    for (int i = 0; i < numberOfQuorums; i++) {
+      assertThat(store.readCurrentTerm("quorum-" + i), is(equalTo(i + 1L)));
+      assertThat(store.readVotedFor("quorum-" + i), is(equalTo((long) i)));
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void compactsTheFileWhilePreservingTheLatestValues() throws Exception {
+    openStore();
+    for (long term = 1; term <= 100; term++) {
+      store.writeCurrentTermAndVotedFor("a", term, term % 3).get();
+      store.writeCurrentTermAndVotedFor("b", term * 2, 0).get();
+    }
+    final long sizeOfOneRecordOfEach = 2 * (2 + 1 + 8 + 8 + 4);
+    assertThat(Files.size(storePath), is(lessThan(sizeOfOneRecordOfEach * MIN_RECORDS_BEFORE_COMPACTION)));
+
+    reopenStore();
+
+    assertThat(store.readCurrentTerm("a"), is(equalTo(100L)));
+    assertThat(store.readVotedFor("a"), is(equalTo(1L)));
+    assertThat(store.readCurrentTerm("b"), is(equalTo(200L)));
+  }
+
+  @Test(timeout = 5000)
+  public void ignoresAnIncompleteRecordLeftAtTheEndOfTheFileAndContinuesAfterIt() throws Exception {
+    openStore();
+    store.writeCurrentTermAndVotedFor("a", 4, 2).get();
+    store.close();
+
+    try (FileChannel channel = FileChannel.open(storePath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(new byte[]{0, 1, 'a', 0, 0, 0}));
+    }
+
+    openStore();
+    assertThat(store.readCurrentTerm("a"), is(equalTo(4L)));
+
+    store.writeCurrentTermAndVotedFor("a", 5, 0).get();
+    reopenStore();
+    assertThat(store.readCurrentTerm("a"), is(equalTo(5L)));
+  }
+
+  private void openStore() throws Exception {
+    store = new TermAndVoteStore(storePath, MIN_RECORDS_BEFORE_COMPACTION);
+  }
+
+  private void reopenStore() throws Exception {
+    store.close();
+    openStore();
+  }
+}